@@ -0,0 +1,66 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks as org.openjdk.jmh.Main does, but writes the results as
+ * JSON to {@value #DEFAULT_RESULT} unless -rf or -rff say otherwise, so that
+ * runs can be compared with each other. None of the benchmarks need a server.
+ * <p>
+ * For example, to run the codec benchmarks and keep the results:
+ * </p>
+ * <pre>
+ * java -jar target/benchmarks.jar -rff before.json 'common\.packet'
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+	public static final String DEFAULT_RESULT = "paho-benchmarks.json";
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		CommandLineOptions cmdOptions;
+		try {
+			cmdOptions = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Error parsing command line:");
+			System.err.println(" " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (cmdOptions.shouldHelp()) {
+			cmdOptions.showHelp();
+			return;
+		}
+		if (cmdOptions.shouldList()) {
+			new Runner(cmdOptions).list();
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+		if (!cmdOptions.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!cmdOptions.getResult().hasValue()) {
+			options.result(DEFAULT_RESULT);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.mqttv5.client.MqttClientInterface;
+import org.eclipse.paho.mqttv5.client.MqttPingSender;
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.MqttPubAck;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.eclipse.paho.mqttv5.common.packet.MqttReturnCode;
+import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The throughput of publishing through ClientState with several application
+ * threads calling {@link ClientState#send} and one sender thread taking the
+ * messages off the queue, as the CommsSender does.
+ * <p>
+ * The sender uses {@link ClientState#poll(long)}, which shares the queue
+ * handling of {@link ClientState#get()} but cannot block forever once the
+ * publishers stop at the end of an iteration. For QoS 1 it also acknowledges
+ * each message, so the whole flow is measured: token store, message IDs,
+ * persistence and the in-flight window. The publishers wait while more than
+ * {@link #MAX_QUEUED} messages are queued, so the queue stays bounded and the
+ * two scores settle at the rate the sender can keep up with.
+ * </p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientStateBenchmark {
+
+	static final int MAX_QUEUED = 1000;
+	// How long a publisher waits for the sender before sending anyway
+	static final int MAX_YIELDS = 1000;
+	static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Param({ "0", "1" })
+	public int qos;
+
+	private ClientComms comms;
+	private ClientState state;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final byte[] payload = new byte[64];
+
+	@Setup
+	public void setUp() throws MqttException {
+		MqttClientInterface client = new MqttClientInterface() {
+			public String getClientId() {
+				return "benchmark";
+			}
+
+			public String getServerURI() {
+				return "tcp://localhost:1883";
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open("benchmark");
+		comms = new ClientComms(client, persistence, new NoPingSender(), null, new MqttSessionState(),
+				new MqttConnectionState("benchmark"));
+		state = (ClientState) comms.getClientState();
+		state.connected();
+	}
+
+	@TearDown
+	public void tearDown() throws MqttException {
+		state.disconnected(null);
+		comms.close(true);
+	}
+
+	@Benchmark
+	@Group("publish")
+	@GroupThreads(3)
+	public MqttPublish send() throws MqttException {
+		for (int i = 0; queued.get() >= MAX_QUEUED && i < MAX_YIELDS; i++) {
+			Thread.yield();
+		}
+		MqttPublish message = new MqttPublish("benchmark/topic", new MqttMessage(payload, qos, false, null),
+				new MqttProperties());
+		queued.incrementAndGet();
+		state.send(message, new MqttToken("benchmark"));
+		return message;
+	}
+
+	@Benchmark
+	@Group("publish")
+	@GroupThreads(1)
+	public MqttWireMessage get() throws MqttException {
+		MqttWireMessage message = state.poll(POLL_NANOS);
+		if (message != null) {
+			queued.decrementAndGet();
+			state.notifySent(message);
+			if (qos > 0) {
+				state.notifyReceivedAck(new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, message.getMessageId(),
+						new MqttProperties()));
+			}
+		}
+		return message;
+	}
+
+	static class NoPingSender implements MqttPingSender {
+		public void init(ClientComms comms) {
+		}
+
+		public void start() {
+		}
+
+		public void stop() {
+		}
+
+		public void schedule(long delayInMilliseconds) {
+		}
+	}
+}
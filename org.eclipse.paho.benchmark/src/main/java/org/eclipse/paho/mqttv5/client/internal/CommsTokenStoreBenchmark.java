@@ -0,0 +1,112 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPingReq;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the token store operations made for each message: the token is
+ * saved when the message is queued, looked up when it is sent and when its
+ * acknowledgement arrives, and removed once it completes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommsTokenStoreBenchmark {
+
+	/** The IDs each thread uses, so that threads never share an ID. */
+	static final int IDS_PER_THREAD = 256;
+
+	@State(Scope.Benchmark)
+	public static class Store {
+		/** The number of other tokens already in the store. */
+		@Param({ "0", "1000", "30000" })
+		public int outstanding;
+
+		CommsTokenStore tokenStore;
+		final AtomicInteger threads = new AtomicInteger();
+
+		@Setup
+		public void setUp() throws MqttException {
+			tokenStore = new CommsTokenStore("benchmark");
+			// Above the IDs the threads use
+			for (int i = 0; i < outstanding; i++) {
+				tokenStore.saveToken(new MqttToken("benchmark"), publish(65535 - i));
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Messages {
+		MqttPublish[] publishes = new MqttPublish[IDS_PER_THREAD];
+		MqttToken[] tokens = new MqttToken[IDS_PER_THREAD];
+		MqttPingReq ping = new MqttPingReq();
+		int next = 0;
+
+		@Setup
+		public void setUp(Store store) {
+			int base = 1 + store.threads.getAndIncrement() * IDS_PER_THREAD;
+			for (int i = 0; i < IDS_PER_THREAD; i++) {
+				publishes[i] = publish(base + i);
+				tokens[i] = new MqttToken("benchmark");
+			}
+		}
+	}
+
+	static MqttPublish publish(int id) {
+		MqttPublish publish = new MqttPublish("topic", new MqttMessage(new byte[0], 1, false, null), null);
+		publish.setMessageId(id);
+		return publish;
+	}
+
+	@Benchmark
+	public MqttToken publishLifecycle(Store s, Messages m) throws MqttException {
+		int i = m.next++ & (IDS_PER_THREAD - 1);
+		s.tokenStore.saveToken(m.tokens[i], m.publishes[i]);
+		s.tokenStore.getToken(m.publishes[i]);
+		s.tokenStore.getToken(m.publishes[i]);
+		return s.tokenStore.removeToken(m.publishes[i]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public MqttToken publishLifecycleContended(Store s, Messages m) throws MqttException {
+		return publishLifecycle(s, m);
+	}
+
+	@Benchmark
+	public MqttToken pingLifecycle(Store s, Messages m) throws MqttException {
+		s.tokenStore.saveToken(m.tokens[0], m.ping);
+		s.tokenStore.getToken(m.ping);
+		return s.tokenStore.removeToken(m.ping);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of taking a message ID and handing it back, with a given share of
+ * the 65535 IDs already in flight.
+ * <p>
+ * {@link MessageIdAllocator} is compared with the synchronized linear probe of
+ * a map of boxed IDs which ClientState used before it.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageIdAllocatorBenchmark {
+
+	/** The percentage of IDs in use. */
+	@Param({ "0", "50", "90", "99", "99.9" })
+	public double occupancy;
+
+	private MessageIdAllocator bitmap;
+	private ProbingAllocator probing;
+
+	@Setup
+	public void setUp() {
+		bitmap = new MessageIdAllocator();
+		probing = new ProbingAllocator();
+		// The same IDs are in use in both, scattered as acks arrive out of order
+		Random random = new Random(42);
+		int target = (int) (MessageIdAllocator.MAX_MSG_ID * occupancy / 100);
+		while (bitmap.inUse() < target) {
+			int id = 1 + random.nextInt(MessageIdAllocator.MAX_MSG_ID);
+			if (bitmap.markInUse(id)) {
+				probing.markInUse(id);
+			}
+		}
+	}
+
+	@Benchmark
+	public int bitmap() {
+		int id = bitmap.allocate();
+		bitmap.release(id);
+		return id;
+	}
+
+	@Benchmark
+	public int probing() {
+		int id = probing.allocate();
+		probing.release(id);
+		return id;
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int bitmapContended() {
+		return bitmap();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public int probingContended() {
+		return probing();
+	}
+
+	/**
+	 * The allocator ClientState used before {@link MessageIdAllocator}.
+	 */
+	static class ProbingAllocator {
+		private final ConcurrentHashMap<Integer, Integer> inUseMsgIds = new ConcurrentHashMap<Integer, Integer>();
+		private int nextMsgId = 0;
+
+		void markInUse(int id) {
+			inUseMsgIds.put(Integer.valueOf(id), Integer.valueOf(id));
+		}
+
+		synchronized void release(int msgId) {
+			inUseMsgIds.remove(Integer.valueOf(msgId));
+		}
+
+		synchronized int allocate() {
+			int startingMessageId = nextMsgId;
+			int loopCount = 0;
+			do {
+				nextMsgId++;
+				if (nextMsgId > MessageIdAllocator.MAX_MSG_ID) {
+					nextMsgId = MessageIdAllocator.MIN_MSG_ID;
+				}
+				if (nextMsgId == startingMessageId) {
+					loopCount++;
+					if (loopCount == 2) {
+						return 0;
+					}
+				}
+			} while (inUseMsgIds.containsKey(Integer.valueOf(nextMsgId)));
+			Integer id = Integer.valueOf(nextMsgId);
+			inUseMsgIds.put(id, id);
+			return nextMsgId;
+		}
+	}
+}
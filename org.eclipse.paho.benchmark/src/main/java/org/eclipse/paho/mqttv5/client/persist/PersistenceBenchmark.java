@@ -0,0 +1,133 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of each persistence operation ClientState makes for a QoS 1 or 2
+ * message, for each of the persistence implementations, with their default
+ * sync policies. The file based stores write to a new directory under
+ * java.io.tmpdir, which is deleted afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+	static final int KEYS = 1024;
+
+	@Param({ "memory", "file", "log", "mapped" })
+	public String persistence;
+
+	@Param({ "128" })
+	public int payloadSize;
+
+	private File directory;
+	private MqttClientPersistence store;
+	private MqttPersistable message;
+	private String[] keys;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException, MqttException {
+		directory = Files.createTempDirectory("paho-benchmark").toFile();
+		if (persistence.equals("memory")) {
+			store = new MemoryPersistence();
+		} else if (persistence.equals("file")) {
+			store = new MqttDefaultFilePersistence(directory.getPath());
+		} else if (persistence.equals("log")) {
+			store = new MqttLogFilePersistence(directory.getPath());
+		} else if (persistence.equals("mapped")) {
+			store = new MqttMappedFilePersistence(directory.getPath());
+		} else {
+			throw new IllegalArgumentException(persistence);
+		}
+		store.open("benchmark");
+
+		MqttPublish publish = new MqttPublish("benchmark/topic",
+				new MqttMessage(new byte[payloadSize], 1, false, null), null);
+		publish.setMessageId(1);
+		message = publish;
+		// Half the keys are stored, for get
+		keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "s-" + (i + 1);
+			if (i % 2 == 0) {
+				store.put(keys[i], message);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws MqttException {
+		store.clear();
+		store.close();
+		delete(directory);
+	}
+
+	/**
+	 * A message is stored when it is sent and removed when it is acknowledged.
+	 */
+	@Benchmark
+	public String putRemove() throws MqttException {
+		String key = keys[(next++ & (KEYS / 2 - 1)) * 2 + 1];
+		store.put(key, message);
+		store.remove(key);
+		return key;
+	}
+
+	@Benchmark
+	public String put() throws MqttException {
+		String key = keys[(next++ & (KEYS / 2 - 1)) * 2];
+		store.put(key, message);
+		return key;
+	}
+
+	@Benchmark
+	public MqttPersistable get() throws MqttException {
+		return store.get(keys[(next++ & (KEYS / 2 - 1)) * 2]);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the UTF-8 string and variable byte integer codecs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttDataTypesBenchmark {
+
+	@State(Scope.Thread)
+	public static class Strings {
+		/** ascii: a typical topic; multibyte: the same length of mixed scripts. */
+		@Param({ "ascii", "multibyte" })
+		public String text;
+
+		String string;
+		ByteBuffer buffer;
+		ByteBuffer encoded;
+
+		@Setup
+		public void setUp() throws MqttException {
+			string = text.equals("ascii") ? "sensors/building-1/floor-2/room-17/temperature"
+					: "sensors/\u5efa\u7269-1/\u00e9tage-2/\u0437\u0430\u043b-17/\ud83c\udf21";
+			buffer = ByteBuffer.allocate(MqttDataTypes.encodedUTF8Length(string));
+			MqttDataTypes.encodeUTF8(buffer, string);
+			encoded = ByteBuffer.wrap(buffer.array());
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Numbers {
+		/** Values which take one to four bytes. */
+		@Param({ "100", "10000", "1000000", "100000000" })
+		public int number;
+
+		ByteBuffer buffer;
+		ByteBuffer encoded;
+
+		@Setup
+		public void setUp() {
+			buffer = ByteBuffer.allocate(4);
+			encoded = ByteBuffer.wrap(MqttDataTypes.encodeVariableByteInteger(number));
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer encodeUTF8(Strings s) throws MqttException {
+		s.buffer.clear();
+		MqttDataTypes.encodeUTF8(s.buffer, s.string);
+		return s.buffer;
+	}
+
+	@Benchmark
+	public int encodedUTF8Length(Strings s) {
+		return MqttDataTypes.encodedUTF8Length(s.string);
+	}
+
+	@Benchmark
+	public String decodeUTF8(Strings s) throws MqttException {
+		s.encoded.rewind();
+		return MqttDataTypes.decodeUTF8(s.encoded);
+	}
+
+	@Benchmark
+	public ByteBuffer writeVariableByteInteger(Numbers n) {
+		n.buffer.clear();
+		MqttDataTypes.writeVariableByteInteger(n.buffer, n.number);
+		return n.buffer;
+	}
+
+	@Benchmark
+	public byte[] encodeVariableByteInteger(Numbers n) {
+		return MqttDataTypes.encodeVariableByteInteger(n.number);
+	}
+
+	@Benchmark
+	public int readVariableByteInteger(Numbers n) throws MqttException {
+		n.encoded.rewind();
+		return MqttDataTypes.readVariableByteInteger(n.encoded).getValue();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of encoding and decoding the properties of a PUBLISH.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttPropertiesBenchmark {
+
+	/**
+	 * none: no properties; alias: just a topic alias; request: a request with
+	 * a response topic, correlation data, content type and user properties.
+	 */
+	@Param({ "none", "alias", "request" })
+	public String properties;
+
+	private MqttProperties encoder;
+	private ByteBuffer buffer;
+	private ByteBuffer encoded;
+	private Byte[] validProperties;
+
+	@Setup
+	public void setUp() throws MqttException {
+		// A PUBLISH sets which of the properties are valid
+		encoder = new MqttPublish("topic", new MqttMessage(), null).getProperties();
+		if (properties.equals("alias")) {
+			encoder.setTopicAlias(Integer.valueOf(3));
+		} else if (properties.equals("request")) {
+			encoder.setResponseTopic("replies/benchmark-client");
+			encoder.setCorrelationData(new byte[16]);
+			encoder.setContentType("application/json");
+			encoder.setMessageExpiryInterval(Long.valueOf(30));
+			ArrayList<UserProperty> userProperties = new ArrayList<UserProperty>();
+			userProperties.add(new UserProperty("trace-id", "4bf92f3577b34da6a3ce929d0e0e4736"));
+			userProperties.add(new UserProperty("tenant", "benchmark"));
+			encoder.setUserProperties(userProperties);
+		}
+		buffer = ByteBuffer.allocate(encoder.encodedLength());
+		encoded = ByteBuffer.wrap(encoder.encodeProperties());
+		validProperties = new Byte[] { MqttProperties.PAYLOAD_FORMAT_INDICATOR_IDENTIFIER,
+				MqttProperties.MESSAGE_EXPIRY_INTERVAL_IDENTIFIER, MqttProperties.TOPIC_ALIAS_IDENTIFIER,
+				MqttProperties.RESPONSE_TOPIC_IDENTIFIER, MqttProperties.CORRELATION_DATA_IDENTIFIER,
+				MqttProperties.USER_DEFINED_PAIR_IDENTIFIER, MqttProperties.CONTENT_TYPE_IDENTIFIER };
+	}
+
+	@Benchmark
+	public ByteBuffer writeTo() throws MqttException {
+		buffer.clear();
+		encoder.writeTo(buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] encodeProperties() throws MqttException {
+		return encoder.encodeProperties();
+	}
+
+	@Benchmark
+	public MqttProperties decodeProperties() throws MqttException {
+		encoded.rewind();
+		MqttProperties decoded = new MqttProperties(validProperties);
+		decoded.decodeProperties(encoded);
+		return decoded;
+	}
+}
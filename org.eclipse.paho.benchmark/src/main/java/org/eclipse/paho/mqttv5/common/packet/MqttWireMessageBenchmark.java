@@ -0,0 +1,158 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.MqttSubscription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of encoding and decoding each type of packet.
+ * <p>
+ * {@link #writeTo()} is how the network modules encode, {@link #serialize()}
+ * is how packets are encoded for persistence, and {@link #decode()} is how the
+ * receiver decodes a packet which arrived in one read.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttWireMessageBenchmark {
+
+	@Param({ "CONNECT", "CONNACK", "PUBLISH", "PUBACK", "PUBREC", "PUBREL", "PUBCOMP", "SUBSCRIBE", "SUBACK",
+			"UNSUBSCRIBE", "UNSUBACK", "PINGREQ", "PINGRESP", "DISCONNECT", "AUTH" })
+	public String type;
+
+	/** The size of the PUBLISH payload. */
+	@Param({ "128" })
+	public int payloadSize;
+
+	private MqttWireMessage message;
+	private ByteBuffer buffer;
+	private ByteBuffer encoded;
+	private MqttPacketDecoder decoder;
+
+	@Setup
+	public void setUp() throws MqttException {
+		message = create(type, payloadSize);
+		buffer = ByteBuffer.allocate(message.encodedLength());
+		encoded = ByteBuffer.wrap(message.serialize());
+		decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+	}
+
+	@Benchmark
+	public ByteBuffer writeTo() throws MqttException {
+		buffer.clear();
+		message.writeTo(buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] serialize() throws MqttException {
+		return message.serialize();
+	}
+
+	@Benchmark
+	public MqttWireMessage decode() throws MqttException {
+		encoded.rewind();
+		return decoder.decode(encoded);
+	}
+
+	/**
+	 * Creates a packet with the properties typical of its type.
+	 */
+	static MqttWireMessage create(String type, int payloadSize) throws MqttException {
+		MqttProperties properties = new MqttProperties();
+		ArrayList<UserProperty> userProperties = new ArrayList<UserProperty>();
+		userProperties.add(new UserProperty("trace-id", "4bf92f3577b34da6a3ce929d0e0e4736"));
+
+		if (type.equals("CONNECT")) {
+			properties.setSessionExpiryInterval(Long.valueOf(3600));
+			properties.setReceiveMaximum(Integer.valueOf(100));
+			properties.setTopicAliasMaximum(Integer.valueOf(10));
+			MqttConnect connect = new MqttConnect("benchmark-client", 5, true, 60, properties, new MqttProperties());
+			connect.setUserName("user");
+			connect.setPassword("password".getBytes());
+			return connect;
+		} else if (type.equals("CONNACK")) {
+			properties.setAssignedClientIdentifier("benchmark-client");
+			properties.setReceiveMaximum(Integer.valueOf(100));
+			properties.setTopicAliasMaximum(Integer.valueOf(10));
+			return new MqttConnAck(false, 0, properties);
+		} else if (type.equals("PUBLISH")) {
+			properties.setMessageExpiryInterval(Long.valueOf(60));
+			properties.setContentType("application/json");
+			properties.setUserProperties(userProperties);
+			MqttPublish publish = new MqttPublish("sensors/building-1/floor-2/temperature",
+					new MqttMessage(new byte[payloadSize], 1, false, null), properties);
+			publish.setMessageId(42);
+			return publish;
+		} else if (type.equals("PUBACK")) {
+			return new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, 42, properties);
+		} else if (type.equals("PUBREC")) {
+			return new MqttPubRec(MqttReturnCode.RETURN_CODE_SUCCESS, 42, properties);
+		} else if (type.equals("PUBREL")) {
+			return new MqttPubRel(MqttReturnCode.RETURN_CODE_SUCCESS, 42, properties);
+		} else if (type.equals("PUBCOMP")) {
+			return new MqttPubComp(MqttReturnCode.RETURN_CODE_SUCCESS, 42, properties);
+		} else if (type.equals("SUBSCRIBE")) {
+			properties.setSubscriptionIdentifier(Integer.valueOf(7));
+			MqttSubscribe subscribe = new MqttSubscribe(new MqttSubscription[] {
+					new MqttSubscription("sensors/+/floor-2/#", 1), new MqttSubscription("alerts/#", 2) },
+					properties);
+			subscribe.setMessageId(43);
+			return subscribe;
+		} else if (type.equals("SUBACK")) {
+			MqttSubAck subAck = new MqttSubAck(new int[] { 1, 2 }, properties);
+			subAck.setMessageId(43);
+			return subAck;
+		} else if (type.equals("UNSUBSCRIBE")) {
+			MqttUnsubscribe unsubscribe = new MqttUnsubscribe(new String[] { "sensors/+/floor-2/#", "alerts/#" },
+					properties);
+			unsubscribe.setMessageId(44);
+			return unsubscribe;
+		} else if (type.equals("UNSUBACK")) {
+			MqttUnsubAck unsubAck = new MqttUnsubAck(new int[] { 0, 0 }, properties);
+			unsubAck.setMessageId(44);
+			return unsubAck;
+		} else if (type.equals("PINGREQ")) {
+			return new MqttPingReq();
+		} else if (type.equals("PINGRESP")) {
+			return new MqttPingResp();
+		} else if (type.equals("DISCONNECT")) {
+			properties.setReasonString("normal disconnection");
+			return new MqttDisconnect(MqttReturnCode.RETURN_CODE_SUCCESS, properties);
+		} else if (type.equals("AUTH")) {
+			properties.setAuthenticationMethod("SCRAM-SHA-1");
+			properties.setAuthenticationData(new byte[32]);
+			return new MqttAuth(MqttReturnCode.RETURN_CODE_CONTINUE_AUTHENTICATION, properties);
+		}
+		throw new IllegalArgumentException(type);
+	}
+}
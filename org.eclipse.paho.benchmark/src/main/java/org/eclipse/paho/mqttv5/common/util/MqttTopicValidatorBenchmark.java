@@ -0,0 +1,113 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.internal.TopicFilterTrie;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of validating topics and matching them against filters.
+ * <p>
+ * {@link #matchEach(Subscriptions)} is how a message would be routed by
+ * testing every subscription with {@link MqttTopicValidator#isMatched}, and
+ * {@link #matchTrie(Subscriptions)} is how CommsCallback routes it.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttTopicValidatorBenchmark {
+
+	static final String TOPIC = "sensors/building-1/floor-2/room-17/temperature";
+
+	@State(Scope.Thread)
+	public static class Filters {
+		@Param({ "sensors/building-1/floor-2/room-17/temperature", "sensors/+/floor-2/+/temperature",
+				"sensors/building-1/#", "$share/group/sensors/+/floor-2/#" })
+		public String filter;
+	}
+
+	@State(Scope.Thread)
+	public static class Subscriptions {
+		/** The number of subscriptions, one of which matches. */
+		@Param({ "10", "1000" })
+		public int subscriptions;
+
+		List<String> filters;
+		TopicFilterTrie<String> trie;
+		List<String> matches;
+
+		@Setup
+		public void setUp() {
+			filters = new ArrayList<String>();
+			trie = new TopicFilterTrie<String>();
+			for (int i = 1; i < subscriptions; i++) {
+				String filter = "sensors/building-" + i + "/+/room-" + i + "/#";
+				filters.add(filter);
+				trie.put(filter, filter);
+			}
+			filters.add("sensors/+/floor-2/#");
+			trie.put("sensors/+/floor-2/#", "sensors/+/floor-2/#");
+			matches = new ArrayList<String>();
+		}
+	}
+
+	@Benchmark
+	public boolean isMatched(Filters f) {
+		return MqttTopicValidator.isMatched(f.filter, TOPIC);
+	}
+
+	@Benchmark
+	public String validateFilter(Filters f) {
+		MqttTopicValidator.validate(f.filter, true, true);
+		return f.filter;
+	}
+
+	@Benchmark
+	public String validateName() {
+		MqttTopicValidator.validate(TOPIC, false, false);
+		return TOPIC;
+	}
+
+	@Benchmark
+	public int matchEach(Subscriptions s) {
+		s.matches.clear();
+		for (String filter : s.filters) {
+			if (MqttTopicValidator.isMatched(filter, TOPIC)) {
+				s.matches.add(filter);
+			}
+		}
+		return s.matches.size();
+	}
+
+	@Benchmark
+	public int matchTrie(Subscriptions s) {
+		s.matches.clear();
+		s.trie.match(TOPIC, s.matches);
+		return s.matches.size();
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal.logBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.paho.client.mqttv3.logging.SimpleLogFormatter;
+import org.eclipse.paho.client.mqttv3.logging.TraceBuffer;
+
+/**
+ * Turn a binary trace written by
+ * {@link org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger} back into text.
+ *
+ * The text of each trace point is found by scanning the Paho source files
+ * as {@link LogMessageExtractor} does, which also gives where in the
+ * source the trace point is, or is read from a logcat.properties file.
+ * The records of all threads are written in time order, one per line.
+ */
+public class BinaryTraceDecoder extends LogMessageExtractor {
+
+	public static void main(String[] args) {
+		String dir = "../org.eclipse.paho.client.mqttv3/src";
+		String catalog = null;
+		String output = null;
+		List traces = new ArrayList();
+		for (int i=0;i<args.length; i++) {
+			if (args[i].equals("-d") && i+1 < args.length) {
+				dir = args[++i];
+			} else if (args[i].equals("-c") && i+1 < args.length) {
+				catalog = args[++i];
+			} else if (args[i].equals("-o") && i+1 < args.length) {
+				output = args[++i];
+			} else if (args[i].startsWith("-")) {
+				System.out.println("Unknown arg: "+args[i]);
+				usageAndExit();
+			} else {
+				traces.add(args[i]);
+			}
+		}
+		if (traces.isEmpty()) {
+			usageAndExit();
+		}
+
+		try {
+			BinaryTraceDecoder decoder = new BinaryTraceDecoder(dir);
+			if (catalog != null) {
+				decoder.loadCatalog(catalog);
+			} else if (decoder.scan() != 0) {
+				System.err.println("Duplicate trace points found, their source locations may be wrong");
+			}
+			PrintStream out = output == null ? System.out : new PrintStream(new FileOutputStream(output));
+			for (Iterator i = traces.iterator(); i.hasNext();) {
+				decoder.decode((String) i.next(), out);
+			}
+			out.flush();
+			if (out != System.out) {
+				out.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static void usageAndExit() {
+		System.out.println("usage:\n org.eclipse.paho.client.mqttv3.internal.logBuilder.BinaryTraceDecoder [-d baseDir | -c catalog] [-o outputFile] traceFile...");
+		System.out.println("  -d baseDir        the source base directory to find trace points in [../org.eclipse.paho.client.mqttv3/src]");
+		System.out.println("  -c catalog        a logcat.properties file to use instead of the source");
+		System.out.println("  -o outputFile     the output file.          [standard output]");
+		System.exit(1);
+	}
+
+	private static final String[] LEVELS = {"", "SEVERE", "WARNING", "INFO", "CONFIG", "FINE", "FINER", "FINEST"};
+
+	private static class Record {
+		long time;
+		String threadName;
+		long threadId;
+		int id;
+		int level;
+		String method;
+		String context;
+		String text;
+		Object[] inserts;
+		boolean truncated;
+		String thrown;
+	}
+
+	public BinaryTraceDecoder(String basedir) {
+		super(basedir, null);
+	}
+
+	/**
+	 * Use the trace points in a logcat.properties file rather than the source.
+	 * @param catalog the file name
+	 * @throws IOException if the file cannot be read
+	 */
+	public void loadCatalog(String catalog) throws IOException {
+		Properties properties = new Properties();
+		FileInputStream in = new FileInputStream(catalog);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		this.messages.putAll(properties);
+	}
+
+	/**
+	 * Write the records of a binary trace as text.
+	 * @param trace the trace file name
+	 * @param out where to write the text
+	 * @throws IOException if the trace cannot be read or is not a binary trace
+	 */
+	public void decode(String trace, PrintStream out) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(trace)));
+		List records = new ArrayList();
+		long wallClock;
+		long nanoTime;
+		try {
+			if (in.readInt() != TraceBuffer.MAGIC) {
+				throw new IOException(trace+" is not a binary trace");
+			}
+			short version = in.readShort();
+			if (version != TraceBuffer.VERSION) {
+				throw new IOException(trace+" has unknown version "+version);
+			}
+			wallClock = in.readLong();
+			nanoTime = in.readLong();
+			int rings = in.readInt();
+			for (int i=0;i<rings;i++) {
+				readRing(in, records);
+			}
+		} finally {
+			in.close();
+		}
+
+		Collections.sort(records, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long t1 = ((Record) o1).time;
+				long t2 = ((Record) o2).time;
+				return t1 < t2 ? -1 : t1 == t2 ? 0 : 1;
+			}
+		});
+		for (Iterator i = records.iterator(); i.hasNext();) {
+			Record record = (Record) i.next();
+			out.println(format(record, wallClock + (record.time - nanoTime) / 1000000));
+		}
+	}
+
+	private void readRing(DataInputStream in, List records) throws IOException {
+		String threadName = in.readUTF();
+		long threadId = in.readLong();
+		int count = in.readInt();
+		for (int i=0;i<count;i++) {
+			Record record = new Record();
+			record.threadName = threadName;
+			record.threadId = threadId;
+			record.time = in.readLong();
+			record.id = in.readInt();
+			record.level = in.readByte();
+			record.method = in.readUTF();
+			record.context = in.readUTF();
+			if (record.id < 0) {
+				record.text = in.readUTF();
+			}
+			record.inserts = new Object[in.readByte()];
+			int flags = in.readByte();
+			for (int j=0;j<record.inserts.length;j++) {
+				int kind = in.readByte();
+				if (kind == TraceBuffer.KIND_LONG) {
+					record.inserts[j] = Long.valueOf(in.readLong());
+				} else if (kind == TraceBuffer.KIND_BOOLEAN) {
+					record.inserts[j] = Boolean.valueOf(in.readBoolean());
+				} else if (kind == TraceBuffer.KIND_OBJECT) {
+					record.inserts[j] = in.readUTF();
+				}
+			}
+			record.truncated = (flags & TraceBuffer.FLAG_TRUNCATED) != 0;
+			if ((flags & TraceBuffer.FLAG_THROWN) != 0) {
+				record.thrown = in.readUTF();
+			}
+			records.add(record);
+		}
+	}
+
+	private String format(Record record, long millis) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(record.level > 0 && record.level < LEVELS.length ? LEVELS[record.level] : String.valueOf(record.level)).append("\t");
+		sb.append(MessageFormat.format("{0, date, yy-MM-dd} {0, time, kk:mm:ss.SSS} ",
+			new Object[] { new Date(millis) })).append("\t");
+		sb.append(SimpleLogFormatter.left(location(record.id), 24, ' ')).append("\t");
+		sb.append(SimpleLogFormatter.left(record.method, 23, ' ')).append("\t");
+		sb.append(record.threadName).append("\t");
+		if (record.context.length() > 0) {
+			sb.append(record.context).append(": ");
+		}
+		sb.append(message(record));
+		if (record.truncated) {
+			sb.append(" ...");
+		}
+		if (record.thrown != null) {
+			sb.append(" Throwable occurred: ").append(record.thrown);
+		}
+		return sb.toString();
+	}
+
+	private String location(int id) {
+		String point = (String) this.points.get(String.valueOf(id));
+		if (point == null) {
+			return id < 0 ? "" : String.valueOf(id);
+		}
+		// Keep just the class name and line
+		int dot = point.lastIndexOf('.', point.indexOf(':'));
+		return point.substring(dot + 1);
+	}
+
+	private String message(Record record) {
+		if (record.id < 0) {
+			return record.text;
+		}
+		String pattern = (String) this.messages.get(String.valueOf(record.id));
+		if (pattern != null) {
+			try {
+				return record.id+": "+MessageFormat.format(pattern, record.inserts);
+			} catch (IllegalArgumentException e) {
+				// Fall through and list the inserts
+			}
+		}
+		StringBuffer sb = new StringBuffer().append(record.id).append(":");
+		for (int i=0;i<record.inserts.length;i++) {
+			sb.append(" {").append(i).append("}=").append(record.inserts[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -30,6 +30,9 @@ import java.util.regex.Pattern;
  * This needs to be run any time new trace/log records are added
  * or changed. The logcat.properties file in the mqttv3.internal.nls 
  * is updated to match the trace records in the paho source files. 
+ * 
+ * The trace points found are also kept, with where they are in the 
+ * source, for {@link BinaryTraceDecoder}.
  */
 public class LogMessageExtractor {
 
@@ -76,14 +79,26 @@ public class LogMessageExtractor {
 	private String outputfile;
 	private Pattern pattern;
 	private PrintStream out;
-	private HashMap points;
+	protected HashMap points;
+	protected HashMap messages;
 	
 	public LogMessageExtractor(String basedir, String outputfile) {
 		this.basedir = (new File(basedir)).getAbsolutePath();
 		this.outputfile = outputfile;
 		this.pattern = Pattern.compile("^\\s*//\\s*@TRACE\\s*(\\d+)=(.*?)\\s*$");
 		this.points = new HashMap();
+		this.messages = new HashMap();
+	}
+	
+	/**
+	 * Scan the source files for trace points without writing the catalog.
+	 * @return 0, or 1 if a trace point is duplicated
+	 * @throws Exception if the source files cannot be read
+	 */
+	public short scan() throws Exception {
+		return scanDirectory(new File(this.basedir));
 	}
+	
 	public void parse() throws Exception {
 		System.out.println("Scanning source directories: "+this.basedir);
 		System.out.println("Outputing results to: "+this.outputfile);
@@ -144,7 +159,10 @@ public class LogMessageExtractor {
 //				out.println(number+".line="+lineNo);
 //				out.println(number+".value="+m.group(2));
 				this.points.put(number, classname+":"+lineNo);
-				out.println(number+"="+m.group(2));
+				this.messages.put(number, m.group(2));
+				if (out != null) {
+					out.println(number+"="+m.group(2));
+				}
 			}
 			lineNo++;
 		}
@@ -0,0 +1,67 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The sender must survive being woken while the client is connecting, before
+ * the server has answered the CONNECT, and still send once connected.
+ */
+public class SenderWakeUpTest {
+
+	@Test
+	public void testWakeUpBeforeConnack() throws Exception {
+		final CountDownLatch connectReceived = new CountDownLatch(1);
+		final CountDownLatch sendConnack = new CountDownLatch(1);
+		TestBroker broker = new TestBroker() {
+			@Override
+			protected void onReceived(MqttWireMessage message) throws Exception {
+				if (message instanceof MqttConnect) {
+					connectReceived.countDown();
+					sendConnack.await();
+				}
+			}
+		};
+
+		MqttAsyncClient client = new MqttAsyncClient(broker.getURI(), "SenderWakeUpTest", new MemoryPersistence());
+		try {
+			IMqttToken connectToken = client.connect();
+			Assert.assertTrue(connectReceived.await(10, TimeUnit.SECONDS));
+			// Wake the sender, which is waiting for the CONNACK, several times
+			for (int i = 0; i < 10; i++) {
+				client.comms.getClientState().notifyQueueLock();
+				Thread.sleep(10);
+			}
+			sendConnack.countDown();
+			connectToken.waitForCompletion(10000);
+
+			IMqttDeliveryToken publishToken = client.publish("wake/up", "hello".getBytes(), 1, false);
+			Assert.assertTrue("PUBLISH not sent", broker.awaitReceived(MqttPublish.class, 1, 10000));
+			publishToken.waitForCompletion(10000);
+			client.disconnect().waitForCompletion(10000);
+		} finally {
+			if (client.isConnected()) {
+				client.disconnectForcibly(0, 1000);
+			}
+			client.close(true);
+			broker.close();
+		}
+	}
+}
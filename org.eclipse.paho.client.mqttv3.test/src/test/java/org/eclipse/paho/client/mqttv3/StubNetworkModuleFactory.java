@@ -0,0 +1,59 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
+import org.eclipse.paho.client.mqttv3.spi.NetworkModuleFactory;
+
+/**
+ * Connects "stub://name" URIs to the {@link TestBroker} of that name. It is
+ * registered for the tests in META-INF/services.
+ */
+public class StubNetworkModuleFactory implements NetworkModuleFactory {
+
+	private static final Map<String, TestBroker> SERVERS = new ConcurrentHashMap<String, TestBroker>();
+
+	static void register(String name, TestBroker server) {
+		SERVERS.put(name, server);
+	}
+
+	static void unregister(String name) {
+		SERVERS.remove(name);
+	}
+
+	@Override
+	public Set<String> getSupportedUriSchemes() {
+		return Collections.singleton("stub");
+	}
+
+	@Override
+	public void validateURI(URI brokerUri) throws IllegalArgumentException {
+		if (brokerUri.getHost() == null) {
+			throw new IllegalArgumentException("missing server name in \"" + brokerUri + "\"");
+		}
+	}
+
+	@Override
+	public NetworkModule createNetworkModule(URI brokerUri, MqttConnectOptions options, String clientId)
+			throws MqttException {
+		TestBroker server = SERVERS.get(brokerUri.getHost());
+		if (server == null) {
+			throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+		}
+		return server.connect(brokerUri.toString());
+	}
+}
@@ -0,0 +1,464 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+
+/**
+ * A broker for tests, which answers enough of MQTT 3.1.1 for a client to
+ * connect, publish, subscribe, unsubscribe and ping, and records every packet
+ * it receives.
+ * <p>
+ * Clients connect over TCP to {@link #getURI()}, or in memory to
+ * {@link #getStubURI()}, where the broker can also be told to fail the
+ * client's flushes. Tests which need to hold up or change an answer override
+ * {@link #onReceived(MqttWireMessage)}.
+ * </p>
+ */
+public class TestBroker extends TestServer {
+
+	private static final AtomicInteger COUNT = new AtomicInteger();
+	private static final long READ_TIMEOUT = 100;
+
+	private final String name = "broker" + COUNT.incrementAndGet();
+	private final List<MqttWireMessage> received = new ArrayList<MqttWireMessage>();
+	private final AtomicInteger connects = new AtomicInteger();
+	private volatile boolean failFlush = false;
+	private volatile boolean answerPublishes = true;
+	private volatile boolean answerPings = true;
+	private volatile int subscribeReturnCode = -1;
+	private volatile Connection connection;
+
+	public TestBroker() throws IOException {
+		StubNetworkModuleFactory.register(name, this);
+		start();
+	}
+
+	/**
+	 * @return the URI of the broker's TCP port
+	 */
+	public String getURI() {
+		return "tcp://localhost:" + getPort();
+	}
+
+	/**
+	 * @return the URI for connecting in memory, see
+	 *         {@link StubNetworkModuleFactory}
+	 */
+	public String getStubURI() {
+		return "stub://" + name;
+	}
+
+	@Override
+	public void close() throws IOException {
+		StubNetworkModuleFactory.unregister(name);
+		super.close();
+		Connection current = connection;
+		if (current != null) {
+			current.stop();
+		}
+	}
+
+	/**
+	 * @param failFlush
+	 *            true to make each flush of an in-memory client's output throw
+	 */
+	public void setFailFlush(boolean failFlush) {
+		this.failFlush = failFlush;
+	}
+
+	/**
+	 * @param answerPublishes
+	 *            false to leave QoS 1 and 2 PUBLISHes unacknowledged
+	 */
+	public void setAnswerPublishes(boolean answerPublishes) {
+		this.answerPublishes = answerPublishes;
+	}
+
+	/**
+	 * @param answerPings
+	 *            false to leave PINGREQs unanswered
+	 */
+	public void setAnswerPings(boolean answerPings) {
+		this.answerPings = answerPings;
+	}
+
+	/**
+	 * @param subscribeReturnCode
+	 *            the return code for every subscription, or -1 to grant the
+	 *            QoS asked for
+	 */
+	public void setSubscribeReturnCode(int subscribeReturnCode) {
+		this.subscribeReturnCode = subscribeReturnCode;
+	}
+
+	/**
+	 * Sends a packet to the client which connected last.
+	 */
+	public void send(MqttWireMessage message) throws MqttException, IOException {
+		byte[] header = message.getHeader();
+		byte[] payload = message.getPayload();
+		byte[] packet = new byte[header.length + payload.length];
+		System.arraycopy(header, 0, packet, 0, header.length);
+		System.arraycopy(payload, 0, packet, header.length, payload.length);
+		connection.deliver(packet);
+	}
+
+	/**
+	 * Ends the connection of the client which connected last, as if the
+	 * network had failed.
+	 */
+	public void dropConnection() {
+		connection.stop();
+	}
+
+	/**
+	 * @return the number of CONNECTs received
+	 */
+	public int getConnects() {
+		return connects.get();
+	}
+
+	/**
+	 * @return the packets received of the given type, in order
+	 */
+	public <T extends MqttWireMessage> List<T> getReceived(Class<T> type) {
+		List<T> result = new ArrayList<T>();
+		synchronized (received) {
+			for (MqttWireMessage message : received) {
+				if (type.isInstance(message)) {
+					result.add(type.cast(message));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Waits until at least the given number of packets of a type has been
+	 * received.
+	 *
+	 * @return true if they were received before the timeout
+	 */
+	public boolean awaitReceived(Class<? extends MqttWireMessage> type, int count, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (received) {
+			while (getReceived(type).size() < count) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				received.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Called with each packet received, before it is answered, on the thread
+	 * serving the connection.
+	 *
+	 * @param message
+	 *            the packet
+	 */
+	protected void onReceived(MqttWireMessage message) throws Exception {
+	}
+
+	NetworkModule connect(String uri) {
+		StubConnection stub = new StubConnection(uri);
+		connection = stub;
+		return stub;
+	}
+
+	@Override
+	protected void serve(Socket socket) throws Exception {
+		socket.setTcpNoDelay(true);
+		SocketConnection current = new SocketConnection(socket);
+		connection = current;
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		while (true) {
+			int type = in.read();
+			if (type < 0) {
+				break;
+			}
+			// Keep the fixed header, as the packet is decoded whole
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			header.write(type);
+			int length = 0;
+			int multiplier = 1;
+			int digit;
+			do {
+				digit = in.read();
+				if (digit < 0) {
+					throw new EOFException();
+				}
+				header.write(digit);
+				length += (digit & 0x7f) * multiplier;
+				multiplier *= 128;
+			} while ((digit & 0x80) != 0);
+			byte[] packet = new byte[header.size() + length];
+			System.arraycopy(header.toByteArray(), 0, packet, 0, header.size());
+			in.readFully(packet, header.size(), length);
+			if (!receive(current, packet, header.size())) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records a packet from the client and answers it. The answers are built
+	 * here as the wire classes only decode the server's packets.
+	 *
+	 * @return false once the connection has ended
+	 */
+	private boolean receive(Connection from, byte[] packet, int bodyStart) throws Exception {
+		MqttWireMessage message = MqttWireMessage.createWireMessage(packet);
+		synchronized (received) {
+			received.add(message);
+			received.notifyAll();
+		}
+		onReceived(message);
+		byte idHigh = (byte) (message.getMessageId() >> 8);
+		byte idLow = (byte) message.getMessageId();
+		int qos = (packet[0] >> 1) & 0x03;
+		switch ((packet[0] >> 4) & 0x0f) {
+		case MqttWireMessage.MESSAGE_TYPE_CONNECT:
+			connects.incrementAndGet();
+			from.deliver(new byte[] { 0x20, 0x02, 0x00, 0x00 });
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_PUBLISH:
+			if (qos == 1 && answerPublishes) {
+				from.deliver(new byte[] { 0x40, 0x02, idHigh, idLow });
+			} else if (qos == 2 && answerPublishes) {
+				from.deliver(new byte[] { 0x50, 0x02, idHigh, idLow });
+			}
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_PUBREL:
+			from.deliver(new byte[] { 0x70, 0x02, idHigh, idLow });
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_SUBSCRIBE:
+			// Each subscription is a length prefixed topic filter and its QoS
+			ByteArrayOutputStream suback = new ByteArrayOutputStream();
+			int position = bodyStart + 2;
+			while (position < packet.length) {
+				position += 2 + (((packet[position] & 0xff) << 8) | (packet[position + 1] & 0xff));
+				suback.write(subscribeReturnCode >= 0 ? subscribeReturnCode : packet[position]);
+				position++;
+			}
+			byte[] codes = suback.toByteArray();
+			byte[] answer = new byte[4 + codes.length];
+			answer[0] = (byte) 0x90;
+			answer[1] = (byte) (2 + codes.length);
+			answer[2] = idHigh;
+			answer[3] = idLow;
+			System.arraycopy(codes, 0, answer, 4, codes.length);
+			from.deliver(answer);
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_UNSUBSCRIBE:
+			from.deliver(new byte[] { (byte) 0xb0, 0x02, idHigh, idLow });
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_PINGREQ:
+			if (answerPings) {
+				from.deliver(new byte[] { (byte) 0xd0, 0x00 });
+			}
+			break;
+		case MqttWireMessage.MESSAGE_TYPE_DISCONNECT:
+			from.stop();
+			return false;
+		default:
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * One connection of a client, over which the answers are sent.
+	 */
+	private interface Connection {
+		void deliver(byte[] packet) throws IOException;
+
+		void stop();
+	}
+
+	private static class SocketConnection implements Connection {
+		private final Socket socket;
+		private final OutputStream out;
+
+		SocketConnection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = socket.getOutputStream();
+		}
+
+		public synchronized void deliver(byte[] packet) throws IOException {
+			out.write(packet);
+			out.flush();
+		}
+
+		public void stop() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore, the connection is finished with
+			}
+		}
+	}
+
+	/**
+	 * A connection in memory. Packets are read from what the client flushes,
+	 * and answers are queued for the client to read.
+	 */
+	private class StubConnection implements Connection, NetworkModule {
+		private final String uri;
+		private final LinkedList<byte[]> toClient = new LinkedList<byte[]>();
+		private byte[] current = null;
+		private int position = 0;
+		private boolean closed = false;
+		private final ByteArrayOutputStream fromClient = new ByteArrayOutputStream();
+
+		StubConnection(String uri) {
+			this.uri = uri;
+		}
+
+		public void deliver(byte[] packet) {
+			synchronized (toClient) {
+				toClient.add(packet);
+				toClient.notifyAll();
+			}
+		}
+
+		public void start() {
+		}
+
+		public InputStream getInputStream() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] one = new byte[1];
+					return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					synchronized (toClient) {
+						while (current == null || position == current.length) {
+							if (!toClient.isEmpty()) {
+								current = toClient.removeFirst();
+								position = 0;
+							} else if (closed) {
+								return -1;
+							} else {
+								// Time out as a socket read does, so the receiver
+								// can check whether it has been stopped
+								try {
+									toClient.wait(READ_TIMEOUT);
+								} catch (InterruptedException e) {
+									throw new IOException(e);
+								}
+								if (toClient.isEmpty() && !closed) {
+									throw new SocketTimeoutException();
+								}
+							}
+						}
+						int count = Math.min(len, current.length - position);
+						System.arraycopy(current, position, b, off, count);
+						position += count;
+						return count;
+					}
+				}
+			};
+		}
+
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+				@Override
+				public void write(int b) {
+					fromClient.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					fromClient.write(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					if (failFlush) {
+						fromClient.reset();
+						throw new IOException("Flush failed");
+					}
+					try {
+						readPackets();
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IOException(e);
+					}
+				}
+			};
+		}
+
+		private void readPackets() throws Exception {
+			byte[] bytes = fromClient.toByteArray();
+			int start = 0;
+			while (true) {
+				// The fixed header is the type byte and a variable byte integer
+				int length = 0;
+				int multiplier = 1;
+				int offset = start + 1;
+				boolean complete = false;
+				while (offset < bytes.length) {
+					int digit = bytes[offset++];
+					length += (digit & 0x7f) * multiplier;
+					multiplier *= 128;
+					if ((digit & 0x80) == 0) {
+						complete = true;
+						break;
+					}
+				}
+				if (!complete || offset + length > bytes.length) {
+					break;
+				}
+				byte[] packet = new byte[offset + length - start];
+				System.arraycopy(bytes, start, packet, 0, packet.length);
+				receive(this, packet, offset - start);
+				start = offset + length;
+			}
+			fromClient.reset();
+			fromClient.write(bytes, start, bytes.length - start);
+		}
+
+		public void stop() {
+			synchronized (toClient) {
+				closed = true;
+				toClient.notifyAll();
+			}
+		}
+
+		public String getServerURI() {
+			return uri;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPingReq;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+	@Test
+	public void testFlowsHavePriority() throws Exception {
+		OutboundQueue queue = new OutboundQueue();
+		MqttPublish publish = new MqttPublish("topic", new MqttMessage(new byte[0]));
+		MqttPubAck ack = new MqttPubAck(1);
+		MqttPingReq ping = new MqttPingReq();
+
+		queue.addMessage(publish);
+		queue.addFlow(ack);
+		queue.addFlowFirst(ping);
+
+		Assert.assertSame(ping, queue.pollFlow());
+		Assert.assertSame(ack, queue.pollFlow());
+		Assert.assertNull(queue.pollFlow());
+		Assert.assertSame(publish, queue.pollMessage());
+		Assert.assertFalse(queue.hasMessages());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		OutboundQueue queue = new OutboundQueue();
+		queue.addFlow(new MqttPingReq());
+		MqttPublish publish = new MqttPublish("topic", new MqttMessage(new byte[0]));
+		queue.reset(Collections.<MqttWireMessage>emptyList(), Arrays.<MqttWireMessage>asList(publish));
+		Assert.assertFalse(queue.hasFlows());
+		Assert.assertTrue(queue.removeMessage(publish));
+		Assert.assertFalse(queue.hasMessages());
+	}
+
+	/**
+	 * Messages added while the queue is being reset must come after the
+	 * restored messages, never between them or ahead of them.
+	 */
+	@Test(timeout = 30000)
+	public void testResetIsAtomic() throws Exception {
+		final OutboundQueue queue = new OutboundQueue();
+		final List<MqttWireMessage> restored = new ArrayList<MqttWireMessage>();
+		for (int i = 0; i < 50; i++) {
+			restored.add(new MqttPublish("restored", new MqttMessage(new byte[] { (byte) i })));
+		}
+		final MqttPingReq added = new MqttPingReq();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				while (done.getCount() > 0) {
+					queue.addMessage(added);
+				}
+			}
+		});
+		producer.start();
+		try {
+			for (int i = 0; i < 2000; i++) {
+				queue.reset(Collections.<MqttWireMessage>emptyList(), restored);
+				Iterator<MqttWireMessage> messages = queue.getMessages().iterator();
+				for (MqttWireMessage expected : restored) {
+					Assert.assertSame(expected, messages.next());
+				}
+			}
+		} finally {
+			done.countDown();
+			producer.join(5000);
+		}
+	}
+
+	/**
+	 * Work whose adding began after a reset returned is never lost, however
+	 * the adding races later resets, and is never queued twice.
+	 */
+	@Test(timeout = 30000)
+	public void testWorkAddedAfterResetIsKept() throws Exception {
+		final OutboundQueue queue = new OutboundQueue();
+		final AtomicInteger resets = new AtomicInteger();
+		final List<MqttWireMessage> added = new ArrayList<MqttWireMessage>();
+		final List<Integer> generations = new ArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				while (done.getCount() > 0) {
+					MqttPingReq ping = new MqttPingReq();
+					generations.add(Integer.valueOf(resets.get()));
+					added.add(ping);
+					queue.addFlow(ping);
+				}
+			}
+		});
+		producer.start();
+		for (int i = 0; i < 500; i++) {
+			queue.reset(Collections.<MqttWireMessage>emptyList(), Collections.<MqttWireMessage>emptyList());
+			resets.incrementAndGet();
+		}
+		Thread.sleep(50);
+		done.countDown();
+		producer.join(5000);
+
+		Set<MqttWireMessage> queued = Collections.newSetFromMap(new IdentityHashMap<MqttWireMessage, Boolean>());
+		queued.addAll(queue.getFlows());
+		Assert.assertEquals(queue.getFlows().size(), queued.size());
+		for (int i = 0; i < added.size(); i++) {
+			if (generations.get(i).intValue() == resets.get()) {
+				Assert.assertTrue(queued.contains(added.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * Many producers race a single consumer which parks whenever the queue is
+	 * empty; every message must be delivered without the consumer being left
+	 * parked.
+	 */
+	@Test(timeout = 30000)
+	public void testManyProducersOneConsumer() throws Exception {
+		final OutboundQueue queue = new OutboundQueue();
+		final int producers = 16;
+		final int perProducer = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					MqttPingReq ping = new MqttPingReq();
+					for (int j = 0; j < perProducer; j++) {
+						if ((j & 1) == 0) {
+							queue.addMessage(ping);
+						} else {
+							queue.addFlow(ping);
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		final CountDownLatch received = new CountDownLatch(producers * perProducer);
+		Thread consumer = new Thread(new Runnable() {
+			public void run() {
+				while (received.getCount() > 0) {
+					queue.await(new OutboundQueue.IdleCondition() {
+						public boolean isIdle() {
+							return !queue.hasFlows() && !queue.hasMessages();
+						}
+					});
+					while (queue.pollFlow() != null || queue.pollMessage() != null) {
+						received.countDown();
+					}
+				}
+			}
+		});
+		consumer.start();
+		start.countDown();
+
+		Assert.assertTrue(received.await(20, TimeUnit.SECONDS));
+		consumer.join(5000);
+		Assert.assertFalse(consumer.isAlive());
+	}
+}
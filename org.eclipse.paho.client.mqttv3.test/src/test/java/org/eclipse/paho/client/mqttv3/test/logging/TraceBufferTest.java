@@ -0,0 +1,170 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.test.logging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.TraceBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TraceBufferTest {
+
+	/**
+	 * A full ring keeps its most recent records, and the inserts come back
+	 * from a dump with the types they were recorded with.
+	 */
+	@Test
+	public void testRecordAndDump() throws Exception {
+		TraceBuffer.setRecords(4);
+		final Exception failure = new IllegalStateException("failed");
+		Thread thread = new Thread("TraceBufferTest") {
+			public void run() {
+				TraceBuffer ring = TraceBuffer.get();
+				for (int i = 0; i < 5; i++) {
+					ring.record(Logger.FINE, "60" + i, "run", "client", new Object[] { Integer.valueOf(i) }, null);
+				}
+				ring.record(Logger.INFO, "Some text", "run", null, null, null);
+				ring.record(Logger.SEVERE, "619", "run", "client",
+						new Object[] { Long.valueOf(-1), Boolean.TRUE, null, "key", Integer.valueOf(5), Integer.valueOf(6),
+								Integer.valueOf(7), Integer.valueOf(8), Integer.valueOf(9) }, failure);
+			}
+		};
+		thread.start();
+		thread.join();
+		TraceBuffer.setRecords(TraceBuffer.DEFAULT_RECORDS);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceBuffer.dump(out);
+		List<Object[]> records = readRing(new DataInputStream(new ByteArrayInputStream(out.toByteArray())),
+				"TraceBufferTest");
+		// The oldest slot is left out, as it could be being overwritten
+		Assert.assertEquals(3, records.size());
+		Assert.assertEquals(Integer.valueOf(604), records.get(0)[0]);
+		Assert.assertEquals(Long.valueOf(4), records.get(0)[4]);
+
+		Object[] text = records.get(1);
+		Assert.assertEquals(Integer.valueOf(-1), text[0]);
+		Assert.assertEquals(Integer.valueOf(Logger.INFO), text[1]);
+		Assert.assertEquals("Some text", text[2]);
+
+		Object[] severe = records.get(2);
+		Assert.assertEquals(Integer.valueOf(619), severe[0]);
+		Assert.assertEquals(Integer.valueOf(TraceBuffer.MAX_INSERTS), severe[3]);
+		Assert.assertEquals(Long.valueOf(-1), severe[4]);
+		Assert.assertEquals(Boolean.TRUE, severe[5]);
+		Assert.assertNull(severe[6]);
+		Assert.assertEquals("key", severe[7]);
+		Assert.assertEquals(Long.valueOf(8), severe[11]);
+		Assert.assertEquals(Byte.valueOf((byte) (TraceBuffer.FLAG_TRUNCATED | TraceBuffer.FLAG_THROWN)), severe[12]);
+		Assert.assertEquals(failure.toString(), severe[13]);
+	}
+
+	/**
+	 * Objects other than strings are kept as their class name and identity
+	 * hash, so the ring does not keep them alive, and long strings are cut.
+	 */
+	@Test
+	public void testObjectInsertsAreNotKept() throws Exception {
+		final Object[] insert = new Object[1];
+		final StringBuilder longText = new StringBuilder();
+		for (int i = 0; i < TraceBuffer.MAX_INSERT_STRING + 10; i++) {
+			longText.append('x');
+		}
+		Thread thread = new Thread("TraceBufferTestObjects") {
+			public void run() {
+				insert[0] = new StringBuilder("the insert");
+				TraceBuffer.get().record(Logger.FINE, "600", "run", "client",
+						new Object[] { insert[0], longText.toString() }, null);
+			}
+		};
+		thread.start();
+		thread.join();
+		WeakReference<Object> kept = new WeakReference<Object>(insert[0]);
+		String expected = insert[0].getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(insert[0]));
+		insert[0] = null;
+		for (int i = 0; i < 50 && kept.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		Assert.assertNull("the ring keeps the insert alive", kept.get());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TraceBuffer.dump(out);
+		List<Object[]> records = readRing(new DataInputStream(new ByteArrayInputStream(out.toByteArray())),
+				"TraceBufferTestObjects");
+		Assert.assertEquals(1, records.size());
+		Assert.assertEquals(expected, records.get(0)[4]);
+		Assert.assertEquals(longText.substring(0, TraceBuffer.MAX_INSERT_STRING), records.get(0)[5]);
+	}
+
+	/**
+	 * Reads the records of one thread's ring from a dump, each as the trace
+	 * point, level, text, insert count, the inserts, the flags and the
+	 * throwable.
+	 */
+	private static List<Object[]> readRing(DataInputStream in, String threadName) throws IOException {
+		Assert.assertEquals(TraceBuffer.MAGIC, in.readInt());
+		Assert.assertEquals(TraceBuffer.VERSION, in.readShort());
+		in.readLong();
+		in.readLong();
+		int rings = in.readInt();
+		List<Object[]> found = null;
+		for (int i = 0; i < rings; i++) {
+			String name = in.readUTF();
+			in.readLong();
+			int count = in.readInt();
+			List<Object[]> records = new ArrayList<Object[]>();
+			for (int j = 0; j < count; j++) {
+				Object[] record = new Object[6 + TraceBuffer.MAX_INSERTS];
+				in.readLong();
+				int id = in.readInt();
+				record[0] = Integer.valueOf(id);
+				record[1] = Integer.valueOf(in.readByte());
+				in.readUTF();
+				in.readUTF();
+				if (id < 0) {
+					record[2] = in.readUTF();
+				}
+				int inserts = in.readByte();
+				record[3] = Integer.valueOf(inserts);
+				byte flags = in.readByte();
+				record[4 + TraceBuffer.MAX_INSERTS] = Byte.valueOf(flags);
+				for (int k = 0; k < inserts; k++) {
+					byte kind = in.readByte();
+					if (kind == TraceBuffer.KIND_LONG) {
+						record[4 + k] = Long.valueOf(in.readLong());
+					} else if (kind == TraceBuffer.KIND_BOOLEAN) {
+						record[4 + k] = Boolean.valueOf(in.readBoolean());
+					} else if (kind == TraceBuffer.KIND_OBJECT) {
+						record[4 + k] = in.readUTF();
+					}
+				}
+				if ((flags & TraceBuffer.FLAG_THROWN) != 0) {
+					record[5 + TraceBuffer.MAX_INSERTS] = in.readUTF();
+				}
+				records.add(record);
+			}
+			if (name.equals(threadName)) {
+				found = records;
+			}
+		}
+		Assert.assertNotNull(found);
+		return found;
+	}
+}
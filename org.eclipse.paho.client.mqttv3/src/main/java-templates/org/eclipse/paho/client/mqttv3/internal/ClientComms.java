@@ -85,6 +85,7 @@ public class ClientComms {
 	private DisconnectedMessageBuffer disconnectedMessageBuffer;
 
 	private ExecutorService executorService;
+	private final ClientMetrics metrics = new ClientMetrics();
 
 	/**
 	 * Creates a new ClientComms object, using the specified module to handle
@@ -142,18 +143,65 @@ public class ClientComms {
 	 * @param token
 	 * @throws MqttException
 	 */
+	/**
+	 * Sends a batch of PUBLISH messages to the server with as few flushes as
+	 * possible. If the client is not connected, or earlier messages are still
+	 * waiting in the offline buffer, each message is sent as by
+	 * {@link #sendNoWait(MqttWireMessage, MqttToken)} instead.
+	 * @param messages the messages to send
+	 * @param tokens the token of each message
+	 * @throws MqttException if an error occurs sending the messages
+	 */
+	public void sendNoWait(MqttPublish[] messages, MqttToken[] tokens) throws MqttException {
+		final String methodName = "sendNoWait";
+		if (!isConnected() || (disconnectedMessageBuffer != null && disconnectedMessageBuffer.getMessageCount() != 0)) {
+			for (int i = 0; i < messages.length; i++) {
+				sendNoWait(messages[i], tokens[i]);
+			}
+			return;
+		}
+
+		for (int i = 0; i < messages.length; i++) {
+			if (tokens[i].getClient() != null) {
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 213=fail: token in use: key={0} message={1} token={2}
+					log.fine(CLASS_NAME, methodName, "213", new Object[]{messages[i].getKey(), messages[i], tokens[i]});
+				}
+
+				throw new MqttException(MqttException.REASON_CODE_TOKEN_INUSE);
+			}
+		}
+		for (int i = 0; i < tokens.length; i++) {
+			// Associate the client with the token - also marks it as in use.
+			tokens[i].internalTok.setClient(getClient());
+		}
+
+		try {
+			this.clientState.sendBatch(messages, tokens);
+		} catch(MqttException e) {
+			for (int i = 0; i < tokens.length; i++) {
+				tokens[i].internalTok.setClient(null); // undo client setting on error
+			}
+			throw e;
+		}
+	}
+
 	void internalSend(MqttWireMessage message, MqttToken token) throws MqttException {
 		final String methodName = "internalSend";
-		//@TRACE 200=internalSend key={0} message={1} token={2}
-		log.fine(CLASS_NAME, methodName, "200", new Object[]{message.getKey(), message, token});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 200=internalSend key={0} message={1} token={2}
+			log.fine(CLASS_NAME, methodName, "200", new Object[]{message.getKey(), message, token});
+		}
 
 		if (token.getClient() == null ) {
 			// Associate the client with the token - also marks it as in use.
 			token.internalTok.setClient(getClient());
 		} else {
 			// Token is already in use - cannot reuse
-			//@TRACE 213=fail: token in use: key={0} message={1} token={2}
-			log.fine(CLASS_NAME, methodName, "213", new Object[]{message.getKey(), message, token});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 213=fail: token in use: key={0} message={1} token={2}
+				log.fine(CLASS_NAME, methodName, "213", new Object[]{message.getKey(), message, token});
+			}
 
 			throw new MqttException(MqttException.REASON_CODE_TOKEN_INUSE);
 		}
@@ -183,8 +231,10 @@ public class ClientComms {
 				(!isConnected() && message instanceof MqttConnect) ||
 				(isDisconnecting() && message instanceof MqttDisconnect)) {
 			if(disconnectedMessageBuffer != null && disconnectedMessageBuffer.getMessageCount() != 0){
-				//@TRACE 507=Client Connected, Offline Buffer available, but not empty. Adding message to buffer. message={0}
-				log.fine(CLASS_NAME, methodName, "507", new Object[] {message.getKey()});
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 507=Client Connected, Offline Buffer available, but not empty. Adding message to buffer. message={0}
+					log.fine(CLASS_NAME, methodName, "507", new Object[] {message.getKey()});
+				}
 				if(disconnectedMessageBuffer.isPersistBuffer()){
 					if (message instanceof MqttPublish) {
 						this.clientState.persistBufferedMessage(message);
@@ -195,8 +245,10 @@ public class ClientComms {
 				this.internalSend(message, token);
 			}
 		} else if(disconnectedMessageBuffer != null) {
-			//@TRACE 508=Offline Buffer available. Adding message to buffer. message={0}
-			log.fine(CLASS_NAME, methodName, "508", new Object[] {message.getKey()});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 508=Offline Buffer available. Adding message to buffer. message={0}
+				log.fine(CLASS_NAME, methodName, "508", new Object[] {message.getKey()});
+			}
 			if(disconnectedMessageBuffer.isPersistBuffer()){
 				this.clientState.persistBufferedMessage(message);
 			}
@@ -300,8 +352,10 @@ public class ClientComms {
 				conbg.start();
 			}
 			else {
-				// @TRACE 207=connect failed: not disconnected {0}
-				log.fine(CLASS_NAME,methodName,"207", new Object[] {Byte.valueOf(conState)});
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 207=connect failed: not disconnected {0}
+					log.fine(CLASS_NAME,methodName,"207", new Object[] {Byte.valueOf(conState)});
+				}
 				if (isClosed() || closePending) {
 					throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
 				} else if (isConnecting()) {
@@ -325,12 +379,15 @@ public class ClientComms {
 				log.fine(CLASS_NAME,methodName,"215");
 
 				conState = CONNECTED;
+				metrics.connected();
 				return;
 			}
 		}
 
-		// @TRACE 204=connect failed: rc={0}
-		log.fine(CLASS_NAME,methodName,"204", new Object[]{Integer.valueOf(rc)});
+		if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 204=connect failed: rc={0}
+			log.fine(CLASS_NAME,methodName,"204", new Object[]{Integer.valueOf(rc)});
+		}
 		throw mex;
 	}
 
@@ -438,6 +495,10 @@ public class ClientComms {
 			callback.asyncOperationComplete(endToken);
 		}
 
+		if (wasConnected && reason != null) {
+			metrics.connectionLost();
+		}
+
 		if (wasConnected && callback != null) {
 			// Let the user know client has disconnected either normally or abnormally
 			callback.connectionLost(reason);
@@ -474,10 +535,10 @@ public class ClientComms {
 				}
 			}
 
-			Vector toksToNot = clientState.resolveOldTokens(reason);
-			Enumeration toksToNotE = toksToNot.elements();
+			Vector<MqttToken> toksToNot = clientState.resolveOldTokens(reason);
+			Enumeration<MqttToken> toksToNotE = toksToNot.elements();
 			while(toksToNotE.hasMoreElements()) {
-				MqttToken tok = (MqttToken)toksToNotE.nextElement();
+				MqttToken tok = toksToNotE.nextElement();
 
 				if (tok.internalTok.getKey().equals(MqttDisconnect.KEY) ||
 						tok.internalTok.getKey().equals(MqttConnect.KEY)) {
@@ -666,6 +727,26 @@ public class ClientComms {
 		return conOptions;
 	}
 
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getPendingMessageCount() {
+		return clientState.getPendingMessageCount();
+	}
+
+	public int getPendingFlowCount() {
+		return clientState.getPendingFlowCount();
+	}
+
+	public int getInFlightCount() {
+		return clientState.getInFlightCount();
+	}
+
+	public int getCallbackQueueDepth() {
+		return callback.getQueueDepth();
+	}
+
 	public Properties getDebug() {
 		Properties props = new Properties();
 		props.put("conState", Integer.valueOf(conState));
@@ -727,6 +808,10 @@ public class ClientComms {
 				receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
 				receiver.start("MQTT Rec: "+getClient().getClientId(), executorService);
 				sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
+				if (conOptions.isSendBatchingEnabled()) {
+					sender.setSendBatching(conOptions.getSendBatchMaxMessages(), conOptions.getSendBatchMaxBytes(),
+							TimeUnit.MICROSECONDS.toNanos(conOptions.getSendBatchLingerMicros()));
+				}
 				sender.start("MQTT Snd: "+getClient().getClientId(), executorService);
 				callback.start("MQTT Call: "+getClient().getClientId(), executorService);
 				internalSend(conPacket, conToken);
@@ -915,8 +1000,10 @@ public class ClientComms {
 					Thread.yield();
 					
 				}
-				//@TRACE 510=Publishing Buffered message message={0}
-				log.fine(CLASS_NAME, methodName, "510", new Object[] {bufferedMessage.getMessage().getKey()});
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 510=Publishing Buffered message message={0}
+					log.fine(CLASS_NAME, methodName, "510", new Object[] {bufferedMessage.getMessage().getKey()});
+				}
 				internalSend(bufferedMessage.getMessage(), bufferedMessage.getToken());
 				
 				// Delete from persistence if in there
@@ -0,0 +1,142 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+import org.eclipse.paho.client.mqttv3.internal.HashedWheelTimer;
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * Ping sender which schedules the keep alive checks of any number of clients
+ * on one shared {@link HashedWheelTimer}, rather than on a timer thread for
+ * each client.
+ * <p>
+ * The timer only decides when a check is due. The check itself, which shuts
+ * the connection down if the server has stopped answering, is handed to the
+ * given executor, or to the timer's {@link HashedWheelTimer#getDefaultExecutor()
+ * default executor}, so that one client cannot hold up the keep alive of the
+ * others.
+ * </p>
+ *
+ * @see MqttPingSender
+ */
+public class HashedWheelPingSender implements MqttPingSender {
+	private static final String CLASS_NAME = HashedWheelPingSender.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private final HashedWheelTimer timer;
+	private final ExecutorService executorService;
+	private ClientComms comms;
+	private String clientid;
+	private HashedWheelTimer.Timeout timeout = null;
+	private boolean started = false;
+
+	/**
+	 * Creates a ping sender which schedules its checks on the default shared
+	 * timer and runs them on the timer's default executor.
+	 */
+	public HashedWheelPingSender() {
+		this(null, null);
+	}
+
+	/**
+	 * Creates a ping sender which schedules its checks on the default shared
+	 * timer and runs them with the given executor.
+	 *
+	 * @param executorService
+	 *            the executor to run the checks on, or null for the timer's
+	 *            default executor
+	 */
+	public HashedWheelPingSender(ExecutorService executorService) {
+		this(null, executorService);
+	}
+
+	/**
+	 * @param timer
+	 *            the timer to schedule the checks on, or null for the default
+	 *            shared timer
+	 * @param executorService
+	 *            the executor to run the checks on, or null for the timer's
+	 *            default executor
+	 */
+	public HashedWheelPingSender(HashedWheelTimer timer, ExecutorService executorService) {
+		this.timer = timer == null ? HashedWheelTimer.getDefault() : timer;
+		this.executorService = executorService == null ? HashedWheelTimer.getDefaultExecutor() : executorService;
+	}
+
+	public void init(ClientComms comms) {
+		if (comms == null) {
+			throw new IllegalArgumentException("ClientComms cannot be null.");
+		}
+		this.comms = comms;
+		clientid = comms.getClient().getClientId();
+		log.setResourceName(clientid);
+	}
+
+	public synchronized void start() {
+		final String methodName = "start";
+
+		//@Trace 659=start timer for client:{0}
+		if (log.isLoggable(Logger.FINE)) {
+			log.fine(CLASS_NAME, methodName, "659", new Object[]{ clientid });
+		}
+		started = true;
+		//Check ping after first keep alive interval.
+		schedule(comms.getKeepAlive());
+	}
+
+	public synchronized void stop() {
+		final String methodName = "stop";
+		//@Trace 661=stop
+		log.fine(CLASS_NAME, methodName, "661", null);
+		started = false;
+		if (timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+	}
+
+	public synchronized void schedule(long delayInMilliseconds) {
+		// A check which was already running when the sender stopped must not
+		// start another
+		if (started) {
+			timeout = timer.schedule(new PingTask(), delayInMilliseconds);
+		}
+	}
+
+	private class PingTask implements Runnable {
+		private static final String methodName = "PingTask.run";
+
+		public void run() {
+			try {
+				executorService.execute(new Runnable() {
+					public void run() {
+						checkForActivity();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The client is being closed
+			}
+		}
+
+		private void checkForActivity() {
+			//@Trace 660=Check schedule at {0}
+			if (log.isLoggable(Logger.FINE)) {
+				log.fine(CLASS_NAME, methodName, "660", new Object[]{ Long.valueOf(System.nanoTime()) });
+			}
+			comms.checkForActivity();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, which any number of threads may
+ * record into without locking.
+ * <p>
+ * Each power of two is split into eight buckets, so a percentile is reported
+ * as the top of its bucket and is at most an eighth above the true value.
+ * Values below 16ns are counted exactly.
+ * </p>
+ *
+ * @see MqttClientMetrics
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Adds a latency to the histogram.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds. A negative value counts as 0.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+			// Another thread raised the maximum, so try again
+		}
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, or 0 if none have been recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * @return the longest latency in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the median latency in nanoseconds
+	 */
+	public long getP50() {
+		return getPercentile(50);
+	}
+
+	/**
+	 * @return the 90th percentile latency in nanoseconds
+	 */
+	public long getP90() {
+		return getPercentile(90);
+	}
+
+	/**
+	 * @return the 99th percentile latency in nanoseconds
+	 */
+	public long getP99() {
+		return getPercentile(99);
+	}
+
+	/**
+	 * @return the 99.9th percentile latency in nanoseconds
+	 */
+	public long getP999() {
+		return getPercentile(99.9);
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile, from 0 to 100
+	 * @return the latency in nanoseconds which the given percentage of the
+	 *         recorded latencies do not exceed, or 0 if none have been recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException();
+		}
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every latency recorded so far. Latencies recorded while this runs
+	 * may or may not be kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long highestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public String toString() {
+		return "count=" + getCount() + " mean=" + (long) getMean() + " p50=" + getP50() + " p99=" + getP99()
+				+ " max=" + getMax();
+	}
+}
@@ -23,16 +23,18 @@ package org.eclipse.paho.client.mqttv3;
 
 import java.util.Hashtable;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 
 import javax.net.SocketFactory;
+import org.eclipse.paho.client.mqttv3.internal.BatchListener;
 import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 import org.eclipse.paho.client.mqttv3.internal.ConnectActionListener;
 import org.eclipse.paho.client.mqttv3.internal.DisconnectedMessageBuffer;
 import org.eclipse.paho.client.mqttv3.internal.ExceptionHelper;
+import org.eclipse.paho.client.mqttv3.internal.HashedWheelTimer;
 import org.eclipse.paho.client.mqttv3.internal.HighResolutionTimer;
 import org.eclipse.paho.client.mqttv3.internal.SystemHighResolutionTimer;
 import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
@@ -104,12 +106,13 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 	private String clientId;
 	private String serverURI;
 	protected ClientComms comms;
+	private MqttClientMetrics metrics;
 	private Hashtable topics;
 	private MqttClientPersistence persistence;
 	private MqttCallback mqttCallback;
 	private MqttConnectOptions connOpts;
 	private Object userContext;
-	private Timer reconnectTimer; // Automatic reconnect timer
+	private HashedWheelTimer.Timeout reconnectTimeout; // Automatic reconnect timer
 	private static int reconnectDelay = 1000; // Reconnect delay, starts at 1
 												// second
 	private boolean reconnecting = false;
@@ -314,7 +317,7 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 	 *             if any other problem was encountered
 	 */
 	public MqttAsyncClient(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
-		this(serverURI, clientId, persistence, new TimerPingSender());
+		this(serverURI, clientId, persistence, new HashedWheelPingSender());
 	}
 
 	public MqttAsyncClient(String serverURI, String clientId, MqttClientPersistence persistence,
@@ -595,6 +598,16 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		this.persistence.close();
 		this.topics = new Hashtable();
 
+		this.metrics = new MqttClientMetrics(comms);
+		if (Boolean.getBoolean(MqttClientMetrics.JMX_PROPERTY)) {
+			try {
+				metrics.registerMBean();
+			} catch (MqttException e) {
+				// @TRACE 120=Could not register the metrics MXBean
+				log.fine(CLASS_NAME, methodName, "120", null, e);
+			}
+		}
+
 	}
 
 	/**
@@ -1377,6 +1390,98 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		return token;
 	}
 
+	/**
+	 * Publishes a batch of messages, at less cost than publishing each one in
+	 * turn.
+	 * <p>
+	 * The message IDs of the whole batch are allocated in one step, the tokens
+	 * are saved together and the messages are queued as one run, which the
+	 * sender writes to the network with as few flushes as it can. If the
+	 * client is not connected, each message is handled as by
+	 * {@link #publish(String, MqttMessage, Object, IMqttActionListener)}.
+	 * </p>
+	 * <p>
+	 * The batch is refused if the client already has the maximum number of
+	 * messages in flight, but otherwise the messages beyond the inflight
+	 * window are queued to be sent as others complete.
+	 * </p>
+	 *
+	 * @param topics
+	 *            the topic of each message
+	 * @param messages
+	 *            the messages, one for each topic
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use
+	 *            null if not required.
+	 * @param callback
+	 *            optional listener that will be notified when every message
+	 *            in the batch has completed
+	 * @return a token which completes when every message has completed, and
+	 *         holds the token of each message
+	 * @throws MqttException
+	 *             for problems encountered while publishing the batch
+	 * @throws MqttPersistenceException
+	 *             when a problem occurs storing a message
+	 * @throws IllegalArgumentException
+	 *             if the number of topics and messages differ
+	 */
+	public MqttBatchToken publishBatch(String[] topics, MqttMessage[] messages, Object userContext,
+			IMqttActionListener callback) throws MqttException, MqttPersistenceException {
+		final String methodName = "publishBatch";
+		// @TRACE 121=> count={0} userContext={1} callback={2}
+		log.fine(CLASS_NAME, methodName, "121", new Object[] { Integer.valueOf(messages.length), userContext, callback });
+
+		if (topics.length != messages.length) {
+			throw new IllegalArgumentException();
+		}
+		for (int i = 0; i < topics.length; i++) {
+			// Checks if a topic is valid when publishing a message.
+			MqttTopic.validate(topics[i], false/* wildcards NOT allowed */);
+		}
+
+		MqttDeliveryToken[] tokens = new MqttDeliveryToken[messages.length];
+		MqttPublish[] pubMsgs = new MqttPublish[messages.length];
+		MqttBatchToken batchToken = new MqttBatchToken(getClientId(), tokens);
+		batchToken.setActionCallback(callback);
+		batchToken.setUserContext(userContext);
+		BatchListener listener = new BatchListener(batchToken, messages.length);
+		for (int i = 0; i < messages.length; i++) {
+			MqttDeliveryToken token = new MqttDeliveryToken(getClientId());
+			token.setActionCallback(listener);
+			token.setMessage(messages[i]);
+			token.internalTok.setTopics(new String[] { topics[i] });
+			pubMsgs[i] = new MqttPublish(topics[i], messages[i]);
+			tokens[i] = token;
+		}
+		if (messages.length > 0) {
+			comms.sendNoWait(pubMsgs, tokens);
+		}
+
+		// @TRACE 122=<
+		log.fine(CLASS_NAME, methodName, "122");
+
+		return batchToken;
+	}
+
+	/**
+	 * Publishes a batch of messages.
+	 *
+	 * @param topics
+	 *            the topic of each message
+	 * @param messages
+	 *            the messages, one for each topic
+	 * @return a token which completes when every message has completed
+	 * @throws MqttException
+	 *             for problems encountered while publishing the batch
+	 * @throws MqttPersistenceException
+	 *             when a problem occurs storing a message
+	 * @see #publishBatch(String[], MqttMessage[], Object, IMqttActionListener)
+	 */
+	public MqttBatchToken publishBatch(String[] topics, MqttMessage[] messages)
+			throws MqttException, MqttPersistenceException {
+		return publishBatch(topics, messages, null, null);
+	}
+
 	/**
 	 * User triggered attempt to reconnect
 	 * 
@@ -1421,6 +1526,7 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		final String methodName = "attemptReconnect";
 		// @Trace 500=Attempting to reconnect client: {0}
 		log.fine(CLASS_NAME, methodName, "500", new Object[] { this.clientId });
+		comms.getMetrics().reconnectAttempted();
 		try {
 			connect(this.connOpts, this.userContext, new MqttReconnectActionListener(methodName));
 		} catch (MqttSecurityException ex) {
@@ -1436,8 +1542,7 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		String methodName = "startReconnectCycle";
 		// @Trace 503=Start reconnect timer for client: {0}, delay: {1}
 		log.fine(CLASS_NAME, methodName, "503", new Object[] { this.clientId, Long.valueOf(reconnectDelay) });
-		reconnectTimer = new Timer("MQTT Reconnect: " + clientId);
-		reconnectTimer.schedule(new ReconnectTask(), reconnectDelay);
+		reconnectTimeout = HashedWheelTimer.getDefault().schedule(new ReconnectTask(), reconnectDelay);
 	}
 
 	private void stopReconnectCycle() {
@@ -1446,22 +1551,34 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		log.fine(CLASS_NAME, methodName, "504", new Object[] { this.clientId });
 		synchronized (clientLock) {
 			if (this.connOpts.isAutomaticReconnect()) {
-				if (reconnectTimer != null) {
-					reconnectTimer.cancel();
-					reconnectTimer = null;
+				if (reconnectTimeout != null) {
+					reconnectTimeout.cancel();
+					reconnectTimeout = null;
 				}
 				reconnectDelay = 1000; // Reset Delay Timer
 			}
 		}
 	}
 
-	private class ReconnectTask extends TimerTask {
+	private class ReconnectTask implements Runnable {
 		private static final String methodName = "ReconnectTask.run";
 
 		public void run() {
-			// @Trace 506=Triggering Automatic Reconnect attempt.
-			log.fine(CLASS_NAME, methodName, "506");
-			attemptReconnect();
+			// The attempt may block, so it is not made on the timer's thread,
+			// which is shared by every client
+			ExecutorService executor = executorService != null ? executorService
+					: HashedWheelTimer.getDefaultExecutor();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						// @Trace 506=Triggering Automatic Reconnect attempt.
+						log.fine(CLASS_NAME, methodName, "506");
+						attemptReconnect();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The client's executor has been shut down
+			}
 		}
 	}
 
@@ -1526,8 +1643,8 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 					new Object[] { MqttAsyncClient.this.clientId, String.valueOf(reconnectDelay) });
 			synchronized (clientLock) {
 				if (MqttAsyncClient.this.connOpts.isAutomaticReconnect()) {
-					if (reconnectTimer != null) {
-						reconnectTimer.schedule(new ReconnectTask(), delay);
+					if (reconnectTimeout != null) {
+						reconnectTimeout = HashedWheelTimer.getDefault().schedule(new ReconnectTask(), delay);
 					} else {
 						// The previous reconnect timer was cancelled
 						reconnectDelay = delay;
@@ -1610,6 +1727,7 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		// @TRACE 113=<
 		log.fine(CLASS_NAME, methodName, "113");
 		comms.close(force);
+		metrics.unregisterMBean();
 		// @TRACE 114=>
 		log.fine(CLASS_NAME, methodName, "114");
 
@@ -1624,4 +1742,14 @@ public class MqttAsyncClient implements IMqttAsyncClient {
 		return new Debug(clientId, comms);
 	}
 
+	/**
+	 * Returns the metrics of this client, which are kept for the life of the
+	 * client, across connections.
+	 *
+	 * @return the metrics
+	 */
+	public MqttClientMetrics getMetrics() {
+		return metrics;
+	}
+
 }
@@ -0,0 +1,66 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3;
+
+/**
+ * The attributes of the JMX MXBean registered for a client's
+ * {@link MqttClientMetrics}. Latencies are in nanoseconds.
+ */
+public interface MqttClientMetricsMXBean {
+
+	/**
+	 * @return the number of PUBLISH packets sent, indexed by QoS
+	 */
+	long[] getMessagesSent();
+
+	/**
+	 * @return the number of PUBLISH packets received, indexed by QoS
+	 */
+	long[] getMessagesReceived();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	/**
+	 * @return the number of PUBLISH packets waiting to be sent
+	 */
+	int getPendingMessages();
+
+	/**
+	 * @return the number of other packets waiting to be sent
+	 */
+	int getPendingFlows();
+
+	/**
+	 * @return the number of QoS 1 and 2 messages sent and not yet acknowledged
+	 */
+	int getInFlight();
+
+	/**
+	 * @return the number of arrived messages waiting for their callback
+	 */
+	int getCallbackQueueDepth();
+
+	LatencyHistogram getPubAckLatency();
+
+	LatencyHistogram getPubCompLatency();
+
+	LatencyHistogram getCallbackQueueWait();
+
+	LatencyHistogram getPersistenceLatency();
+
+	long getConnects();
+
+	long getConnectionsLost();
+
+	long getReconnectAttempts();
+}
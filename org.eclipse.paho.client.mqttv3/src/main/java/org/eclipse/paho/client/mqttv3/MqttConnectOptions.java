@@ -79,6 +79,10 @@ public class MqttConnectOptions {
 
 	// Client Operation Parameters
 	private int executorServiceTimeout = 1; // How long to wait in seconds when terminating the executor service.
+	private boolean sendBatchingEnabled = false; // Whether the sender coalesces queued packets into one flush.
+	private int sendBatchMaxMessages = 64; // Most packets in one flush when batching.
+	private int sendBatchMaxBytes = 64 * 1024; // Buffered bytes at which a batch is flushed.
+	private long sendBatchLingerMicros = 0; // How long to wait for more packets before flushing a batch.
 
 	/**
 	 * Constructs a new <code>MqttConnectOptions</code> object using the default
@@ -659,6 +663,103 @@ public class MqttConnectOptions {
 		this.executorServiceTimeout = executorServiceTimeout;
 	}
 
+	/**
+	 * Returns whether the client coalesces outgoing packets.
+	 *
+	 * @see #setSendBatchingEnabled(boolean)
+	 * @return true if send batching is enabled
+	 */
+	public boolean isSendBatchingEnabled() {
+		return sendBatchingEnabled;
+	}
+
+	/**
+	 * Enables or disables send batching. By default every packet, including
+	 * every acknowledgement, is flushed to the network as soon as it is written.
+	 * When batching is enabled the client writes all of the packets which are
+	 * ready to be sent into its output buffer and flushes them together, which
+	 * reduces the number of network writes when many messages are published or
+	 * acknowledged at once. A batch is flushed when it holds
+	 * {@link #getSendBatchMaxMessages()} packets or
+	 * {@link #getSendBatchMaxBytes()} bytes, or when no further packet becomes
+	 * ready within {@link #getSendBatchLingerMicros()} microseconds.
+	 *
+	 * @param sendBatchingEnabled true to coalesce outgoing packets, defaults to false.
+	 */
+	public void setSendBatchingEnabled(boolean sendBatchingEnabled) {
+		this.sendBatchingEnabled = sendBatchingEnabled;
+	}
+
+	/**
+	 * @return the maximum number of packets flushed together when send
+	 * batching is enabled.
+	 */
+	public int getSendBatchMaxMessages() {
+		return sendBatchMaxMessages;
+	}
+
+	/**
+	 * Sets the maximum number of packets flushed together when send batching
+	 * is enabled.
+	 *
+	 * @param sendBatchMaxMessages the number of packets, at least 1, defaults to 64.
+	 * @throws IllegalArgumentException if the value is less than 1
+	 */
+	public void setSendBatchMaxMessages(int sendBatchMaxMessages) {
+		if (sendBatchMaxMessages < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchMaxMessages = sendBatchMaxMessages;
+	}
+
+	/**
+	 * @return the number of buffered bytes at which a batch is flushed when
+	 * send batching is enabled.
+	 */
+	public int getSendBatchMaxBytes() {
+		return sendBatchMaxBytes;
+	}
+
+	/**
+	 * Sets the number of buffered bytes at which a batch is flushed when send
+	 * batching is enabled. A single packet larger than this is still sent, in a
+	 * batch of its own.
+	 *
+	 * @param sendBatchMaxBytes the number of bytes, at least 1, defaults to 65536.
+	 * @throws IllegalArgumentException if the value is less than 1
+	 */
+	public void setSendBatchMaxBytes(int sendBatchMaxBytes) {
+		if (sendBatchMaxBytes < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchMaxBytes = sendBatchMaxBytes;
+	}
+
+	/**
+	 * @return the time in microseconds to wait for further packets before a
+	 * batch is flushed.
+	 */
+	public long getSendBatchLingerMicros() {
+		return sendBatchLingerMicros;
+	}
+
+	/**
+	 * Sets how long, in microseconds, the client waits for further packets
+	 * before flushing a batch which is not yet full. The default of 0 flushes
+	 * as soon as no more packets are ready, so batching adds no latency; a
+	 * small linger gives more packets a chance to share a network write at the
+	 * cost of delaying the packets already in the batch.
+	 *
+	 * @param sendBatchLingerMicros the time in microseconds, defaults to 0.
+	 * @throws IllegalArgumentException if the value is negative
+	 */
+	public void setSendBatchLingerMicros(long sendBatchLingerMicros) {
+		if (sendBatchLingerMicros < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchLingerMicros = sendBatchLingerMicros;
+	}
+
 	/**
 	 * Returns whether to skip a port during a handshake
 	 *
@@ -700,6 +801,12 @@ public class MqttConnectOptions {
 			p.put("SSLProperties", getSSLProperties());
 		}
 		p.put("SkipPortDuringHandshake", isSkipPortDuringHandshake());
+		p.put("SendBatching", Boolean.valueOf(isSendBatchingEnabled()));
+		if (isSendBatchingEnabled()) {
+			p.put("SendBatchMaxMessages", Integer.valueOf(getSendBatchMaxMessages()));
+			p.put("SendBatchMaxBytes", Integer.valueOf(getSendBatchMaxBytes()));
+			p.put("SendBatchLingerMicros", Long.valueOf(getSendBatchLingerMicros()));
+		}
 		return p;
 	}
 
@@ -0,0 +1,76 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+
+/**
+ * The action listener of every message in a publishBatch, which completes the
+ * token of the whole batch once each message has completed. If any message
+ * failed the batch token fails with the first exception seen; the token of
+ * each message holds its own outcome.
+ */
+public class BatchListener implements IMqttActionListener {
+
+	private final MqttToken batchToken;
+	private final AtomicInteger remaining;
+	private final AtomicReference<MqttException> failure = new AtomicReference<MqttException>();
+
+	/**
+	 * @param batchToken
+	 *            the token to complete
+	 * @param count
+	 *            the number of messages in the batch. If there are none, the
+	 *            batch token is completed straight away.
+	 */
+	public BatchListener(MqttToken batchToken, int count) {
+		this.batchToken = batchToken;
+		this.remaining = new AtomicInteger(count);
+		if (count == 0) {
+			complete();
+		}
+	}
+
+	@Override
+	public void onSuccess(IMqttToken asyncActionToken) {
+		if (remaining.decrementAndGet() == 0) {
+			complete();
+		}
+	}
+
+	@Override
+	public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+		failure.compareAndSet(null, asyncActionToken.getException());
+		if (remaining.decrementAndGet() == 0) {
+			complete();
+		}
+	}
+
+	private void complete() {
+		MqttException ex = failure.get();
+		batchToken.internalTok.markComplete(null, ex);
+		batchToken.internalTok.notifyComplete();
+		IMqttActionListener callback = batchToken.getActionCallback();
+		if (callback != null) {
+			if (ex == null) {
+				callback.onSuccess(batchToken);
+			} else {
+				callback.onFailure(batchToken, ex);
+			}
+		}
+	}
+}
@@ -22,14 +22,17 @@
 package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.LatencyHistogram;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -75,8 +78,8 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * - outboundqos1 hashtable if a QoS 1 PUBLISH
  * (see restoreState)
  * 
- * 3) On Connect, copy messages from the outbound hashtables to the pendingMessages or 
- * pendingFlows vector in messageid order.
+ * 3) On Connect, copy messages from the outbound hashtables to the message or 
+ * flow lane of the pending OutboundQueue in messageid order.
  * - Initial message publish goes onto the pendingmessages buffer. 
  * - PUBREL goes onto the pendingflows buffer
  * (see restoreInflightMessages)
@@ -108,16 +111,26 @@ public class ClientState {
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
 	
-	private static final int MIN_MSG_ID = 1;		// Lowest possible MQTT message ID to use
-	private static final int MAX_MSG_ID = 65535;	// Highest possible MQTT message ID to use
-	private int nextMsgId = MIN_MSG_ID - 1;			// The next available message ID to use
-	private Hashtable inUseMsgIds;					// Used to store a set of in-use message IDs
-
-	volatile private Vector pendingMessages;
-	volatile private Vector pendingFlows;
+	private static final int MAX_MSG_ID = MessageIdAllocator.MAX_MSG_ID;	// Highest possible MQTT message ID to use
+	private MessageIdAllocator messageIds;			// The set of in-use message IDs
+
+	// The pending flows and messages waiting for the sender thread
+	private final OutboundQueue pending = new OutboundQueue();
+	private final OutboundQueue.IdleCondition senderIdle = new OutboundQueue.IdleCondition() {
+		public boolean isIdle() {
+			return isSenderIdle();
+		}
+	};
+	// While connecting nothing but the CONNECT may be sent
+	private final OutboundQueue.IdleCondition awaitingConnack = new OutboundQueue.IdleCondition() {
+		public boolean isIdle() {
+			return isAwaitingConnack();
+		}
+	};
 	
 	private CommsTokenStore tokenStore;
 	private ClientComms clientComms = null;
+	private final ClientMetrics metrics;
 	private CommsCallback callback = null;
 	private long keepAliveNanos;					// nanoseconds time
 	private boolean cleanSession;
@@ -125,12 +138,13 @@ public class ClientState {
 	private HighResolutionTimer highResolutionTimer;
 	
 	private int maxInflight = 0;	
-	private int actualInFlight = 0;
-	private int inFlightPubRels = 0;
+	// Only the sender thread increments these, so the window can be checked
+	// and then taken without a lock
+	private final AtomicInteger actualInFlight = new AtomicInteger();
+	private final AtomicInteger inFlightPubRels = new AtomicInteger();
 	
-	private final Object queueLock = new Object();
 	private final Object quiesceLock = new Object();
-	private boolean quiescing = false;
+	private volatile boolean quiescing = false;
 	
 	private long lastOutboundActivity = 0;			// nanoseconds absolute time
 	private long lastInboundActivity = 0;			// nanoseconds absolute time
@@ -139,12 +153,12 @@ public class ClientState {
 	private final Object pingOutstandingLock = new Object();
 	private int pingOutstanding = 0;
 
-	private boolean connected = false;
+	private volatile boolean connected = false;
 	
-	private Hashtable outboundQoS2 = null;
-	private Hashtable outboundQoS1 = null;
-	private Hashtable outboundQoS0 = null;
-	private Hashtable inboundQoS2 = null;
+	private Hashtable<Integer, MqttWireMessage> outboundQoS2 = null;
+	private Hashtable<Integer, MqttWireMessage> outboundQoS1 = null;
+	private Hashtable<Integer, MqttWireMessage> outboundQoS0 = null;
+	private Hashtable<Integer, MqttWireMessage> inboundQoS2 = null;
 	
 	private MqttPingSender pingSender = null;
 
@@ -155,20 +169,18 @@ public class ClientState {
 		log.setResourceName(clientComms.getClient().getClientId());
 		log.finer(CLASS_NAME, "<Init>", "" );
 
-		inUseMsgIds = new Hashtable();
-		pendingFlows = new Vector();
-		outboundQoS2 = new Hashtable();
-		outboundQoS1 = new Hashtable();
-		outboundQoS0 = new Hashtable();
-		inboundQoS2 = new Hashtable();
+		messageIds = new MessageIdAllocator();
+		outboundQoS2 = new Hashtable<Integer, MqttWireMessage>();
+		outboundQoS1 = new Hashtable<Integer, MqttWireMessage>();
+		outboundQoS0 = new Hashtable<Integer, MqttWireMessage>();
+		inboundQoS2 = new Hashtable<Integer, MqttWireMessage>();
 		pingCommand = new MqttPingReq();
-		inFlightPubRels = 0;
-		actualInFlight = 0;
 		
 		this.persistence = persistence;
 		this.callback = callback;
 		this.tokenStore = tokenStore;
 		this.clientComms = clientComms;
+		this.metrics = clientComms.getMetrics();
 		this.pingSender = pingSender;
 		this.highResolutionTimer = highResolutionTimer;
 		
@@ -177,7 +189,6 @@ public class ClientState {
 	
 	protected void setMaxInflight(int maxInflight) {
         this.maxInflight = maxInflight;
-        pendingMessages = new Vector(this.maxInflight);
     }
     protected void setKeepAliveSecs(long keepAliveSecs) {
 		this.keepAliveNanos = TimeUnit.SECONDS.toNanos(keepAliveSecs);
@@ -226,9 +237,8 @@ public class ClientState {
 		log.fine(CLASS_NAME, methodName,">");
 
 		persistence.clear();
-		inUseMsgIds.clear();
-		pendingMessages.clear();
-		pendingFlows.clear();
+		messageIds.clear();
+		pending.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		outboundQoS0.clear();
@@ -244,8 +254,10 @@ public class ClientState {
 			message = MqttWireMessage.createWireMessage(persistable);
 		}
 		catch (MqttException ex) {
-			//@TRACE 602=key={0} exception
-			log.fine(CLASS_NAME, methodName, "602", new Object[] {key}, ex);
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 602=key={0} exception
+				log.fine(CLASS_NAME, methodName, "602", new Object[] {key}, ex);
+			}
 			if (ex.getCause() instanceof EOFException) {
 				// Premature end-of-file means that the message is corrupted
 				if (key != null) {
@@ -256,8 +268,10 @@ public class ClientState {
 				throw ex;
 			}
 		}
-		//@TRACE 601=key={0} message={1}
-		log.fine(CLASS_NAME, methodName, "601", new Object[]{key,message});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 601=key={0} message={1}
+			log.fine(CLASS_NAME, methodName, "601", new Object[]{key,message});
+		}
 		return message;
 	}
 
@@ -266,10 +280,10 @@ public class ClientState {
 	 * @param list the list to insert the message into
 	 * @param newMsg the message to insert into the list
 	 */
-	private void insertInOrder(Vector list, MqttWireMessage newMsg) {
+	private void insertInOrder(Vector<MqttWireMessage> list, MqttWireMessage newMsg) {
 		int newMsgId = newMsg.getMessageId();
 		for (int i = 0; i < list.size(); i++) {
-			MqttWireMessage otherMsg = (MqttWireMessage) list.elementAt(i);
+			MqttWireMessage otherMsg = list.elementAt(i);
 			int otherMsgId = otherMsg.getMessageId();
 			if (otherMsgId > newMsgId) {
 				list.insertElementAt(newMsg, i);
@@ -285,10 +299,10 @@ public class ClientState {
 	 * - this will not be modified or replaced, i.e., be read-only to this method
 	 * @return a new reordered list
 	 */
-	private Vector reOrder(Vector list) {
+	private Vector<MqttWireMessage> reOrder(Vector<MqttWireMessage> list) {
 
 		// here up the new list
-		Vector newList = new Vector();
+		Vector<MqttWireMessage> newList = new Vector<MqttWireMessage>();
 
 		if (list.size() == 0) {
 			return newList; // nothing to reorder
@@ -298,14 +312,14 @@ public class ClientState {
 		int largestGap = 0;
 		int largestGapMsgIdPosInList = 0;
 		for (int i = 0; i < list.size(); i++) {
-			int currentMsgId = ((MqttWireMessage) list.elementAt(i)).getMessageId();
+			int currentMsgId = list.elementAt(i).getMessageId();
 			if (currentMsgId - previousMsgId > largestGap) {
 				largestGap = currentMsgId - previousMsgId;
 				largestGapMsgIdPosInList = i;
 			}
 			previousMsgId = currentMsgId;
 		}
-		int lowestMsgId = ((MqttWireMessage) list.elementAt(0)).getMessageId();
+		int lowestMsgId = list.elementAt(0).getMessageId();
 		int highestMsgId = previousMsgId; // last in the sorted list
 		
 		// we need to check that the gap after highest msg id to the lowest msg id is not beaten
@@ -332,11 +346,11 @@ public class ClientState {
 	 */
 	protected void restoreState() throws MqttException {
 		final String methodName = "restoreState";
-		Enumeration messageKeys = persistence.keys();
+		Enumeration<?> messageKeys = persistence.keys();
 		MqttPersistable persistable;
 		String key;
-		int highestMsgId = nextMsgId;
-		Vector orphanedPubRels = new Vector();
+		int highestMsgId = messageIds.getNext() - 1;
+		Vector<String> orphanedPubRels = new Vector<String>();
 		//@TRACE 600=>
 		log.fine(CLASS_NAME, methodName, "600");
 		
@@ -346,8 +360,10 @@ public class ClientState {
 			MqttWireMessage message = restoreMessage(key, persistable);
 			if (message != null) {
 				if (key.startsWith(PERSISTENCE_RECEIVED_PREFIX)) {
-					//@TRACE 604=inbound QoS 2 publish key={0} message={1}
-					log.fine(CLASS_NAME,methodName,"604", new Object[]{key,message});
+					if (log.isLoggable(Logger.FINE)) {
+						//@TRACE 604=inbound QoS 2 publish key={0} message={1}
+						log.fine(CLASS_NAME,methodName,"604", new Object[]{key,message});
+					}
 
 					// The inbound messages that we have persisted will be QoS 2 
 					inboundQoS2.put( Integer.valueOf(message.getMessageId()),message);
@@ -362,51 +378,65 @@ public class ClientState {
 						MqttPubRel confirmMessage = (MqttPubRel) restoreMessage(key, persistedConfirm);
 						if (confirmMessage != null) {
 							// confirmMessage.setDuplicate(true); // REMOVED
-							//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "605", new Object[]{key,message});
+							if (log.isLoggable(Logger.FINE)) {
+								//@TRACE 605=outbound QoS 2 pubrel key={0} message={1}
+								log.fine(CLASS_NAME,methodName, "605", new Object[]{key,message});
+							}
 
 							outboundQoS2.put( Integer.valueOf(confirmMessage.getMessageId()), confirmMessage);
 						} else {
-							//@TRACE 606=outbound QoS 2 completed key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "606", new Object[]{key,message});
+							if (log.isLoggable(Logger.FINE)) {
+								//@TRACE 606=outbound QoS 2 completed key={0} message={1}
+								log.fine(CLASS_NAME,methodName, "606", new Object[]{key,message});
+							}
 						}
 					} else {
 						// QoS 1 or 2, with no CONFIRM sent...
 						// Put the SEND to the list of pending messages, ensuring message ID ordering...
 						sendMessage.setDuplicate(true);
 						if (sendMessage.getMessage().getQos() == 2) {
-							//@TRACE 607=outbound QoS 2 publish key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "607", new Object[]{key,message});
+							if (log.isLoggable(Logger.FINE)) {
+								//@TRACE 607=outbound QoS 2 publish key={0} message={1}
+								log.fine(CLASS_NAME,methodName, "607", new Object[]{key,message});
+							}
 							
 							outboundQoS2.put( Integer.valueOf(sendMessage.getMessageId()),sendMessage);
 						} else {
-							//@TRACE 608=outbound QoS 1 publish key={0} message={1}
-							log.fine(CLASS_NAME,methodName, "608", new Object[]{key,message});
+							if (log.isLoggable(Logger.FINE)) {
+								//@TRACE 608=outbound QoS 1 publish key={0} message={1}
+								log.fine(CLASS_NAME,methodName, "608", new Object[]{key,message});
+							}
 
 							outboundQoS1.put( Integer.valueOf(sendMessage.getMessageId()),sendMessage);
 						}
 					}
 					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put( Integer.valueOf(sendMessage.getMessageId()), Integer.valueOf(sendMessage.getMessageId()));
+					messageIds.markInUse(sendMessage.getMessageId());
 				} else if(key.startsWith(PERSISTENCE_SENT_BUFFERED_PREFIX)){
 					
 					// Buffered outgoing messages that have not yet been sent at all
 					MqttPublish sendMessage = (MqttPublish) message;
 					highestMsgId = Math.max(sendMessage.getMessageId(), highestMsgId);
 					if(sendMessage.getMessage().getQos() == 2){
-						//@TRACE 607=outbound QoS 2 publish key={0} message={1}
-						log.fine(CLASS_NAME,methodName, "607", new Object[]{key,message});
+						if (log.isLoggable(Logger.FINE)) {
+							//@TRACE 607=outbound QoS 2 publish key={0} message={1}
+							log.fine(CLASS_NAME,methodName, "607", new Object[]{key,message});
+						}
 						outboundQoS2.put( Integer.valueOf(sendMessage.getMessageId()),sendMessage);
 					} else if(sendMessage.getMessage().getQos() == 1){
-						//@TRACE 608=outbound QoS 1 publish key={0} message={1}
-						log.fine(CLASS_NAME,methodName, "608", new Object[]{key,message});
+						if (log.isLoggable(Logger.FINE)) {
+							//@TRACE 608=outbound QoS 1 publish key={0} message={1}
+							log.fine(CLASS_NAME,methodName, "608", new Object[]{key,message});
+						}
 
 						outboundQoS1.put( Integer.valueOf(sendMessage.getMessageId()),sendMessage);
 						
 					} else {
-						//@TRACE 511=outbound QoS 0 publish key={0} message={1}
-						log.fine(CLASS_NAME,methodName, "511", new Object[]{key,message});
+						if (log.isLoggable(Logger.FINE)) {
+							//@TRACE 511=outbound QoS 0 publish key={0} message={1}
+							log.fine(CLASS_NAME,methodName, "511", new Object[]{key,message});
+						}
 						outboundQoS0.put( Integer.valueOf(sendMessage.getMessageId()), sendMessage);
 						// Because there is no Puback, we have to trust that this is enough to send the message
 						persistence.remove(key);
@@ -415,7 +445,7 @@ public class ClientState {
 					
 					MqttDeliveryToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put( Integer.valueOf(sendMessage.getMessageId()), Integer.valueOf(sendMessage.getMessageId()));
+					messageIds.markInUse(sendMessage.getMessageId());
 					
 					
 				} else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
@@ -430,33 +460,39 @@ public class ClientState {
 		messageKeys = orphanedPubRels.elements();
 		while(messageKeys.hasMoreElements()) {
 			key = (String) messageKeys.nextElement();
-			//@TRACE 609=removing orphaned pubrel key={0}
-			log.fine(CLASS_NAME,methodName, "609", new Object[]{key});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 609=removing orphaned pubrel key={0}
+				log.fine(CLASS_NAME,methodName, "609", new Object[]{key});
+			}
 
 			persistence.remove(key);
 		}
 		
-		nextMsgId = highestMsgId;
+		messageIds.setLast(highestMsgId);
 	}
 	
 	private void restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector(this.maxInflight);
-		pendingFlows = new Vector();
+		Vector<MqttWireMessage> pendingMessages = new Vector<MqttWireMessage>(this.maxInflight);
+		Vector<MqttWireMessage> pendingFlows = new Vector<MqttWireMessage>();
 
-		Enumeration keys = outboundQoS2.keys();
+		Enumeration<Integer> keys = outboundQoS2.keys();
 		while (keys.hasMoreElements()) {
 			Object key = keys.nextElement();
-			MqttWireMessage msg = (MqttWireMessage) outboundQoS2.get(key);
+			MqttWireMessage msg = outboundQoS2.get(key);
 			if (msg instanceof MqttPublish) {
-				//@TRACE 610=QoS 2 publish key={0}
-				log.fine(CLASS_NAME,methodName, "610", new Object[]{key});
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 610=QoS 2 publish key={0}
+					log.fine(CLASS_NAME,methodName, "610", new Object[]{key});
+				}
                 // set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);  
 				insertInOrder(pendingMessages, (MqttPublish)msg);
 			} else if (msg instanceof MqttPubRel) {
-				//@TRACE 611=QoS 2 pubrel key={0}
-				log.fine(CLASS_NAME,methodName, "611", new Object[]{key});
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 611=QoS 2 pubrel key={0}
+					log.fine(CLASS_NAME,methodName, "611", new Object[]{key});
+				}
 
 				insertInOrder(pendingFlows, (MqttPubRel)msg);
 			}
@@ -466,8 +502,10 @@ public class ClientState {
 			Object key = keys.nextElement();
 			MqttPublish msg = (MqttPublish)outboundQoS1.get(key);
 			msg.setDuplicate(true);
-			//@TRACE 612=QoS 1 publish key={0}
-			log.fine(CLASS_NAME,methodName, "612", new Object[]{key});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 612=QoS 1 publish key={0}
+				log.fine(CLASS_NAME,methodName, "612", new Object[]{key});
+			}
 
 			insertInOrder(pendingMessages, msg);
 		}
@@ -475,14 +513,15 @@ public class ClientState {
 		while(keys.hasMoreElements()){
 			Object key = keys.nextElement();
 			MqttPublish msg = (MqttPublish)outboundQoS0.get(key);
-			//@TRACE 512=QoS 0 publish key={0}
-			log.fine(CLASS_NAME,methodName, "512", new Object[]{key});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 512=QoS 0 publish key={0}
+				log.fine(CLASS_NAME,methodName, "512", new Object[]{key});
+			}
 			insertInOrder(pendingMessages, msg);
 			
 		}
 		
-		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		pending.reset(reOrder(pendingFlows), reOrder(pendingMessages));
 	}
 	
 	/**
@@ -519,71 +558,153 @@ public class ClientState {
 		}
 			
 		if (message instanceof MqttPublish) {
-			synchronized (queueLock) {
-				if (actualInFlight >= this.maxInflight) {
+			int inFlight = actualInFlight.get();
+			if (inFlight >= this.maxInflight) {
+				if (log.isLoggable(Logger.FINE)) {
 					//@TRACE 613= sending {0} msgs at max inflight window
-					log.fine(CLASS_NAME, methodName, "613", new Object[]{ Integer.valueOf(actualInFlight)});
-
-					throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+					log.fine(CLASS_NAME, methodName, "613", new Object[]{ Integer.valueOf(inFlight)});
 				}
-				
-				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+
+				throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+			}
+			
+			MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+			if (log.isLoggable(Logger.FINE)) {
 				//@TRACE 628=pending publish key={0} qos={1} message={2}
 				log.fine(CLASS_NAME,methodName,"628", new Object[]{ Integer.valueOf(message.getMessageId()),  Integer.valueOf(innerMessage.getQos()), message});
+			}
 
-				switch(innerMessage.getQos()) {
-					case 2:
-						outboundQoS2.put( Integer.valueOf(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-						tokenStore.saveToken(token, message);
-						break;
-					case 1:
-						outboundQoS1.put( Integer.valueOf(message.getMessageId()), message);
-						persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-						tokenStore.saveToken(token, message);
-						break;
-					case 0:
-						tokenStore.saveToken(token, message);
-						break;
-				}
-				pendingMessages.addElement(message);
-				queueLock.notifyAll();
+			switch(innerMessage.getQos()) {
+				case 2:
+					outboundQoS2.put( Integer.valueOf(message.getMessageId()), message);
+					persist(getSendPersistenceKey(message), (MqttPublish) message);
+					tokenStore.saveToken(token, message);
+					break;
+				case 1:
+					outboundQoS1.put( Integer.valueOf(message.getMessageId()), message);
+					persist(getSendPersistenceKey(message), (MqttPublish) message);
+					tokenStore.saveToken(token, message);
+					break;
+				case 0:
+					tokenStore.saveToken(token, message);
+					break;
 			}
+			pending.addMessage(message);
 		} else {
-			//@TRACE 615=pending send key={0} message {1}
-			log.fine(CLASS_NAME,methodName,"615", new Object[]{ Integer.valueOf(message.getMessageId()), message});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 615=pending send key={0} message {1}
+				log.fine(CLASS_NAME,methodName,"615", new Object[]{ Integer.valueOf(message.getMessageId()), message});
+			}
 			
 			if (message instanceof MqttConnect) {
-				synchronized (queueLock) {
-					// Add the connect action at the head of the pending queue ensuring it jumps
-					// ahead of any of other pending actions.
-					tokenStore.saveToken(token, message);
-					pendingFlows.insertElementAt(message,0);
-					queueLock.notifyAll();
-				}
+				// Add the connect action at the head of the pending queue ensuring it jumps
+				// ahead of any of other pending actions.
+				tokenStore.saveToken(token, message);
+				pending.addFlowFirst(message);
 			} else {
 				if (message instanceof MqttPingReq) {
 					this.pingCommand = message;
 				}
 				else if (message instanceof MqttPubRel) {
 					outboundQoS2.put( Integer.valueOf(message.getMessageId()), message);
-					persistence.put(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
+					persist(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
 				}
 				else if (message instanceof MqttPubComp)  {
 					persistence.remove(getReceivedPersistenceKey(message));
 				}
 				
-				synchronized (queueLock) {
-					if ( !(message instanceof MqttAck )) {
-						tokenStore.saveToken(token, message);
-					}
-					pendingFlows.addElement(message);
-					queueLock.notifyAll();
+				if ( !(message instanceof MqttAck )) {
+					tokenStore.saveToken(token, message);
 				}
+				pending.addFlow(message);
 			}
 		}
 	}
 	
+	/**
+	 * Submits a batch of PUBLISH messages for delivery. The message IDs are
+	 * allocated in one step, the tokens are saved together and the messages are
+	 * queued as one run, which the sender writes with as few flushes as it can.
+	 * QoS 0 messages are given an ID too, so that each has a token of its own
+	 * until it is sent. The batch is refused if the inflight window is already
+	 * full, but otherwise it may go beyond the window, and the messages beyond
+	 * it wait in the queue. Either every message is submitted or none is.
+	 *
+	 * @param messages the messages to send
+	 * @param tokens the token of each message
+	 * @throws MqttException if an exception occurs whilst submitting the messages
+	 */
+	public void sendBatch(MqttPublish[] messages, MqttToken[] tokens) throws MqttException {
+		final String methodName = "sendBatch";
+		int inFlight = actualInFlight.get();
+		if (inFlight >= this.maxInflight) {
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 613= sending {0} msgs at max inflight window
+				log.fine(CLASS_NAME, methodName, "613", new Object[]{ Integer.valueOf(inFlight)});
+			}
+
+			throw new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT);
+		}
+		int[] ids = new int[messages.length];
+		if (!messageIds.allocate(ids, messages.length)) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 671=pending publish batch of {0} messages, first key={1}
+			log.fine(CLASS_NAME, methodName, "671", new Object[]{ Integer.valueOf(messages.length), Integer.valueOf(ids[0])});
+		}
+
+		int prepared = 0;
+		try {
+			for (; prepared < messages.length; prepared++) {
+				MqttPublish message = messages[prepared];
+				message.setMessageId(ids[prepared]);
+				message.setToken(tokens[prepared]);
+				tokens[prepared].internalTok.setMessageID(ids[prepared]);
+				tokens[prepared].internalTok.setMoreInBatch(prepared < messages.length - 1);
+
+				MqttMessage innerMessage = message.getMessage();
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 628=pending publish key={0} qos={1} message={2}
+					log.fine(CLASS_NAME,methodName,"628", new Object[]{ Integer.valueOf(message.getMessageId()),  Integer.valueOf(innerMessage.getQos()), message});
+				}
+
+				switch(innerMessage.getQos()) {
+					case 2:
+						outboundQoS2.put( Integer.valueOf(message.getMessageId()), message);
+						persist(getSendPersistenceKey(message), message);
+						break;
+					case 1:
+						outboundQoS1.put( Integer.valueOf(message.getMessageId()), message);
+						persist(getSendPersistenceKey(message), message);
+						break;
+				}
+			}
+			// The tokens must be in place before the sender can see the messages
+			tokenStore.saveTokens(tokens, messages);
+		} catch (MqttException e) {
+			for (int i = 0; i < messages.length; i++) {
+				if (i <= prepared) {
+					outboundQoS1.remove(Integer.valueOf(ids[i]));
+					outboundQoS2.remove(Integer.valueOf(ids[i]));
+					if (messages[i].getMessage().getQos() > 0) {
+						persistence.remove(getSendPersistenceKey(messages[i]));
+					}
+				}
+				releaseMessageId(ids[i]);
+				messages[i].setMessageId(0);
+			}
+			throw e;
+		}
+		pending.addMessages(Arrays.asList(messages));
+	}
+
+	private void persist(String key, MqttPersistable message) throws MqttPersistenceException {
+		long start = highResolutionTimer.nanoTime();
+		persistence.put(key, message);
+		metrics.getPersistenceLatency().record(highResolutionTimer.nanoTime() - start);
+	}
+
 	/**
 	 * Persists a buffered message to the persistence layer
 	 * 
@@ -606,8 +727,10 @@ public class ClientState {
 				persistence.open(this.clientComms.getClient().getClientId(), this.clientComms.getClient().getServerURI());
 				persistence.put(key, (MqttPublish) message);
 			}
-			//@TRACE 513=Persisted Buffered Message key={0}
-			log.fine(CLASS_NAME,methodName, "513", new Object[]{key});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 513=Persisted Buffered Message key={0}
+				log.fine(CLASS_NAME,methodName, "513", new Object[]{key});
+			}
 		} catch (MqttException ex){
 			//@TRACE 514=Failed to persist buffered message key={0}
 			log.warning(CLASS_NAME,methodName, "514", new Object[]{key});
@@ -621,12 +744,16 @@ public class ClientState {
 	public void unPersistBufferedMessage(MqttWireMessage message){
 		final String methodName = "unPersistBufferedMessage";
 		try{
-			//@TRACE 517=Un-Persisting Buffered message key={0}
-			log.fine(CLASS_NAME,methodName, "517", new Object[]{message.getKey()});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 517=Un-Persisting Buffered message key={0}
+				log.fine(CLASS_NAME,methodName, "517", new Object[]{message.getKey()});
+			}
 			persistence.remove(getSendBufferedPersistenceKey(message));
 		} catch (MqttPersistenceException mpe){
-			//@TRACE 518=Failed to Un-Persist Buffered message key={0}
-			log.fine(CLASS_NAME,methodName, "518", new Object[]{message.getKey()});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 518=Failed to Un-Persist Buffered message key={0}
+				log.fine(CLASS_NAME,methodName, "518", new Object[]{message.getKey()});
+			}
 		}
 		
 	}
@@ -638,27 +765,27 @@ public class ClientState {
 	 */
 	protected void undo(MqttPublish message) throws MqttPersistenceException {
 		final String methodName = "undo";
-		synchronized (queueLock) {
+		if (log.isLoggable(Logger.FINE)) {
 			//@TRACE 618=key={0} QoS={1} 
 			log.fine(CLASS_NAME,methodName,"618", new Object[]{ Integer.valueOf(message.getMessageId()),  Integer.valueOf(message.getMessage().getQos())});
-			
-			if (message.getMessage().getQos() == 1) {
-				outboundQoS1.remove( Integer.valueOf(message.getMessageId()));
-			} else {
-				outboundQoS2.remove( Integer.valueOf(message.getMessageId()));
-			}
-			pendingMessages.removeElement(message);
-			persistence.remove(getSendPersistenceKey(message));
-			tokenStore.removeToken(message);
-			if(message.getMessage().getQos() > 0){
-				//Free this message Id so it can be used again
-				releaseMessageId(message.getMessageId());
-				//Set the messageId to 0 so if it's ever retried, it will get a new messageId
-				message.setMessageId(0);
-			}
-
-			checkQuiesceLock();
 		}
+		
+		if (message.getMessage().getQos() == 1) {
+			outboundQoS1.remove( Integer.valueOf(message.getMessageId()));
+		} else {
+			outboundQoS2.remove( Integer.valueOf(message.getMessageId()));
+		}
+		pending.removeMessage(message);
+		persistence.remove(getSendPersistenceKey(message));
+		tokenStore.removeToken(message);
+		if(message.getMessage().getQos() > 0){
+			//Free this message Id so it can be used again
+			releaseMessageId(message.getMessageId());
+			//Set the messageId to 0 so if it's ever retried, it will get a new messageId
+			message.setMessageId(0);
+		}
+
+		checkQuiesceLock();
 	}
 	
 	/**
@@ -672,26 +799,24 @@ public class ClientState {
 		MqttMessage message = token.getMessage();
 		int messageId = token.getMessageId();
 		boolean result = false;
-		synchronized (queueLock) {
-			if (message.getQos() == 1) {
-				if (outboundQoS1.remove( Integer.valueOf(messageId)) != null) {
-					result = true;
-				}
-			}
-			if (message.getQos() == 2) {
-				if (outboundQoS2.remove( Integer.valueOf(messageId)) != null) {
-					result = true;
-				}
+		if (message.getQos() == 1) {
+			if (outboundQoS1.remove( Integer.valueOf(messageId)) != null) {
+				result = true;
 			}
-			if (pendingMessages.removeElement(message)) {
+		}
+		if (message.getQos() == 2) {
+			if (outboundQoS2.remove( Integer.valueOf(messageId)) != null) {
 				result = true;
 			}
-			persistence.remove(getSendPersistenceKey(messageId));
-			String key =  Integer.toString(messageId);
-			tokenStore.removeToken(key);
-			releaseMessageId(messageId);
-			decrementInFlight();
 		}
+		if (pending.getMessages().remove(message)) {
+			result = true;
+		}
+		persistence.remove(getSendPersistenceKey(messageId));
+		String key =  Integer.toString(messageId);
+		tokenStore.removeToken(key);
+		releaseMessageId(messageId);
+		decrementInFlight();
 		return result;
 	}
 	
@@ -712,8 +837,10 @@ public class ClientState {
 	 */
 	public MqttToken checkForActivity(IMqttActionListener pingCallback) throws MqttException {
 		final String methodName = "checkForActivity";
-		//@TRACE 616=checkForActivity entered
-		log.fine(CLASS_NAME,methodName,"616", new Object[]{});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 616=checkForActivity entered
+			log.fine(CLASS_NAME,methodName,"616", new Object[]{});
+		}
 		
         synchronized (quiesceLock) {
             // ref bug: https://bugs.eclipse.org/bugs/show_bug.cgi?id=440698
@@ -773,8 +900,10 @@ public class ClientState {
                 if ((pingOutstanding == 0 && (time - lastInboundActivity >= keepAliveNanos - delta)) ||
                     (time - lastOutboundActivity >= keepAliveNanos - delta)) {
 
-                    //@TRACE 620=ping needed. keepAlive={0} lastOutboundActivity={1} lastInboundActivity={2}                                                                                                              
-                    log.fine(CLASS_NAME,methodName,"620", new Object[]{ Long.valueOf(this.keepAliveNanos), Long.valueOf(lastOutboundActivity), Long.valueOf(lastInboundActivity)});
+                    if (log.isLoggable(Logger.FINE)) {
+	                    //@TRACE 620=ping needed. keepAlive={0} lastOutboundActivity={1} lastInboundActivity={2}                                                                                                              
+	                    log.fine(CLASS_NAME,methodName,"620", new Object[]{ Long.valueOf(this.keepAliveNanos), Long.valueOf(lastOutboundActivity), Long.valueOf(lastInboundActivity)});
+                    }
 
                     // pingOutstanding++;  // it will be set after the ping has been written on the wire                                                                                                             
                     // lastPing = time;    // it will be set after the ping has been written on the wire                                                                                                             
@@ -783,12 +912,10 @@ public class ClientState {
                     	token.setActionCallback(pingCallback);
                     }
                     tokenStore.saveToken(token, pingCommand);
-                    pendingFlows.insertElementAt(pingCommand, 0);
+                    // Adding the ping wakes the sender thread since it may be in wait state (in ClientState.get())
+                    pending.addFlowFirst(pingCommand);
 
                     nextPingTime = getKeepAlive();
-
-                    //Wake sender thread since it may be in wait state (in ClientState.get())                                                                                                                             
-                    notifyQueueLock();
                 }
                 else {
                 		//@TRACE 634=ping not needed yet. Schedule next ping.
@@ -798,8 +925,10 @@ public class ClientState {
                     nextPingTime = Math.max(1,  getKeepAlive() - elapsedSinceLastActivityMillis);
                 }
             }
-            //@TRACE 624=Schedule next ping at {0}                                                                                                                                                                                
-            log.fine(CLASS_NAME, methodName,"624", new Object[]{Long.valueOf(nextPingTime)});
+            if (log.isLoggable(Logger.FINE)) {
+	            //@TRACE 624=Schedule next ping at {0}                                                                                                                                                                                
+	            log.fine(CLASS_NAME, methodName,"624", new Object[]{Long.valueOf(nextPingTime)});
+            }
             pingSender.schedule(nextPingTime);
 		}
 		
@@ -821,77 +950,142 @@ public class ClientState {
 		final String methodName = "get";
 		MqttWireMessage result = null;
 
-		synchronized (queueLock) {
-			while (result == null) {
+		while (result == null) {
+			
+			// If there is no work wait until there is work.
+			// If the inflight window is full and no flows are pending wait until space is freed.
+			// In both cases the sender is woken by the OutboundQueue.
+			if (isSenderIdle()) {
+				//@TRACE 644=wait for new work or for space in the inflight window 
+				log.fine(CLASS_NAME,methodName, "644");						
+
+				pending.await(senderIdle);
 				
-				// If there is no work wait until there is work.
-				// If the inflight window is full and no flows are pending wait until space is freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty()) || 
-					(pendingFlows.isEmpty() && actualInFlight >= this.maxInflight)) {
-					try {
-						//@TRACE 644=wait for new work or for space in the inflight window 
-						log.fine(CLASS_NAME,methodName, "644");						
- 
-						queueLock.wait();
-						
-						//@TRACE 647=new work or ping arrived 
-						log.fine(CLASS_NAME,methodName, "647");
-					} catch (InterruptedException e) {
-					}
+				//@TRACE 647=new work or ping arrived 
+				log.fine(CLASS_NAME,methodName, "647");
+			}
+			
+			// Handle the case where not connected. This should only be the case if: 
+			// - in the process of disconnecting / shutting down
+			// - in the process of connecting
+			if (!connected && !(pending.peekFlow() instanceof MqttConnect)) {
+				if (isAwaitingConnack()) {
+					// Woken before the CONNECT was queued or before the CONNACK
+					// arrived, so wait for either or for the connect to fail
+					pending.await(awaitingConnack);
+					continue;
 				}
+				//@TRACE 621=no outstanding flows and not connected
+				log.fine(CLASS_NAME,methodName,"621");
 				
-				// Handle the case where not connected. This should only be the case if: 
-				// - in the process of disconnecting / shutting down
-				// - in the process of connecting
-				if (pendingFlows == null || (!connected && 
-						(pendingFlows.isEmpty() || !((MqttWireMessage)pendingFlows.elementAt(0) instanceof MqttConnect)))) {
-					//@TRACE 621=no outstanding flows and not connected
-					log.fine(CLASS_NAME,methodName,"621");
-					
-					return null;
-				}
+				return null;
+			}
 
-				// Check if there is a need to send a ping to keep the session alive. 
-				// Note this check is done before processing messages. If not done first
-				// an app that only publishes QoS 0 messages will prevent keepalive processing
-				// from functioning. 
-//				checkForActivity(); //Use pinger, don't check here
-				
-				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage)pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						//@TRACE 617=+1 inflightpubrels={0}
-						log.fine(CLASS_NAME,methodName,"617", new Object[]{ Integer.valueOf(inFlightPubRels)});
-					}
-		
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
-					
-					// If the inflight window is full then messages are not 
-					// processed until the inflight window has space. 
-					if (actualInFlight < this.maxInflight) {
-						// The in flight window is not full so process the 
-						// first message in the queue
-						result = (MqttWireMessage)pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+			// Check if there is a need to send a ping to keep the session alive. 
+			// Note this check is done before processing messages. If not done first
+			// an app that only publishes QoS 0 messages will prevent keepalive processing
+			// from functioning. 
+//			checkForActivity(); //Use pinger, don't check here
+			
+			// Now process any queued flows or messages
+			result = takeNext();
+		}
+		return result;
+	}
 	
+	/**
+	 * Takes the next message the sender may send without waiting: the first
+	 * pending flow or, if the inflight window has space, the first pending
+	 * message.
+	 *
+	 * @return the message, or null if there is nothing which can be sent
+	 */
+	private MqttWireMessage takeNext() {
+		final String methodName = "takeNext";
+		MqttWireMessage result = pending.pollFlow();
+		if (result != null) {
+			// Process the first "flow" in the queue
+			if (result instanceof MqttPubRel) {
+				int pubRels = inFlightPubRels.incrementAndGet();
+
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 617=+1 inflightpubrels={0}
+					log.fine(CLASS_NAME,methodName,"617", new Object[]{ Integer.valueOf(pubRels)});
+				}
+			}
+
+			checkQuiesceLock();
+		} else if (pending.hasMessages()) {
+			
+			// If the inflight window is full then messages are not 
+			// processed until the inflight window has space. Only this
+			// thread takes from the window, so it cannot be over-filled.
+			if (actualInFlight.get() < this.maxInflight) {
+				// The in flight window is not full so process the 
+				// first message in the queue
+				result = pending.pollMessage();
+				if (result != null) {
+					int inFlight = actualInFlight.incrementAndGet();
+
+					if (log.isLoggable(Logger.FINE)) {
 						//@TRACE 623=+1 actualInFlight={0}
-						log.fine(CLASS_NAME,methodName,"623",new Object[]{ Integer.valueOf(actualInFlight)});
-					} else {
-						//@TRACE 622=inflight window full
-						log.fine(CLASS_NAME,methodName,"622");				
+						log.fine(CLASS_NAME,methodName,"623",new Object[]{ Integer.valueOf(inFlight)});
 					}
-				}			
+				}
+			} else {
+				//@TRACE 622=inflight window full
+				log.fine(CLASS_NAME,methodName,"622");				
 			}
 		}
 		return result;
 	}
+
+	/**
+	 * Returns the next message for the CommsSender to add to a batch which it
+	 * has already started. Unlike {@link #get()} this does not wait for work
+	 * indefinitely or send a CONNECT: if nothing can be sent within the linger
+	 * time, or the client is not connected, null is returned and the sender
+	 * flushes what it has.
+	 * 
+	 * @param lingerNanos
+	 *            how long to wait for more work, in nanoseconds, which may be 0
+	 * @return the next message to send, or null if there is none
+	 */
+	protected MqttWireMessage poll(long lingerNanos) {
+		if (!connected) {
+			return null;
+		}
+		MqttWireMessage result = takeNext();
+		if (result == null && lingerNanos > 0) {
+			long deadline = System.nanoTime() + lingerNanos;
+			long remaining = lingerNanos;
+			while (result == null && remaining > 0 && connected) {
+				pending.await(senderIdle, remaining);
+				result = takeNext();
+				remaining = deadline - System.nanoTime();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true while connecting, if the CONNECT has not been queued yet or
+	 *         has been sent and the CONNACK has not arrived
+	 */
+	private boolean isAwaitingConnack() {
+		ClientComms comms = clientComms;
+		return !connected && !(pending.peekFlow() instanceof MqttConnect) && comms != null && comms.isConnecting();
+	}
+
+	/**
+	 * @return true if the sender has nothing it is allowed to send
+	 */
+	private boolean isSenderIdle() {
+		if (pending.hasFlows()) {
+			return false;
+		}
+		return !pending.hasMessages() || actualInFlight.get() >= this.maxInflight;
+	}
 	
 	/**
 	 * Sets the keep alive interval.
@@ -906,10 +1100,13 @@ public class ClientState {
         final String methodName = "notifySentBytes";
         if (sentBytesCount > 0) {
         	this.lastOutboundActivity = highResolutionTimer.nanoTime();
+        	metrics.bytesSent(sentBytesCount);
+        }
+        if (log.isLoggable(Logger.FINE)) {
+	        // @TRACE 643=sent bytes count={0}                                                                                                                                                                                            
+	        log.fine(CLASS_NAME, methodName, "643", new Object[] {
+	        		  Integer.valueOf(sentBytesCount) });
         }
-        // @TRACE 643=sent bytes count={0}                                                                                                                                                                                            
-        log.fine(CLASS_NAME, methodName, "643", new Object[] {
-        		  Integer.valueOf(sentBytesCount) });
     }
 
 	
@@ -920,15 +1117,26 @@ public class ClientState {
 	protected void notifySent(MqttWireMessage message) {
 		final String methodName = "notifySent";
 		
-		this.lastOutboundActivity = highResolutionTimer.nanoTime();
-		//@TRACE 625=key={0}
-		log.fine(CLASS_NAME,methodName,"625",new Object[]{message.getKey()});
+		long now = highResolutionTimer.nanoTime();
+		this.lastOutboundActivity = now;
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 625=key={0}
+			log.fine(CLASS_NAME,methodName,"625",new Object[]{message.getKey()});
+		}
 		
+		int qos = -1;
+		if (message instanceof MqttPublish) {
+			qos = ((MqttPublish) message).getMessage().getQos();
+			metrics.messageSent(qos);
+		}
 		MqttToken token = message.getToken();
 		if (token == null) {
 			token = tokenStore.getToken(message);
 			if (token == null) return;
 		}
+		if (qos > 0) {
+			token.internalTok.setSentNanos(now);
+		}
 		token.internalTok.notifySent();
         if (message instanceof MqttPingReq) {
             synchronized (pingOutstandingLock) {
@@ -937,8 +1145,10 @@ public class ClientState {
                 	lastPing = time;
                 	pingOutstanding++;
                 }
-                //@TRACE 635=ping sent. pingOutstanding: {0}                                                                                                                                                                  
-                log.fine(CLASS_NAME,methodName,"635",new Object[]{  Integer.valueOf(pingOutstanding)});
+                if (log.isLoggable(Logger.FINE)) {
+	                //@TRACE 635=ping sent. pingOutstanding: {0}                                                                                                                                                                  
+	                log.fine(CLASS_NAME,methodName,"635",new Object[]{  Integer.valueOf(pingOutstanding)});
+                }
             }
         }
         else if (message instanceof MqttPublish) {
@@ -957,14 +1167,15 @@ public class ClientState {
 
 	private void decrementInFlight() {
 		final String methodName = "decrementInFlight";
-		synchronized (queueLock) {
-			actualInFlight--;
+		int inFlight = actualInFlight.decrementAndGet();
+		if (log.isLoggable(Logger.FINE)) {
 			//@TRACE 646=-1 actualInFlight={0}
-			log.fine(CLASS_NAME,methodName,"646",new Object[]{ Integer.valueOf(actualInFlight)});
-			
-			if (!checkQuiesceLock()) {
-				queueLock.notifyAll();
-			}
+			log.fine(CLASS_NAME,methodName,"646",new Object[]{ Integer.valueOf(inFlight)});
+		}
+		
+		if (!checkQuiesceLock()) {
+			// There is space in the inflight window
+			pending.wakeUp();
 		}
 	}
 	
@@ -972,9 +1183,11 @@ public class ClientState {
 		final String methodName = "checkQuiesceLock";
 //		if (quiescing && actualInFlight == 0 && pendingFlows.size() == 0 && inFlightPubRels == 0 && callback.isQuiesced()) {
 		int tokC = tokenStore.count();
-		if (quiescing && tokC == 0 && pendingFlows.size() == 0 && callback.isQuiesced()) {
-			//@TRACE 626=quiescing={0} actualInFlight={1} pendingFlows={2} inFlightPubRels={3} callbackQuiesce={4} tokens={5}
-			log.fine(CLASS_NAME,methodName,"626",new Object[]{ Boolean.valueOf(quiescing),  Integer.valueOf(actualInFlight),  Integer.valueOf(pendingFlows.size()),  Integer.valueOf(inFlightPubRels), Boolean.valueOf(callback.isQuiesced()),  Integer.valueOf(tokC)});
+		if (quiescing && tokC == 0 && !pending.hasFlows() && callback.isQuiesced()) {
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 626=quiescing={0} actualInFlight={1} pendingFlows={2} inFlightPubRels={3} callbackQuiesce={4} tokens={5}
+				log.fine(CLASS_NAME,methodName,"626",new Object[]{ Boolean.valueOf(quiescing),  Integer.valueOf(actualInFlight.get()),  Integer.valueOf(pending.getFlows().size()),  Integer.valueOf(inFlightPubRels.get()), Boolean.valueOf(callback.isQuiesced()),  Integer.valueOf(tokC)});
+			}
 			synchronized (quiesceLock) {
 				quiesceLock.notifyAll();
 			}
@@ -987,10 +1200,13 @@ public class ClientState {
         final String methodName = "notifyReceivedBytes";
         if (receivedBytesCount > 0) {
             this.lastInboundActivity = highResolutionTimer.nanoTime();
+            metrics.bytesReceived(receivedBytesCount);
+        }
+        if (log.isLoggable(Logger.FINE)) {
+	        // @TRACE 630=received bytes count={0}                                                                                                                                                                                        
+	        log.fine(CLASS_NAME, methodName, "630", new Object[] {
+	                  Integer.valueOf(receivedBytesCount) });
         }
-        // @TRACE 630=received bytes count={0}                                                                                                                                                                                        
-        log.fine(CLASS_NAME, methodName, "630", new Object[] {
-                  Integer.valueOf(receivedBytesCount) });
     }
 
     /**
@@ -1003,17 +1219,21 @@ public class ClientState {
 		final String methodName = "notifyReceivedAck";
 		this.lastInboundActivity = highResolutionTimer.nanoTime();
 
-		// @TRACE 627=received key={0} message={1}
-		log.fine(CLASS_NAME, methodName, "627", new Object[] {
-				 Integer.valueOf(ack.getMessageId()), ack });
+		if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 627=received key={0} message={1}
+			log.fine(CLASS_NAME, methodName, "627", new Object[] {
+					 Integer.valueOf(ack.getMessageId()), ack });
+		}
 
 		MqttToken token = tokenStore.getToken(ack);
 		MqttException mex = null;
 
 		if (token == null) {
-			// @TRACE 662=no message found for ack id={0}
-			log.fine(CLASS_NAME, methodName, "662", new Object[] {
-					 Integer.valueOf(ack.getMessageId())});
+			if (log.isLoggable(Logger.FINE)) {
+				// @TRACE 662=no message found for ack id={0}
+				log.fine(CLASS_NAME, methodName, "662", new Object[] {
+						 Integer.valueOf(ack.getMessageId())});
+			}
 		} else if (ack instanceof MqttPubRec) {
 			// Complete the QoS 2 flow. Unlike all other
 			// flows, QoS is a 2 phase flow. The second phase sends a
@@ -1022,6 +1242,12 @@ public class ClientState {
 			MqttPubRel rel = new MqttPubRel((MqttPubRec) ack);
 			this.send(rel, token);
 		} else if (ack instanceof MqttPubAck || ack instanceof MqttPubComp) {
+			long sent = token.internalTok.getSentNanos();
+			if (sent != 0) {
+				LatencyHistogram latency = ack instanceof MqttPubAck ? metrics.getPubAckLatency()
+						: metrics.getPubCompLatency();
+				latency.record(highResolutionTimer.nanoTime() - sent);
+			}
 			// QoS 1 & 2 notify users of result before removing from
 			// persistence
 			notifyResult(ack, token, mex);
@@ -1035,23 +1261,25 @@ public class ClientState {
                 	tokenStore.removeToken(ack);
                 }
             }
-            //@TRACE 636=ping response received. pingOutstanding: {0}                                                                                                                                                     
-            log.fine(CLASS_NAME,methodName,"636",new Object[]{  Integer.valueOf(pingOutstanding)});
+            if (log.isLoggable(Logger.FINE)) {
+	            //@TRACE 636=ping response received. pingOutstanding: {0}                                                                                                                                                     
+	            log.fine(CLASS_NAME,methodName,"636",new Object[]{  Integer.valueOf(pingOutstanding)});
+            }
 		} else if (ack instanceof MqttConnack) {
 			int rc = ((MqttConnack) ack).getReturnCode();
 			if (rc == 0) {
-				synchronized (queueLock) {
-					if (cleanSession) {
-						clearState();
-						// Add the connect token back in so that users can be  
-						// notified when connect completes.
-						tokenStore.saveToken(token,ack);
-					}
-					inFlightPubRels = 0;
-					actualInFlight = 0;
-					restoreInflightMessages();
-					connected();
+				// The sender thread is not woken until connected, so it cannot see the
+				// restored messages while the client still appears disconnected.
+				if (cleanSession) {
+					clearState();
+					// Add the connect token back in so that users can be  
+					// notified when connect completes.
+					tokenStore.saveToken(token,ack);
 				}
+				inFlightPubRels.set(0);
+				actualInFlight.set(0);
+				restoreInflightMessages();
+				connected();
 			} else {
 				mex = ExceptionHelper.createMqttException(rc);
 				throw mex;
@@ -1062,9 +1290,7 @@ public class ClientState {
 			tokenStore.removeToken(ack);
 
 			// Notify the sender thread that there maybe work for it to do now
-			synchronized (queueLock) {
-				queueLock.notifyAll();
-			}
+			pending.wakeUp();
 		} else {
 			notifyResult(ack, token, mex);
 			releaseMessageId(ack.getMessageId());
@@ -1085,13 +1311,16 @@ public class ClientState {
 		final String methodName = "notifyReceivedMsg";
 		this.lastInboundActivity = highResolutionTimer.nanoTime();
 
-		// @TRACE 651=received key={0} message={1}
-		log.fine(CLASS_NAME, methodName, "651", new Object[] {
-				 Integer.valueOf(message.getMessageId()), message });
+		if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 651=received key={0} message={1}
+			log.fine(CLASS_NAME, methodName, "651", new Object[] {
+					 Integer.valueOf(message.getMessageId()), message });
+		}
 		
 		if (!quiescing) {
 			if (message instanceof MqttPublish) {
 				MqttPublish send = (MqttPublish) message;
+				metrics.messageReceived(send.getMessage().getQos());
 				switch (send.getMessage().getQos()) {
 				case 0:
 				case 1:
@@ -1100,7 +1329,7 @@ public class ClientState {
 					}
 					break;
 				case 2:
-					persistence.put(getReceivedPersistenceKey(message),
+					persist(getReceivedPersistenceKey(message),
 							(MqttPublish) message);
 					inboundQoS2.put( Integer.valueOf(send.getMessageId()), send);
 					this.send(new MqttPubRec(send), null);
@@ -1144,9 +1373,11 @@ public class ClientState {
 
 		if (message != null && message instanceof MqttAck) {
 			
-			// @TRACE 629=received key={0} token={1} message={2}
-			log.fine(CLASS_NAME, methodName, "629", new Object[] {
-					  Integer.valueOf(message.getMessageId()), token, message });
+			if (log.isLoggable(Logger.FINE)) {
+				// @TRACE 629=received key={0} token={1} message={2}
+				log.fine(CLASS_NAME, methodName, "629", new Object[] {
+						  Integer.valueOf(message.getMessageId()), token, message });
+			}
 
 			MqttAck ack = (MqttAck) message;
 
@@ -1159,9 +1390,11 @@ public class ClientState {
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
-				// @TRACE 650=removed Qos 1 publish. key={0}
-				log.fine(CLASS_NAME, methodName, "650",
-						new Object[] {  Integer.valueOf(ack.getMessageId()) });
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 650=removed Qos 1 publish. key={0}
+					log.fine(CLASS_NAME, methodName, "650",
+							new Object[] {  Integer.valueOf(ack.getMessageId()) });
+				}
 			} else if (ack instanceof MqttPubComp) {
 				// QoS 2 - user notified now remove from persistence...
 				persistence.remove(getSendPersistenceKey(message));
@@ -1169,15 +1402,17 @@ public class ClientState {
 				persistence.remove(getSendBufferedPersistenceKey(message));
 				outboundQoS2.remove( Integer.valueOf(ack.getMessageId()));
 
-				inFlightPubRels--;
+				int pubRels = inFlightPubRels.decrementAndGet();
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
 
-				// @TRACE 645=removed QoS 2 publish/pubrel. key={0}, -1 inFlightPubRels={1}
-				log.fine(CLASS_NAME, methodName, "645", new Object[] {
-						 Integer.valueOf(ack.getMessageId()),
-						 Integer.valueOf(inFlightPubRels) });
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 645=removed QoS 2 publish/pubrel. key={0}, -1 inFlightPubRels={1}
+					log.fine(CLASS_NAME, methodName, "645", new Object[] {
+							 Integer.valueOf(ack.getMessageId()),
+							 Integer.valueOf(pubRels) });
+				}
 			}
 
 			checkQuiesceLock();
@@ -1192,15 +1427,19 @@ public class ClientState {
 		
 		// Let the user know an async operation has completed and then remove the token
 		if (ack != null && ack instanceof MqttAck && !(ack instanceof MqttPubRec)) {
-			//@TRACE 648=key{0}, msg={1}, excep={2}
-			log.fine(CLASS_NAME,methodName, "648", new Object [] {token.internalTok.getKey(), ack, ex});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 648=key{0}, msg={1}, excep={2}
+				log.fine(CLASS_NAME,methodName, "648", new Object [] {token.internalTok.getKey(), ack, ex});
+			}
 			callback.asyncOperationComplete(token);
 		}
 		// There are cases where there is no ack as the operation failed before 
 		// an ack was received 
 		if (ack == null ) {
-			//@TRACE 649=key={0},excep={1}
-			log.fine(CLASS_NAME,methodName, "649", new Object [] { token.internalTok.getKey(), ex});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 649=key={0},excep={1}
+				log.fine(CLASS_NAME,methodName, "649", new Object [] { token.internalTok.getKey(), ex});
+			}
 			callback.asyncOperationComplete(token);
 		}
 	}
@@ -1226,10 +1465,12 @@ public class ClientState {
 	 * @param reason The root cause of the disconnection, or null if it is a clean disconnect
 	 * @return {@link Vector} 
 	 */
-	public Vector resolveOldTokens(MqttException reason) {
+	public Vector<MqttToken> resolveOldTokens(MqttException reason) {
 		final String methodName = "resolveOldTokens";
-		//@TRACE 632=reason {0}
-		log.fine(CLASS_NAME,methodName,"632", new Object[] {reason});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 632=reason {0}
+			log.fine(CLASS_NAME,methodName,"632", new Object[] {reason});
+		}
 		
 		// If any outstanding let the user know the reason why it is still
 		// outstanding by putting the reason shutdown is occurring into the 
@@ -1243,14 +1484,17 @@ public class ClientState {
 		// processing has completed. Do not 
 		// remove the token from the store if it is a delivery token, it is 
 		// valid after a reconnect. 
-		Vector outT = tokenStore.getOutstandingTokens();
-		Enumeration outTE = outT.elements();
+		Vector<MqttToken> outT = tokenStore.getOutstandingTokens();
+		Enumeration<MqttToken> outTE = outT.elements();
 		while (outTE.hasMoreElements()) {
-			MqttToken tok = (MqttToken)outTE.nextElement();
-			synchronized (tok) {
+			MqttToken tok = outTE.nextElement();
+			tok.internalTok.lockFlow();
+			try {
 				if (!tok.isComplete() && !tok.internalTok.isCompletePending() && tok.getException() == null) {
 					tok.internalTok.setException(shutReason);
 				}
+			} finally {
+				tok.internalTok.unlockFlow();
 			}
 			if (!(tok instanceof MqttDeliveryToken)) {
 				// If not a delivery token it is not valid on 
@@ -1267,8 +1511,10 @@ public class ClientState {
 	 */
 	public void disconnected(MqttException reason) {
 		final String methodName = "disconnected";
-		//@TRACE 633=disconnected
-		log.fine(CLASS_NAME,methodName,"633", new Object[] {reason});		
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 633=disconnected
+			log.fine(CLASS_NAME,methodName,"633", new Object[] {reason});		
+		}
 
 		this.connected = false;
 
@@ -1277,8 +1523,7 @@ public class ClientState {
 				clearState();
 			}
 
-			pendingMessages.clear();
-			pendingFlows.clear();
+			pending.clear();
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 			    pingOutstanding = 0;
@@ -1294,8 +1539,8 @@ public class ClientState {
 	 * 
 	 * @param msgId A message ID that can be freed up for re-use.
 	 */
-	private synchronized void releaseMessageId(int msgId) {
-		inUseMsgIds.remove( Integer.valueOf(msgId));
+	private void releaseMessageId(int msgId) {
+		messageIds.release(msgId);
 	}
 
 	/**
@@ -1304,26 +1549,12 @@ public class ClientState {
 	 * 
 	 * @return the next MQTT message ID to use
 	 */
-	private synchronized int getNextMessageId() throws MqttException {
-		int startingMessageId = nextMsgId;
-		// Allow two complete passes of the message ID range. This gives
-		// any asynchronous releases a chance to occur
-		int loopCount = 0;
-	    do {
-	        nextMsgId++;
-	        if ( nextMsgId > MAX_MSG_ID ) {
-	            nextMsgId = MIN_MSG_ID;
-	        }
-	        if (nextMsgId == startingMessageId) {
-	        	loopCount++;
-	        	if (loopCount == 2) {
-	        		throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
-	        	}
-	        }
-	    } while( inUseMsgIds.containsKey(  Integer.valueOf(nextMsgId) ) );
-	    Integer id =  Integer.valueOf(nextMsgId);
-	    inUseMsgIds.put(id, id);
-	    return nextMsgId;
+	private int getNextMessageId() throws MqttException {
+		int id = messageIds.allocate();
+		if (id == 0) {
+			throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+		return id;
 	}
 	
 	/**
@@ -1337,11 +1568,11 @@ public class ClientState {
 		final String methodName = "quiesce";
 		// If the timeout is greater than zero t
 		if (timeout > 0 ) {
-			//@TRACE 637=timeout={0}
-			log.fine(CLASS_NAME,methodName, "637",new Object[]{ Long.valueOf(timeout)});
-			synchronized (queueLock) {
-				this.quiescing = true;
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 637=timeout={0}
+				log.fine(CLASS_NAME,methodName, "637",new Object[]{ Long.valueOf(timeout)});
 			}
+			this.quiescing = true;
 			// We don't want to handle any new inbound messages
 			callback.quiesce();
 			notifyQueueLock();
@@ -1352,9 +1583,11 @@ public class ClientState {
 					// if pending flows is not zero there is outstanding work to complete and
 					// if call back is not quiseced there it needs to complete. 
 					int tokc = tokenStore.count();
-					if (tokc > 0 || pendingFlows.size() >0 || !callback.isQuiesced()) {
-						//@TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1} inFlightPubRels={2} tokens={3}
-						log.fine(CLASS_NAME, methodName,"639", new Object[]{ Integer.valueOf(actualInFlight),  Integer.valueOf(pendingFlows.size()),  Integer.valueOf(inFlightPubRels),  Integer.valueOf(tokc)});
+					if (tokc > 0 || pending.hasFlows() || !callback.isQuiesced()) {
+						if (log.isLoggable(Logger.FINE)) {
+							//@TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1} inFlightPubRels={2} tokens={3}
+							log.fine(CLASS_NAME, methodName,"639", new Object[]{ Integer.valueOf(actualInFlight.get()),  Integer.valueOf(pending.getFlows().size()),  Integer.valueOf(inFlightPubRels.get()),  Integer.valueOf(tokc)});
+						}
 
 						// wait for outstanding in flight messages to complete and
 						// any pending flows to complete
@@ -1368,16 +1601,9 @@ public class ClientState {
 			
 			// Quiesce time up or inflight messages delivered.  Ensure pending delivery
 			// vectors are cleared ready for disconnect to be sent as the final flow.
-			synchronized (queueLock) {
-				if (pendingMessages != null) {
-					pendingMessages.clear();
-				}
-				if (pendingFlows != null) {
-					pendingFlows.clear();
-				}
-				quiescing = false;
-				actualInFlight = 0;
-			}
+			pending.clear();
+			quiescing = false;
+			actualInFlight.set(0);
 			//@TRACE 640=finished
 			log.fine(CLASS_NAME, methodName, "640");
 		}
@@ -1385,18 +1611,18 @@ public class ClientState {
 
 	public void notifyQueueLock() {
 		final String methodName = "notifyQueueLock";
-		synchronized (queueLock) {
-			//@TRACE 638=notifying queueLock holders
-			log.fine(CLASS_NAME,methodName,"638");
-			queueLock.notifyAll();
-		}
+		//@TRACE 638=notifying queueLock holders
+		log.fine(CLASS_NAME,methodName,"638");
+		pending.wakeUp();
 	}
 
 	protected void deliveryComplete(MqttPublish message) throws MqttPersistenceException {
 		final String methodName = "deliveryComplete";
 
-		//@TRACE 641=remove publish from persistence. key={0}
-		log.fine(CLASS_NAME,methodName,"641", new Object[]{ Integer.valueOf(message.getMessageId())});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 641=remove publish from persistence. key={0}
+			log.fine(CLASS_NAME,methodName,"641", new Object[]{ Integer.valueOf(message.getMessageId())});
+		}
 		
 		persistence.remove(getReceivedPersistenceKey(message));
 		inboundQoS2.remove( Integer.valueOf(message.getMessageId()));
@@ -1405,15 +1631,17 @@ public class ClientState {
 	protected void deliveryComplete(int messageId) throws MqttPersistenceException {
 		final String methodName = "deliveryComplete";
 
-		//@TRACE 641=remove publish from persistence. key={0}
-		log.fine(CLASS_NAME,methodName,"641", new Object[]{ Integer.valueOf(messageId)});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 641=remove publish from persistence. key={0}
+			log.fine(CLASS_NAME,methodName,"641", new Object[]{ Integer.valueOf(messageId)});
+		}
 		
 		persistence.remove(getReceivedPersistenceKey(messageId));
 		inboundQoS2.remove( Integer.valueOf(messageId));
 	}
 	
 	public int getActualInFlight(){
-		return actualInFlight;
+		return actualInFlight.get();
 	}
 	
 	public int getMaxInFlight(){
@@ -1426,19 +1654,14 @@ public class ClientState {
 	 * disconnect / connect cycle. 
 	 */
 	protected void close() {
-		inUseMsgIds.clear();
-		if (pendingMessages != null) {
-			pendingMessages.clear();
-		}
-		pendingFlows.clear();
+		messageIds.clear();
+		pending.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		outboundQoS0.clear();
 		inboundQoS2.clear();
 		tokenStore.clear();
-		inUseMsgIds = null;
-		pendingMessages = null;
-		pendingFlows = null;
+		messageIds = null;
 		outboundQoS2 = null;
 		outboundQoS1 = null;
 		outboundQoS0 = null;
@@ -1451,15 +1674,36 @@ public class ClientState {
 		highResolutionTimer = null;
 	}
 	
+	/**
+	 * @return the number of messages waiting to be sent
+	 */
+	public int getPendingMessageCount() {
+		return pending.getMessages().size();
+	}
+
+	/**
+	 * @return the number of control packets waiting to be sent
+	 */
+	public int getPendingFlowCount() {
+		return pending.getFlows().size();
+	}
+
+	/**
+	 * @return the number of messages sent and not yet acknowledged
+	 */
+	public int getInFlightCount() {
+		return actualInFlight.get();
+	}
+
 	public Properties getDebug() {
 		Properties props = new Properties();
-		props.put("In use msgids", inUseMsgIds);
-		props.put("pendingMessages", pendingMessages);
-		props.put("pendingFlows", pendingFlows);
+		props.put("In use msgids", messageIds.toString());
+		props.put("pendingMessages", pending.getMessages());
+		props.put("pendingFlows", pending.getFlows());
 		props.put("maxInflight",  Integer.valueOf(maxInflight));
-		props.put("nextMsgID",  Integer.valueOf(nextMsgId));
-		props.put("actualInFlight",  Integer.valueOf(actualInFlight));
-		props.put("inFlightPubRels",  Integer.valueOf(inFlightPubRels));
+		props.put("nextMsgID",  Integer.valueOf(messageIds.getNext()));
+		props.put("actualInFlight",  Integer.valueOf(actualInFlight.get()));
+		props.put("inFlightPubRels",  Integer.valueOf(inFlightPubRels.get()));
 		props.put("quiescing", Boolean.valueOf(quiescing));
 		props.put("pingoutstanding",  Integer.valueOf(pingOutstanding));
 		props.put("lastOutboundActivity",  Long.valueOf(lastOutboundActivity));
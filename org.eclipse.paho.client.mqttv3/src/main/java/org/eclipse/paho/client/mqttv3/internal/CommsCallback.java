@@ -18,8 +18,8 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -34,7 +34,6 @@ import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttToken;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubAck;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubComp;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
@@ -56,8 +55,7 @@ public class CommsCallback implements Runnable {
 	private static final int INBOUND_QUEUE_SIZE = 10;
 	private MqttCallback mqttCallback;
 	private MqttCallbackExtended reconnectInternalCallback;
-	private final Hashtable<String, IMqttMessageListener> callbacksWildcards; // topicFilter with wildcards -> messageHandler
-	private final Hashtable<String, IMqttMessageListener> callbacksDirect; // topicFilter without wildcards -> messageHandler
+	private final TopicFilterTrie<IMqttMessageListener> callbacks; // topicFilter -> messageHandler
 	private final ClientComms clientComms;
 	private final Vector<MqttWireMessage> messageQueue;
 	private final Vector<MqttToken> completeQueue;
@@ -80,8 +78,7 @@ public class CommsCallback implements Runnable {
 		this.clientComms = clientComms;
 		this.messageQueue = new Vector<MqttWireMessage>(INBOUND_QUEUE_SIZE);
 		this.completeQueue = new Vector<MqttToken>(INBOUND_QUEUE_SIZE);
-		this.callbacksWildcards = new Hashtable<String, IMqttMessageListener>();
-		this.callbacksDirect = new Hashtable<String, IMqttMessageListener>();
+		this.callbacks = new TopicFilterTrie<IMqttMessageListener>();
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
@@ -263,9 +260,12 @@ public class CommsCallback implements Runnable {
 	private void handleActionComplete(MqttToken token)
 			throws MqttException {
 		final String methodName = "handleActionComplete";
-		synchronized (token) {
-			// @TRACE 705=callback and notify for key={0}
-			log.fine(CLASS_NAME, methodName, "705",	new Object[] { token.internalTok.getKey() });
+		token.internalTok.lockFlow();
+		try {
+			if (log.isLoggable(Logger.FINE)) {
+				// @TRACE 705=callback and notify for key={0}
+				log.fine(CLASS_NAME, methodName, "705",	new Object[] { token.internalTok.getKey() });
+			}
 			if (token.isComplete()) {
 				// Finish by doing any post processing such as delete 
 				// from persistent store but only do so if the action
@@ -297,6 +297,8 @@ public class CommsCallback implements Runnable {
 			
 
 			
+		} finally {
+			token.internalTok.unlockFlow();
 		}
 	}
 
@@ -315,8 +317,10 @@ public class CommsCallback implements Runnable {
 		// the connection lost listener of the problem.
 		try {
 			if (mqttCallback != null && cause != null) {
-				// @TRACE 708=call connectionLost
-				log.fine(CLASS_NAME, methodName, "708", new Object[] { cause });
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 708=call connectionLost
+					log.fine(CLASS_NAME, methodName, "708", new Object[] { cause });
+				}
 				mqttCallback.connectionLost(cause);
 			}
 			if(reconnectInternalCallback != null && cause != null){
@@ -325,8 +329,10 @@ public class CommsCallback implements Runnable {
 		} catch (java.lang.Throwable t) {
 			// Just log the fact that a throwable has caught connection lost 
 			// is called during shutdown processing so no need to do anything else
-			// @TRACE 720=exception from connectionLost {0}
-			log.fine(CLASS_NAME, methodName, "720", new Object[] { t });
+			if (log.isLoggable(Logger.FINE)) {
+				// @TRACE 720=exception from connectionLost {0}
+				log.fine(CLASS_NAME, methodName, "720", new Object[] { t });
+			}
 		}
 	}
 
@@ -343,14 +349,18 @@ public class CommsCallback implements Runnable {
 			IMqttActionListener asyncCB = token.getActionCallback();
 			if (asyncCB != null) {
 				if (token.getException() == null) {
-					// @TRACE 716=call onSuccess key={0}
-					log.fine(CLASS_NAME, methodName, "716",
-							new Object[] { token.internalTok.getKey() });
+					if (log.isLoggable(Logger.FINE)) {
+						// @TRACE 716=call onSuccess key={0}
+						log.fine(CLASS_NAME, methodName, "716",
+								new Object[] { token.internalTok.getKey() });
+					}
 					asyncCB.onSuccess(token);
 				} else {
-					// @TRACE 717=call onFailure key {0}
-					log.fine(CLASS_NAME, methodName, "716",
-							new Object[] { token.internalTok.getKey() });
+					if (log.isLoggable(Logger.FINE)) {
+						// @TRACE 717=call onFailure key {0}
+						log.fine(CLASS_NAME, methodName, "716",
+								new Object[] { token.internalTok.getKey() });
+					}
 					asyncCB.onFailure(token, token.getException());
 				}
 			}
@@ -367,7 +377,8 @@ public class CommsCallback implements Runnable {
 	 */
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
-		if (mqttCallback != null || !callbacksWildcards.isEmpty() || !callbacksDirect.isEmpty()) {
+		if (mqttCallback != null || !callbacks.isEmpty()) {
+			sendMessage.setArrivalNanos(System.nanoTime());
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps 
 			// the client protect itself from getting flooded by messages 
@@ -413,6 +424,13 @@ public class CommsCallback implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the number of arrived messages waiting for their callback
+	 */
+	public int getQueueDepth() {
+		return messageQueue.size();
+	}
+
 	public boolean isQuiesced() {
 		if (isQuiescing() && completeQueue.size() == 0 && messageQueue.size() == 0) {
 			return true;
@@ -426,10 +444,16 @@ public class CommsCallback implements Runnable {
 		// If quisecing process any pending messages.
 
 		String destName = publishMessage.getTopicName();
+		long arrived = publishMessage.getArrivalNanos();
+		if (arrived != 0) {
+			clientComms.getMetrics().getCallbackQueueWait().record(System.nanoTime() - arrived);
+		}
 
-		// @TRACE 713=call messageArrived key={0} topic={1}
-		log.fine(CLASS_NAME, methodName, "713", new Object[] {
-				Integer.valueOf(publishMessage.getMessageId()), destName });
+		if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 713=call messageArrived key={0} topic={1}
+			log.fine(CLASS_NAME, methodName, "713", new Object[] {
+					Integer.valueOf(publishMessage.getMessageId()), destName });
+		}
 		deliverMessage(destName, publishMessage.getMessageId(),
 				publishMessage.getMessage());
 
@@ -466,8 +490,10 @@ public class CommsCallback implements Runnable {
 			// invoke callbacks on callback thread
 			completeQueue.addElement(token);
 			synchronized (workAvailable) {
-				// @TRACE 715=new workAvailable. key={0}
-				log.fine(CLASS_NAME, methodName, "715", new Object[] { token.internalTok.getKey() });
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 715=new workAvailable. key={0}
+					log.fine(CLASS_NAME, methodName, "715", new Object[] { token.internalTok.getKey() });
+				}
 				workAvailable.notifyAll();
 			}
 		} else {
@@ -497,22 +523,16 @@ public class CommsCallback implements Runnable {
 
 
 	public void setMessageListener(String topicFilter, IMqttMessageListener messageListener) {
-		if (topicFilter.contains("#") || topicFilter.contains("+")) {
-			this.callbacksWildcards.put(topicFilter, messageListener);
-		} else {
-			this.callbacksDirect.put(topicFilter, messageListener);
-		}
+		this.callbacks.put(topicFilter, messageListener);
 	}
 	
 	
 	public void removeMessageListener(String topicFilter) {
-		this.callbacksWildcards.remove(topicFilter); // no exception thrown if the filter was not present
-		this.callbacksDirect.remove(topicFilter); // no exception thrown if the filter was not present
+		this.callbacks.remove(topicFilter); // no exception thrown if the filter was not present
 	}
 	
 	public void removeMessageListeners() {
-		this.callbacksWildcards.clear();
-		this.callbacksDirect.clear();
+		this.callbacks.clear();
 	}
 	
 	
@@ -520,28 +540,14 @@ public class CommsCallback implements Runnable {
 	{		
 		boolean delivered = false;
 		
-		IMqttMessageListener callback = this.callbacksDirect.get(topicName);
-		if (callback != null) {
+		List<IMqttMessageListener> matched = new ArrayList<IMqttMessageListener>(2);
+		this.callbacks.match(topicName, matched);
+		for (int i = 0; i < matched.size(); i++) {
 			aMessage.setId(messageId);
-			callback.messageArrived(topicName, aMessage);
+			matched.get(i).messageArrived(topicName, aMessage);
 			delivered = true;
 		}
 		
-		Enumeration<String> keys = callbacksWildcards.keys();
-		while (keys.hasMoreElements()) {
-			String topicFilter = (String)keys.nextElement();
-			// callback may already have been removed in the meantime, so a null check is necessary
-			callback = callbacksWildcards.get(topicFilter);
-			if(callback == null) {
-				continue;
-			}
-			if (MqttTopic.isMatched(topicFilter, topicName)) {
-				aMessage.setId(messageId);
-				callback.messageArrived(topicName, aMessage);
-				delivered = true;
-			}
-		}
-		
 		/* if the message hasn't been delivered to a per subscription handler, give it to the default handler */
 		if (mqttCallback != null && !delivered) {
 			aMessage.setId(messageId);
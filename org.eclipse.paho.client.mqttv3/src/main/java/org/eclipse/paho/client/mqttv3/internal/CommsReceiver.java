@@ -166,12 +166,15 @@ public class CommsReceiver implements Runnable {
 					if (message instanceof MqttAck) {
 						token = tokenStore.getToken(message);
 						if (token!=null) {
-							synchronized (token) {
+							token.internalTok.lockFlow();
+							try {
 								// Ensure the notify processing is done under a lock on the token
 								// This ensures that the send processing can complete  before the
 								// receive processing starts! ( request and ack and ack processing
 								// can occur before request processing is complete if not!
 								clientState.notifyReceivedAck((MqttAck)message);
+							} finally {
+								token.internalTok.unlockFlow();
 							}
 						} else if(message instanceof MqttPubRec || message instanceof MqttPubComp || message instanceof MqttPubAck) {
 							//This is an ack for a message we no longer have a ticket for.
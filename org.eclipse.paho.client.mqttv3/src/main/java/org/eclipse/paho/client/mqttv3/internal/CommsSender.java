@@ -17,6 +17,7 @@ package org.eclipse.paho.client.mqttv3.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -25,7 +26,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttAck;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttDisconnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttOutputStream;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
@@ -52,16 +55,53 @@ public class CommsSender implements Runnable {
 	private MqttOutputStream out;
 	private ClientComms clientComms = null;
 	private CommsTokenStore tokenStore = null;
+	private OutputStream networkOut;
+
+	// Write coalescing, off unless setSendBatching is called
+	private boolean batching = false;
+	private int batchMaxMessages;
+	private int batchMaxBytes;
+	private long batchLingerNanos;
+	// The buffered bytes at which a publishBatch is flushed when not batching
+	private static final int PUBLISH_BATCH_MAX_BYTES = 64 * 1024;
+	// The PUBLISH and other packets with tokens written in the current batch,
+	// and their tokens, whose flows are held until the batch is flushed
+	private final ArrayList<MqttWireMessage> batchWritten = new ArrayList<MqttWireMessage>();
+	private final ArrayList<MqttToken> batchTokens = new ArrayList<MqttToken>();
 
 
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
 		this.out = new MqttOutputStream(clientState, out);
+		this.networkOut = out;
 		this.clientComms = clientComms;
 		this.clientState = clientState;
 		this.tokenStore = tokenStore;
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
+	/**
+	 * Enables write coalescing. Once the sender has a message to send it keeps
+	 * taking whatever else can be sent, writing each message into the output
+	 * buffer, and then flushes them to the network together. A batch ends when
+	 * either limit is reached or nothing more arrives within the linger time.
+	 * Must be called before {@link #start(String, ExecutorService)}.
+	 * 
+	 * @param maxMessages the most messages to send in one flush
+	 * @param maxBytes the number of buffered bytes at which the batch is flushed
+	 * @param lingerNanos how long to wait for further messages before flushing,
+	 * in nanoseconds
+	 */
+	public void setSendBatching(int maxMessages, int maxBytes, long lingerNanos) {
+		this.batching = maxMessages > 1;
+		this.batchMaxMessages = maxMessages;
+		this.batchMaxBytes = maxBytes;
+		this.batchLingerNanos = lingerNanos;
+		if (batching) {
+			// Size the buffer so that a whole batch reaches the network in one write
+			this.out = new MqttOutputStream(clientState, networkOut, maxBytes);
+		}
+	}
+
 	/**
 	 * Starts up the Sender thread.
 	 * @param threadName the threadname
@@ -150,10 +190,14 @@ public class CommsSender implements Runnable {
 				try {
 					message = clientState.get();
 					if (message != null) {
-						//@TRACE 802=network send key={0} msg={1}
-						log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+						if (log.isLoggable(Logger.FINE)) {
+							//@TRACE 802=network send key={0} msg={1}
+							log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+						}
 
-						if (message instanceof MqttAck) {
+						if (batching || isMoreInBatch(message)) {
+							sendBatch(message);
+						} else if (message instanceof MqttAck) {
 							out.write(message);
 							out.flush();
 						} else {
@@ -165,7 +209,8 @@ public class CommsSender implements Runnable {
 							// to check for null for the case where clear occurs
 							// while trying to send a message.
 							if (token != null) {
-								synchronized (token) {
+								token.internalTok.lockFlow();
+								try {
 									out.write(message);
 									try {
 										out.flush();
@@ -177,6 +222,8 @@ public class CommsSender implements Runnable {
 										}
 									}
 									clientState.notifySent(message);
+								} finally {
+									token.internalTok.unlockFlow();
 								}
 							}
 						}
@@ -206,6 +253,107 @@ public class CommsSender implements Runnable {
 		log.fine(CLASS_NAME, methodName,"805");
 	}
 
+	/**
+	 * @return true if the message was queued by a publishBatch and the
+	 *         messages after it are from the same batch
+	 */
+	private boolean isMoreInBatch(MqttWireMessage message) {
+		if (!(message instanceof MqttPublish)) {
+			return false;
+		}
+		MqttToken token = getToken(message);
+		return token != null && token.internalTok.isMoreInBatch();
+	}
+
+	/**
+	 * Writes the first message and as many of the messages which follow it as
+	 * the batch limits allow, then flushes them with a single network write.
+	 * The tokens are only told their messages have been sent once the flush
+	 * has succeeded. Each token's flow is held from the write until then, so
+	 * that it is marked sent before any response to the message is processed.
+	 * If the flush fails the messages are not marked sent, and their tokens
+	 * are failed when the connection is shut down.
+	 * <p>
+	 * When batching is off this is only used for the messages of a
+	 * publishBatch, which are written until the last of the batch, or until
+	 * nothing more can be sent straight away.
+	 * </p>
+	 */
+	private void sendBatch(MqttWireMessage first) throws MqttException, IOException {
+		final String methodName = "sendBatch";
+		MqttWireMessage message = first;
+		MqttWireMessage last = null;
+		int count = 0;
+		boolean moreInBatch = false;
+		try {
+			while (message != null) {
+				if (message instanceof MqttAck) {
+					out.write(message);
+					last = message;
+					count++;
+				} else {
+					MqttToken token = getToken(message);
+					// While quiescing the tokenstore can be cleared so need
+					// to check for null for the case where clear occurs
+					// while trying to send a message.
+					if (token != null) {
+						token.internalTok.lockFlow();
+						batchTokens.add(token);
+						out.write(message);
+						batchWritten.add(message);
+						moreInBatch = token.internalTok.isMoreInBatch();
+						last = message;
+						count++;
+					}
+				}
+				if (message instanceof MqttConnect || message instanceof MqttDisconnect) {
+					break;
+				}
+				if (batching ? count >= batchMaxMessages || out.getBufferedBytes() >= batchMaxBytes
+						: !moreInBatch || out.getBufferedBytes() >= PUBLISH_BATCH_MAX_BYTES) {
+					break;
+				}
+				message = clientState.poll(batching ? batchLingerNanos : 0);
+				if (message != null) {
+					if (log.isLoggable(Logger.FINE)) {
+						//@TRACE 802=network send key={0} msg={1}
+						log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+					}
+				}
+			}
+			try {
+				out.flush();
+			} catch (IOException ex) {
+				// The flush has been seen to fail on disconnect of a SSL socket
+				// as disconnect is in progress this should not be treated as an error
+				if (!(last instanceof MqttDisconnect)) {
+					throw ex;
+				}
+			}
+			for (int i = 0; i < batchWritten.size(); i++) {
+				clientState.notifySent(batchWritten.get(i));
+			}
+		} finally {
+			for (int i = 0; i < batchTokens.size(); i++) {
+				batchTokens.get(i).internalTok.unlockFlow();
+			}
+			batchTokens.clear();
+			batchWritten.clear();
+		}
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 806=flushed batch of {0} messages
+			log.fine(CLASS_NAME,methodName,"806", new Object[] {Integer.valueOf(count)});
+		}
+	}
+
+	private MqttToken getToken(MqttWireMessage message) {
+		MqttToken token = message.getToken();
+		if (token == null) {
+			token = tokenStore.getToken(message);
+		}
+		return token;
+	}
+
 	private void handleRunException(MqttWireMessage message, Exception ex) {
 		final String methodName = "handleRunException";
 		//@TRACE 804=exception
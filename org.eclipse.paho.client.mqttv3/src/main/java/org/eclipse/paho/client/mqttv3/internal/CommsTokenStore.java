@@ -15,13 +15,18 @@
  */
 package org.eclipse.paho.client.mqttv3.internal;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttConnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttDisconnect;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPingReq;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
 import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
 import org.eclipse.paho.client.mqttv3.logging.Logger;
@@ -41,14 +46,23 @@ import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
  * 
  * Note:
  *   Ping, connect and disconnect do not have a unique message id as
- *   only one outstanding request of each type is allowed to be outstanding
+ *   only one outstanding request of each type is allowed to be outstanding,
+ *   so each has a slot of its own. All other tokens are kept in a
+ *   {@link TokenTable} keyed by message id, which is read without locking.
  */
 public class CommsTokenStore {
 	private static final String CLASS_NAME = CommsTokenStore.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
-	// Maps message-specific data (usually message IDs) to tokens
-	private final Hashtable tokens;
+	// The slots for the flows which do not have a message id
+	private static final int CONNECT = 0;
+	private static final int PING = 1;
+	private static final int DISCONNECT = 2;
+	private static final String[] FLOW_KEYS = { MqttConnect.KEY, MqttPingReq.KEY, MqttDisconnect.KEY };
+
+	// Maps message ids to tokens
+	private final TokenTable<MqttToken> tokens = new TokenTable<MqttToken>();
+	private final AtomicReferenceArray<MqttToken> flows = new AtomicReferenceArray<MqttToken>(FLOW_KEYS.length);
 	private String logContext;
 	private MqttException closedResponse = null;
 
@@ -56,7 +70,6 @@ public class CommsTokenStore {
 		final String methodName = "<Init>";
 
 		log.setResourceName(logContext);
-		this.tokens = new Hashtable();
 		this.logContext = logContext;
 		//@TRACE 308=<>
 		log.fine(CLASS_NAME,methodName,"308");//,new Object[]{message});
@@ -70,29 +83,54 @@ public class CommsTokenStore {
 	 * @return token for the requested message
 	 */
 	public MqttToken getToken(MqttWireMessage message) {
-		String key = message.getKey(); 
-		return (MqttToken)tokens.get(key);
+		int flow = flowOf(message);
+		if (flow >= 0) {
+			return flows.get(flow);
+		}
+		return tokens.get(message.getMessageId());
 	}
 
 	public MqttToken getToken(String key) {
-		return (MqttToken)tokens.get(key);
+		if (key == null) {
+			return null;
+		}
+		int flow = flowOf(key);
+		if (flow >= 0) {
+			return flows.get(flow);
+		}
+		return tokens.get(Integer.parseInt(key));
 	}
 
 	
 	public MqttToken removeToken(MqttWireMessage message) {
 		if (message != null) {
-			return removeToken(message.getKey());
+			final String methodName = "removeToken";
+			int flow = flowOf(message);
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 306=key={0}
+				log.fine(CLASS_NAME,methodName,"306",new Object[]{message.getKey()});
+			}
+			if (flow >= 0) {
+				return flows.getAndSet(flow, null);
+			}
+			return tokens.remove(message.getMessageId());
 		}
 		return null;
 	}
 	
 	public MqttToken removeToken(String key) {
 		final String methodName = "removeToken";
-		//@TRACE 306=key={0}
-		log.fine(CLASS_NAME,methodName,"306",new Object[]{key});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 306=key={0}
+			log.fine(CLASS_NAME,methodName,"306",new Object[]{key});
+		}
 		
 		if ( null != key ){
-		    return (MqttToken) tokens.remove(key);
+			int flow = flowOf(key);
+			if (flow >= 0) {
+				return flows.getAndSet(flow, null);
+			}
+			return tokens.remove(Integer.parseInt(key));
 		}
 		
 		return null;
@@ -110,16 +148,20 @@ public class CommsTokenStore {
 		MqttDeliveryToken token;
 		synchronized(tokens) {
 			String key = Integer.toString(message.getMessageId());
-			if (this.tokens.containsKey(key)) {
-				token = (MqttDeliveryToken)this.tokens.get(key);
-				//@TRACE 302=existing key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName, "302",new Object[]{key, message,token});
+			token = (MqttDeliveryToken)this.tokens.get(message.getMessageId());
+			if (token != null) {
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 302=existing key={0} message={1} token={2}
+					log.fine(CLASS_NAME,methodName, "302",new Object[]{key, message,token});
+				}
 			} else {
 				token = new MqttDeliveryToken(logContext);
 				token.internalTok.setKey(key);
-				this.tokens.put(key, token);
-				//@TRACE 303=creating new token key={0} message={1} token={2}
-				log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
+				this.tokens.put(message.getMessageId(), token);
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 303=creating new token key={0} message={1} token={2}
+					log.fine(CLASS_NAME,methodName,"303",new Object[]{key, message, token});
+				}
 			}
 		}
 		return token;
@@ -133,24 +175,63 @@ public class CommsTokenStore {
 		synchronized(tokens) {
 			if (closedResponse == null) {
 				String key = message.getKey();
-				//@TRACE 300=key={0} message={1}
-				log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 300=key={0} message={1}
+					log.fine(CLASS_NAME,methodName,"300",new Object[]{key, message});
+				}
 				
-				saveToken(token,key);
+				token.internalTok.setKey(key);
+				int flow = flowOf(message);
+				if (flow >= 0) {
+					flows.set(flow, token);
+				} else {
+					tokens.put(message.getMessageId(), token);
+				}
 			} else {
 				throw closedResponse;
 			}
 		}
 	}
 	
+	/**
+	 * Saves the tokens for a batch of messages under one lock. Either every
+	 * token is saved or, if the store has been closed, none is.
+	 */
+	protected void saveTokens(MqttToken[] batchTokens, MqttWireMessage[] messages) throws MqttException {
+		final String methodName = "saveTokens";
+
+		synchronized(tokens) {
+			if (closedResponse != null) {
+				throw closedResponse;
+			}
+			for (int i = 0; i < messages.length; i++) {
+				String key = messages[i].getKey();
+				if (log.isLoggable(Logger.FINE)) {
+					//@TRACE 300=key={0} message={1}
+					log.fine(CLASS_NAME,methodName,"300",new Object[]{key, messages[i]});
+				}
+
+				batchTokens[i].internalTok.setKey(key);
+				tokens.put(messages[i].getMessageId(), batchTokens[i]);
+			}
+		}
+	}
+
 	protected void saveToken(MqttToken token, String key) {
 		final String methodName = "saveToken";
 
 		synchronized(tokens) {
-			//@TRACE 307=key={0} token={1}
-			log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 307=key={0} token={1}
+				log.fine(CLASS_NAME,methodName,"307",new Object[]{key,token.toString()});
+			}
 			token.internalTok.setKey(key);
-			this.tokens.put(key, token);
+			int flow = flowOf(key);
+			if (flow >= 0) {
+				flows.set(flow, token);
+			} else {
+				tokens.put(Integer.parseInt(key), token);
+			}
 		}
 	}
 
@@ -158,8 +239,10 @@ public class CommsTokenStore {
 		final String methodName = "quiesce";
 
 		synchronized(tokens) {
-			//@TRACE 309=resp={0}
-			log.fine(CLASS_NAME,methodName,"309",new Object[]{quiesceResponse});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 309=resp={0}
+				log.fine(CLASS_NAME,methodName,"309",new Object[]{quiesceResponse});
+			}
 
 			closedResponse = quiesceResponse;
 		}
@@ -179,46 +262,76 @@ public class CommsTokenStore {
 	public MqttDeliveryToken[] getOutstandingDelTokens() {
 		final String methodName = "getOutstandingDelTokens";
 
-		synchronized(tokens) {
-			//@TRACE 311=>
-			log.fine(CLASS_NAME,methodName,"311");
-
-			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null 
-					&& token instanceof MqttDeliveryToken 
-					&& !token.internalTok.isNotified()) {
-					
-					list.addElement(token);
-				}
+		//@TRACE 311=>
+		log.fine(CLASS_NAME,methodName,"311");
+
+		ArrayList<MqttDeliveryToken> list = new ArrayList<MqttDeliveryToken>();
+		Iterator<MqttToken> iterator = outstandingTokens();
+		while (iterator.hasNext()) {
+			MqttToken token = iterator.next();
+			if (token instanceof MqttDeliveryToken 
+				&& !token.internalTok.isNotified()) {
+				
+				list.add((MqttDeliveryToken)token);
 			}
-	
-			MqttDeliveryToken[] result = new MqttDeliveryToken[list.size()];
-			return (MqttDeliveryToken[]) list.toArray(result);
 		}
+		return list.toArray(new MqttDeliveryToken[list.size()]);
 	}
 	
-	public Vector getOutstandingTokens() {
+	public Vector<MqttToken> getOutstandingTokens() {
 		final String methodName = "getOutstandingTokens";
 
-		synchronized(tokens) {
-			//@TRACE 312=>
-			log.fine(CLASS_NAME,methodName,"312");
-
-			Vector list = new Vector();
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-				if (token != null) {
-						list.addElement(token);
+		//@TRACE 312=>
+		log.fine(CLASS_NAME,methodName,"312");
+
+		Vector<MqttToken> list = new Vector<MqttToken>();
+		Iterator<MqttToken> iterator = outstandingTokens();
+		while (iterator.hasNext()) {
+			list.addElement(iterator.next());
+		}
+		return list;
+	}
+
+	/**
+	 * Iterates over the tokens in the store without copying them. Tokens may
+	 * be added and removed while the iteration is in progress, and those
+	 * changes may or may not be seen.
+	 * 
+	 * @return an iterator over the outstanding tokens
+	 */
+	public Iterator<MqttToken> outstandingTokens() {
+		final Iterator<MqttToken> byId = tokens.values();
+		return new Iterator<MqttToken>() {
+			private int flow = 0;
+			private MqttToken next = advance();
+
+			private MqttToken advance() {
+				while (flow < FLOW_KEYS.length) {
+					MqttToken token = flows.get(flow++);
+					if (token != null) {
+						return token;
+					}
 				}
+				return byId.hasNext() ? byId.next() : null;
 			}
-			return list;
-		}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public MqttToken next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				MqttToken token = next;
+				next = advance();
+				return token;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	/**
@@ -226,29 +339,61 @@ public class CommsTokenStore {
 	 */
 	public void clear() {
 		final String methodName = "clear";
-		//@TRACE 305=> {0} tokens
-		log.fine(CLASS_NAME, methodName, "305", new Object[] {Integer.valueOf(tokens.size())});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 305=> {0} tokens
+			log.fine(CLASS_NAME, methodName, "305", new Object[] { Integer.valueOf(count())});
+		}
 		synchronized(tokens) {
 			tokens.clear();
+			for (int i = 0; i < FLOW_KEYS.length; i++) {
+				flows.set(i, null);
+			}
 		}
 	}
 	
 	public int count() {
-		synchronized(tokens) {
-			return tokens.size();
+		int count = tokens.size();
+		for (int i = 0; i < FLOW_KEYS.length; i++) {
+			if (flows.get(i) != null) {
+				count++;
+			}
 		}
+		return count;
 	}
 	public String toString() {
 		String lineSep = System.getProperty("line.separator","\n");
 		StringBuffer toks = new StringBuffer();
-		synchronized(tokens) {
-			Enumeration enumeration = tokens.elements();
-			MqttToken token;
-			while(enumeration.hasMoreElements()) {
-				token = (MqttToken)enumeration.nextElement();
-					toks.append("{"+token.internalTok+"}"+lineSep);
+		Iterator<MqttToken> iterator = outstandingTokens();
+		while (iterator.hasNext()) {
+			toks.append("{"+iterator.next().internalTok+"}"+lineSep);
+		}
+		return toks.toString();
+	}
+
+	/**
+	 * @return the slot for a message of a flow without a message id, or -1
+	 */
+	private static int flowOf(MqttWireMessage message) {
+		switch (message.getType()) {
+		case MqttWireMessage.MESSAGE_TYPE_CONNECT:
+		case MqttWireMessage.MESSAGE_TYPE_CONNACK:
+			return CONNECT;
+		case MqttWireMessage.MESSAGE_TYPE_PINGREQ:
+		case MqttWireMessage.MESSAGE_TYPE_PINGRESP:
+			return PING;
+		case MqttWireMessage.MESSAGE_TYPE_DISCONNECT:
+			return DISCONNECT;
+		default:
+			return -1;
+		}
+	}
+
+	private static int flowOf(String key) {
+		for (int i = 0; i < FLOW_KEYS.length; i++) {
+			if (FLOW_KEYS[i].equals(key)) {
+				return i;
 			}
-			return toks.toString();
 		}
+		return -1;
 	}
 }
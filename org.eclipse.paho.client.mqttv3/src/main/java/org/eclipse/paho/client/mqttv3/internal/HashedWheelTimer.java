@@ -0,0 +1,339 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.client.mqttv3.logging.Logger;
+import org.eclipse.paho.client.mqttv3.logging.LoggerFactory;
+
+/**
+ * A timer which runs tasks after a delay on a single ticker thread, and which
+ * can be shared by any number of clients.
+ * <p>
+ * Time is divided into ticks, and the timeouts are kept in a wheel of buckets,
+ * one for each tick. Scheduling and cancelling a timeout are O(1) however many
+ * are pending: other threads only add the timeout to a queue, and the ticker
+ * thread moves it into its bucket, or unlinks it when it is cancelled. A
+ * timeout never runs before its delay has passed, and runs at most one tick
+ * late. When nothing is scheduled the ticker thread waits without ticking.
+ * </p>
+ * <p>
+ * Tasks run on the ticker thread, so they must be short. Anything which may
+ * block should be handed to another thread, such as one of the
+ * {@link #getDefaultExecutor() default executor's}.
+ * </p>
+ * <p>
+ * The default timer is created on first use and is shared by every client in
+ * the JVM.
+ * </p>
+ */
+public class HashedWheelTimer implements Runnable {
+	private static final String CLASS_NAME = HashedWheelTimer.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private static final long DEFAULT_TICK_MILLIS = 10;
+	private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+	private static HashedWheelTimer defaultTimer = null;
+	private static ExecutorService defaultExecutor = null;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	// Timeouts scheduled but not yet expired or removed by the ticker thread
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final long startTime;
+	private final Thread ticker;
+	private volatile boolean running = true;
+
+	// Only used by the ticker thread: the last tick that has been processed
+	private long tick = 0;
+
+	/**
+	 * Creates a timer and starts its ticker thread.
+	 *
+	 * @param name
+	 *            the name of the ticker thread
+	 * @param tickMillis
+	 *            the length of a tick in milliseconds, which is how late a
+	 *            timeout may run
+	 * @param ticksPerWheel
+	 *            the number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+		if (tickMillis < 1 || ticksPerWheel < 1 || ticksPerWheel > (1 << 30)) {
+			throw new IllegalArgumentException();
+		}
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		startTime = System.nanoTime();
+		ticker = new Thread(this, name);
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * @return the timer shared by all clients
+	 */
+	public static synchronized HashedWheelTimer getDefault() {
+		if (defaultTimer == null) {
+			defaultTimer = new HashedWheelTimer("MQTT Timer", DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL);
+		}
+		return defaultTimer;
+	}
+
+	/**
+	 * Returns the executor which runs the work of timer tasks for clients that
+	 * have no executor service of their own. It starts a daemon thread for
+	 * each task running at the same time, so a client which blocks, for
+	 * example while its connection is shut down, does not hold up the others.
+	 * Idle threads end after a minute.
+	 *
+	 * @return the executor shared by all clients
+	 */
+	public static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "MQTT Timer Task " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Schedules a task to run once after a delay.
+	 *
+	 * @param task
+	 *            the task, which runs on the ticker thread
+	 * @param delayInMilliseconds
+	 *            how long to wait before running the task
+	 * @return the timeout, which can be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delayInMilliseconds) {
+		if (task == null) {
+			throw new IllegalArgumentException();
+		}
+		if (!running) {
+			throw new IllegalStateException("Timer has been stopped");
+		}
+		long delay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayInMilliseconds));
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + delay);
+		// Counted before it is queued, so the ticker cannot go idle in between
+		boolean wasIdle = pending.getAndIncrement() == 0;
+		added.add(timeout);
+		if (wasIdle) {
+			LockSupport.unpark(ticker);
+		}
+		return timeout;
+	}
+
+	/**
+	 * @return the number of timeouts that have neither run nor been removed
+	 *         after being cancelled
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stops the ticker thread. Timeouts which have not run are dropped.
+	 */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(ticker);
+		synchronized (HashedWheelTimer.class) {
+			if (defaultTimer == this) {
+				defaultTimer = null;
+			}
+		}
+	}
+
+	public void run() {
+		while (running) {
+			if (pending.get() == 0) {
+				LockSupport.park(this);
+				// Every bucket is empty, so there is no need to catch up on the
+				// ticks that passed while idle
+				tick = (System.nanoTime() - startTime) / tickNanos;
+				continue;
+			}
+			long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				LockSupport.parkNanos(this, sleep);
+				continue;
+			}
+			tick++;
+			removeCancelled();
+			transferAdded();
+			expire(wheel[(int) (tick & mask)]);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+				pending.decrementAndGet();
+			}
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				pending.decrementAndGet();
+				continue;
+			}
+			// Rounded up so the timeout never runs early
+			long due = (timeout.deadline + tickNanos - 1) / tickNanos;
+			long ticks = Math.max(due, tick);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Bucket bucket) {
+		final String methodName = "expire";
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.remainingRounds <= 0) {
+				bucket.remove(timeout);
+				pending.decrementAndGet();
+				if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+					try {
+						timeout.task.run();
+					} catch (Throwable t) {
+						// @TRACE 670=Timer task failed on thread {0}
+						log.fine(CLASS_NAME, methodName, "670", new Object[] { ticker.getName() }, t);
+					}
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * A task scheduled on a {@link HashedWheelTimer}.
+	 */
+	public static final class Timeout {
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		// Only used by the ticker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running, if it has not already started.
+		 *
+		 * @return true if the task will not run
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(WAITING, CANCELLED)) {
+				return false;
+			}
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the task has been cancelled
+		 */
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return true once the task has started to run
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+
+	/**
+	 * The timeouts due in one tick of the wheel, as a doubly linked list.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.next = null;
+			timeout.prev = null;
+			timeout.bucket = null;
+		}
+	}
+}
@@ -16,6 +16,8 @@
 
 package org.eclipse.paho.client.mqttv3.internal;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -37,6 +39,10 @@ public class Token {
 	
 	private final Object responseLock = new Object();
 	private final Object sentLock = new Object();
+	// Held while the message is written and while its acknowledgement is
+	// processed, so that the send processing completes before the receive
+	// processing starts
+	private final ReentrantLock flowLock = new ReentrantLock();
 	
 	protected MqttMessage message = null; 
 	private MqttWireMessage response = null;
@@ -52,6 +58,10 @@ public class Token {
 	
 	private int messageID = 0;
 	private boolean notified = false;
+	// When a QoS 1 or 2 PUBLISH was written, for the acknowledgement latency
+	private volatile long sentNanos = 0;
+	// Whether the next PUBLISH queued is from the same batch as this one
+	private boolean moreInBatch = false;
 	
 	public Token(String logContext) {
 		log.setResourceName(logContext);
@@ -102,13 +112,17 @@ public class Token {
 
 	public void waitForCompletion(long timeout) throws MqttException {
 		final String methodName = "waitForCompletion";
-		//@TRACE 407=key={0} wait max={1} token={2}
-		log.fine(CLASS_NAME,methodName, "407",new Object[]{getKey(), Long.valueOf(timeout), this});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 407=key={0} wait max={1} token={2}
+			log.fine(CLASS_NAME,methodName, "407",new Object[]{getKey(), Long.valueOf(timeout), this});
+		}
 
 		MqttWireMessage resp = waitForResponse(timeout);
 		if (resp == null && !completed) {
-			//@TRACE 406=key={0} timed out token={1}
-			log.fine(CLASS_NAME,methodName, "406",new Object[]{getKey(), this});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 406=key={0} timed out token={1}
+				log.fine(CLASS_NAME,methodName, "406",new Object[]{getKey(), this});
+			}
 			exception = new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
 			throw exception;
 		}
@@ -130,14 +144,18 @@ public class Token {
 	protected MqttWireMessage waitForResponse(long timeout) throws MqttException {
 		final String methodName = "waitForResponse";
 		synchronized (responseLock) {
-			//@TRACE 400=>key={0} timeout={1} sent={2} completed={3} hasException={4} response={5} token={6}
-			log.fine(CLASS_NAME, methodName, "400",new Object[]{getKey(), Long.valueOf(timeout),Boolean.valueOf(sent),Boolean.valueOf(completed),(exception==null)?"false":"true",response,this},exception);
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 400=>key={0} timeout={1} sent={2} completed={3} hasException={4} response={5} token={6}
+				log.fine(CLASS_NAME, methodName, "400",new Object[]{getKey(), Long.valueOf(timeout),Boolean.valueOf(sent),Boolean.valueOf(completed),(exception==null)?"false":"true",response,this},exception);
+			}
 
 			while (!this.completed) {
 				if (this.exception == null) {
 					try {
-						//@TRACE 408=key={0} wait max={1}
-						log.fine(CLASS_NAME,methodName,"408",new Object[] {getKey(), Long.valueOf(timeout)});
+						if (log.isLoggable(Logger.FINE)) {
+							//@TRACE 408=key={0} wait max={1}
+							log.fine(CLASS_NAME,methodName,"408",new Object[] {getKey(), Long.valueOf(timeout)});
+						}
 	
 						if (timeout <= 0) {
 							responseLock.wait();
@@ -162,8 +180,10 @@ public class Token {
 				}
 			}
 		}
-		//@TRACE 402=key={0} response={1}
-		log.fine(CLASS_NAME,methodName, "402",new Object[]{getKey(), this.response});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 402=key={0} response={1}
+			log.fine(CLASS_NAME,methodName, "402",new Object[]{getKey(), this.response});
+		}
 		return this.response;
 	}
 	
@@ -174,8 +194,10 @@ public class Token {
 	 */
 	protected void markComplete(MqttWireMessage msg, MqttException ex) {
 		final String methodName = "markComplete";
-		//@TRACE 404=>key={0} response={1} excep={2}
-		log.fine(CLASS_NAME,methodName,"404",new Object[]{getKey(),msg,ex});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 404=>key={0} response={1} excep={2}
+			log.fine(CLASS_NAME,methodName,"404",new Object[]{getKey(),msg,ex});
+		}
 				
 		synchronized(responseLock) {
 			// ACK means that everything was OK, so mark the message for garbage collection.
@@ -193,8 +215,10 @@ public class Token {
 	 */
 		protected void notifyComplete() {
 			final String methodName = "notifyComplete";
-			//@TRACE 411=>key={0} response={1} excep={2}
-			log.fine(CLASS_NAME,methodName,"404",new Object[]{getKey(),this.response, this.exception});
+			if (log.isLoggable(Logger.FINE)) {
+				//@TRACE 411=>key={0} response={1} excep={2}
+				log.fine(CLASS_NAME,methodName,"404",new Object[]{getKey(),this.response, this.exception});
+			}
 
 			synchronized (responseLock) {
 				// If pending complete is set then normally the token can be marked
@@ -242,8 +266,10 @@ public class Token {
 			}
 			while (!sent) {
 				try {
-					//@TRACE 409=wait key={0}
-					log.fine(CLASS_NAME,methodName, "409",new Object[]{getKey()});
+					if (log.isLoggable(Logger.FINE)) {
+						//@TRACE 409=wait key={0}
+						log.fine(CLASS_NAME,methodName, "409",new Object[]{getKey()});
+					}
 
 					sentLock.wait();
 				} catch (InterruptedException e) {
@@ -265,8 +291,10 @@ public class Token {
 	 */
 	protected void notifySent() {
 		final String methodName = "notifySent";
-		//@TRACE 403=> key={0}
-		log.fine(CLASS_NAME, methodName, "403",new Object[]{getKey()});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 403=> key={0}
+			log.fine(CLASS_NAME, methodName, "403",new Object[]{getKey()});
+		}
 		synchronized (responseLock) {
 			this.response = null;
 			this.completed = false;
@@ -277,6 +305,22 @@ public class Token {
 		}
 	}
 	
+	protected void setSentNanos(long sentNanos) {
+		this.sentNanos = sentNanos;
+	}
+
+	protected long getSentNanos() {
+		return sentNanos;
+	}
+
+	protected void setMoreInBatch(boolean moreInBatch) {
+		this.moreInBatch = moreInBatch;
+	}
+
+	protected boolean isMoreInBatch() {
+		return moreInBatch;
+	}
+
 	public IMqttAsyncClient getClient() {
 		return client;
 	}
@@ -291,8 +335,10 @@ public class Token {
 			// Token is already in use - cannot reset 
 			throw new MqttException(MqttException.REASON_CODE_TOKEN_INUSE);
 		}
-		//@TRACE 410=> key={0}
-		log.fine(CLASS_NAME, methodName, "410",new Object[]{getKey()});
+		if (log.isLoggable(Logger.FINE)) {
+			//@TRACE 410=> key={0}
+			log.fine(CLASS_NAME, methodName, "410",new Object[]{getKey()});
+		}
 		
 		client = null;
 		completed = false;
@@ -339,6 +385,19 @@ public class Token {
 		return key;
 	}
 
+	/**
+	 * Takes the lock which keeps the sending of this token's message and the
+	 * processing of its acknowledgement apart. Unlike a monitor it can be held
+	 * for several tokens at once, as it is while a batch is written and flushed.
+	 */
+	public void lockFlow() {
+		flowLock.lock();
+	}
+
+	public void unlockFlow() {
+		flowLock.unlock();
+	}
+
 	public void setException(MqttException exception) {
 		synchronized(responseLock) {
 			this.exception = exception;
@@ -0,0 +1,208 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An open-addressed hash table from non-negative int keys, such as message
+ * IDs, to values.
+ * <p>
+ * Reads take no lock. Each slot holds an immutable entry, so a reader always
+ * sees a key together with its own value. Writers are serialised on the table.
+ * A removed entry leaves a tombstone behind, so that the probe sequences of
+ * readers are never cut short, and the table is rebuilt when tombstones and
+ * entries fill half of it.
+ * </p>
+ *
+ * @param <T>
+ *            the type of the values
+ */
+class TokenTable<T> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final class Entry<T> {
+		final int key;
+		final T value;
+
+		Entry(int key, T value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	// Its key never matches, as keys are not negative
+	@SuppressWarnings("rawtypes")
+	private static final Entry TOMBSTONE = new Entry<Object>(-1, null);
+
+	private volatile AtomicReferenceArray<Entry<T>> table = new AtomicReferenceArray<Entry<T>>(INITIAL_CAPACITY);
+	private volatile int size = 0;
+	// Slots holding entries or tombstones
+	private int used = 0;
+
+	/**
+	 * @return the value for the key, or null
+	 */
+	T get(int key) {
+		AtomicReferenceArray<Entry<T>> slots = table;
+		int mask = slots.length() - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			Entry<T> entry = slots.get(i);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.key == key) {
+				return entry.value;
+			}
+		}
+	}
+
+	/**
+	 * @return the value the key had before, or null
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized T put(int key, T value) {
+		if (key < 0 || value == null) {
+			throw new IllegalArgumentException();
+		}
+		AtomicReferenceArray<Entry<T>> slots = table;
+		int mask = slots.length() - 1;
+		int free = -1;
+		int i = hash(key) & mask;
+		Entry<T> entry;
+		while ((entry = slots.get(i)) != null) {
+			if (entry.key == key) {
+				slots.set(i, new Entry<T>(key, value));
+				return entry.value;
+			}
+			if (free < 0 && entry == TOMBSTONE) {
+				free = i;
+			}
+			i = (i + 1) & mask;
+		}
+		if (free >= 0) {
+			slots.set(free, new Entry<T>(key, value));
+		} else {
+			slots.set(i, new Entry<T>(key, value));
+			used++;
+		}
+		size++;
+		if (used * 2 > slots.length()) {
+			rebuild();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value which was removed, or null
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized T remove(int key) {
+		AtomicReferenceArray<Entry<T>> slots = table;
+		int mask = slots.length() - 1;
+		for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+			Entry<T> entry = slots.get(i);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.key == key) {
+				slots.set(i, TOMBSTONE);
+				size--;
+				return entry.value;
+			}
+		}
+	}
+
+	synchronized void clear() {
+		table = new AtomicReferenceArray<Entry<T>>(INITIAL_CAPACITY);
+		size = 0;
+		used = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return an iterator over the values, which does not copy the table. It
+	 *         does not fail if the table changes, but may or may not see the
+	 *         changes.
+	 */
+	Iterator<T> values() {
+		final AtomicReferenceArray<Entry<T>> slots = table;
+		return new Iterator<T>() {
+			private int index = 0;
+			private T next = advance();
+
+			private T advance() {
+				while (index < slots.length()) {
+					Entry<T> entry = slots.get(index++);
+					if (entry != null && entry.value != null) {
+						return entry.value;
+					}
+				}
+				return null;
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public T next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				T value = next;
+				next = advance();
+				return value;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Copies the entries into a new table, leaving out the tombstones, and
+	 * doubles its size if it would otherwise be more than a quarter full.
+	 */
+	private void rebuild() {
+		AtomicReferenceArray<Entry<T>> slots = table;
+		int capacity = slots.length();
+		while (size * 4 > capacity) {
+			capacity *= 2;
+		}
+		AtomicReferenceArray<Entry<T>> rebuilt = new AtomicReferenceArray<Entry<T>>(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < slots.length(); j++) {
+			Entry<T> entry = slots.get(j);
+			if (entry != null && entry != TOMBSTONE) {
+				int i = hash(entry.key) & mask;
+				while (rebuilt.get(i) != null) {
+					i = (i + 1) & mask;
+				}
+				rebuilt.set(i, entry);
+			}
+		}
+		used = size;
+		// Readers still on the old table see it as it was when it was copied
+		table = rebuilt;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
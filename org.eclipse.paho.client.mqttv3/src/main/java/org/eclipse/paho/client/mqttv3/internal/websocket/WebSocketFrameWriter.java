@@ -0,0 +1,130 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes masked WebSocket frames to a socket.
+ * <p>
+ * The frame header and the masked payload are assembled in one reusable
+ * buffer, which is only written to the socket when it fills or the writer is
+ * flushed. The payload is masked eight bytes at a time as it is copied from
+ * the caller's array, and each frame's mask key comes from
+ * {@link ThreadLocalRandom}, which never blocks.
+ * </p>
+ * <p>
+ * Frames are written whole, so the close frame sent when a connection is
+ * stopped cannot end up inside a data frame being written by another thread.
+ * </p>
+ */
+class WebSocketFrameWriter {
+
+	static final byte OPCODE_BINARY = 0x02;
+	static final byte OPCODE_CLOSE = 0x08;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_HEADER_LENGTH = 14;
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer target = ByteBuffer.wrap(buffer);
+	private ByteBuffer source = null;
+	private int position = 0;
+
+	WebSocketFrameWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes a single final frame. The frame may stay buffered until
+	 * {@link #flush()} is called.
+	 *
+	 * @param opcode
+	 *            the WebSocket opcode
+	 * @param payload
+	 *            the array holding the payload, which is not modified
+	 * @param off
+	 *            the offset of the payload in the array
+	 * @param len
+	 *            the length of the payload
+	 * @throws IOException
+	 *             if the frame could not be written to the socket
+	 */
+	synchronized void writeFrame(byte opcode, byte[] payload, int off, int len) throws IOException {
+		if (buffer.length - position < MAX_HEADER_LENGTH) {
+			drain();
+		}
+		int maskKey = ThreadLocalRandom.current().nextInt();
+		buffer[position++] = (byte) (0x80 | (opcode & 0x0F));
+		if (len > 0xFFFF) {
+			buffer[position++] = (byte) (0x80 | 0x7F);
+			target.putInt(position, 0);
+			target.putInt(position + 4, len);
+			position += 8;
+		} else if (len >= 0x7E) {
+			buffer[position++] = (byte) (0x80 | 0x7E);
+			target.putShort(position, (short) len);
+			position += 2;
+		} else {
+			buffer[position++] = (byte) (0x80 | len);
+		}
+		target.putInt(position, maskKey);
+		position += 4;
+
+		if (source == null || source.array() != payload) {
+			source = ByteBuffer.wrap(payload);
+		}
+		int index = 0;
+		while (index < len) {
+			if (position == buffer.length) {
+				drain();
+			}
+			int count = Math.min(len - index, buffer.length - position);
+			// The mask key rotated to line up with this part of the payload
+			int rotated = Integer.rotateLeft(maskKey, (index & 3) * 8);
+			long mask = ((rotated & 0xFFFFFFFFL) << 32) | (rotated & 0xFFFFFFFFL);
+			int i = 0;
+			for (; i + 8 <= count; i += 8) {
+				target.putLong(position + i, source.getLong(off + index + i) ^ mask);
+			}
+			for (; i < count; i++) {
+				buffer[position + i] = (byte) (payload[off + index + i] ^ (rotated >>> (24 - (i & 3) * 8)));
+			}
+			position += count;
+			index += count;
+		}
+	}
+
+	/**
+	 * Writes any buffered frames to the socket and flushes it.
+	 *
+	 * @throws IOException
+	 *             if the frames could not be written to the socket
+	 */
+	synchronized void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	private void drain() throws IOException {
+		if (position > 0) {
+			try {
+				out.write(buffer, 0, position);
+			} finally {
+				position = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the payload of the WebSocket frames arriving on a socket as one
+ * continuous stream, removing the framing on the reading thread.
+ * <p>
+ * Binary and continuation frames make up the stream, so a message fragmented
+ * across several frames reads the same as one sent in a single frame. Ping and
+ * pong frames are skipped. A close frame, or a frame of any other type, ends
+ * the stream with an IOException.
+ * </p>
+ * <p>
+ * Each read either completes or leaves the stream as it was, so a read which
+ * times out part way through a frame header can simply be retried.
+ * </p>
+ */
+class WebSocketInputStream extends InputStream {
+
+	private static final int OPCODE_CONTINUATION = 0x00;
+	private static final int OPCODE_BINARY = 0x02;
+	private static final int OPCODE_CLOSE = 0x08;
+	private static final int OPCODE_PING = 0x09;
+	private static final int OPCODE_PONG = 0x0A;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final InputStream input;
+
+	// Bytes read from the socket but not yet consumed, frame headers included
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	// The frame being read
+	private long remaining = 0;
+	private boolean control = false;
+	private boolean masked = false;
+	private final byte[] mask = new byte[4];
+	private int maskOffset = 0;
+
+	private final byte[] single = new byte[1];
+
+	WebSocketInputStream(InputStream input) {
+		this.input = input;
+	}
+
+	public int read() throws IOException {
+		int count = read(single, 0, 1);
+		return count < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (remaining == 0 || control) {
+			if (remaining > 0) {
+				skip();
+			} else if (!nextFrame()) {
+				return -1;
+			}
+		}
+
+		int count = (int) Math.min(len, remaining);
+		if (position == limit) {
+			if (count >= buffer.length) {
+				// Large reads go straight into the caller's array
+				count = input.read(b, off, count);
+				if (count < 0) {
+					throw new EOFException();
+				}
+				consumed(b, off, count);
+				return count;
+			}
+			if (!fill(1)) {
+				throw new EOFException();
+			}
+		}
+		count = Math.min(count, limit - position);
+		System.arraycopy(buffer, position, b, off, count);
+		position += count;
+		consumed(b, off, count);
+		return count;
+	}
+
+	public int available() throws IOException {
+		if (remaining == 0 || control) {
+			return 0;
+		}
+		return (int) Math.min(remaining, (limit - position) + input.available());
+	}
+
+	/**
+	 * Reads the next frame header, leaving the stream unchanged if the header
+	 * has not fully arrived.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean nextFrame() throws IOException {
+		if (!fill(2)) {
+			return false;
+		}
+		int first = buffer[position] & 0xFF;
+		int second = buffer[position + 1] & 0xFF;
+		int length = second & 0x7F;
+		boolean isMasked = (second & 0x80) != 0;
+		int headerLength = 2 + (length == 0x7E ? 2 : length == 0x7F ? 8 : 0) + (isMasked ? 4 : 0);
+		if (!fill(headerLength)) {
+			throw new EOFException();
+		}
+
+		int index = position + 2;
+		long payloadLength = length;
+		if (length == 0x7E) {
+			payloadLength = ((buffer[index] & 0xFF) << 8) | (buffer[index + 1] & 0xFF);
+			index += 2;
+		} else if (length == 0x7F) {
+			payloadLength = 0;
+			for (int i = 0; i < 8; i++) {
+				payloadLength = (payloadLength << 8) | (buffer[index++] & 0xFF);
+			}
+			if (payloadLength < 0) {
+				throw new IOException("Invalid Frame: Length: " + payloadLength);
+			}
+		}
+		if (isMasked) {
+			System.arraycopy(buffer, index, mask, 0, 4);
+			index += 4;
+		}
+
+		int opcode = first & 0x0F;
+		switch (opcode) {
+		case OPCODE_CONTINUATION:
+		case OPCODE_BINARY:
+			control = false;
+			break;
+		case OPCODE_PING:
+		case OPCODE_PONG:
+			control = true;
+			break;
+		case OPCODE_CLOSE:
+			throw new IOException("Server sent a WebSocket Frame with the Stop OpCode");
+		default:
+			throw new IOException("Invalid Frame: Opcode: " + opcode);
+		}
+		position = index;
+		remaining = payloadLength;
+		masked = isMasked;
+		maskOffset = 0;
+		return true;
+	}
+
+	/**
+	 * Discards some of the payload of a control frame.
+	 */
+	private void skip() throws IOException {
+		if (position == limit && !fill(1)) {
+			throw new EOFException();
+		}
+		int count = (int) Math.min(remaining, limit - position);
+		position += count;
+		remaining -= count;
+	}
+
+	/**
+	 * Unmasks payload bytes which have been read.
+	 */
+	private void consumed(byte[] b, int off, int count) {
+		if (masked) {
+			for (int i = 0; i < count; i++) {
+				b[off + i] ^= mask[(maskOffset + i) & 3];
+			}
+			maskOffset = (maskOffset + count) & 3;
+		}
+		remaining -= count;
+	}
+
+	/**
+	 * Reads from the socket until at least the given number of bytes are
+	 * buffered.
+	 *
+	 * @return false if the stream ended with nothing buffered
+	 */
+	private boolean fill(int count) throws IOException {
+		if (position == limit) {
+			position = 0;
+			limit = 0;
+		} else if (buffer.length - position < count) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		while (limit - position < count) {
+			int read = input.read(buffer, limit, buffer.length - limit);
+			if (read < 0) {
+				if (limit == position) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			limit += read;
+		}
+		return true;
+	}
+}
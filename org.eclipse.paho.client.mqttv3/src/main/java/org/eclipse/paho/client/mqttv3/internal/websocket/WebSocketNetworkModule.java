@@ -15,11 +15,9 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.websocket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 
@@ -39,17 +37,16 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	private String host;
 	private int port;
 	private Map<String, String> customWebsocketHeaders;
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	private final boolean skipPortDuringHandshake;
 	ByteBuffer recievedPayload;
 	
 	/**
-	 * Overrides the flush method.
-	 * This allows us to encode the MQTT payload into a WebSocket
-	 *  Frame before passing it through to the real socket.
+	 * Encodes the MQTT data into WebSocket Frames before
+	 * passing it through to the real socket.
 	 */
-	private ByteArrayOutputStream outputStream = new ExtendedByteArrayOutputStream(this);
+	private WebSocketFrameWriter frameWriter;
+	private WebSocketOutputStream outputStream;
   
 	public WebSocketNetworkModule(SocketFactory factory, String uri, String host, int port, String resourceContext, Map<String, String> customWebsocketHeaders, boolean skipPortDuringHandshake){
 		super(factory, host, port, resourceContext);
@@ -57,7 +54,6 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		this.host = host;
 		this.port = port;
 		this.customWebsocketHeaders = customWebsocketHeaders;
-		this.pipedInputStream = new PipedInputStream();
 		this.skipPortDuringHandshake = skipPortDuringHandshake;
 		log.setResourceName(resourceContext);
 	}
@@ -66,8 +62,9 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		super.start();
 		WebSocketHandshake handshake = new WebSocketHandshake(getSocketInputStream(), getSocketOutputStream(), uri, host, port, customWebsocketHeaders, skipPortDuringHandshake);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("webSocketReceiver");
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream());
+		this.frameWriter = new WebSocketFrameWriter(getSocketOutputStream());
+		this.outputStream = new WebSocketOutputStream(frameWriter);
 	}
 	
 	OutputStream getSocketOutputStream() throws IOException {
@@ -79,7 +76,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	}
 	
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	public OutputStream getOutputStream() throws IOException {
@@ -91,14 +88,12 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	 */
 	public void stop() throws IOException {
 		// Creating Close Frame
-		WebSocketFrame frame = new WebSocketFrame((byte)0x08, true, "1000".getBytes());
-		byte[] rawFrame = frame.encodeFrame();
-		getSocketOutputStream().write(rawFrame);
-		getSocketOutputStream().flush();
-
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
+		if (frameWriter != null) {
+			byte[] closePayload = "1000".getBytes();
+			frameWriter.writeFrame(WebSocketFrameWriter.OPCODE_CLOSE, closePayload, 0, closePayload.length);
+			frameWriter.flush();
 		}
+
 		super.stop();
 	}
 	
@@ -0,0 +1,80 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.internal.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Sends MQTT data as binary WebSocket frames.
+ * <p>
+ * Each array written becomes one frame, masked straight from the caller's
+ * array, so all the packets which the client buffers between flushes travel in
+ * a single frame. MQTT allows packets to span frames, so the occasional packet
+ * split across two writes is still valid. Single bytes are collected and sent
+ * in one frame with whatever follows them, or at the next flush.
+ * </p>
+ */
+class WebSocketOutputStream extends OutputStream {
+
+	private final WebSocketFrameWriter frameWriter;
+
+	// Bytes written one at a time, waiting to be framed
+	private byte[] pending = new byte[16];
+	private int pendingCount = 0;
+
+	WebSocketOutputStream(WebSocketFrameWriter frameWriter) {
+		this.frameWriter = frameWriter;
+	}
+
+	public void write(int b) throws IOException {
+		if (pendingCount == pending.length) {
+			pending = Arrays.copyOf(pending, pending.length * 2);
+		}
+		pending[pendingCount++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		if (pendingCount > 0) {
+			append(b, off, len);
+			writePending();
+		} else {
+			frameWriter.writeFrame(WebSocketFrameWriter.OPCODE_BINARY, b, off, len);
+		}
+	}
+
+	public void flush() throws IOException {
+		writePending();
+		frameWriter.flush();
+	}
+
+	private void append(byte[] b, int off, int len) {
+		if (pending.length - pendingCount < len) {
+			pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + len));
+		}
+		System.arraycopy(b, off, pending, pendingCount, len);
+		pendingCount += len;
+	}
+
+	private void writePending() throws IOException {
+		if (pendingCount > 0) {
+			try {
+				frameWriter.writeFrame(WebSocketFrameWriter.OPCODE_BINARY, pending, 0, pendingCount);
+			} finally {
+				pendingCount = 0;
+			}
+		}
+	}
+}
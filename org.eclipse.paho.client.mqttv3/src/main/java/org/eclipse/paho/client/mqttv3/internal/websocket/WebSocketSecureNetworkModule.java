@@ -15,11 +15,9 @@
  */
 package org.eclipse.paho.client.mqttv3.internal.websocket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import javax.net.ssl.SSLSocketFactory;
@@ -34,8 +32,7 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	private static final String CLASS_NAME = WebSocketSecureNetworkModule.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 	
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	private String uri;
 	private String host;
 	private int port;
@@ -44,11 +41,11 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	ByteBuffer recievedPayload;
 	
 	/**
-	 * Overrides the flush method.
-	 * This allows us to encode the MQTT payload into a WebSocket
-	 *  Frame before passing it through to the real socket.
+	 * Encodes the MQTT data into WebSocket Frames before
+	 * passing it through to the real socket.
 	 */
-	private ByteArrayOutputStream outputStream = new ExtendedByteArrayOutputStream(this);
+	private WebSocketFrameWriter frameWriter;
+	private WebSocketOutputStream outputStream;
 
 	public WebSocketSecureNetworkModule(SSLSocketFactory factory, String uri, String host, int port, String clientId, Map<String, String> customWebSocketHeaders, boolean skipPortDuringHandshake) {
 		super(factory, host, port, clientId);
@@ -56,7 +53,6 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 		this.host = host;
 		this.port = port;
 		this.customWebSocketHeaders = customWebSocketHeaders;
-		this.pipedInputStream = new PipedInputStream();
 		this.skipPortDuringHandshake = skipPortDuringHandshake;
 		log.setResourceName(clientId);
 	}
@@ -65,8 +61,9 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 		super.start();
 		WebSocketHandshake handshake = new WebSocketHandshake(super.getInputStream(), super.getOutputStream(), uri, host, port, customWebSocketHeaders, skipPortDuringHandshake);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("WssSocketReceiver");
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream());
+		this.frameWriter = new WebSocketFrameWriter(getSocketOutputStream());
+		this.outputStream = new WebSocketOutputStream(frameWriter);
 
 	}
 
@@ -79,7 +76,7 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	}
 	
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	public OutputStream getOutputStream() throws IOException {
@@ -88,14 +85,12 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 
 	public void stop() throws IOException {
 		// Creating Close Frame
-		WebSocketFrame frame = new WebSocketFrame((byte)0x08, true, "1000".getBytes());
-		byte[] rawFrame = frame.encodeFrame();
-		getSocketOutputStream().write(rawFrame);
-		getSocketOutputStream().flush();
-
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
+		if (frameWriter != null) {
+			byte[] closePayload = "1000".getBytes();
+			frameWriter.writeFrame(WebSocketFrameWriter.OPCODE_CLOSE, closePayload, 0, closePayload.length);
+			frameWriter.flush();
 		}
+
 		super.stop();
 	}
 
@@ -117,8 +117,10 @@ public class MqttInputStream extends InputStream {
 				byte[] header = bais.toByteArray();
 				System.arraycopy(header,0,packet,0, header.length);
 				message = MqttWireMessage.createWireMessage(packet);
-				// @TRACE 301= received {0} 
-				log.fine(CLASS_NAME, methodName, "301",new Object[] {message});
+				if (log.isLoggable(Logger.FINE)) {
+					// @TRACE 301= received {0} 
+					log.fine(CLASS_NAME, methodName, "301",new Object[] {message});
+				}
 			}
 		} catch (SocketTimeoutException e) {
 			// ignore socket read timeout
@@ -35,20 +35,41 @@ public class MqttOutputStream extends OutputStream {
 
 	private ClientState clientState = null;
 	private BufferedOutputStream out;
+	private int buffered = 0;
 	
 	public MqttOutputStream(ClientState clientState, OutputStream out) {
 		this.clientState = clientState;
 		this.out = new BufferedOutputStream(out);
 	}
 	
+	/**
+	 * @param clientState the client state to notify of sent bytes
+	 * @param out the underlying stream
+	 * @param bufferSize the number of bytes to buffer before writing to the
+	 * underlying stream, if it is not flushed first
+	 */
+	public MqttOutputStream(ClientState clientState, OutputStream out, int bufferSize) {
+		this.clientState = clientState;
+		this.out = new BufferedOutputStream(out, bufferSize);
+	}
+	
 	public void close() throws IOException {
 		out.close();
 	}
 	
 	public void flush() throws IOException {
+		buffered = 0;
 		out.flush();
 	}
 	
+	/**
+	 * @return the number of bytes written by {@link #write(MqttWireMessage)}
+	 * since the stream was last flushed
+	 */
+	public int getBufferedBytes() {
+		return buffered;
+	}
+	
 	public void write(byte[] b) throws IOException {
 		out.write(b);
 		clientState.notifySentBytes(b.length);
@@ -77,6 +98,7 @@ public class MqttOutputStream extends OutputStream {
 //		out.write(message.getPayload());
 		out.write(bytes,0,bytes.length);
 		clientState.notifySentBytes(bytes.length);
+		buffered += bytes.length + pl.length;
 		
         int offset = 0;
         int chunckSize = 1024;
@@ -87,8 +109,10 @@ public class MqttOutputStream extends OutputStream {
         	clientState.notifySentBytes(length);
         }		
 		
-		// @TRACE 529= sent {0}
-    	log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
+    	if (log.isLoggable(Logger.FINE)) {
+			// @TRACE 529= sent {0}
+	    	log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
+    	}
 	}
 }
 
@@ -33,6 +33,8 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	private String topicName;
 	
 	private byte[] encodedPayload = null;
+	// When the packet was read from the network, for the callback queue latency
+	private long arrivalNanos = 0;
 	
 	public MqttPublish(String name, MqttMessage message) {
 		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
@@ -131,6 +133,18 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	public MqttMessage getMessage() {
 		return message;
 	}
+
+	/**
+	 * @return the {@link System#nanoTime()} at which the packet was received,
+	 *         or 0 if it was not recorded
+	 */
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+
+	public void setArrivalNanos(long arrivalNanos) {
+		this.arrivalNanos = arrivalNanos;
+	}
 	
 	protected static byte[] encodePayload(MqttMessage message) {
 		return message.getPayload();
@@ -0,0 +1,273 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A logger which records trace into a {@link TraceBuffer} for each thread
+ * rather than formatting it.
+ * <p>
+ * Enable it with
+ * <code>LoggerFactory.setLogger("org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger")</code>
+ * before creating a client. The trace is written to a file when
+ * {@link #dumpTrace()} is called, for example by
+ * {@link org.eclipse.paho.client.mqttv3.util.Debug Debug}, and when a record
+ * at the push level or with one of the push trace points is logged. The file
+ * is decoded with the LogMessageExtractor in the
+ * org.eclipse.paho.client.mqttv3.internal.traceformat project.
+ * </p>
+ * <p>
+ * These system properties, or java.util.logging properties, configure it:
+ * </p>
+ * <ul>
+ * <li>org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger.level - the
+ * most detailed level recorded [FINE]</li>
+ * <li>org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger.size - the
+ * number of records for each thread [1024]</li>
+ * <li>org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger.push - the
+ * level at which the trace is dumped [SEVERE]</li>
+ * <li>org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger.pushIds -
+ * trace points which dump the trace [708, when the connection is lost]</li>
+ * <li>org.eclipse.paho.client.mqttv3.logging.BinaryTraceLogger.directory -
+ * where the trace is written [java.io.tmpdir]</li>
+ * </ul>
+ */
+public class BinaryTraceLogger implements Logger {
+	private static final String PROPERTY_PREFIX = BinaryTraceLogger.class.getName();
+	private static final String[] LEVELS = { "OFF", "SEVERE", "WARNING", "INFO", "CONFIG", "FINE", "FINER",
+			"FINEST" };
+	// Pushes closer together than this write one dump
+	private static final long MIN_PUSH_INTERVAL_NANOS = 1000000000L;
+
+	private static final int level = levelProperty(".level", FINE);
+	private static final int pushLevel = levelProperty(".push", SEVERE);
+	private static final int[] pushIds = idsProperty(".pushIds", "708");
+	private static final String directory = property(".directory", System.getProperty("java.io.tmpdir"));
+	private static final AtomicLong lastPush = new AtomicLong(System.nanoTime() - MIN_PUSH_INTERVAL_NANOS);
+	private static int dumps = 0;
+
+	static {
+		String size = property(".size", null);
+		if (size != null) {
+			TraceBuffer.setRecords(Integer.parseInt(size.trim()));
+		}
+	}
+
+	private ResourceBundle logMessageCatalog = null;
+	private String resourceName = null;
+
+	public void initialise(ResourceBundle messageCatalog, String loggerID, String resourceName) {
+		this.logMessageCatalog = messageCatalog;
+		this.resourceName = resourceName;
+	}
+
+	public void setResourceName(String logContext) {
+		this.resourceName = logContext;
+	}
+
+	public boolean isLoggable(int level) {
+		return level <= BinaryTraceLogger.level;
+	}
+
+	public void severe(String sourceClass, String sourceMethod, String msg) {
+		log(SEVERE, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void severe(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		log(SEVERE, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void severe(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable thrown) {
+		log(SEVERE, sourceClass, sourceMethod, msg, inserts, thrown);
+	}
+
+	public void warning(String sourceClass, String sourceMethod, String msg) {
+		log(WARNING, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void warning(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		log(WARNING, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void warning(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable thrown) {
+		log(WARNING, sourceClass, sourceMethod, msg, inserts, thrown);
+	}
+
+	public void info(String sourceClass, String sourceMethod, String msg) {
+		log(INFO, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void info(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		log(INFO, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void info(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable thrown) {
+		log(INFO, sourceClass, sourceMethod, msg, inserts, thrown);
+	}
+
+	public void config(String sourceClass, String sourceMethod, String msg) {
+		log(CONFIG, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void config(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		log(CONFIG, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void config(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable thrown) {
+		log(CONFIG, sourceClass, sourceMethod, msg, inserts, thrown);
+	}
+
+	public void fine(String sourceClass, String sourceMethod, String msg) {
+		trace(FINE, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void fine(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		trace(FINE, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void fine(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable ex) {
+		trace(FINE, sourceClass, sourceMethod, msg, inserts, ex);
+	}
+
+	public void finer(String sourceClass, String sourceMethod, String msg) {
+		trace(FINER, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void finer(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		trace(FINER, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void finer(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable ex) {
+		trace(FINER, sourceClass, sourceMethod, msg, inserts, ex);
+	}
+
+	public void finest(String sourceClass, String sourceMethod, String msg) {
+		trace(FINEST, sourceClass, sourceMethod, msg, null, null);
+	}
+
+	public void finest(String sourceClass, String sourceMethod, String msg, Object[] inserts) {
+		trace(FINEST, sourceClass, sourceMethod, msg, inserts, null);
+	}
+
+	public void finest(String sourceClass, String sourceMethod, String msg, Object[] inserts, Throwable ex) {
+		trace(FINEST, sourceClass, sourceMethod, msg, inserts, ex);
+	}
+
+	public void log(int level, String sourceClass, String sourceMethod, String msg, Object[] inserts,
+			Throwable thrown) {
+		trace(level, sourceClass, sourceMethod, msg, inserts, thrown);
+	}
+
+	public void trace(int level, String sourceClass, String sourceMethod, String msg, Object[] inserts,
+			Throwable ex) {
+		if (level > BinaryTraceLogger.level) {
+			return;
+		}
+		int id = TraceBuffer.get().record(level, msg, sourceMethod, resourceName, inserts, ex);
+		if (level <= pushLevel || isPushId(id)) {
+			long now = System.nanoTime();
+			long last = lastPush.get();
+			if (now - last >= MIN_PUSH_INTERVAL_NANOS && lastPush.compareAndSet(last, now)) {
+				dumpTrace();
+			}
+		}
+	}
+
+	public String formatMessage(String msg, Object[] inserts) {
+		String formatString;
+		try {
+			formatString = logMessageCatalog.getString(msg);
+		} catch (MissingResourceException e) {
+			formatString = msg;
+		}
+		if (inserts != null && inserts.length > 0) {
+			formatString = MessageFormat.format(formatString, inserts);
+		}
+		return formatString;
+	}
+
+	/**
+	 * Writes the trace of every thread to a new file in the trace directory.
+	 */
+	public void dumpTrace() {
+		File file;
+		synchronized (BinaryTraceLogger.class) {
+			file = new File(directory, "paho" + System.currentTimeMillis() + "-" + (dumps++) + ".trc");
+		}
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			TraceBuffer.dump(out);
+		} catch (IOException e) {
+			// There is nowhere left to report it
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private static boolean isPushId(int id) {
+		for (int i = 0; i < pushIds.length; i++) {
+			if (pushIds[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String property(String name, String defaultValue) {
+		String value = System.getProperty(PROPERTY_PREFIX + name);
+		if (value == null) {
+			value = LoggerFactory.getLoggingProperty(PROPERTY_PREFIX + name);
+		}
+		return value == null ? defaultValue : value;
+	}
+
+	private static int levelProperty(String name, int defaultLevel) {
+		String value = property(name, null);
+		if (value == null) {
+			return defaultLevel;
+		}
+		value = value.trim().toUpperCase();
+		if (value.equals("ALL")) {
+			return FINEST;
+		}
+		for (int i = 0; i < LEVELS.length; i++) {
+			if (LEVELS[i].equals(value)) {
+				return i;
+			}
+		}
+		return Integer.parseInt(value);
+	}
+
+	private static int[] idsProperty(String name, String defaultIds) {
+		StringTokenizer tokens = new StringTokenizer(property(name, defaultIds), ", ");
+		int[] ids = new int[tokens.countTokens()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = Integer.parseInt(tokens.nextToken());
+		}
+		return ids;
+	}
+}
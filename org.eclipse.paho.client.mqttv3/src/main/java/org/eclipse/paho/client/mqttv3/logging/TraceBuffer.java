@@ -0,0 +1,355 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.client.mqttv3.logging;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A preallocated ring of binary trace records, one for each thread.
+ * <p>
+ * A record holds the time, the level, the number of the trace point from the
+ * message catalog and up to {@link #MAX_INSERTS} inserts. Inserts which are
+ * boxed integers or booleans are kept as primitives and strings are kept as
+ * they are, cut to {@link #MAX_INSERT_STRING} characters. Any other insert is
+ * kept as its class name and identity hash, as the object's toString would be
+ * too costly to call on every record and a long-lived ring must not keep the
+ * object alive. A throwable is kept as its text. Each ring is written only by
+ * its own thread, and keeps the most recent records once it is full.
+ * </p>
+ * <p>
+ * {@link #dump(OutputStream)} writes the rings of every thread in the binary
+ * form below, which the LogMessageExtractor in the
+ * org.eclipse.paho.client.mqttv3.internal.traceformat project turns back into
+ * text using the message catalog. All values are big-endian, strings are as
+ * written by {@link DataOutputStream#writeUTF(String)}.
+ * </p>
+ * <pre>
+ * int MAGIC, short VERSION, long wall clock millis, long nanoTime, int rings
+ * for each ring:   UTF thread name, long thread id, int records
+ * for each record: long nanoTime, int trace point (-1 for text), byte level,
+ *                  UTF method, UTF context, [UTF text if the trace point is -1],
+ *                  byte inserts, byte flags (FLAG_TRUNCATED | FLAG_THROWN),
+ *                  for each insert: byte kind, then a long for KIND_LONG,
+ *                  a boolean for KIND_BOOLEAN or UTF for KIND_OBJECT,
+ *                  [UTF throwable if FLAG_THROWN]
+ * </pre>
+ */
+public final class TraceBuffer {
+
+	/** Starts a dump. */
+	public static final int MAGIC = 0x50414854;
+	/** The version of the dump format. */
+	public static final short VERSION = 1;
+	/** The number of inserts kept for each record. */
+	public static final int MAX_INSERTS = 8;
+
+	// The kinds of insert in a dump
+	public static final byte KIND_NULL = 0;
+	public static final byte KIND_LONG = 1;
+	public static final byte KIND_BOOLEAN = 2;
+	public static final byte KIND_OBJECT = 3;
+
+	/** The record had more inserts than were kept. */
+	public static final byte FLAG_TRUNCATED = 1;
+	/** The record has a throwable. */
+	public static final byte FLAG_THROWN = 2;
+
+	/** The most characters of a string kept in a record. */
+	public static final int MAX_INSERT_STRING = 256;
+
+	/** The default number of records in each ring. */
+	public static final int DEFAULT_RECORDS = 1024;
+
+	// The time, the header and the inserts
+	private static final int LONGS = 2 + MAX_INSERTS;
+	// The method, context, text, throwable and the inserts
+	private static final int REFS = 4 + MAX_INSERTS;
+	// Marks the value of an object insert kept as its identity hash
+	private static final long IDENTITY = 1L << 32;
+	// Rings of threads which have ended are dropped once there are more than this
+	private static final int MAX_RINGS = 256;
+	private static final int MAX_STRING = 4096;
+
+	private static final List<TraceBuffer> rings = new CopyOnWriteArrayList<TraceBuffer>();
+	private static volatile int records = DEFAULT_RECORDS;
+
+	private static final ThreadLocal<TraceBuffer> current = new ThreadLocal<TraceBuffer>() {
+		protected TraceBuffer initialValue() {
+			TraceBuffer ring = new TraceBuffer(Thread.currentThread(), records);
+			register(ring);
+			return ring;
+		}
+	};
+
+	private final WeakReference<Thread> thread;
+	private final String threadName;
+	private final long threadId;
+	private final int mask;
+	private final long[] longs;
+	private final Object[] refs;
+	// The number of records ever written, published after each record
+	private final AtomicLong written = new AtomicLong();
+
+	private TraceBuffer(Thread thread, int records) {
+		int capacity = Integer.highestOneBit(Math.max(records, 2) - 1) << 1;
+		this.thread = new WeakReference<Thread>(thread);
+		this.threadName = thread.getName();
+		this.threadId = thread.getId();
+		this.mask = capacity - 1;
+		this.longs = new long[capacity * LONGS];
+		this.refs = new Object[capacity * REFS];
+	}
+
+	/**
+	 * @return the ring of the current thread
+	 */
+	public static TraceBuffer get() {
+		return current.get();
+	}
+
+	/**
+	 * Sets the number of records in the rings of threads which have not yet
+	 * traced. It is rounded up to a power of two.
+	 *
+	 * @param records
+	 *            the number of records
+	 */
+	public static void setRecords(int records) {
+		if (records < 1) {
+			throw new IllegalArgumentException();
+		}
+		TraceBuffer.records = records;
+	}
+
+	/**
+	 * @return the number of records the ring can hold
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Adds a record, overwriting the oldest if the ring is full. It must be
+	 * called on the thread which owns the ring.
+	 *
+	 * @param level
+	 *            the {@link Logger} level
+	 * @param msg
+	 *            the number of the trace point, or the text of the record
+	 * @param sourceMethod
+	 *            the method tracing
+	 * @param context
+	 *            the resource name of the logger, usually the client ID
+	 * @param inserts
+	 *            the inserts, or null
+	 * @param thrown
+	 *            a throwable, or null
+	 * @return the number of the trace point, or -1 if msg is text
+	 */
+	public int record(int level, String msg, String sourceMethod, String context, Object[] inserts, Throwable thrown) {
+		long n = written.get();
+		int l = ((int) n & mask) * LONGS;
+		int r = ((int) n & mask) * REFS;
+		int id = parseId(msg);
+		longs[l] = System.nanoTime();
+		refs[r] = sourceMethod;
+		refs[r + 1] = context;
+		refs[r + 2] = id < 0 ? bounded(msg, MAX_STRING) : null;
+		refs[r + 3] = thrown == null ? null : textOf(thrown);
+
+		int count = inserts == null ? 0 : Math.min(inserts.length, MAX_INSERTS);
+		long kinds = 0;
+		for (int i = 0; i < MAX_INSERTS; i++) {
+			Object insert = i < count ? inserts[i] : null;
+			long value = 0;
+			Object ref = null;
+			int kind;
+			if (insert == null) {
+				kind = KIND_NULL;
+			} else if (insert instanceof Integer || insert instanceof Long || insert instanceof Short
+					|| insert instanceof Byte) {
+				kind = KIND_LONG;
+				value = ((Number) insert).longValue();
+			} else if (insert instanceof Boolean) {
+				kind = KIND_BOOLEAN;
+				value = ((Boolean) insert).booleanValue() ? 1 : 0;
+			} else if (insert instanceof String) {
+				kind = KIND_OBJECT;
+				ref = bounded((String) insert, MAX_INSERT_STRING);
+			} else {
+				// Written out as Object.toString would, from the class name and the hash
+				kind = KIND_OBJECT;
+				ref = insert.getClass().getName();
+				value = System.identityHashCode(insert) | IDENTITY;
+			}
+			longs[l + 2 + i] = value;
+			refs[r + 4 + i] = ref;
+			kinds |= (long) kind << (2 * i);
+		}
+		int flags = (inserts != null && inserts.length > MAX_INSERTS ? FLAG_TRUNCATED : 0)
+				| (thrown != null ? FLAG_THROWN : 0);
+		longs[l + 1] = (id & 0xFFFFFFFFL) | ((long) (level & 0xF) << 32) | ((long) count << 36) | (kinds << 40)
+				| ((long) flags << 56);
+		written.lazySet(n + 1);
+		return id;
+	}
+
+	/**
+	 * Writes the rings of every thread. The oldest record of a full ring is
+	 * left out, as its owner could be overwriting it.
+	 *
+	 * @param out
+	 *            the stream to write to, which is not closed
+	 * @throws IOException
+	 *             if the stream cannot be written
+	 */
+	public static void dump(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		data.writeLong(System.currentTimeMillis());
+		data.writeLong(System.nanoTime());
+		Object[] snapshot = rings.toArray();
+		data.writeInt(snapshot.length);
+		for (int i = 0; i < snapshot.length; i++) {
+			((TraceBuffer) snapshot[i]).write(data);
+		}
+		data.flush();
+	}
+
+	private void write(DataOutputStream data) throws IOException {
+		int capacity = mask + 1;
+		long end = written.get();
+		long start = Math.max(0, end - capacity);
+		int count = (int) (end - start);
+		long[] longsCopy = new long[count * LONGS];
+		Object[] refsCopy = new Object[count * REFS];
+		for (int i = 0; i < count; i++) {
+			int slot = (int) (start + i) & mask;
+			System.arraycopy(longs, slot * LONGS, longsCopy, i * LONGS, LONGS);
+			System.arraycopy(refs, slot * REFS, refsCopy, i * REFS, REFS);
+		}
+		// Drop any records the owning thread overwrote while they were copied,
+		// including the one it may be writing now
+		long overwritten = written.get() + 1 - capacity - start;
+		int first = (int) Math.min(count, Math.max(0, overwritten));
+
+		data.writeUTF(threadName);
+		data.writeLong(threadId);
+		data.writeInt(count - first);
+		for (int i = first; i < count; i++) {
+			int l = i * LONGS;
+			int r = i * REFS;
+			long header = longsCopy[l + 1];
+			int id = (int) header;
+			int inserts = (int) (header >>> 36) & 0xF;
+			int flags = (int) (header >>> 56) & 0xFF;
+			data.writeLong(longsCopy[l]);
+			data.writeInt(id);
+			data.writeByte((int) (header >>> 32) & 0xF);
+			writeString(data, refsCopy[r]);
+			writeString(data, refsCopy[r + 1]);
+			if (id < 0) {
+				writeString(data, refsCopy[r + 2]);
+			}
+			data.writeByte(inserts);
+			data.writeByte(flags);
+			for (int j = 0; j < inserts; j++) {
+				int kind = (int) (header >>> (40 + 2 * j)) & 3;
+				data.writeByte(kind);
+				if (kind == KIND_LONG) {
+					data.writeLong(longsCopy[l + 2 + j]);
+				} else if (kind == KIND_BOOLEAN) {
+					data.writeBoolean(longsCopy[l + 2 + j] != 0);
+				} else if (kind == KIND_OBJECT) {
+					long value = longsCopy[l + 2 + j];
+					if ((value & IDENTITY) != 0) {
+						writeString(data, refsCopy[r + 4 + j] + "@" + Integer.toHexString((int) value));
+					} else {
+						writeString(data, refsCopy[r + 4 + j]);
+					}
+				}
+			}
+			if ((flags & FLAG_THROWN) != 0) {
+				writeString(data, refsCopy[r + 3]);
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream data, Object value) throws IOException {
+		String text;
+		try {
+			text = value == null ? "" : value.toString();
+		} catch (RuntimeException e) {
+			text = value.getClass().getName() + ": " + e;
+		}
+		if (text == null) {
+			text = "";
+		} else if (text.length() > MAX_STRING) {
+			text = text.substring(0, MAX_STRING);
+		}
+		data.writeUTF(text);
+	}
+
+	private static String textOf(Throwable thrown) {
+		try {
+			return bounded(thrown.toString(), MAX_STRING);
+		} catch (RuntimeException e) {
+			return thrown.getClass().getName() + ": " + e;
+		}
+	}
+
+	private static String bounded(String text, int max) {
+		return text == null || text.length() <= max ? text : text.substring(0, max);
+	}
+
+	/**
+	 * @return the trace point number in msg, or -1 if msg is not a number
+	 */
+	static int parseId(String msg) {
+		if (msg == null || msg.length() == 0 || msg.length() > 9) {
+			return -1;
+		}
+		int id = 0;
+		for (int i = 0; i < msg.length(); i++) {
+			char c = msg.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			id = id * 10 + (c - '0');
+		}
+		return id;
+	}
+
+	private static void register(TraceBuffer ring) {
+		synchronized (rings) {
+			if (rings.size() >= MAX_RINGS) {
+				for (Iterator<TraceBuffer> iterator = rings.iterator(); iterator.hasNext();) {
+					TraceBuffer old = iterator.next();
+					if (old.thread.get() == null || !old.thread.get().isAlive()) {
+						rings.remove(old);
+						if (rings.size() < MAX_RINGS) {
+							break;
+						}
+					}
+				}
+			}
+			rings.add(ring);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The stages returned by the async variants of the client's actions.
+ */
+public class CompletionStageTest {
+
+	private TestBroker server;
+	private MqttAsyncClient client;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new TestBroker();
+		client = new MqttAsyncClient(server.getStubURI(), "CompletionStageTest", new MemoryPersistence());
+		client.connectAsync(new MqttConnectionOptions()).toCompletableFuture().get(5, TimeUnit.SECONDS);
+		executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "completion"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		if (client.isConnected()) {
+			client.disconnectForcibly(0, 1000, false);
+		}
+		client.close(true);
+		server.close();
+	}
+
+	@Test
+	public void testPerCallExecutor() throws Exception {
+		// Hold the executor so the stage cannot complete before thenApply is added
+		CountDownLatch added = new CountDownLatch(1);
+		executor.execute(() -> {
+			try {
+				added.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		CompletableFuture<String> thread = client
+				.publishAsync("stage", new MqttMessage(new byte[] { 1 }, 1, false, null), executor)
+				.thenApply(token -> Thread.currentThread().getName()).toCompletableFuture();
+		added.countDown();
+		Assert.assertEquals("completion", thread.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testRejectingExecutorStillCompletes() throws Exception {
+		executor.shutdown();
+		IMqttToken token = client.publishAsync("stage", new MqttMessage(new byte[] { 1 }, 1, false, null), executor)
+				.toCompletableFuture().get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(token.isComplete());
+
+		client.setCompletionExecutor(executor);
+		token = client.subscribeAsync("stage", 1).toCompletableFuture().get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(token.isComplete());
+	}
+}
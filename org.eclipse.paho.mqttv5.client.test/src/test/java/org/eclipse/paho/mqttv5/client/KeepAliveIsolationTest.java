@@ -0,0 +1,97 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPingReq;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Clients without an executor service share one keep alive timer. A client
+ * whose connection is lost, and whose callback then blocks, must not stop the
+ * keep alive of the others.
+ */
+public class KeepAliveIsolationTest {
+
+	@Test
+	public void testBlockedClientDoesNotStopOtherKeepAlives() throws Exception {
+		TestBroker silent = new TestBroker();
+		silent.setAnswerPings(false);
+		TestBroker answering = new TestBroker();
+		final CountDownLatch lost = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		MqttAsyncClient stalled = new MqttAsyncClient(silent.getURI(), "stalled", new MemoryPersistence());
+		MqttAsyncClient healthy = new MqttAsyncClient(answering.getURI(), "healthy", new MemoryPersistence());
+		try {
+			stalled.setCallback(new BlockingCallback(lost, release));
+			MqttConnectionOptions options = new MqttConnectionOptions();
+			options.setKeepAliveInterval(1);
+			stalled.connect(options).waitForCompletion(10000);
+			healthy.connect(options).waitForCompletion(10000);
+
+			// The server of the stalled client does not answer its pings
+			Assert.assertTrue(lost.await(10, TimeUnit.SECONDS));
+			int pings = answering.getReceived(MqttPingReq.class).size();
+			Thread.sleep(3500);
+			pings = answering.getReceived(MqttPingReq.class).size() - pings;
+			Assert.assertTrue("pings " + pings, pings >= 2);
+			Assert.assertTrue(healthy.isConnected());
+		} finally {
+			release.countDown();
+			healthy.disconnect().waitForCompletion(10000);
+			healthy.close();
+			stalled.close(true);
+			silent.close();
+			answering.close();
+		}
+	}
+
+	private static class BlockingCallback implements MqttCallback {
+		private final CountDownLatch lost;
+		private final CountDownLatch release;
+
+		BlockingCallback(CountDownLatch lost, CountDownLatch release) {
+			this.lost = lost;
+			this.release = release;
+		}
+
+		public void disconnected(MqttDisconnectResponse disconnectResponse) {
+			lost.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void mqttErrorOccurred(MqttException exception) {
+		}
+
+		public void messageArrived(String topic, MqttMessage message) {
+		}
+
+		public void deliveryComplete(IMqttToken token) {
+		}
+
+		public void connectComplete(boolean reconnect, String serverURI) {
+		}
+
+		public void authPacketArrived(int reasonCode, MqttProperties properties) {
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	/**
+	 * Every value falls in a bucket whose top is no lower than the value and no
+	 * more than an eighth above it.
+	 */
+	@Test
+	public void testBuckets() {
+		long[] values = { 0, 1, 7, 15, 16, 17, 100, 1000, 999999, 1L << 40, Long.MAX_VALUE };
+		for (long value : values) {
+			int bucket = LatencyHistogram.bucket(value);
+			long highest = LatencyHistogram.highestValue(bucket);
+			Assert.assertTrue(value + " above bucket " + highest, value <= highest);
+			Assert.assertTrue(value + " far below bucket " + highest, highest - value <= value / 8);
+			if (bucket > 0) {
+				Assert.assertTrue(LatencyHistogram.highestValue(bucket - 1) < value);
+			}
+		}
+		Assert.assertEquals(LatencyHistogram.bucket(1L << 20), LatencyHistogram.bucket((1L << 20) + 1000));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0, histogram.getP99());
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		histogram.record(-5);
+		Assert.assertEquals(1001, histogram.getCount());
+		Assert.assertEquals(1000000, histogram.getMax());
+		assertNear(500000, histogram.getP50());
+		assertNear(990000, histogram.getP99());
+		Assert.assertEquals(1000000, histogram.getPercentile(100));
+		Assert.assertEquals(0, histogram.getPercentile(0));
+
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getMax());
+		Assert.assertEquals(0, histogram.getP50());
+	}
+
+	@Test
+	public void testConcurrentRecord() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final long base = i * 1000000L;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					for (int j = 1; j <= 10000; j++) {
+						histogram.record(base + j);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(40000, histogram.getCount());
+		Assert.assertEquals(3010000, histogram.getMax());
+	}
+
+	private static void assertNear(long expected, long actual) {
+		Assert.assertTrue(actual + " not near " + expected, actual >= expected && actual <= expected + expected / 8);
+	}
+}
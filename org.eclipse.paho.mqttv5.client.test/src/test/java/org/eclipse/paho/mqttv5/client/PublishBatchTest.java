@@ -0,0 +1,111 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Batches of messages published together, which are taken whole or not at
+ * all.
+ */
+public class PublishBatchTest {
+
+	private TestBroker server;
+	private MqttAsyncClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new TestBroker();
+		client = new MqttAsyncClient(server.getStubURI(), "PublishBatchTest", new MemoryPersistence());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnectForcibly(0, 1000, false);
+		}
+		client.close(true);
+		server.close();
+	}
+
+	@Test
+	public void testBatchMustFitInFlightWindow() throws Exception {
+		server.setReceiveMaximum(4);
+		server.setAnswerPublishes(false);
+		client.connect(new MqttConnectionOptions()).waitForCompletion(5000);
+
+		assertRefused(5, MqttClientException.REASON_CODE_MAX_INFLIGHT);
+		client.publishBatch(topics(3), messages(3));
+		// The first batch holds three of the four slots, sent or not
+		assertRefused(2, MqttClientException.REASON_CODE_MAX_INFLIGHT);
+		client.publishBatch(topics(1), messages(1));
+		Assert.assertTrue(server.awaitReceived(MqttPublish.class, 4, 5000));
+		assertRefused(1, MqttClientException.REASON_CODE_MAX_INFLIGHT);
+	}
+
+	@Test
+	public void testBufferedBatchIsAllOrNothing() throws Exception {
+		MqttConnectionOptions options = new MqttConnectionOptions();
+		options.setAutomaticReconnect(true);
+		client.connect(options).waitForCompletion(5000);
+		DisconnectedBufferOptions bufferOptions = new DisconnectedBufferOptions();
+		bufferOptions.setBufferEnabled(true);
+		bufferOptions.setBufferSize(3);
+		client.setBufferOpts(bufferOptions);
+
+		// Nothing to reconnect to, so the client stays disconnected and buffers
+		server.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (client.isConnected() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(client.isConnected());
+
+		assertRefused(4, MqttClientException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+		Assert.assertEquals(0, client.getBufferedMessageCount());
+		client.publishBatch(topics(2), messages(2));
+		Assert.assertEquals(2, client.getBufferedMessageCount());
+		assertRefused(2, MqttClientException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+		Assert.assertEquals(2, client.getBufferedMessageCount());
+	}
+
+	private void assertRefused(int count, int reasonCode) {
+		try {
+			client.publishBatch(topics(count), messages(count));
+			Assert.fail("batch of " + count + " accepted");
+		} catch (MqttException e) {
+			Assert.assertEquals(reasonCode, e.getReasonCode());
+		}
+	}
+
+	private static String[] topics(int count) {
+		String[] topics = new String[count];
+		for (int i = 0; i < count; i++) {
+			topics[i] = "batch/" + i;
+		}
+		return topics;
+	}
+
+	private static MqttMessage[] messages(int count) {
+		MqttMessage[] messages = new MqttMessage[count];
+		for (int i = 0; i < count; i++) {
+			messages[i] = new MqttMessage(new byte[] { (byte) i }, 1, false, null);
+		}
+		return messages;
+	}
+}
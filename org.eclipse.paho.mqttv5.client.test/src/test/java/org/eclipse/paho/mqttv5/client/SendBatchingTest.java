@@ -0,0 +1,92 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Send batching, where the sender writes several packets and flushes them
+ * together.
+ */
+public class SendBatchingTest {
+
+	private TestBroker server;
+	private MqttAsyncClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new TestBroker();
+		client = new MqttAsyncClient(server.getStubURI(), "SendBatchingTest", new MemoryPersistence());
+		MqttConnectionOptions options = new MqttConnectionOptions();
+		options.setSendBatchingEnabled(true);
+		options.setSendBatchMaxMessages(8);
+		options.setSendBatchLingerMicros(20000);
+		client.connect(options).waitForCompletion(5000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (client.isConnected()) {
+			client.disconnectForcibly(0, 1000, false);
+		}
+		client.close(true);
+		server.close();
+	}
+
+	@Test
+	public void testBatchedPublishesAreSentAndAcknowledged() throws Exception {
+		List<IMqttToken> tokens = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			tokens.add(client.publish("batch/" + i, new MqttMessage(new byte[] { (byte) i }, i % 2, false, null)));
+		}
+		for (IMqttToken token : tokens) {
+			token.waitForCompletion(5000);
+		}
+		List<MqttPublish> received = server.getReceived(MqttPublish.class);
+		Assert.assertEquals(20, received.size());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals("batch/" + i, received.get(i).getTopicName());
+		}
+		Assert.assertEquals(10, client.getMetrics().getMessagesSent(0));
+		Assert.assertEquals(10, client.getMetrics().getMessagesSent(1));
+	}
+
+	@Test
+	public void testFailedFlushDoesNotMarkTheBatchSent() throws Exception {
+		server.setFailFlush(true);
+		List<IMqttToken> tokens = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			tokens.add(client.publish("batch/" + i, new MqttMessage(new byte[] { (byte) i }, i % 2, false, null)));
+		}
+		for (int i = 0; i < 4; i++) {
+			try {
+				tokens.get(i).waitForCompletion(5000);
+				Assert.fail("publish " + i + " completed");
+			} catch (MqttException e) {
+				// The connection was lost before the message was sent
+			}
+		}
+		Assert.assertFalse(client.isConnected());
+		Assert.assertEquals(0, client.getMetrics().getMessagesSent(0));
+		Assert.assertEquals(0, client.getMetrics().getMessagesSent(1));
+		Assert.assertTrue(server.getReceived(MqttPublish.class).isEmpty());
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local server for tests, which accepts connections on an ephemeral port
+ * and serves each one on a thread of its own until it ends or the server is
+ * closed.
+ */
+public abstract class TestServer implements Runnable {
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+	private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param executor
+	 *            runs each connection, or null for a thread of the server's own
+	 * @param backlog
+	 *            the number of connections which may wait to be accepted
+	 */
+	protected TestServer(ExecutorService executor, int backlog) throws IOException {
+		this.serverSocket = new ServerSocket(0, backlog);
+		if (executor == null) {
+			this.executor = Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, getClass().getSimpleName());
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.ownExecutor = true;
+		} else {
+			this.executor = executor;
+			this.ownExecutor = false;
+		}
+	}
+
+	/**
+	 * Starts accepting connections. Called at the end of the subclass
+	 * constructor, once it is ready to serve them.
+	 */
+	protected void start() {
+		Thread thread = new Thread(this, getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections and closes those still open.
+	 */
+	public void close() throws IOException {
+		serverSocket.close();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		if (ownExecutor) {
+			executor.shutdownNow();
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				sockets.add(socket);
+				executor.execute(() -> {
+					try {
+						serve(socket);
+					} catch (Exception e) {
+						// The client has gone, or the server was closed
+					} finally {
+						sockets.remove(socket);
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// ignore, the connection is finished with
+						}
+					}
+				});
+			}
+		} catch (IOException e) {
+			// Closed by close
+		}
+	}
+
+	/**
+	 * Serves one connection, which is closed when this returns.
+	 *
+	 * @param socket
+	 *            the accepted connection
+	 */
+	protected abstract void serve(Socket socket) throws Exception;
+}
@@ -0,0 +1,129 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.paho.mqttv5.client.internal.VirtualThreads;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Connects many clients at once to a {@link TestBroker}, publishes at QoS 1
+ * from each and disconnects them.
+ */
+public class VirtualThreadClientsTest {
+
+	// How many clients to connect with virtual threads. Each uses two sockets,
+	// so the open file limit must allow twice this many.
+	private static final int VIRTUAL_THREAD_CLIENTS = Integer
+			.getInteger("org.eclipse.paho.mqttv5.client.test.virtualThreadClients", 10000).intValue();
+	private static final int PLATFORM_THREAD_CLIENTS = 50;
+	// The number of connects in progress at once, within the server's backlog
+	private static final int CONNECT_BATCH = 500;
+
+	@Test
+	public void testManyClientsOnVirtualThreads() throws Exception {
+		Assume.assumeTrue("Virtual threads need Java 21 or later", VirtualThreads.isAvailable());
+		int platformThreads = runClients(VIRTUAL_THREAD_CLIENTS, true);
+		// The comms threads of every client are virtual, so are not counted
+		Assert.assertTrue("platform threads " + platformThreads, platformThreads < VIRTUAL_THREAD_CLIENTS / 10);
+	}
+
+	@Test
+	public void testClientsOnPlatformThreads() throws Exception {
+		runClients(PLATFORM_THREAD_CLIENTS, false);
+	}
+
+	/**
+	 * Connects the clients, publishes a QoS 1 message from each while all are
+	 * connected, then disconnects them.
+	 *
+	 * @return the number of platform threads alive while all were connected
+	 */
+	private int runClients(int count, boolean virtualThreads) throws Exception {
+		// The broker's connections, and the disconnects of the test, run on virtual threads if possible
+		ExecutorService executor = VirtualThreads.isAvailable() ? VirtualThreads.executor()
+				: Executors.newCachedThreadPool();
+		TestBroker broker = new TestBroker(executor, CONNECT_BATCH);
+		List<MqttAsyncClient> clients = new ArrayList<MqttAsyncClient>(count);
+		try {
+			MqttConnectionOptions options = new MqttConnectionOptions();
+			options.setVirtualThreadsEnabled(virtualThreads);
+			options.setConnectionTimeout(60);
+			for (int i = 0; i < count; i++) {
+				clients.add(new MqttAsyncClient(broker.getURI(), "vt" + i, new MemoryPersistence()));
+			}
+
+			List<IMqttToken> tokens = new ArrayList<IMqttToken>(CONNECT_BATCH);
+			for (int i = 0; i < count; i += CONNECT_BATCH) {
+				for (int j = i; j < Math.min(count, i + CONNECT_BATCH); j++) {
+					tokens.add(clients.get(j).connect(options));
+				}
+				waitForAll(tokens);
+			}
+			Assert.assertEquals(count, broker.getConnects());
+			int platformThreads = Thread.activeCount();
+
+			for (MqttAsyncClient client : clients) {
+				Assert.assertTrue(client.isConnected());
+				tokens.add(client.publish("vt/" + client.getClientId(), new MqttMessage("hello".getBytes(), 1,
+						false, null)));
+			}
+			waitForAll(tokens);
+			Assert.assertEquals(count, broker.getReceived(MqttPublish.class).size());
+
+			// Each disconnect pauses the calling thread briefly, so they are done in parallel
+			List<Future<Void>> disconnects = new ArrayList<Future<Void>>(count);
+			for (final MqttAsyncClient client : clients) {
+				disconnects.add(executor.submit(new Callable<Void>() {
+					public Void call() throws MqttException {
+						client.disconnect().waitForCompletion(60000);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> disconnect : disconnects) {
+				disconnect.get();
+			}
+			return platformThreads;
+		} finally {
+			for (MqttAsyncClient client : clients) {
+				try {
+					client.close(true);
+				} catch (MqttException e) {
+					// Carry on closing the others
+				}
+			}
+			broker.close();
+			if (executor != VirtualThreads.executor()) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private static void waitForAll(List<IMqttToken> tokens) throws MqttException {
+		for (IMqttToken token : tokens) {
+			token.waitForCompletion(60000);
+		}
+		tokens.clear();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		// A small wheel, so that the tests go round it more than once
+		timer = new HashedWheelTimer("Test Timer", 5, 8);
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdown();
+	}
+
+	/**
+	 * Timeouts run in deadline order, and never before their delay has passed.
+	 */
+	@Test
+	public void testTimeoutsRunInOrderAfterTheirDelay() throws Exception {
+		final long[] delays = { 120, 0, 45, 7, 200, 60 };
+		final List<Long> fired = new CopyOnWriteArrayList<Long>();
+		final CountDownLatch latch = new CountDownLatch(delays.length);
+		final long start = System.nanoTime();
+		for (final long delay : delays) {
+			timer.schedule(new Runnable() {
+				public void run() {
+					long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+					Assert.assertTrue("ran after " + elapsed + "ms, not " + delay, elapsed >= delay);
+					fired.add(Long.valueOf(delay));
+					latch.countDown();
+				}
+			}, delay);
+		}
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(delays.length, fired.size());
+		for (int i = 1; i < fired.size(); i++) {
+			Assert.assertTrue(fired.get(i - 1).longValue() <= fired.get(i).longValue());
+		}
+		Assert.assertEquals(0, timer.pending());
+	}
+
+	@Test
+	public void testCancelledTimeoutDoesNotRun() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		HashedWheelTimer.Timeout cancelledEarly = timer.schedule(task, 50);
+		HashedWheelTimer.Timeout cancelledLate = timer.schedule(task, 80);
+		Assert.assertTrue(cancelledEarly.cancel());
+		Thread.sleep(30);
+		Assert.assertTrue(cancelledLate.cancel());
+		Assert.assertFalse(cancelledLate.cancel());
+		Assert.assertTrue(cancelledLate.isCancelled());
+
+		HashedWheelTimer.Timeout expired = timer.schedule(task, 100);
+		Thread.sleep(300);
+		Assert.assertEquals(1, runs.get());
+		Assert.assertTrue(expired.isExpired());
+		Assert.assertFalse(expired.cancel());
+		Assert.assertEquals(0, timer.pending());
+	}
+
+	/**
+	 * A timeout scheduled after the ticker has been idle, and one scheduled by
+	 * a running task, both run.
+	 */
+	@Test
+	public void testScheduleAfterIdle() throws Exception {
+		final CountDownLatch first = new CountDownLatch(1);
+		final CountDownLatch second = new CountDownLatch(2);
+		timer.schedule(new Runnable() {
+			public void run() {
+				first.countDown();
+			}
+		}, 10);
+		Assert.assertTrue(first.await(1, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		Assert.assertEquals(0, timer.pending());
+
+		timer.schedule(new Runnable() {
+			public void run() {
+				second.countDown();
+				timer.schedule(new Runnable() {
+					public void run() {
+						second.countDown();
+					}
+				}, 20);
+			}
+		}, 10);
+		Assert.assertTrue(second.await(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * A task which throws does not stop the timer.
+	 */
+	@Test
+	public void testFailingTask() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		timer.schedule(new Runnable() {
+			public void run() {
+				throw new IllegalStateException();
+			}
+		}, 0);
+		timer.schedule(new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		}, 10);
+		Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import org.eclipse.paho.mqttv5.client.BackpressurePolicy;
+import org.eclipse.paho.mqttv5.client.MqttClientInterface;
+import org.eclipse.paho.mqttv5.client.TimerPingSender;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageDispatcherTest {
+
+	private static final BooleanSupplier NEVER = () -> false;
+
+	private ScheduledExecutorService pingExecutor;
+	private ClientComms clientComms;
+	private MessageDispatcher dispatcher;
+
+	@Before
+	public void setUp() throws Exception {
+		pingExecutor = Executors.newSingleThreadScheduledExecutor();
+		MqttClientInterface client = new MqttClientInterface() {
+			public String getClientId() {
+				return "dispatcherTest";
+			}
+
+			public String getServerURI() {
+				return "tcp://localhost:1883";
+			}
+		};
+		MemoryPersistence persistence = new MemoryPersistence();
+		persistence.open(client.getClientId());
+		clientComms = new ClientComms(client, persistence, new TimerPingSender(pingExecutor), null,
+				new MqttSessionState(), new MqttConnectionState(client.getClientId()));
+	}
+
+	@After
+	public void tearDown() {
+		if (dispatcher != null) {
+			dispatcher.stop();
+		}
+		pingExecutor.shutdownNow();
+	}
+
+	@Test
+	public void testMessagesOnATopicAreDeliveredInOrder() throws Exception {
+		final int topics = 8;
+		final int perTopic = 200;
+		final CountDownLatch delivered = new CountDownLatch(topics * perTopic);
+		final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+		CommsCallback callback = new CommsCallback(clientComms) {
+			@Override
+			void handleMessage(MqttPublish message) {
+				List<Integer> sequence = received.computeIfAbsent(message.getTopicName(), k -> new ArrayList<>());
+				// Messages on one topic are delivered one at a time, so no lock is needed
+				sequence.add(Integer.valueOf(message.getMessageId()));
+				delivered.countDown();
+			}
+		};
+		dispatcher = new MessageDispatcher(callback, clientComms, 4, 16, BackpressurePolicy.BLOCK);
+		dispatcher.start("dispatcherTest", null);
+
+		for (int i = 0; i < perTopic; i++) {
+			for (int t = 0; t < topics; t++) {
+				Assert.assertTrue(dispatcher.dispatch(newPublish("topic/" + t, 1, i), NEVER));
+			}
+		}
+		Assert.assertTrue(delivered.await(10, TimeUnit.SECONDS));
+		for (int t = 0; t < topics; t++) {
+			List<Integer> sequence = received.get("topic/" + t);
+			Assert.assertEquals(perTopic, sequence.size());
+			for (int i = 0; i < perTopic; i++) {
+				Assert.assertEquals(i, sequence.get(i).intValue());
+			}
+		}
+		waitForIdle();
+	}
+
+	@Test
+	public void testSlowTopicDoesNotHoldUpOtherTopics() throws Exception {
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch releaseSlow = new CountDownLatch(1);
+		final CountDownLatch otherDelivered = new CountDownLatch(1);
+		CommsCallback callback = new CommsCallback(clientComms) {
+			@Override
+			void handleMessage(MqttPublish message) throws Exception {
+				if (message.getTopicName().equals("slow")) {
+					slowStarted.countDown();
+					releaseSlow.await();
+				} else {
+					otherDelivered.countDown();
+				}
+			}
+		};
+		dispatcher = new MessageDispatcher(callback, clientComms, 2, 4, BackpressurePolicy.BLOCK);
+		dispatcher.start("dispatcherTest", null);
+
+		dispatcher.dispatch(newPublish("slow", 1, 1), NEVER);
+		Assert.assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+		dispatcher.dispatch(newPublish(topicOnOtherWorker("slow", 2), 1, 2), NEVER);
+		Assert.assertTrue(otherDelivered.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(dispatcher.isIdle());
+
+		releaseSlow.countDown();
+		waitForIdle();
+	}
+
+	@Test
+	public void testBackpressurePolicyWhenQueueIsFull() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		CommsCallback callback = new CommsCallback(clientComms) {
+			@Override
+			void handleMessage(MqttPublish message) throws Exception {
+				started.countDown();
+				release.await();
+			}
+		};
+		dispatcher = new MessageDispatcher(callback, clientComms, 1, 1, BackpressurePolicy.DROP_QOS0);
+		dispatcher.start("dispatcherTest", null);
+
+		// The first message is taken by the worker, the second fills its queue
+		Assert.assertTrue(dispatcher.dispatch(newPublish("a", 1, 1), NEVER));
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(dispatcher.dispatch(newPublish("a", 1, 2), NEVER));
+
+		// QoS 0 is discarded straight away, QoS 1 waits until told to give up
+		Assert.assertFalse(dispatcher.dispatch(newPublish("a", 0, 0), NEVER));
+		Assert.assertFalse(dispatcher.dispatch(newPublish("a", 1, 3), () -> true));
+
+		release.countDown();
+		waitForIdle();
+	}
+
+	/**
+	 * Stopping the dispatcher lets a callback in progress finish without
+	 * interrupting it, while the idle workers stop straight away.
+	 */
+	@Test
+	public void testStopLetsCallbackInProgressFinish() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		final AtomicBoolean finished = new AtomicBoolean();
+		CommsCallback callback = new CommsCallback(clientComms) {
+			@Override
+			void handleMessage(MqttPublish message) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					interrupted.set(true);
+				}
+				finished.set(true);
+			}
+		};
+		dispatcher = new MessageDispatcher(callback, clientComms, 2, 4, BackpressurePolicy.BLOCK);
+		dispatcher.start("dispatcherTest", null);
+		Assert.assertTrue(dispatcher.dispatch(newPublish("a", 1, 1), NEVER));
+		Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		Thread stopper = new Thread(() -> dispatcher.stop());
+		stopper.start();
+		stopper.join(300);
+		// Waiting for the callback, which has not been interrupted
+		Assert.assertTrue(stopper.isAlive());
+		Assert.assertFalse(finished.get());
+
+		release.countDown();
+		stopper.join(5000);
+		Assert.assertFalse(stopper.isAlive());
+		Assert.assertTrue(finished.get());
+		Assert.assertFalse(interrupted.get());
+	}
+
+	private void waitForIdle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!dispatcher.isIdle() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(dispatcher.isIdle());
+	}
+
+	/**
+	 * @return a topic which the dispatcher with the given number of workers
+	 *         assigns to a different worker than the topic given
+	 */
+	private static String topicOnOtherWorker(String topic, int workers) {
+		int worker = (topic.hashCode() & Integer.MAX_VALUE) % workers;
+		for (int i = 0;; i++) {
+			String other = "other/" + i;
+			if ((other.hashCode() & Integer.MAX_VALUE) % workers != worker) {
+				return other;
+			}
+		}
+	}
+
+	private static MqttPublish newPublish(String topic, int qos, int messageId) {
+		MqttMessage message = new MqttMessage(new byte[] { 1 });
+		message.setQos(qos);
+		MqttPublish publish = new MqttPublish(topic, message, new MqttProperties());
+		publish.setMessageId(messageId);
+		return publish;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageIdAllocatorTest {
+
+	@Test
+	public void testIdsGoRoundInOrder() {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = 1; i <= 100; i++) {
+			Assert.assertEquals(i, ids.allocate());
+		}
+		ids.release(50);
+		// Released IDs are not reused until the search comes round to them
+		Assert.assertEquals(101, ids.allocate());
+		Assert.assertEquals(100, ids.inUse());
+
+		ids.setLast(MessageIdAllocator.MAX_MSG_ID - 1);
+		Assert.assertEquals(MessageIdAllocator.MAX_MSG_ID, ids.allocate());
+		// Wraps round past 0, skipping the IDs still in use
+		Assert.assertEquals(50, ids.allocate());
+		Assert.assertEquals(102, ids.allocate());
+	}
+
+	@Test
+	public void testFullAndNearlyFull() {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = 1; i <= MessageIdAllocator.MAX_MSG_ID; i++) {
+			Assert.assertEquals(i, ids.allocate());
+		}
+		Assert.assertEquals(0, ids.allocate());
+		Assert.assertEquals(MessageIdAllocator.MAX_MSG_ID, ids.inUse());
+
+		// The only free ID is just before where the search starts
+		ids.release(1000);
+		ids.setLast(1000);
+		Assert.assertEquals(1000, ids.allocate());
+		Assert.assertEquals(0, ids.allocate());
+
+		ids.clear();
+		Assert.assertEquals(0, ids.inUse());
+		Assert.assertFalse(ids.isInUse(1000));
+		Assert.assertEquals("[]", ids.toString());
+	}
+
+	@Test
+	public void testMarkInUseAndRelease() {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		Assert.assertTrue(ids.markInUse(1));
+		Assert.assertTrue(ids.markInUse(64));
+		Assert.assertFalse(ids.markInUse(64));
+		Assert.assertEquals("[1, 64]", ids.toString());
+		Assert.assertEquals(2, ids.allocate());
+		ids.release(64);
+		ids.release(64);
+		ids.release(0);
+		Assert.assertEquals(2, ids.inUse());
+		Assert.assertFalse(ids.isInUse(64));
+	}
+
+	/**
+	 * Threads allocating and releasing at the same time are never given the
+	 * same ID.
+	 */
+	@Test
+	public void testBatchAllocation() {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		Assert.assertTrue(ids.markInUse(3));
+		Assert.assertTrue(ids.markInUse(70));
+		int[] batch = new int[200];
+		Assert.assertTrue(ids.allocate(batch, 200));
+		// Skips the IDs in use and carries on in order across words
+		int expected = 1;
+		for (int id : batch) {
+			if (expected == 3 || expected == 70) {
+				expected++;
+			}
+			Assert.assertEquals(expected++, id);
+		}
+		Assert.assertEquals(202, ids.inUse());
+		Assert.assertEquals(expected, ids.allocate());
+	}
+
+	@Test
+	public void testBatchAllocationIsAllOrNothing() {
+		MessageIdAllocator ids = new MessageIdAllocator();
+		for (int i = 0; i < MessageIdAllocator.MAX_MSG_ID - 10; i++) {
+			ids.allocate();
+		}
+		int[] batch = new int[11];
+		Assert.assertFalse(ids.allocate(batch, 11));
+		Assert.assertEquals(MessageIdAllocator.MAX_MSG_ID - 10, ids.inUse());
+		Assert.assertTrue(ids.allocate(batch, 10));
+		Assert.assertEquals(MessageIdAllocator.MAX_MSG_ID, ids.inUse());
+		Assert.assertEquals(MessageIdAllocator.MAX_MSG_ID, batch[9]);
+	}
+
+	@Test
+	public void testConcurrentAllocation() throws Exception {
+		final MessageIdAllocator ids = new MessageIdAllocator();
+		final int threads = 4;
+		final int perThread = 15000;
+		final BitSet[] allocated = new BitSet[threads];
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final BitSet mine = allocated[t] = new BitSet();
+			new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < perThread; i++) {
+							int id = ids.allocate();
+							Assert.assertFalse(mine.get(id));
+							mine.set(id);
+							if (i % 3 == 0) {
+								ids.release(id);
+								mine.clear(id);
+							}
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		Assert.assertNull(failure.get());
+		BitSet all = new BitSet();
+		int total = 0;
+		for (BitSet mine : allocated) {
+			Assert.assertFalse(all.intersects(mine));
+			all.or(mine);
+			total += mine.cardinality();
+		}
+		Assert.assertFalse(all.get(0));
+		Assert.assertEquals(total, ids.inUse());
+	}
+}
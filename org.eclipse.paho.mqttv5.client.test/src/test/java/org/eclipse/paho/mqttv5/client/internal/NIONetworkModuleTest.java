@@ -0,0 +1,448 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.TestBroker;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.eclipse.paho.mqttv5.common.packet.MqttBufferPool;
+import org.eclipse.paho.mqttv5.common.packet.MqttPacketDecoder;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+import org.eclipse.paho.mqttv5.common.packet.SizeClassBufferPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The selector driven network module, and the receiver it pushes data to.
+ */
+public class NIONetworkModuleTest {
+
+	private NIOEventLoopGroup group;
+	private ServerSocket serverSocket;
+	private NIONetworkModule module;
+	private final List<MqttAsyncClient> clients = new ArrayList<>();
+	private final List<TestBroker> brokers = new ArrayList<>();
+
+	@Before
+	public void setUp() throws Exception {
+		group = new NIOEventLoopGroup(1, "NIONetworkModuleTest");
+		serverSocket = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (module != null) {
+			module.stop();
+		}
+		for (MqttAsyncClient client : clients) {
+			if (client.isConnected()) {
+				client.disconnectForcibly(0, 1000, false);
+			}
+			client.close(true);
+		}
+		for (TestBroker broker : brokers) {
+			broker.close();
+		}
+		serverSocket.close();
+		group.shutdown();
+	}
+
+	@Test
+	public void testPacketsFramedAcrossPartialReads() throws Exception {
+		Collector collector = new Collector();
+		Socket socket = connect(collector);
+
+		ByteArrayOutputStream packets = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; i++) {
+			packets.write(publish("small/" + i, new byte[] { (byte) i }).serialize());
+		}
+		// Larger than the read buffer, so it cannot arrive in one read
+		packets.write(publish("large", new byte[3 * NIONetworkModule.READ_BUFFER_SIZE]).serialize());
+		byte[] bytes = packets.toByteArray();
+		OutputStream out = socket.getOutputStream();
+		for (int i = 0; i < 64; i += 3) {
+			// A few bytes at a time, splitting headers and lengths across reads
+			out.write(bytes, i, 3);
+			out.flush();
+			Thread.sleep(5);
+		}
+		out.write(bytes, 66, bytes.length - 66);
+		out.flush();
+
+		for (int i = 0; i < 3; i++) {
+			MqttPublish message = (MqttPublish) collector.take();
+			Assert.assertEquals("small/" + i, message.getTopicName());
+			Assert.assertArrayEquals(new byte[] { (byte) i }, message.getMessage().getPayload());
+		}
+		MqttPublish large = (MqttPublish) collector.take();
+		Assert.assertEquals("large", large.getTopicName());
+		Assert.assertEquals(3 * NIONetworkModule.READ_BUFFER_SIZE, large.getMessage().getPayload().length);
+		Assert.assertNull(collector.failure);
+	}
+
+	@Test
+	public void testConnectionLostWhenServerCloses() throws Exception {
+		Collector collector = new Collector();
+		Socket socket = connect(collector);
+		socket.close();
+		Assert.assertTrue(collector.lost.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testWritesReachServer() throws Exception {
+		Socket socket = connect(new Collector());
+		byte[] packet = publish("out", new byte[1000]).serialize();
+		OutputStream out = module.getOutputStream();
+		out.write(packet);
+		out.flush();
+
+		byte[] read = new byte[packet.length];
+		int count = 0;
+		socket.setSoTimeout(5000);
+		while (count < read.length) {
+			count += socket.getInputStream().read(read, count, read.length - count);
+		}
+		Assert.assertArrayEquals(packet, read);
+	}
+
+	/**
+	 * Each buffer written is returned to the pool once sent, and each buffer
+	 * read through the stream once it has been read.
+	 */
+	@Test
+	public void testBuffersAreReturnedToThePool() throws Exception {
+		final MqttBufferPool pool = new SizeClassBufferPool(64 * 1024, 8);
+		final AtomicInteger acquired = new AtomicInteger();
+		final AtomicInteger released = new AtomicInteger();
+		module = new NIONetworkModule(group, "localhost", serverSocket.getLocalPort(), "NIONetworkModuleTest",
+				new MqttBufferPool() {
+					public ByteBuffer acquire(int capacity) {
+						acquired.incrementAndGet();
+						return pool.acquire(capacity);
+					}
+
+					public void release(ByteBuffer buffer) {
+						released.incrementAndGet();
+						pool.release(buffer);
+					}
+				});
+		module.setConnectTimeout(5);
+		module.start();
+		InputStream in = module.getInputStream();
+		Socket socket = serverSocket.accept();
+		socket.setSoTimeout(5000);
+
+		byte[] packet = publish("out", new byte[100]).serialize();
+		OutputStream out = module.getOutputStream();
+		for (int i = 0; i < 100; i++) {
+			out.write(packet);
+			out.flush();
+		}
+		byte[] read = new byte[100 * packet.length];
+		int count = 0;
+		while (count < read.length) {
+			count += socket.getInputStream().read(read, count, read.length - count);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (released.get() < 100 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(100, acquired.get());
+		Assert.assertEquals(100, released.get());
+
+		for (int i = 0; i < 3; i++) {
+			socket.getOutputStream().write(new byte[10]);
+			socket.getOutputStream().flush();
+			Thread.sleep(50);
+		}
+		count = 0;
+		while (count < 30) {
+			count += in.read(new byte[30], 0, 30 - count);
+		}
+		// All but the buffer just read, which is released on the next read
+		Assert.assertEquals(acquired.get() - 1, released.get());
+	}
+
+	@Test
+	public void testConnectFailure() throws Exception {
+		int port = serverSocket.getLocalPort();
+		serverSocket.close();
+		module = new NIONetworkModule(group, "localhost", port, "NIONetworkModuleTest");
+		module.setConnectTimeout(5);
+		try {
+			module.start();
+			Assert.fail("connected to a closed port");
+		} catch (MqttException e) {
+			Assert.assertEquals(MqttClientException.REASON_CODE_SERVER_CONNECT_ERROR, e.getReasonCode());
+		}
+		module = null;
+	}
+
+	@Test
+	public void testPausedReadingLeavesDataUnread() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final CountDownLatch first = new CountDownLatch(1);
+		Socket socket = connect(new NIONetworkModule.Receiver() {
+			public void dataReceived(ByteBuffer data) {
+				received.addAndGet(data.remaining());
+				data.position(data.limit());
+				module.pauseReading();
+				first.countDown();
+			}
+
+			public void connectionLost(IOException cause) {
+			}
+		});
+		OutputStream out = socket.getOutputStream();
+		out.write(new byte[10]);
+		out.flush();
+		Assert.assertTrue(first.await(5, TimeUnit.SECONDS));
+		out.write(new byte[10]);
+		out.flush();
+		Thread.sleep(300);
+		Assert.assertEquals(10, received.get());
+
+		module.execute(() -> module.resumeReading());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (received.get() < 20 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(20, received.get());
+	}
+
+	/**
+	 * A task the loop queues for itself while handling data must run without
+	 * waiting for more data to arrive.
+	 */
+	@Test
+	public void testTaskQueuedWhileReadingRuns() throws Exception {
+		final CountDownLatch ran = new CountDownLatch(1);
+		Socket socket = connect(new NIONetworkModule.Receiver() {
+			public void dataReceived(ByteBuffer data) {
+				data.position(data.limit());
+				module.execute(() -> ran.countDown());
+			}
+
+			public void connectionLost(IOException cause) {
+			}
+		});
+		OutputStream out = socket.getOutputStream();
+		out.write(new byte[10]);
+		out.flush();
+		Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * A listener which does not return must not stop other clients on the same
+	 * event loop from receiving, and the messages held back while it is stuck
+	 * must all arrive once it returns.
+	 */
+	@Test
+	public void testSlowListenerDoesNotHoldUpTheLoop() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger slowReceived = new AtomicInteger();
+		TestBroker slowBroker = broker();
+		connectClient(slowBroker, "slow", new Listener() {
+			public void messageArrived(String topic, MqttMessage message) throws Exception {
+				release.await();
+				slowReceived.incrementAndGet();
+			}
+		});
+		// More than the callback queue holds, so the receiver has to hold some back
+		for (int i = 0; i < 50; i++) {
+			slowBroker.send(publish("slow", new byte[] { (byte) i }));
+		}
+
+		// Every loop of the default group has at least one of these clients
+		int loops = NIOEventLoopGroup.getDefault().size();
+		final CountDownLatch arrived = new CountDownLatch(loops);
+		List<TestBroker> others = new ArrayList<>();
+		for (int i = 0; i < loops; i++) {
+			TestBroker broker = broker();
+			connectClient(broker, "other" + i, new Listener() {
+				public void messageArrived(String topic, MqttMessage message) {
+					arrived.countDown();
+				}
+			});
+			others.add(broker);
+		}
+		for (TestBroker broker : others) {
+			broker.send(publish("other", new byte[] { 1 }));
+		}
+		Assert.assertTrue("messages held up by a slow listener", arrived.await(5, TimeUnit.SECONDS));
+
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (slowReceived.get() < 50 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(50, slowReceived.get());
+	}
+
+	/**
+	 * Persistence which does not return for one client must not stop other
+	 * clients on the same event loop from getting their acks.
+	 */
+	@Test
+	public void testBlockedPersistenceDoesNotHoldUpAcks() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		MqttAsyncClient slow = connectClient(broker(), "blocked", new MemoryPersistence() {
+			@Override
+			public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+				if (key.startsWith("sc-")) {
+					// The PUBREL, persisted when the PUBREC arrives
+					blocked.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new MqttPersistenceException(e);
+					}
+				}
+				super.put(key, persistable);
+			}
+		}, new Listener() {
+			public void messageArrived(String topic, MqttMessage message) {
+			}
+		});
+		IMqttToken slowToken = slow.publish("blocked", new MqttMessage(new byte[] { 1 }, 2, false, null));
+		Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+		// Every loop of the default group has at least one of these clients
+		int loops = NIOEventLoopGroup.getDefault().size();
+		List<IMqttToken> tokens = new ArrayList<>();
+		for (int i = 0; i < loops; i++) {
+			MqttAsyncClient other = connectClient(broker(), "acked" + i, new MemoryPersistence(), new Listener() {
+				public void messageArrived(String topic, MqttMessage message) {
+				}
+			});
+			tokens.add(other.publish("acked", new MqttMessage(new byte[] { 1 }, 1, false, null)));
+		}
+		for (IMqttToken token : tokens) {
+			token.waitForCompletion(5000);
+		}
+		Assert.assertFalse(slowToken.isComplete());
+
+		release.countDown();
+		slowToken.waitForCompletion(5000);
+	}
+
+	private Socket connect(NIONetworkModule.Receiver receiver) throws Exception {
+		module = new NIONetworkModule(group, "localhost", serverSocket.getLocalPort(), "NIONetworkModuleTest");
+		module.setConnectTimeout(5);
+		module.start();
+		module.setReceiver(receiver);
+		Socket socket = serverSocket.accept();
+		socket.setTcpNoDelay(true);
+		return socket;
+	}
+
+	private TestBroker broker() throws IOException {
+		TestBroker broker = new TestBroker();
+		brokers.add(broker);
+		return broker;
+	}
+
+	private void connectClient(TestBroker broker, String clientId, MqttCallback callback) throws MqttException {
+		connectClient(broker, clientId, new MemoryPersistence(), callback);
+	}
+
+	private MqttAsyncClient connectClient(TestBroker broker, String clientId, MqttClientPersistence persistence,
+			MqttCallback callback) throws MqttException {
+		MqttAsyncClient client = new MqttAsyncClient("tcp+nio://localhost:" + broker.getPort(), clientId,
+				persistence);
+		clients.add(client);
+		client.setCallback(callback);
+		client.connect(new MqttConnectionOptions()).waitForCompletion(5000);
+		return client;
+	}
+
+	private static MqttPublish publish(String topic, byte[] payload) {
+		return new MqttPublish(topic, new MqttMessage(payload, 0, false, null), new MqttProperties());
+	}
+
+	/**
+	 * Decodes the data pushed by the module into packets.
+	 */
+	private static class Collector implements NIONetworkModule.Receiver {
+		private final MqttPacketDecoder decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+		private final BlockingQueue<MqttWireMessage> packets = new LinkedBlockingQueue<>();
+		private final CountDownLatch lost = new CountDownLatch(1);
+		private volatile MqttException failure;
+
+		public void dataReceived(ByteBuffer data) {
+			try {
+				MqttWireMessage packet;
+				while ((packet = decoder.decode(data)) != null) {
+					packets.add(packet);
+				}
+			} catch (MqttException e) {
+				failure = e;
+			}
+		}
+
+		public void connectionLost(IOException cause) {
+			lost.countDown();
+		}
+
+		MqttWireMessage take() throws InterruptedException {
+			MqttWireMessage packet = packets.poll(5, TimeUnit.SECONDS);
+			Assert.assertNotNull("no packet received", packet);
+			return packet;
+		}
+	}
+
+	private abstract static class Listener implements MqttCallback {
+		public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		}
+
+		public void mqttErrorOccurred(MqttException exception) {
+		}
+
+		public void deliveryComplete(IMqttToken token) {
+		}
+
+		public void connectComplete(boolean reconnect, String serverURI) {
+		}
+
+		public void authPacketArrived(int reasonCode, MqttProperties properties) {
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.paho.mqttv5.client.TopicAliasPolicy;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OutgoingTopicAliasesTest {
+
+	private final ClientMetrics metrics = new ClientMetrics();
+	// The mapping the server would hold, to check every alias-only message
+	private final Map<Integer, String> server = new HashMap<Integer, String>();
+	// The server's Topic Alias Maximum
+	private int maximum = 2;
+
+	@Test
+	public void testFirstComeNeverReassigns() {
+		OutgoingTopicAliases aliases = new OutgoingTopicAliases(TopicAliasPolicy.FIRST_COME, metrics);
+		assertSent(aliases, "a", 1, true);
+		assertSent(aliases, "b", 2, true);
+		assertSent(aliases, "a", 1, false);
+		// Full, so later topics are sent without an alias
+		assertSent(aliases, "c", 0, true);
+		assertSent(aliases, "c", 0, true);
+		Assert.assertEquals(1, metrics.getTopicAliasHits());
+		Assert.assertEquals(4, metrics.getTopicAliasMisses());
+		Assert.assertEquals(0, metrics.getTopicAliasReassignments());
+	}
+
+	@Test
+	public void testLruMovesLeastRecentlyUsed() {
+		OutgoingTopicAliases aliases = new OutgoingTopicAliases(TopicAliasPolicy.LRU, metrics);
+		assertSent(aliases, "a", 1, true);
+		assertSent(aliases, "b", 2, true);
+		assertSent(aliases, "a", 1, false);
+		// b is the least recently used, so gives up its alias with the full topic sent
+		assertSent(aliases, "c", 2, true);
+		assertSent(aliases, "c", 2, false);
+		assertSent(aliases, "a", 1, false);
+		assertSent(aliases, "b", 2, true);
+		Assert.assertEquals(2, metrics.getTopicAliasReassignments());
+	}
+
+	@Test
+	public void testLfuKeepsHotTopics() {
+		OutgoingTopicAliases aliases = new OutgoingTopicAliases(TopicAliasPolicy.LFU, metrics);
+		maximum = 10;
+		// The first topics are rare, the later ones hot
+		for (int i = 0; i < 10; i++) {
+			send(aliases, "rare" + i);
+		}
+		for (int round = 0; round < 100; round++) {
+			for (int i = 0; i < 10; i++) {
+				send(aliases, "hot" + i);
+			}
+			send(aliases, "rare" + (round % 10));
+		}
+		long hits = metrics.getTopicAliasHits();
+		for (int i = 0; i < 10; i++) {
+			assertSent(aliases, "hot" + i, -1, false);
+		}
+		Assert.assertEquals(hits + 10, metrics.getTopicAliasHits());
+		Assert.assertTrue("reassignments " + metrics.getTopicAliasReassignments(),
+				metrics.getTopicAliasReassignments() >= 10);
+	}
+
+	@Test
+	public void testNoAliasesWhenServerAcceptsNone() {
+		OutgoingTopicAliases aliases = new OutgoingTopicAliases(TopicAliasPolicy.LRU, metrics);
+		MqttPublish message = publish("a");
+		maximum = 0;
+		aliases.apply(message, maximum);
+		Assert.assertEquals("a", message.getTopicName());
+		Assert.assertNull(message.getProperties().getTopicAlias());
+		Assert.assertEquals(0, metrics.getTopicAliasMisses());
+	}
+
+	@Test
+	public void testResendOnNewConnection() {
+		OutgoingTopicAliases aliases = new OutgoingTopicAliases(TopicAliasPolicy.LRU, metrics);
+		send(aliases, "a");
+		MqttPublish message = send(aliases, "a");
+		Assert.assertNull(message.getTopicName());
+
+		// The new connection's server knows no aliases, so the topic is back
+		server.clear();
+		aliases = new OutgoingTopicAliases(TopicAliasPolicy.LRU, metrics);
+		message.setDuplicate(true);
+		aliases.apply(message, maximum);
+		Assert.assertEquals("a", message.getTopicName());
+		Assert.assertEquals(Integer.valueOf(1), message.getProperties().getTopicAlias());
+
+		// And with no aliases at all
+		message.clearTopicAlias();
+		aliases = new OutgoingTopicAliases(TopicAliasPolicy.LRU, metrics);
+		aliases.apply(message, 0);
+		Assert.assertEquals("a", message.getTopicName());
+		Assert.assertNull(message.getProperties().getTopicAlias());
+	}
+
+	@Test
+	public void testSharedPropertiesNotReused() {
+		OutgoingTopicAliases aliases = new OutgoingTopicAliases(TopicAliasPolicy.FIRST_COME, metrics);
+		MqttProperties properties = new MqttProperties();
+		MqttPublish first = new MqttPublish("a", new MqttMessage(new byte[0]), properties);
+		MqttPublish second = new MqttPublish("b", new MqttMessage(new byte[0]), properties);
+		aliases.apply(first, maximum);
+		Assert.assertEquals(Integer.valueOf(1), properties.getTopicAlias());
+		// The alias given to the first message must not stick to the second
+		aliases.apply(second, maximum);
+		Assert.assertEquals("b", second.getTopicName());
+		Assert.assertEquals(Integer.valueOf(2), properties.getTopicAlias());
+	}
+
+	/**
+	 * Sends to a topic, checking that an alias sent alone is the one the
+	 * server was last told for the topic.
+	 */
+	private MqttPublish send(OutgoingTopicAliases aliases, String topic) {
+		MqttPublish message = publish(topic);
+		aliases.apply(message, maximum);
+		Integer alias = message.getProperties().getTopicAlias();
+		if (message.getTopicName() != null) {
+			Assert.assertEquals(topic, message.getTopicName());
+			if (alias != null) {
+				server.put(alias, topic);
+			}
+		} else {
+			Assert.assertEquals(topic, server.get(alias));
+		}
+		return message;
+	}
+
+	/**
+	 * Sends to a topic and checks the alias, where 0 is none and -1 is any,
+	 * and whether the topic was sent.
+	 */
+	private void assertSent(OutgoingTopicAliases aliases, String topic, int alias, boolean topicSent) {
+		MqttPublish message = send(aliases, topic);
+		Integer sentAlias = message.getProperties().getTopicAlias();
+		if (alias == 0) {
+			Assert.assertNull(sentAlias);
+		} else if (alias > 0) {
+			Assert.assertEquals(Integer.valueOf(alias), sentAlias);
+		} else {
+			Assert.assertNotNull(sentAlias);
+		}
+		Assert.assertEquals(topicSent ? topic : null, message.getTopicName());
+	}
+
+	private static MqttPublish publish(String topic) {
+		return new MqttPublish(topic, new MqttMessage(new byte[0]), new MqttProperties());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenCompletionListenerTest {
+
+	private static class Recorder implements MqttActionListener {
+		final List<String> events = new ArrayList<String>();
+		final List<String> threads = new ArrayList<String>();
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			events.add("success");
+			threads.add(Thread.currentThread().getName());
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			events.add("failure " + ((MqttException) exception).getReasonCode());
+			threads.add(Thread.currentThread().getName());
+		}
+	}
+
+	@Test
+	public void testCalledOnceWhenComplete() throws Exception {
+		final MqttToken token = new MqttToken("test");
+		Recorder recorder = new Recorder();
+		token.internalTok.setCompletionListener(token, recorder);
+		token.internalTok.markComplete(null, null);
+		Assert.assertTrue(recorder.events.isEmpty());
+
+		Thread completer = new Thread("completer") {
+			public void run() {
+				token.internalTok.notifyComplete();
+			}
+		};
+		completer.start();
+		completer.join();
+		token.internalTok.notifyComplete();
+		Assert.assertEquals("[success]", recorder.events.toString());
+		Assert.assertEquals("[completer]", recorder.threads.toString());
+	}
+
+	@Test
+	public void testCalledAtOnceIfAlreadyComplete() {
+		MqttToken token = new MqttToken("test");
+		token.internalTok.markComplete(null, null);
+		token.internalTok.notifyComplete();
+		Recorder recorder = new Recorder();
+		token.internalTok.setCompletionListener(token, recorder);
+		Assert.assertEquals("[success]", recorder.events.toString());
+	}
+
+	@Test
+	public void testFailure() {
+		MqttToken token = new MqttToken("test");
+		Recorder recorder = new Recorder();
+		token.internalTok.setCompletionListener(token, recorder);
+		token.internalTok.markComplete(null, new MqttException(MqttException.REASON_CODE_CLIENT_EXCEPTION));
+		token.internalTok.notifyComplete();
+		token.internalTok.notifyComplete();
+		Assert.assertEquals("[failure " + MqttException.REASON_CODE_CLIENT_EXCEPTION + "]",
+				recorder.events.toString());
+	}
+
+	@Test
+	public void testThrowingListenerDoesNotBreakCompletion() throws Exception {
+		MqttToken token = new MqttToken("test");
+		token.internalTok.setCompletionListener(token, new MqttActionListener() {
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+				throw new IllegalStateException("listener failed");
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			}
+		});
+		token.internalTok.markComplete(null, null);
+		token.internalTok.notifyComplete();
+		token.waitForCompletion(1000);
+		Assert.assertTrue(token.isComplete());
+	}
+}
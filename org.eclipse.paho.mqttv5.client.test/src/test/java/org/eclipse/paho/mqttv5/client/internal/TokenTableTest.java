@@ -0,0 +1,111 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.common.packet.MqttConnect;
+import org.eclipse.paho.mqttv5.common.packet.MqttPingReq;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenTableTest {
+
+	@Test
+	public void testPutGetRemove() {
+		TokenTable<String> table = new TokenTable<String>();
+		Assert.assertNull(table.put(1, "a"));
+		Assert.assertNull(table.put(65535, "b"));
+		Assert.assertEquals("a", table.put(1, "c"));
+		Assert.assertEquals("c", table.get(1));
+		Assert.assertEquals("b", table.get(65535));
+		Assert.assertNull(table.get(2));
+		Assert.assertEquals(2, table.size());
+
+		Assert.assertEquals("c", table.remove(1));
+		Assert.assertNull(table.remove(1));
+		Assert.assertNull(table.get(1));
+		Assert.assertEquals("b", table.get(65535));
+		Assert.assertEquals(1, table.size());
+
+		table.clear();
+		Assert.assertEquals(0, table.size());
+		Assert.assertFalse(table.values().hasNext());
+	}
+
+	/**
+	 * Keys stay reachable as the table grows, and as tombstones left by
+	 * removed keys are reused and swept away.
+	 */
+	@Test
+	public void testGrowthAndChurn() {
+		TokenTable<Integer> table = new TokenTable<Integer>();
+		for (int i = 1; i <= 1000; i++) {
+			table.put(i, Integer.valueOf(i));
+		}
+		// IDs are released out of order and new ones taken, many times over
+		for (int round = 0; round < 50; round++) {
+			for (int i = 1 + round % 3; i <= 1000; i += 3) {
+				Assert.assertEquals(Integer.valueOf(i), table.remove(i));
+			}
+			for (int i = 1 + round % 3; i <= 1000; i += 3) {
+				table.put(i, Integer.valueOf(i));
+			}
+		}
+		Assert.assertEquals(1000, table.size());
+		Set<Integer> values = new HashSet<Integer>();
+		for (Iterator<Integer> iterator = table.values(); iterator.hasNext();) {
+			Assert.assertTrue(values.add(iterator.next()));
+		}
+		Assert.assertEquals(1000, values.size());
+		for (int i = 1; i <= 1000; i++) {
+			Assert.assertEquals(Integer.valueOf(i), table.get(i));
+		}
+	}
+
+	/**
+	 * Tokens for flows without a message ID have their own slots, and are
+	 * seen by the iterator along with those for message IDs.
+	 */
+	@Test
+	public void testTokenStoreFlows() throws Exception {
+		CommsTokenStore store = new CommsTokenStore("test");
+		MqttToken connect = new MqttToken("test");
+		MqttToken ping = new MqttToken("test");
+		MqttToken publish = new MqttToken("test");
+		store.saveToken(connect, MqttConnect.KEY);
+		store.saveToken(ping, MqttPingReq.KEY);
+		store.saveToken(publish, "42");
+		Assert.assertEquals(3, store.count());
+		Assert.assertSame(connect, store.getToken(MqttConnect.KEY));
+		Assert.assertSame(ping, store.getToken(new MqttPingReq()));
+		Assert.assertSame(publish, store.getToken("42"));
+		Assert.assertNull(store.getToken("43"));
+
+		Set<MqttToken> outstanding = new HashSet<MqttToken>();
+		for (Iterator<MqttToken> iterator = store.outstandingTokens(); iterator.hasNext();) {
+			outstanding.add(iterator.next());
+		}
+		Assert.assertEquals(3, outstanding.size());
+		Assert.assertEquals(3, store.getOutstandingTokens().size());
+
+		Assert.assertSame(ping, store.removeToken(MqttPingReq.KEY));
+		Assert.assertNull(store.removeToken(MqttPingReq.KEY));
+		Assert.assertSame(publish, store.removeToken("42"));
+		Assert.assertEquals(1, store.count());
+		store.clear();
+		Assert.assertEquals(0, store.count());
+		Assert.assertNull(store.getToken(MqttConnect.KEY));
+	}
+}
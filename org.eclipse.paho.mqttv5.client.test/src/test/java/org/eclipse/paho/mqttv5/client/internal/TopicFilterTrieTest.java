@@ -0,0 +1,99 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TopicFilterTrieTest {
+
+	private static final String[] FILTERS = { "sport/tennis/player1", "sport/tennis/player1/#", "sport/#", "#",
+			"sport/+/player1", "+/+", "+", "/+", "sport/+/player1/ranking/#", "$SYS/#", "$SYS/broker/+",
+			"$share/group1/sport/tennis/+", "$share/group2/sport/tennis/+", "a//b", "a/+/b" };
+
+	@Test
+	public void testMatching() {
+		TopicFilterTrie<String> trie = newTrie();
+
+		assertMatches(trie, "sport/tennis/player1", "sport/tennis/player1", "sport/tennis/player1/#", "sport/#", "#",
+				"sport/+/player1", "$share/group1/sport/tennis/+", "$share/group2/sport/tennis/+");
+		assertMatches(trie, "sport/tennis/player1/ranking", "sport/tennis/player1/#", "sport/#", "#",
+				"sport/+/player1/ranking/#");
+		assertMatches(trie, "sport", "sport/#", "#", "+");
+		assertMatches(trie, "sport/tennis", "sport/#", "#", "+/+");
+		assertMatches(trie, "/finance", "#", "+/+", "/+");
+		assertMatches(trie, "a//b", "#", "a//b", "a/+/b");
+		assertMatches(trie, "other/topic/name", "#");
+	}
+
+	@Test
+	public void testSystemTopicsAreNotMatchedByLeadingWildcards() {
+		TopicFilterTrie<String> trie = newTrie();
+		assertMatches(trie, "$SYS/broker/clients", "$SYS/#", "$SYS/broker/+");
+		assertMatches(trie, "$SYS", "$SYS/#");
+	}
+
+	@Test
+	public void testRemove() {
+		TopicFilterTrie<String> trie = newTrie();
+		Assert.assertEquals(FILTERS.length, trie.size());
+
+		Assert.assertEquals("sport/#", trie.remove("sport/#"));
+		Assert.assertNull(trie.remove("sport/#"));
+		Assert.assertNull(trie.remove("not/present"));
+		Assert.assertEquals("$share/group1/sport/tennis/+", trie.remove("$share/group1/sport/tennis/+"));
+		assertMatches(trie, "sport/tennis/player2", "#", "$share/group2/sport/tennis/+");
+
+		for (String filter : FILTERS) {
+			trie.remove(filter);
+		}
+		Assert.assertTrue(trie.isEmpty());
+		assertMatches(trie, "sport/tennis/player1");
+
+		trie.put("sport/tennis/player1", "again");
+		List<String> matches = new ArrayList<>();
+		trie.match("sport/tennis/player1", matches);
+		Assert.assertEquals(Arrays.asList("again"), matches);
+	}
+
+	@Test
+	public void testReplace() {
+		TopicFilterTrie<String> trie = new TopicFilterTrie<>();
+		Assert.assertNull(trie.put("a/+", "first"));
+		Assert.assertEquals("first", trie.put("a/+", "second"));
+		Assert.assertEquals(1, trie.size());
+		List<String> matches = new ArrayList<>();
+		trie.match("a/b", matches);
+		Assert.assertEquals(Arrays.asList("second"), matches);
+	}
+
+	private static TopicFilterTrie<String> newTrie() {
+		TopicFilterTrie<String> trie = new TopicFilterTrie<>();
+		for (String filter : FILTERS) {
+			trie.put(filter, filter);
+		}
+		return trie;
+	}
+
+	private static void assertMatches(TopicFilterTrie<String> trie, String topicName, String... expected) {
+		List<String> matches = new ArrayList<>();
+		trie.match(topicName, matches);
+		Set<String> actual = new HashSet<>(matches);
+		Assert.assertEquals(topicName, matches.size(), actual.size());
+		Assert.assertEquals(topicName, new HashSet<>(Arrays.asList(expected)), actual);
+	}
+}
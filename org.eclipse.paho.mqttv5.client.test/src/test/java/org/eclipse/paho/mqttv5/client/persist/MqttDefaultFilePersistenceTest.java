@@ -0,0 +1,267 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MqttDefaultFilePersistenceTest {
+
+	private static final String CLIENT_ID = "defaultFileTest";
+
+	private File directory;
+	private MqttDefaultFilePersistence persistence;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("paho-default").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (persistence != null) {
+			persistence.close();
+		}
+		delete(directory);
+	}
+
+	@Test
+	public void testGroupCommitReplacesMessages() throws Exception {
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("s-1", data("header1b", "payload1b"));
+		assertData("header1b", "payload1b", persistence.get("s-1"));
+		Assert.assertEquals(0, backups().length);
+	}
+
+	@Test
+	public void testConcurrentPutsShareCommits() throws Exception {
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		persistence.setGroupCommitWindow(200);
+		List<Thread> threads = new ArrayList<>();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 25; i++) {
+						persistence.put("s-" + thread + "-" + i, data("h", "p" + i));
+						persistence.put("s-" + thread + "-" + i, data("h", "q" + i));
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(Collections.emptyList(), failures);
+		Assert.assertEquals(0, backups().length);
+		persistence.close();
+
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		Assert.assertEquals(200, Collections.list(persistence.keys()).size());
+		assertData("h", "q24", persistence.get("s-7-24"));
+	}
+
+	/**
+	 * When the directory cannot be forced, every put in the group fails and
+	 * any message being replaced is restored.
+	 */
+	@Test
+	public void testDirectoryFailureIsReportedToEveryPut() throws Exception {
+		final IOException failure = new IOException("Directory not forced");
+		final AtomicReference<IOException> directoryFailure = new AtomicReference<>();
+		persistence = new MqttDefaultFilePersistence(directory.getAbsolutePath()) {
+			@Override
+			void syncDirectory(File dir) throws IOException {
+				IOException ex = directoryFailure.get();
+				if (ex != null) {
+					throw ex;
+				}
+				super.syncDirectory(dir);
+			}
+		};
+		persistence.setSyncPolicy(SyncPolicy.GROUP_COMMIT);
+		persistence.open(CLIENT_ID);
+		persistence.put("s-0", data("h", "original"));
+		persistence.setGroupCommitWindow(100);
+		directoryFailure.set(failure);
+
+		List<Thread> threads = new ArrayList<>();
+		final List<Throwable> causes = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					persistence.put("s-" + thread, data("h", "replacement"));
+				} catch (MqttPersistenceException e) {
+					causes.add(e.getCause());
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(Collections.nCopies(4, failure), causes);
+		assertData("h", "original", persistence.get("s-0"));
+		Assert.assertEquals(0, backups().length);
+	}
+
+	/**
+	 * A put interrupted while waiting for its group gives up and closes its
+	 * file, while the group being forced completes.
+	 */
+	@Test(timeout = 10000)
+	public void testInterruptedPutClosesItsFile() throws Exception {
+		final CountDownLatch forcing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		persistence = new MqttDefaultFilePersistence(directory.getAbsolutePath()) {
+			@Override
+			void syncDirectory(File dir) throws IOException {
+				forcing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				super.syncDirectory(dir);
+			}
+		};
+		persistence.setSyncPolicy(SyncPolicy.GROUP_COMMIT);
+		persistence.open(CLIENT_ID);
+
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread leader = new Thread(() -> {
+			try {
+				persistence.put("s-leader", data("h", "p"));
+			} catch (Throwable e) {
+				failures.add(e);
+			}
+		});
+		leader.start();
+		Assert.assertTrue(forcing.await(5, TimeUnit.SECONDS));
+
+		final AtomicReference<Throwable> interrupted = new AtomicReference<>();
+		Thread waiter = new Thread(() -> {
+			try {
+				persistence.put("s-waiter", data("h", "p"));
+			} catch (Throwable e) {
+				interrupted.set(e);
+			}
+		});
+		waiter.start();
+		while (waiter.getState() != Thread.State.WAITING) {
+			Thread.sleep(10);
+		}
+		waiter.interrupt();
+		waiter.join();
+		Assert.assertTrue(interrupted.get() instanceof MqttPersistenceException);
+		Assert.assertTrue(interrupted.get().getCause() instanceof InterruptedIOException);
+		Assert.assertFalse(isOpen(new File(new File(directory, CLIENT_ID), "s-waiter.msg")));
+
+		release.countDown();
+		leader.join();
+		Assert.assertEquals(Collections.emptyList(), failures);
+		assertData("h", "p", persistence.get("s-leader"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPoliciesWhichDoNotWaitAreRejected() {
+		new MqttDefaultFilePersistence(directory.getAbsolutePath()).setSyncPolicy(SyncPolicy.NONE);
+	}
+
+	private MqttDefaultFilePersistence open(SyncPolicy syncPolicy) throws Exception {
+		MqttDefaultFilePersistence persistence = new MqttDefaultFilePersistence(directory.getAbsolutePath());
+		persistence.setSyncPolicy(syncPolicy);
+		persistence.open(CLIENT_ID);
+		return persistence;
+	}
+
+	private File[] backups() {
+		return new File(directory, CLIENT_ID).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".bup");
+			}
+		});
+	}
+
+	private static MqttPersistable data(String header, String payload) {
+		byte[] headerBytes = header.getBytes();
+		byte[] payloadBytes = payload.getBytes();
+		return new MqttPersistentData("", headerBytes, 0, headerBytes.length, payloadBytes, 0, payloadBytes.length);
+	}
+
+	/**
+	 * Messages are read back with the header and payload together in the
+	 * header.
+	 */
+	private static void assertData(String header, String payload, MqttPersistable data) throws Exception {
+		Assert.assertEquals(header + payload,
+				new String(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength()));
+	}
+
+	/**
+	 * Whether this process has the file open, where the platform can say.
+	 */
+	private static boolean isOpen(File file) throws IOException {
+		File[] descriptors = new File("/proc/self/fd").listFiles();
+		if (descriptors == null) {
+			return false;
+		}
+		Path path = file.toPath().toRealPath();
+		for (File descriptor : descriptors) {
+			try {
+				if (Files.readSymbolicLink(descriptor.toPath()).equals(path)) {
+					return true;
+				}
+			} catch (IOException e) {
+				// Closed since it was listed
+			}
+		}
+		return false;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
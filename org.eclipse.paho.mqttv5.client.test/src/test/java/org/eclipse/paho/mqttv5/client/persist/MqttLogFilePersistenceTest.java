@@ -0,0 +1,215 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MqttLogFilePersistenceTest {
+
+	private static final String CLIENT_ID = "logFileTest";
+
+	private File directory;
+	private MqttLogFilePersistence persistence;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("paho-log").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (persistence != null) {
+			persistence.close();
+		}
+		delete(directory);
+	}
+
+	@Test
+	public void testPutGetRemove() throws Exception {
+		persistence = open(SyncPolicy.EVERY_WRITE);
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("r-2", data("header2", null));
+		Assert.assertTrue(persistence.containsKey("s-1"));
+		assertData("header1", "payload1", persistence.get("s-1"));
+		assertData("header2", "", persistence.get("r-2"));
+
+		persistence.put("s-1", data("header1b", "payload1b"));
+		assertData("header1b", "payload1b", persistence.get("s-1"));
+
+		persistence.remove("s-1");
+		persistence.remove("not-there");
+		Assert.assertFalse(persistence.containsKey("s-1"));
+		Assert.assertNull(persistence.get("s-1"));
+		Assert.assertEquals(Collections.singletonList("r-2"), Collections.list(persistence.keys()));
+
+		persistence.clear();
+		Assert.assertFalse(persistence.keys().hasMoreElements());
+	}
+
+	@Test
+	public void testIndexIsRebuiltOnOpen() throws Exception {
+		persistence = open(SyncPolicy.NONE);
+		for (int i = 0; i < 100; i++) {
+			persistence.put("s-" + i, data("h" + i, "p" + i));
+		}
+		for (int i = 0; i < 100; i += 2) {
+			persistence.remove("s-" + i);
+		}
+		persistence.put("s-1", data("updated", "value"));
+		persistence.close();
+
+		persistence = open(SyncPolicy.NONE);
+		Set<String> expected = new HashSet<>();
+		for (int i = 1; i < 100; i += 2) {
+			expected.add("s-" + i);
+		}
+		Assert.assertEquals(expected, new HashSet<>(Collections.list(persistence.keys())));
+		assertData("updated", "value", persistence.get("s-1"));
+		assertData("h99", "p99", persistence.get("s-99"));
+	}
+
+	/**
+	 * A record cut short by a crash is discarded, and the log can be appended
+	 * to after it.
+	 */
+	@Test
+	public void testIncompleteRecordIsDiscarded() throws Exception {
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("s-2", data("header2", "payload2"));
+		persistence.close();
+
+		File[] segments = segments();
+		Assert.assertEquals(1, segments.length);
+		RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		Assert.assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+		persistence.put("s-3", data("header3", "payload3"));
+		persistence.close();
+
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		assertData("header1", "payload1", persistence.get("s-1"));
+		assertData("header3", "payload3", persistence.get("s-3"));
+		Assert.assertFalse(persistence.containsKey("s-2"));
+	}
+
+	/**
+	 * Segments no longer needed are deleted, and a long lived key does not
+	 * keep the segments around it from being reclaimed.
+	 */
+	@Test
+	public void testSegmentsAreReclaimed() throws Exception {
+		persistence = new MqttLogFilePersistence(directory.getAbsolutePath());
+		persistence.setSyncPolicy(SyncPolicy.NONE);
+		persistence.setSegmentSize(256);
+		persistence.open(CLIENT_ID);
+
+		persistence.put("s-pinned", data("pinned", "still needed"));
+		for (int i = 0; i < 1000; i++) {
+			persistence.put("s-" + i, data("header" + i, "payload" + i));
+			persistence.remove("s-" + i);
+			Assert.assertTrue(segments().length <= 4);
+		}
+		persistence.close();
+
+		persistence = open(SyncPolicy.NONE);
+		Assert.assertEquals(Collections.singletonList("s-pinned"), Collections.list(persistence.keys()));
+		assertData("pinned", "still needed", persistence.get("s-pinned"));
+	}
+
+	@Test
+	public void testConcurrentWritersShareCommits() throws Exception {
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		List<Thread> threads = new ArrayList<>();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 50; i++) {
+						persistence.put("s-" + thread + "-" + i, data("h", "p" + i));
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(Collections.emptyList(), failures);
+		persistence.close();
+
+		persistence = open(SyncPolicy.GROUP_COMMIT);
+		Assert.assertEquals(400, Collections.list(persistence.keys()).size());
+		assertData("h", "p49", persistence.get("s-7-49"));
+	}
+
+	private MqttLogFilePersistence open(SyncPolicy syncPolicy) throws Exception {
+		MqttLogFilePersistence persistence = new MqttLogFilePersistence(directory.getAbsolutePath());
+		persistence.setSyncPolicy(syncPolicy);
+		persistence.open(CLIENT_ID);
+		return persistence;
+	}
+
+	private File[] segments() {
+		return new File(directory, CLIENT_ID).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".log");
+			}
+		});
+	}
+
+	private static MqttPersistable data(String header, String payload) {
+		byte[] headerBytes = header.getBytes();
+		byte[] payloadBytes = payload == null ? null : payload.getBytes();
+		return new MqttPersistentData("", headerBytes, 0, headerBytes.length, payloadBytes, 0,
+				payloadBytes == null ? 0 : payloadBytes.length);
+	}
+
+	private static void assertData(String header, String payload, MqttPersistable data) throws Exception {
+		Assert.assertEquals(header,
+				new String(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength()));
+		Assert.assertEquals(payload,
+				new String(data.getPayloadBytes(), data.getPayloadOffset(), data.getPayloadLength()));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
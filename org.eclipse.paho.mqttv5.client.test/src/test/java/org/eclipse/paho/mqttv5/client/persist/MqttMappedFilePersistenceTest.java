@@ -0,0 +1,178 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MqttMappedFilePersistenceTest {
+
+	private static final String CLIENT_ID = "mappedFileTest";
+
+	private File directory;
+	private MqttMappedFilePersistence persistence;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("paho-mapped").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (persistence != null) {
+			persistence.close();
+		}
+		delete(directory);
+	}
+
+	@Test
+	public void testPutGetRemove() throws Exception {
+		persistence = open();
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("sc-1", data("header2", null));
+		persistence.put("r-65535", data("header3", "payload3"));
+		Assert.assertTrue(persistence.containsKey("s-1"));
+		Assert.assertFalse(persistence.containsKey("sb-1"));
+		assertData("header1", "payload1", persistence.get("s-1"));
+		assertData("header2", "", persistence.get("sc-1"));
+
+		persistence.put("s-1", data("header1b", "payload1b"));
+		assertData("header1b", "payload1b", persistence.get("s-1"));
+
+		persistence.remove("s-1");
+		persistence.remove("sb-7");
+		Assert.assertNull(persistence.get("s-1"));
+		Assert.assertEquals(new HashSet<>(Arrays.asList("sc-1", "r-65535")),
+				new HashSet<>(Collections.list(persistence.keys())));
+
+		persistence.clear();
+		Assert.assertFalse(persistence.keys().hasMoreElements());
+	}
+
+	@Test
+	public void testOnlyClientKeysAreAccepted() throws Exception {
+		persistence = open();
+		for (String key : new String[] { "x-1", "s-", "s-65536", "s-1a", "sc1" }) {
+			try {
+				persistence.put(key, data("header", "payload"));
+				Assert.fail(key);
+			} catch (MqttPersistenceException e) {
+				// Expected
+			}
+			Assert.assertFalse(persistence.containsKey(key));
+		}
+	}
+
+	/**
+	 * Messages larger than a slot are chained, the file grows when it is full,
+	 * and the slot table is rebuilt when the file is opened again.
+	 */
+	@Test
+	public void testSlotTableIsRebuiltOnOpen() throws Exception {
+		persistence = new MqttMappedFilePersistence(directory.getAbsolutePath());
+		persistence.setSlotSize(64);
+		persistence.setInitialCapacity(4);
+		persistence.open(CLIENT_ID);
+
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			large.append(i);
+		}
+		for (int i = 1; i <= 100; i++) {
+			persistence.put("s-" + i, data("h" + i, i % 10 == 0 ? large.toString() : "p" + i));
+		}
+		for (int i = 2; i <= 100; i += 2) {
+			persistence.remove("s-" + i);
+		}
+		persistence.put("s-1", data("updated", "value"));
+		persistence.close();
+
+		persistence = open();
+		Set<String> expected = new HashSet<>();
+		for (int i = 1; i <= 100; i += 2) {
+			expected.add("s-" + i);
+		}
+		Assert.assertEquals(expected, new HashSet<>(Collections.list(persistence.keys())));
+		assertData("updated", "value", persistence.get("s-1"));
+		assertData("h99", "p99", persistence.get("s-99"));
+
+		persistence.put("s-10", data("h10", large.toString()));
+		persistence.close();
+		persistence = open();
+		assertData("h10", large.toString(), persistence.get("s-10"));
+	}
+
+	/**
+	 * A message which was not completely written is discarded when the file is
+	 * opened.
+	 */
+	@Test
+	public void testDamagedMessageIsDiscarded() throws Exception {
+		persistence = open();
+		persistence.put("s-1", data("header1", "payload1"));
+		persistence.put("s-2", data("header2", "payload2"));
+		persistence.close();
+
+		// Overwrite the payload of the second message, which is in slot 2
+		RandomAccessFile file = new RandomAccessFile(new File(new File(directory, CLIENT_ID), "slots.map"), "rw");
+		file.seek(2 * 512 + 32 + 7);
+		file.write(new byte[] { 'X', 'X' });
+		file.close();
+
+		persistence = open();
+		Assert.assertEquals(Collections.singletonList("s-1"), Collections.list(persistence.keys()));
+		persistence.put("s-3", data("header3", "payload3"));
+		assertData("header3", "payload3", persistence.get("s-3"));
+	}
+
+	private MqttMappedFilePersistence open() throws Exception {
+		MqttMappedFilePersistence persistence = new MqttMappedFilePersistence(directory.getAbsolutePath());
+		persistence.open(CLIENT_ID);
+		return persistence;
+	}
+
+	private static MqttPersistable data(String header, String payload) {
+		byte[] headerBytes = header.getBytes();
+		byte[] payloadBytes = payload == null ? null : payload.getBytes();
+		return new MqttPersistentData("", headerBytes, 0, headerBytes.length, payloadBytes, 0,
+				payloadBytes == null ? 0 : payloadBytes.length);
+	}
+
+	private static void assertData(String header, String payload, MqttPersistable data) throws Exception {
+		Assert.assertEquals(header,
+				new String(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength()));
+		Assert.assertEquals(payload,
+				new String(data.getPayloadBytes(), data.getPayloadOffset(), data.getPayloadLength()));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -4,9 +4,16 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.eclipse.paho.mqttv5.client.IMqttMessageDemand;
+import org.eclipse.paho.mqttv5.client.IMqttMessagePublisher;
+import org.eclipse.paho.mqttv5.client.IMqttMessageSubscriber;
 import org.eclipse.paho.mqttv5.client.IMqttToken;
 import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
 import org.eclipse.paho.mqttv5.client.test.client.MqttClientFactoryPaho;
@@ -108,4 +115,58 @@ public class SubscribeTests {
 
 	}
 
+	@Test
+	public void testSubscribePublisherDeliversOnDemand() throws Exception {
+		String methodName = Utility.getMethodName();
+		LoggingUtilities.banner(log, cclass, methodName);
+		String clientId = methodName;
+		MqttV5Receiver mqttV5Receiver = new MqttV5Receiver(clientId, LoggingUtilities.getPrintStream());
+		MqttAsyncClient asyncClient = TestClientUtilities.connectAndGetClient(serverURI.toString(), clientId, mqttV5Receiver, null, 5000);
+
+		final AtomicInteger received = new AtomicInteger();
+		final AtomicReference<IMqttMessageDemand> demand = new AtomicReference<IMqttMessageDemand>();
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		IMqttMessagePublisher publisher = asyncClient.subscribePublisher(new MqttSubscription(topicPrefix + methodName, 1), 0);
+		publisher.subscribe(new IMqttMessageSubscriber() {
+			public void onSubscribe(IMqttMessageDemand d) {
+				demand.set(d);
+				subscribed.countDown();
+			}
+
+			public void onNext(String topic, MqttMessage message) {
+				received.incrementAndGet();
+			}
+
+			public void onError(Throwable exception) {
+				log.log(Level.SEVERE, "subscription failed:", exception);
+			}
+
+			public void onComplete() {
+			}
+		});
+		Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+		// Give the SUBSCRIBE time to be acknowledged
+		Thread.sleep(1000);
+
+		for (int i = 0; i < 10; i++) {
+			asyncClient.publish(topicPrefix + methodName, ("Message " + i).getBytes(), 1, false).waitForCompletion(5000);
+		}
+		Thread.sleep(1000);
+		Assert.assertEquals(0, received.get());
+
+		demand.get().request(4);
+		Thread.sleep(1000);
+		Assert.assertEquals(4, received.get());
+
+		demand.get().request(Long.MAX_VALUE);
+		long end = System.currentTimeMillis() + 5000;
+		while (received.get() < 10 && System.currentTimeMillis() < end) {
+			Thread.sleep(100);
+		}
+		Assert.assertEquals(10, received.get());
+
+		demand.get().cancel();
+		TestClientUtilities.disconnectAndCloseClient(asyncClient, 5000);
+	}
+
 }
@@ -0,0 +1,270 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.SocketFactory;
+
+import org.eclipse.paho.mqttv5.client.TestServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the WebSocket network module against a local server which echoes each
+ * message back, compressing it if permessage-deflate was agreed.
+ */
+public class PerMessageDeflateTest {
+
+	private EchoServer server;
+	private WebSocketNetworkModule module;
+
+	@After
+	public void tearDown() throws Exception {
+		if (module != null) {
+			module.stop();
+		}
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	@Test
+	public void testCompressedEcho() throws Exception {
+		server = new EchoServer("permessage-deflate");
+		module = connect(new PerMessageDeflate(false, false, 15));
+		Assert.assertEquals("permessage-deflate", server.offer);
+
+		byte[] telemetry = telemetry();
+		for (int i = 0; i < 5; i++) {
+			assertEcho(telemetry);
+		}
+		// The server's frames are inflated, and the client's were compressed
+		Assert.assertTrue(server.received.get() < telemetry.length);
+		Assert.assertTrue(server.sent.get() < telemetry.length);
+	}
+
+	@Test
+	public void testNoContextTakeover() throws Exception {
+		server = new EchoServer("permessage-deflate; client_no_context_takeover; server_no_context_takeover");
+		module = connect(new PerMessageDeflate(true, true, 10));
+		Assert.assertEquals(
+				"permessage-deflate; client_no_context_takeover; server_no_context_takeover; server_max_window_bits=10",
+				server.offer);
+		for (int i = 0; i < 3; i++) {
+			assertEcho(telemetry());
+		}
+	}
+
+	@Test
+	public void testDeclinedOffer() throws Exception {
+		server = new EchoServer(null);
+		module = connect(new PerMessageDeflate(false, false, 15));
+		byte[] telemetry = telemetry();
+		assertEcho(telemetry);
+		Assert.assertEquals(telemetry.length, server.received.get());
+	}
+
+	@Test
+	public void testStopEndsCompression() throws Exception {
+		server = new EchoServer("permessage-deflate");
+		PerMessageDeflate deflate = new PerMessageDeflate(false, false, 15);
+		module = connect(deflate);
+		assertEcho(telemetry());
+		module.stop();
+		module = null;
+		try {
+			deflate.compress(new byte[10], 0, 10);
+			Assert.fail("compressed after the connection was stopped");
+		} catch (IOException e) {
+			// The compressor has been ended
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testSmallerClientWindowIsRefused() throws Exception {
+		server = new EchoServer("permessage-deflate; client_max_window_bits=10");
+		module = connect(new PerMessageDeflate(false, false, 15));
+	}
+
+	private WebSocketNetworkModule connect(PerMessageDeflate perMessageDeflate) throws Exception {
+		WebSocketNetworkModule module = new WebSocketNetworkModule(SocketFactory.getDefault(),
+				"ws://localhost:" + server.getPort() + "/mqtt", "localhost", server.getPort(), "deflateTest");
+		module.setPerMessageDeflate(perMessageDeflate);
+		module.start();
+		return module;
+	}
+
+	private void assertEcho(byte[] message) throws Exception {
+		OutputStream out = module.getOutputStream();
+		out.write(message, 0, message.length);
+		out.flush();
+		InputStream in = module.getInputStream();
+		byte[] read = new byte[message.length];
+		int offset = 0;
+		while (offset < read.length) {
+			int count = in.read(read, offset, read.length - offset);
+			Assert.assertTrue(count > 0);
+			offset += count;
+		}
+		Assert.assertArrayEquals(message, read);
+	}
+
+	private static byte[] telemetry() {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < 200; i++) {
+			json.append("{\"sensor\":\"temperature\",\"unit\":\"celsius\",\"value\":").append(20 + i % 7).append("},");
+		}
+		return json.append("{}]").toString().getBytes();
+	}
+
+	/**
+	 * Accepts one WebSocket connection and echoes each message, split across
+	 * two frames.
+	 */
+	private static class EchoServer extends TestServer {
+		private final String extensionResponse;
+		private volatile String offer;
+		private final AtomicLong received = new AtomicLong();
+		private final AtomicLong sent = new AtomicLong();
+
+		EchoServer(String extensionResponse) throws IOException {
+			super(null, 1);
+			this.extensionResponse = extensionResponse;
+			start();
+		}
+
+		protected void serve(Socket socket) throws Exception {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String key = null;
+			// Skip the request line, then read the headers
+			String line = readLine(in);
+			while (!(line = readLine(in)).isEmpty()) {
+				int colon = line.indexOf(':');
+				String name = line.substring(0, colon).trim();
+				if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+					key = line.substring(colon + 1).trim();
+				} else if (name.equalsIgnoreCase("Sec-WebSocket-Extensions")) {
+					offer = line.substring(colon + 1).trim();
+				}
+			}
+			String accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+					.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes()));
+			out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+					+ "Sec-WebSocket-Protocol: mqtt\r\nSec-WebSocket-Accept: " + accept + "\r\n"
+					+ (extensionResponse == null ? "" : "Sec-WebSocket-Extensions: " + extensionResponse + "\r\n")
+					+ "\r\n").getBytes());
+			out.flush();
+
+			boolean compress = extensionResponse != null;
+			boolean noContextTakeover = compress && extensionResponse.contains("server_no_context_takeover");
+			Inflater inflater = new Inflater(true);
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			while (true) {
+				int first = in.readUnsignedByte();
+				int second = in.readUnsignedByte();
+				long length = second & 0x7F;
+				if (length == 126) {
+					length = in.readUnsignedShort();
+				} else if (length == 127) {
+					length = in.readLong();
+				}
+				byte[] mask = new byte[4];
+				in.readFully(mask);
+				byte[] payload = new byte[(int) length];
+				in.readFully(payload);
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i & 3];
+				}
+				if ((first & 0x0F) == 0x08) {
+					return;
+				}
+				received.addAndGet(payload.length);
+				byte[] message = payload;
+				if ((first & 0x40) != 0) {
+					inflater.setInput(concat(payload, PerMessageDeflate.TAIL));
+					ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+					byte[] chunk = new byte[1024];
+					int count;
+					while ((count = inflater.inflate(chunk)) > 0) {
+						inflated.write(chunk, 0, count);
+					}
+					message = inflated.toByteArray();
+				}
+				int flags = 0;
+				if (compress) {
+					deflater.setInput(message);
+					ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+					byte[] chunk = new byte[1024];
+					int count;
+					while ((count = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH)) > 0) {
+						deflated.write(chunk, 0, count);
+					}
+					message = Arrays.copyOf(deflated.toByteArray(), deflated.size() - 4);
+					if (noContextTakeover) {
+						deflater.reset();
+					}
+					flags = 0x40;
+				}
+				sent.addAndGet(message.length);
+				int half = message.length / 2;
+				frame(out, flags | 0x02, Arrays.copyOfRange(message, 0, half));
+				frame(out, 0x80, Arrays.copyOfRange(message, half, message.length));
+				out.flush();
+			}
+		}
+
+		private static void frame(OutputStream out, int first, byte[] payload) throws IOException {
+			out.write(first);
+			if (payload.length >= 126) {
+				out.write(126);
+				out.write(payload.length >> 8);
+				out.write(payload.length);
+			} else {
+				out.write(payload.length);
+			}
+			out.write(payload);
+		}
+
+		private static byte[] concat(byte[] a, byte[] b) {
+			byte[] result = Arrays.copyOf(a, a.length + b.length);
+			System.arraycopy(b, 0, result, a.length, b.length);
+			return result;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0) {
+					throw new IOException();
+				}
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return line.toString();
+		}
+	}
+}
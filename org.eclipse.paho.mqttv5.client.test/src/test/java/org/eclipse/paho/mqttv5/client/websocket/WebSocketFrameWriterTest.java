@@ -0,0 +1,92 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WebSocketFrameWriterTest {
+
+	/**
+	 * Frames of every length encoding, taken from any offset of the caller's
+	 * array, unmask back to the original payload.
+	 */
+	@Test
+	public void testFramesRoundTrip() throws Exception {
+		byte[] source = bytes(70010);
+		int[] lengths = { 0, 1, 3, 8, 13, 125, 126, 127, 1000, 0xFFFF, 0x10000, 70000 };
+		ByteArrayOutputStream socket = new ByteArrayOutputStream();
+		WebSocketFrameWriter writer = new WebSocketFrameWriter(socket);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < lengths.length; i++) {
+			int offset = i % 5;
+			writer.writeFrame(WebSocketFrameWriter.OPCODE_BINARY, source, offset, lengths[i]);
+			expected.write(source, offset, lengths[i]);
+		}
+		writer.flush();
+
+		byte[] frames = socket.toByteArray();
+		Assert.assertEquals((byte) 0x82, frames[0]);
+		Assert.assertEquals((byte) 0x80, frames[1]);
+
+		WebSocketInputStream input = new WebSocketInputStream(new ByteArrayInputStream(frames));
+		byte[] read = new byte[expected.size()];
+		int offset = 0;
+		while (offset < read.length) {
+			offset += input.read(read, offset, read.length - offset);
+		}
+		Assert.assertArrayEquals(expected.toByteArray(), read);
+		Assert.assertEquals(-1, input.read());
+		Assert.assertArrayEquals(bytes(70010), source);
+	}
+
+	/**
+	 * Everything written between flushes in one array goes out in a single
+	 * frame, and nothing reaches the socket before the flush.
+	 */
+	@Test
+	public void testOutputStreamFramesEachWrite() throws Exception {
+		ByteArrayOutputStream socket = new ByteArrayOutputStream();
+		WebSocketOutputStream output = new WebSocketOutputStream(new WebSocketFrameWriter(socket));
+		byte[] packets = bytes(40);
+		output.write(packets, 0, 40);
+		Assert.assertEquals(0, socket.size());
+		output.flush();
+		Assert.assertEquals(2 + 4 + 40, socket.size());
+
+		socket.reset();
+		output.write(0x30);
+		output.write(0x02);
+		output.flush();
+		output.write(0x40);
+		output.write(packets, 0, 3);
+		output.flush();
+		byte[] frames = socket.toByteArray();
+		Assert.assertEquals(2 + 4 + 2 + 2 + 4 + 4, frames.length);
+		byte[] read = new byte[6];
+		WebSocketInputStream input = new WebSocketInputStream(new ByteArrayInputStream(frames));
+		for (int i = 0; i < read.length; i++) {
+			read[i] = (byte) input.read();
+		}
+		Assert.assertArrayEquals(new byte[] { 0x30, 0x02, 0x40, packets[0], packets[1], packets[2] }, read);
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 7 + (i >> 8));
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WebSocketInputStreamTest {
+
+	@Test
+	public void testFragmentedMessageWithControlFrames() throws Exception {
+		byte[] message = bytes(300);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frame(frames, 0x02, false, Arrays.copyOfRange(message, 0, 10), null);
+		frame(frames, 0x09, true, "ping".getBytes(), null);
+		frame(frames, 0x00, false, Arrays.copyOfRange(message, 10, 200), new byte[] { 1, 2, 3, 4 });
+		frame(frames, 0x00, false, new byte[0], null);
+		frame(frames, 0x0A, true, new byte[0], null);
+		frame(frames, 0x00, true, Arrays.copyOfRange(message, 200, 300), null);
+
+		WebSocketInputStream input = new WebSocketInputStream(new ByteArrayInputStream(frames.toByteArray()));
+		Assert.assertArrayEquals(message, readAll(input, 300));
+		Assert.assertEquals(-1, input.read());
+	}
+
+	@Test
+	public void testExtendedLengths() throws Exception {
+		byte[] medium = bytes(1000);
+		byte[] large = bytes(70000);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frame(frames, 0x02, true, medium, null);
+		frame(frames, 0x02, true, large, new byte[] { 9, 8, 7, 6 });
+
+		WebSocketInputStream input = new WebSocketInputStream(new ByteArrayInputStream(frames.toByteArray()));
+		Assert.assertArrayEquals(medium, readAll(input, medium.length));
+		byte[] read = new byte[large.length];
+		int offset = 0;
+		while (offset < read.length) {
+			offset += input.read(read, offset, read.length - offset);
+		}
+		Assert.assertArrayEquals(large, read);
+	}
+
+	/**
+	 * A read which times out part way through a frame header is retried
+	 * without losing any data.
+	 */
+	@Test
+	public void testReadsResumeAfterTimeout() throws Exception {
+		byte[] message = bytes(500);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		for (int i = 0; i < 500; i += 50) {
+			frame(frames, i == 0 ? 0x02 : 0x00, i == 450, Arrays.copyOfRange(message, i, i + 50),
+					new byte[] { 5, 6, 7, (byte) i });
+		}
+		final InputStream trickle = new ByteArrayInputStream(frames.toByteArray());
+		InputStream timingOut = new InputStream() {
+			private int reads = 0;
+
+			public int read() throws IOException {
+				return trickle.read();
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (++reads % 2 == 0) {
+					throw new SocketTimeoutException();
+				}
+				return trickle.read(b, off, Math.min(len, 3));
+			}
+		};
+
+		WebSocketInputStream input = new WebSocketInputStream(timingOut);
+		byte[] read = new byte[message.length];
+		int offset = 0;
+		while (offset < read.length) {
+			try {
+				int b = input.read();
+				Assert.assertTrue(b >= 0);
+				read[offset++] = (byte) b;
+			} catch (SocketTimeoutException e) {
+				// Retry
+			}
+		}
+		Assert.assertArrayEquals(message, read);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCloseFrameEndsStream() throws Exception {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frame(frames, 0x08, true, new byte[] { 0x03, (byte) 0xE8 }, null);
+		new WebSocketInputStream(new ByteArrayInputStream(frames.toByteArray())).read();
+	}
+
+	@Test(expected = IOException.class)
+	public void testTextFrameIsRejected() throws Exception {
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frame(frames, 0x01, true, "text".getBytes(), null);
+		new WebSocketInputStream(new ByteArrayInputStream(frames.toByteArray())).read();
+	}
+
+	private static byte[] readAll(InputStream input, int length) throws IOException {
+		byte[] read = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int count = input.read(read, offset, Math.min(7, length - offset));
+			Assert.assertTrue(count > 0);
+			offset += count;
+		}
+		return read;
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		return bytes;
+	}
+
+	private static void frame(ByteArrayOutputStream out, int opcode, boolean fin, byte[] payload, byte[] mask) {
+		out.write((fin ? 0x80 : 0) | opcode);
+		int maskBit = mask == null ? 0 : 0x80;
+		if (payload.length > 0xFFFF) {
+			out.write(maskBit | 0x7F);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) ((long) payload.length >> shift));
+			}
+		} else if (payload.length >= 0x7E) {
+			out.write(maskBit | 0x7E);
+			out.write(payload.length >> 8);
+			out.write(payload.length);
+		} else {
+			out.write(maskBit | payload.length);
+		}
+		if (mask != null) {
+			out.write(mask, 0, 4);
+			for (int i = 0; i < payload.length; i++) {
+				out.write(payload[i] ^ mask[i % 4]);
+			}
+		} else {
+			out.write(payload, 0, payload.length);
+		}
+	}
+}
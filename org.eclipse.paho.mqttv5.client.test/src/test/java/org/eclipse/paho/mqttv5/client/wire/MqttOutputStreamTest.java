@@ -0,0 +1,122 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.wire;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.mqttv5.client.internal.MqttState;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttPingReq;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that {@link MqttOutputStream} holds encoded messages until it is
+ * flushed and then passes them to the network in a single write.
+ */
+public class MqttOutputStreamTest {
+
+	@Test
+	public void testMessagesAreWrittenTogetherOnFlush() throws Exception {
+		AtomicInteger sentBytes = new AtomicInteger();
+		CountingOutputStream network = new CountingOutputStream();
+		MqttOutputStream out = new MqttOutputStream(newState(sentBytes), network, "client");
+
+		MqttWireMessage[] messages = { newPublish(10), new MqttPingReq(), newPublish(200) };
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (MqttWireMessage message : messages) {
+			out.write(message);
+			expected.write(message.getHeader());
+			expected.write(message.getPayload());
+		}
+		Assert.assertEquals(0, network.writes);
+		Assert.assertEquals(expected.size(), out.getBufferedBytes());
+
+		out.flush();
+		Assert.assertEquals(1, network.writes);
+		Assert.assertEquals(1, network.flushes);
+		Assert.assertEquals(0, out.getBufferedBytes());
+		Assert.assertEquals(expected.size(), sentBytes.get());
+		Assert.assertArrayEquals(expected.toByteArray(), network.toByteArray());
+		out.close();
+	}
+
+	/**
+	 * A message too large for the current buffer must not lose the messages
+	 * already waiting to be flushed.
+	 */
+	@Test
+	public void testBufferGrowsWithoutLosingMessages() throws Exception {
+		CountingOutputStream network = new CountingOutputStream();
+		MqttOutputStream out = new MqttOutputStream(newState(new AtomicInteger()), network, "client");
+
+		MqttWireMessage small = newPublish(16);
+		MqttWireMessage large = newPublish(100000);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (MqttWireMessage message : new MqttWireMessage[] { small, large, small }) {
+			out.write(message);
+			expected.write(message.getHeader());
+			expected.write(message.getPayload());
+		}
+		out.flush();
+		Assert.assertArrayEquals(expected.toByteArray(), network.toByteArray());
+
+		// The buffer can be used again after a large batch has been released
+		network.reset();
+		out.write(small);
+		out.flush();
+		Assert.assertEquals(small.encodedLength(), network.size());
+		out.close();
+	}
+
+	private static MqttPublish newPublish(int payloadLength) {
+		MqttMessage message = new MqttMessage(new byte[payloadLength]);
+		message.setQos(1);
+		MqttPublish publish = new MqttPublish("test/topic", message, new MqttProperties());
+		publish.setMessageId(1);
+		return publish;
+	}
+
+	private static MqttState newState(final AtomicInteger sentBytes) {
+		return (MqttState) Proxy.newProxyInstance(MqttState.class.getClassLoader(), new Class<?>[] { MqttState.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("notifySentBytes")) {
+							sentBytes.addAndGet((Integer) args[0]);
+						}
+						return null;
+					}
+				});
+	}
+
+	private static class CountingOutputStream extends ByteArrayOutputStream {
+		int writes = 0;
+		int flushes = 0;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			flushes++;
+		}
+	}
+}
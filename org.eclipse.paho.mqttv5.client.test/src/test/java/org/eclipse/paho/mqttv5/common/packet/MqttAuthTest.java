@@ -18,6 +18,7 @@ package org.eclipse.paho.mqttv5.common.packet;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.eclipse.paho.mqttv5.common.MqttException;
@@ -67,6 +68,25 @@ public class MqttAuthTest {
 
 	}
 	
+	@Test
+	public void testFixedHeaderFlagsAreReserved() throws MqttException, IOException {
+		MqttAuth mqttAuthPacket = generateMqttAuthPacket();
+		byte[] header = mqttAuthPacket.getHeader();
+		byte[] payload = mqttAuthPacket.getPayload();
+
+		// Packet type 15 in the high nibble, the reserved flags all 0 (MQTTv5 - 2.1.3)
+		Assert.assertEquals((byte) 0xF0, header[0]);
+
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		outputStream.write(header);
+		outputStream.write(payload);
+		MqttPacketDecoder decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+		MqttAuth decodedAuthPacket = (MqttAuth) decoder.decode(ByteBuffer.wrap(outputStream.toByteArray()));
+		Assert.assertNotNull(decodedAuthPacket);
+		Assert.assertEquals(returnCode, decodedAuthPacket.getReturnCode());
+		Assert.assertEquals(authMethod, decodedAuthPacket.getProperties().getAuthenticationMethod());
+	}
+	
 	public MqttAuth generateMqttAuthPacket() throws MqttException{
 		
 		
@@ -0,0 +1,146 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MqttPacketDecoderTest {
+
+	private static final String topic = "testTopic";
+	private static final String payloadMessage = "Hello World";
+	private static final String responseTopic = "replyTopic";
+	private static final String userKey = "userKey";
+	private static final String userValue = "userValue";
+	private static final int messageId = 25;
+
+	@Test
+	public void testDecodeWholePacketInPlace() throws MqttException, IOException {
+		MqttPacketDecoder decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+		ByteBuffer buffer = ByteBuffer.wrap(encode(generateMqttPublishPacket(1)));
+
+		MqttPublish decoded = (MqttPublish) decoder.decode(buffer);
+		assertPublish(decoded, 1);
+		Assert.assertFalse(buffer.hasRemaining());
+		Assert.assertFalse(decoder.isDecoding());
+	}
+
+	@Test
+	public void testDecodeOneByteAtATime() throws MqttException, IOException {
+		MqttPacketDecoder decoder = new MqttPacketDecoder(new SizeClassBufferPool(4096, 2));
+		byte[] packet = encode(generateMqttPublishPacket(2));
+
+		MqttWireMessage decoded = null;
+		for (int i = 0; i < packet.length; i++) {
+			Assert.assertNull(decoded);
+			decoded = decoder.decode(ByteBuffer.wrap(packet, i, 1));
+			Assert.assertEquals(i < packet.length - 1, decoder.isDecoding());
+		}
+		assertPublish((MqttPublish) decoded, 2);
+	}
+
+	@Test
+	public void testDecodeSeveralPacketsFromOneBuffer() throws MqttException, IOException {
+		MqttPacketDecoder decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(encode(generateMqttPublishPacket(0)));
+		out.write(encode(new MqttPingResp()));
+		out.write(encode(new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, messageId, new MqttProperties())));
+		byte[] bytes = out.toByteArray();
+
+		// Split the stream part way through the second packet's fixed header
+		int split = encode(generateMqttPublishPacket(0)).length + 1;
+		ByteBuffer first = ByteBuffer.wrap(bytes, 0, split);
+		ByteBuffer second = ByteBuffer.wrap(bytes, split, bytes.length - split);
+
+		assertPublish((MqttPublish) decoder.decode(first), 0);
+		Assert.assertNull(decoder.decode(first));
+		Assert.assertTrue(decoder.isDecoding());
+		Assert.assertTrue(decoder.decode(second) instanceof MqttPingResp);
+		MqttPubAck ack = (MqttPubAck) decoder.decode(second);
+		Assert.assertEquals(messageId, ack.getMessageId());
+		Assert.assertNull(decoder.decode(second));
+	}
+
+	@Test
+	public void testInvalidPacketType() throws MqttException {
+		MqttPacketDecoder decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+		try {
+			decoder.decode(ByteBuffer.wrap(new byte[] { 0x00, 0x00 }));
+			Assert.fail("Expected an exception for a reserved packet type");
+		} catch (MqttException e) {
+			Assert.assertEquals(MqttException.REASON_CODE_MALFORMED_PACKET, e.getReasonCode());
+		}
+		Assert.assertFalse(decoder.isDecoding());
+	}
+
+	@Test
+	public void testRemainingLengthTooLong() {
+		MqttPacketDecoder decoder = new MqttPacketDecoder(MqttBufferPool.UNPOOLED);
+		try {
+			decoder.decode(ByteBuffer.wrap(new byte[] { 0x30, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }));
+			Assert.fail("Expected an exception for a five byte remaining length");
+		} catch (MqttException e) {
+			Assert.assertEquals(MqttException.REASON_CODE_MALFORMED_PACKET, e.getReasonCode());
+		}
+	}
+
+	@Test
+	public void testBufferPoolReuse() {
+		SizeClassBufferPool pool = new SizeClassBufferPool(4096, 1);
+		ByteBuffer buffer = pool.acquire(300);
+		Assert.assertEquals(512, buffer.capacity());
+		pool.release(buffer);
+		Assert.assertSame(buffer, pool.acquire(400));
+		Assert.assertNotSame(buffer, pool.acquire(400));
+		Assert.assertEquals(8192, pool.acquire(8192).capacity());
+	}
+
+	private static byte[] encode(MqttWireMessage message) throws MqttException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(message.getHeader());
+		out.write(message.getPayload());
+		return out.toByteArray();
+	}
+
+	private static void assertPublish(MqttPublish decoded, int qos) throws MqttException {
+		Assert.assertNotNull(decoded);
+		Assert.assertEquals(topic, decoded.getTopicName());
+		Assert.assertEquals(qos, decoded.getQoS());
+		Assert.assertArrayEquals(payloadMessage.getBytes(), decoded.getPayload());
+		Assert.assertEquals(responseTopic, decoded.getProperties().getResponseTopic());
+		Assert.assertEquals(new UserProperty(userKey, userValue), decoded.getProperties().getUserProperties().get(0));
+		if (qos > 0) {
+			Assert.assertEquals(messageId, decoded.getMessageId());
+		}
+	}
+
+	private static MqttPublish generateMqttPublishPacket(int qos) {
+		MqttProperties properties = new MqttProperties();
+		MqttMessage message = new MqttMessage(payloadMessage.getBytes());
+		message.setQos(qos);
+		properties.setResponseTopic(responseTopic);
+		List<UserProperty> userDefinedProperties = new ArrayList<UserProperty>();
+		userDefinedProperties.add(new UserProperty(userKey, userValue));
+		properties.setUserProperties(userDefinedProperties);
+		MqttPublish mqttPublish = new MqttPublish(topic, message, properties);
+		mqttPublish.setMessageId(messageId);
+		return mqttPublish;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that {@link MqttWireMessage#writeTo(ByteBuffer)} produces exactly the
+ * bytes of {@link MqttWireMessage#getHeader()} followed by
+ * {@link MqttWireMessage#getPayload()}.
+ */
+public class MqttPacketEncoderTest {
+
+	private static final String topic = "testTopic/é中😀";
+	private static final int messageId = 0x8123;
+
+	@Test
+	public void testEncodePublish() throws MqttException, IOException {
+		for (int qos = 0; qos <= 2; qos++) {
+			assertEncoding(generateMqttPublishPacket(topic, qos, new byte[] { 1, 2, 3 }, true));
+			assertEncoding(generateMqttPublishPacket(topic, qos, new byte[0], false));
+		}
+		// Large enough for a three byte remaining length
+		assertEncoding(generateMqttPublishPacket(topic, 1, new byte[20000], true));
+	}
+
+	@Test
+	public void testEncodePublishWithTopicAlias() throws MqttException, IOException {
+		MqttPublish publish = generateMqttPublishPacket(null, 1, new byte[] { 4 }, false);
+		publish.getProperties().setTopicAlias(3);
+		assertEncoding(publish);
+	}
+
+	@Test
+	public void testEncodeAcks() throws MqttException, IOException {
+		MqttProperties reason = new MqttProperties();
+		reason.setReasonString("Reason String");
+		int[] codes = { MqttReturnCode.RETURN_CODE_SUCCESS, MqttReturnCode.RETURN_CODE_UNSPECIFIED_ERROR };
+		for (int code : codes) {
+			assertEncoding(new MqttPubAck(code, messageId, new MqttProperties()));
+			assertEncoding(new MqttPubAck(code, messageId, reason));
+			assertEncoding(new MqttPubRec(code, messageId, new MqttProperties()));
+			assertEncoding(new MqttPubRec(code, messageId, reason));
+		}
+		int[] releaseCodes = { MqttReturnCode.RETURN_CODE_SUCCESS, MqttReturnCode.RETURN_CODE_PACKET_ID_NOT_FOUND };
+		for (int code : releaseCodes) {
+			MqttPubRel pubRel = new MqttPubRel(code, messageId, new MqttProperties());
+			pubRel.setDuplicate(true);
+			assertEncoding(pubRel);
+			assertEncoding(new MqttPubRel(code, messageId, reason));
+			assertEncoding(new MqttPubComp(code, messageId, new MqttProperties()));
+			assertEncoding(new MqttPubComp(code, messageId, reason));
+		}
+	}
+
+	@Test
+	public void testEncodeOtherPackets() throws MqttException, IOException {
+		assertEncoding(new MqttPingReq());
+		assertEncoding(new MqttDisconnect(MqttReturnCode.RETURN_CODE_SUCCESS, new MqttProperties()));
+	}
+
+	@Test
+	public void testEncodePropertiesLength() throws MqttException {
+		MqttProperties properties = new MqttProperties();
+		properties.setValidProperties(new Byte[] { MqttProperties.USER_DEFINED_PAIR_IDENTIFIER });
+		Assert.assertEquals(1, properties.encodedLength());
+		properties.setUserProperties(Arrays.asList(new UserProperty("key", new String(new char[200]).replace('\0', 'x'))));
+		byte[] encoded = properties.encodeProperties();
+		Assert.assertEquals(encoded.length, properties.encodedLength());
+		ByteBuffer buffer = ByteBuffer.allocate(encoded.length);
+		properties.writeTo(buffer);
+		Assert.assertArrayEquals(encoded, buffer.array());
+	}
+
+	private static void assertEncoding(MqttWireMessage message) throws MqttException, IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(message.getHeader());
+		out.write(message.getPayload());
+		byte[] expected = out.toByteArray();
+
+		Assert.assertEquals(expected.length, message.encodedLength());
+		// Write at an offset to make sure nothing assumes the buffer starts at zero
+		ByteBuffer buffer = ByteBuffer.allocate(expected.length + 8);
+		buffer.position(3);
+		message.writeTo(buffer);
+		Assert.assertEquals(3 + expected.length, buffer.position());
+		Assert.assertArrayEquals(expected, Arrays.copyOfRange(buffer.array(), 3, 3 + expected.length));
+	}
+
+	private static MqttPublish generateMqttPublishPacket(String topicName, int qos, byte[] payload,
+			boolean withProperties) {
+		MqttProperties properties = new MqttProperties();
+		if (withProperties) {
+			properties.setResponseTopic("replyTopic");
+			properties.setCorrelationData(new byte[] { 9, 8, 7 });
+			properties.setMessageExpiryInterval(3600L);
+			List<UserProperty> userDefinedProperties = new ArrayList<UserProperty>();
+			userDefinedProperties.add(new UserProperty("userKey", "userValue"));
+			properties.setUserProperties(userDefinedProperties);
+		}
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		message.setRetained(qos == 2);
+		MqttPublish mqttPublish = new MqttPublish(topicName, message, properties);
+		mqttPublish.setMessageId(messageId);
+		return mqttPublish;
+	}
+}
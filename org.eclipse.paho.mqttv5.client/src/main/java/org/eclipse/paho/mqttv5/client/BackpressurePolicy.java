@@ -0,0 +1,35 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+/**
+ * What the client does with an arriving message when the queue of messages
+ * waiting for the application's callbacks is full.
+ *
+ * @see MqttConnectionOptions#setCallbackBackpressurePolicy(BackpressurePolicy)
+ */
+public enum BackpressurePolicy {
+
+	/**
+	 * Stop reading from the network until there is space in the queue. No
+	 * message is lost, but a slow callback delays every message on the
+	 * connection behind it, and eventually the server.
+	 */
+	BLOCK,
+
+	/**
+	 * Discard QoS 0 messages which arrive while the queue is full, and block
+	 * for QoS 1 and 2 messages as {@link #BLOCK} does. QoS 0 messages carry no
+	 * delivery guarantee, so this keeps the connection moving under load
+	 * without losing any message that the server expects to be acknowledged.
+	 */
+	DROP_QOS0
+}
@@ -0,0 +1,35 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+/**
+ * The demand of an {@link IMqttMessageSubscriber}, through which it asks for
+ * messages or stops them.
+ */
+public interface IMqttMessageDemand {
+
+	/**
+	 * Adds to the number of messages the subscriber is ready for. Messages
+	 * beyond this are held by the client, unacknowledged, so that the server
+	 * stops sending once the client's receive maximum is reached.
+	 *
+	 * @param n
+	 *            the number of messages, more than 0. Long.MAX_VALUE asks for
+	 *            every message.
+	 */
+	public void request(long n);
+
+	/**
+	 * Unsubscribes and stops the delivery of messages. Messages which are held
+	 * are acknowledged and discarded.
+	 */
+	public void cancel();
+}
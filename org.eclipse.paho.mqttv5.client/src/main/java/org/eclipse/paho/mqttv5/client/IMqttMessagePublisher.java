@@ -0,0 +1,33 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+/**
+ * A subscription whose messages are delivered as the subscriber asks for
+ * them, returned by
+ * {@link MqttAsyncClient#subscribePublisher(org.eclipse.paho.mqttv5.common.MqttSubscription, int)}.
+ * <p>
+ * This follows the publisher of <code>java.util.concurrent.Flow</code>, so
+ * that it can be adapted to it, or to Reactive Streams, in a few lines.
+ * </p>
+ */
+public interface IMqttMessagePublisher {
+
+	/**
+	 * Subscribes to the server and starts delivering messages to the
+	 * subscriber as it requests them. A publisher has at most one subscriber;
+	 * any other is sent {@link IMqttMessageSubscriber#onError(Throwable)}.
+	 *
+	 * @param subscriber
+	 *            the subscriber
+	 */
+	public void subscribe(IMqttMessageSubscriber subscriber);
+}
@@ -0,0 +1,54 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+
+/**
+ * Receives the messages of an {@link IMqttMessagePublisher}, as many as it
+ * has requested. The methods are never called concurrently.
+ */
+public interface IMqttMessageSubscriber {
+
+	/**
+	 * Called before any other method, with the demand through which messages
+	 * are requested. No messages are delivered until some are requested.
+	 *
+	 * @param demand
+	 *            the demand of this subscriber
+	 */
+	public void onSubscribe(IMqttMessageDemand demand);
+
+	/**
+	 * Called with the next message. A QoS 1 or 2 message is acknowledged when
+	 * this method returns, unless manual acknowledgements are turned on.
+	 *
+	 * @param topic
+	 *            name of the topic on the message was published to
+	 * @param message
+	 *            the actual message.
+	 */
+	public void onNext(String topic, MqttMessage message);
+
+	/**
+	 * Called if the subscription failed, after which no more messages are
+	 * delivered.
+	 *
+	 * @param exception
+	 *            why the subscription failed
+	 */
+	public void onError(Throwable exception);
+
+	/**
+	 * Called when no more messages will be delivered.
+	 */
+	public void onComplete();
+}
@@ -20,15 +20,21 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.util.Hashtable;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 
 import javax.net.SocketFactory;
+import org.eclipse.paho.mqttv5.client.internal.BatchListener;
 import org.eclipse.paho.mqttv5.client.internal.ClientComms;
 import org.eclipse.paho.mqttv5.client.internal.ConnectActionListener;
 import org.eclipse.paho.mqttv5.client.internal.DisconnectedMessageBuffer;
+import org.eclipse.paho.mqttv5.client.internal.HashedWheelTimer;
+import org.eclipse.paho.mqttv5.client.internal.MessagePublisher;
 import org.eclipse.paho.mqttv5.client.internal.MqttConnectionState;
 import org.eclipse.paho.mqttv5.client.internal.MqttSessionState;
 import org.eclipse.paho.mqttv5.client.internal.NetworkModule;
@@ -229,12 +235,13 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 	// private String clientId;
 	private String serverURI;
 	protected ClientComms comms;
+	private MqttClientMetrics metrics;
 	private Hashtable<String, MqttTopic> topics;
 	private MqttClientPersistence persistence;
 	private MqttCallback mqttCallback;
 	private MqttConnectionOptions connOpts;
 	private Object userContext;
-	private Timer reconnectTimer; // Automatic reconnect timer
+	private HashedWheelTimer.Timeout reconnectTimeout; // Automatic reconnect timer
 	private static int reconnectDelay = 1000; // Reconnect delay, starts at 1
 												// second
 	private boolean reconnecting = false;
@@ -248,6 +255,8 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 	
 	private ScheduledExecutorService executorService;
 	private MqttPingSender pingSender;
+	// Where the stages returned by the async variants are completed
+	private volatile Executor completionExecutor = null;
 
 	/**
 	 * Create an MqttAsyncClient that is used to communicate with an MQTT server.
@@ -584,7 +593,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 
 		this.pingSender = pingSender;
 		if (this.pingSender == null) {
-			this.pingSender = new TimerPingSender(this.executorService);
+			this.pingSender = new HashedWheelPingSender(this.executorService);
 		}
 
 		// @TRACE 101=<init> ClientID={0} ServerURI={1} PersistenceType={2}
@@ -596,6 +605,16 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		this.persistence.close();
 		this.topics = new Hashtable<String, MqttTopic>();
 
+		this.metrics = new MqttClientMetrics(comms);
+		if (Boolean.getBoolean(MqttClientMetrics.JMX_PROPERTY)) {
+			try {
+				metrics.registerMBean();
+			} catch (MqttException e) {
+				// @TRACE 120=Could not register the metrics MXBean
+				log.fine(CLASS_NAME, methodName, "120", null, e);
+			}
+		}
+
 	}
 
 	/**
@@ -1539,6 +1558,420 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		return token;
 	}
 
+	/**
+	 * Publishes a batch of messages, at less cost than publishing each one in
+	 * turn.
+	 * <p>
+	 * The message IDs of the whole batch are allocated in one step, the tokens
+	 * are saved together and the messages are queued as one run, which the
+	 * sender writes to the network with as few flushes as it can. If the
+	 * client is not connected, each message is handled as by
+	 * {@link #publish(String, MqttMessage, Object, MqttActionListener)}.
+	 * </p>
+	 * <p>
+	 * The batch is refused unless all of it fits within the server's receive
+	 * maximum, alongside the messages already in flight and those of other
+	 * batches still waiting to be sent. If the client is disconnected and has
+	 * an offline buffer, either the whole batch is buffered or none of it.
+	 * </p>
+	 *
+	 * @param topics
+	 *            the topic of each message
+	 * @param messages
+	 *            the messages, one for each topic
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use
+	 *            null if not required.
+	 * @param callback
+	 *            optional listener that will be notified when every message
+	 *            in the batch has completed
+	 * @return a token which completes when every message has completed, and
+	 *         holds the token of each message
+	 * @throws MqttException
+	 *             for problems encountered while publishing the batch
+	 * @throws MqttPersistenceException
+	 *             when a problem occurs storing a message
+	 * @throws IllegalArgumentException
+	 *             if the number of topics and messages differ
+	 */
+	public MqttBatchToken publishBatch(String[] topics, MqttMessage[] messages, Object userContext,
+			MqttActionListener callback) throws MqttException, MqttPersistenceException {
+		final String methodName = "publishBatch";
+		// @TRACE 121=> count={0} userContext={1} callback={2}
+		log.fine(CLASS_NAME, methodName, "121", new Object[] { Integer.valueOf(messages.length), userContext, callback });
+
+		if (topics.length != messages.length) {
+			throw new IllegalArgumentException();
+		}
+		for (String topic : topics) {
+			// Checks if a topic is valid when publishing a message.
+			MqttTopicValidator.validate(topic, false/* wildcards NOT allowed */, true);
+		}
+
+		MqttToken[] tokens = new MqttToken[messages.length];
+		MqttPublish[] pubMsgs = new MqttPublish[messages.length];
+		MqttBatchToken batchToken = new MqttBatchToken(getClientId(), tokens);
+		batchToken.setActionCallback(callback);
+		batchToken.setUserContext(userContext);
+		BatchListener listener = new BatchListener(batchToken, messages.length);
+		for (int i = 0; i < messages.length; i++) {
+			MqttToken token = new MqttToken(getClientId());
+			token.internalTok.setDeliveryToken(true);
+			token.setActionCallback(listener);
+			token.setMessage(messages[i]);
+			token.internalTok.setTopics(new String[] { topics[i] });
+			pubMsgs[i] = new MqttPublish(topics[i], messages[i], messages[i].getProperties());
+			token.setRequestMessage(pubMsgs[i]);
+			tokens[i] = token;
+		}
+		if (messages.length > 0) {
+			comms.sendNoWait(pubMsgs, tokens);
+		}
+
+		// @TRACE 122=<
+		log.fine(CLASS_NAME, methodName, "122");
+
+		return batchToken;
+	}
+
+	/**
+	 * Publishes a batch of messages.
+	 *
+	 * @param topics
+	 *            the topic of each message
+	 * @param messages
+	 *            the messages, one for each topic
+	 * @return a token which completes when every message has completed
+	 * @throws MqttException
+	 *             for problems encountered while publishing the batch
+	 * @throws MqttPersistenceException
+	 *             when a problem occurs storing a message
+	 * @see #publishBatch(String[], MqttMessage[], Object, MqttActionListener)
+	 */
+	public MqttBatchToken publishBatch(String[] topics, MqttMessage[] messages)
+			throws MqttException, MqttPersistenceException {
+		return publishBatch(topics, messages, null, null);
+	}
+
+	/**
+	 * Returns a publisher of the messages of a subscription, which subscribes
+	 * when its subscriber subscribes, and delivers messages only as the
+	 * subscriber requests them.
+	 * <p>
+	 * Messages beyond the subscriber's demand are held by the client, and so
+	 * is the acknowledgement of each QoS 1 or 2 message until the subscriber
+	 * has taken it. The server therefore stops sending QoS 1 and 2 messages
+	 * once the client's receive maximum is used up, and the callback thread
+	 * is never blocked by a slow subscriber. Up to <code>bufferSize</code>
+	 * QoS 0 messages are held, and any more are discarded.
+	 * </p>
+	 * <p>
+	 * If manual acknowledgements are turned on, the application acknowledges
+	 * the messages itself, as for any other subscription.
+	 * </p>
+	 *
+	 * @param subscription
+	 *            the subscription
+	 * @param bufferSize
+	 *            the number of QoS 0 messages to hold beyond the demand
+	 * @return the publisher, which allows one subscriber
+	 * @see #setManualAcks(boolean)
+	 */
+	public IMqttMessagePublisher subscribePublisher(MqttSubscription subscription, int bufferSize) {
+		return new MessagePublisher(this, comms, subscription, bufferSize);
+	}
+
+	/**
+	 * Sets the executor which completes the stages returned by the async
+	 * variants, such as {@link #publishAsync(String, MqttMessage)}.
+	 * <p>
+	 * By default a stage is completed straight from the thread which completes
+	 * its token, which for most actions is the thread reading from the
+	 * network. Dependent actions which are not themselves async then run on
+	 * that thread, so they must not block. An executor takes them off it. If
+	 * the executor rejects the completion, for example because it has been
+	 * shut down, the stage is completed directly instead. Each async variant
+	 * also takes an executor for a single call.
+	 * </p>
+	 *
+	 * @param executor
+	 *            the executor, or null to complete stages directly
+	 */
+	public void setCompletionExecutor(Executor executor) {
+		this.completionExecutor = executor;
+	}
+
+	/**
+	 * @return the executor which completes the stages returned by the async
+	 *         variants, or null if they are completed directly
+	 */
+	public Executor getCompletionExecutor() {
+		return completionExecutor;
+	}
+
+	/**
+	 * Connects to an MQTT server using the specified options.
+	 *
+	 * @param options
+	 *            a set of connection parameters that override the defaults.
+	 * @return a stage which completes with the token when the connect completes,
+	 *         or exceptionally with an {@link MqttException} if it fails
+	 * @see #connect(MqttConnectionOptions)
+	 * @see #setCompletionExecutor(Executor)
+	 */
+	public CompletionStage<IMqttToken> connectAsync(MqttConnectionOptions options) {
+		return connectAsync(options, completionExecutor);
+	}
+
+	/**
+	 * Connects to an MQTT server using the specified options, with the stage
+	 * completed by the given executor.
+	 *
+	 * @param options
+	 *            a set of connection parameters that override the defaults.
+	 * @param executor
+	 *            completes the stage, or null to complete it directly
+	 * @return a stage which completes with the token when the connect completes,
+	 *         or exceptionally with an {@link MqttException} if it fails
+	 * @see #connectAsync(MqttConnectionOptions)
+	 */
+	public CompletionStage<IMqttToken> connectAsync(MqttConnectionOptions options, Executor executor) {
+		try {
+			return toStage(connect(options), executor);
+		} catch (MqttException e) {
+			return failedStage(e);
+		}
+	}
+
+	/**
+	 * Disconnects from the server.
+	 *
+	 * @return a stage which completes with the token when the disconnect
+	 *         completes, or exceptionally with an {@link MqttException} if it
+	 *         fails
+	 * @see #disconnect()
+	 * @see #setCompletionExecutor(Executor)
+	 */
+	public CompletionStage<IMqttToken> disconnectAsync() {
+		return disconnectAsync(completionExecutor);
+	}
+
+	/**
+	 * Disconnects from the server, with the stage completed by the given
+	 * executor.
+	 *
+	 * @param executor
+	 *            completes the stage, or null to complete it directly
+	 * @return a stage which completes with the token when the disconnect
+	 *         completes, or exceptionally with an {@link MqttException} if it
+	 *         fails
+	 * @see #disconnectAsync()
+	 */
+	public CompletionStage<IMqttToken> disconnectAsync(Executor executor) {
+		try {
+			return toStage(disconnect(), executor);
+		} catch (MqttException e) {
+			return failedStage(e);
+		}
+	}
+
+	/**
+	 * Publishes a message to a topic on the server.
+	 *
+	 * @param topic
+	 *            to deliver the message to, for example "finance/stock/ibm".
+	 * @param message
+	 *            to deliver to the server
+	 * @return a stage which completes with the token when the message has been
+	 *         delivered to the QoS requested, or exceptionally with an
+	 *         {@link MqttException} if it fails
+	 * @see #publish(String, MqttMessage)
+	 * @see #setCompletionExecutor(Executor)
+	 */
+	public CompletionStage<IMqttToken> publishAsync(String topic, MqttMessage message) {
+		return publishAsync(topic, message, completionExecutor);
+	}
+
+	/**
+	 * Publishes a message to a topic on the server, with the stage completed by
+	 * the given executor.
+	 *
+	 * @param topic
+	 *            to deliver the message to, for example "finance/stock/ibm".
+	 * @param message
+	 *            to deliver to the server
+	 * @param executor
+	 *            completes the stage, or null to complete it directly
+	 * @return a stage which completes with the token when the message has been
+	 *         delivered to the QoS requested, or exceptionally with an
+	 *         {@link MqttException} if it fails
+	 * @see #publishAsync(String, MqttMessage)
+	 */
+	public CompletionStage<IMqttToken> publishAsync(String topic, MqttMessage message, Executor executor) {
+		try {
+			return toStage(publish(topic, message), executor);
+		} catch (MqttException e) {
+			return failedStage(e);
+		} catch (IllegalArgumentException e) {
+			return failedStage(e);
+		}
+	}
+
+	/**
+	 * Subscribes to a topic, which may include wildcards.
+	 *
+	 * @param topicFilter
+	 *            the topic to subscribe to, which can include wildcards.
+	 * @param qos
+	 *            the maximum quality of service at which to subscribe.
+	 * @return a stage which completes with the token when the server has
+	 *         acknowledged the subscription, or exceptionally with an
+	 *         {@link MqttException} if it fails. A subscription the server
+	 *         refused is shown by the reason codes of the token.
+	 * @see #subscribe(String, int)
+	 * @see #setCompletionExecutor(Executor)
+	 */
+	public CompletionStage<IMqttToken> subscribeAsync(String topicFilter, int qos) {
+		return subscribeAsync(topicFilter, qos, completionExecutor);
+	}
+
+	/**
+	 * Subscribes to a topic, which may include wildcards, with the stage
+	 * completed by the given executor.
+	 *
+	 * @param topicFilter
+	 *            the topic to subscribe to, which can include wildcards.
+	 * @param qos
+	 *            the maximum quality of service at which to subscribe.
+	 * @param executor
+	 *            completes the stage, or null to complete it directly
+	 * @return a stage which completes with the token when the server has
+	 *         acknowledged the subscription, or exceptionally with an
+	 *         {@link MqttException} if it fails
+	 * @see #subscribeAsync(String, int)
+	 */
+	public CompletionStage<IMqttToken> subscribeAsync(String topicFilter, int qos, Executor executor) {
+		return subscribeAsync(new MqttSubscription[] { new MqttSubscription(topicFilter, qos) }, executor);
+	}
+
+	/**
+	 * Subscribes to multiple topics, each of which may include wildcards.
+	 *
+	 * @param subscriptions
+	 *            one or more {@link MqttSubscription}s.
+	 * @return a stage which completes with the token when the server has
+	 *         acknowledged the subscriptions, or exceptionally with an
+	 *         {@link MqttException} if it fails. A subscription the server
+	 *         refused is shown by the reason codes of the token.
+	 * @see #subscribe(MqttSubscription[])
+	 * @see #setCompletionExecutor(Executor)
+	 */
+	public CompletionStage<IMqttToken> subscribeAsync(MqttSubscription[] subscriptions) {
+		return subscribeAsync(subscriptions, completionExecutor);
+	}
+
+	/**
+	 * Subscribes to multiple topics, each of which may include wildcards, with
+	 * the stage completed by the given executor.
+	 *
+	 * @param subscriptions
+	 *            one or more {@link MqttSubscription}s.
+	 * @param executor
+	 *            completes the stage, or null to complete it directly
+	 * @return a stage which completes with the token when the server has
+	 *         acknowledged the subscriptions, or exceptionally with an
+	 *         {@link MqttException} if it fails
+	 * @see #subscribeAsync(MqttSubscription[])
+	 */
+	public CompletionStage<IMqttToken> subscribeAsync(MqttSubscription[] subscriptions, Executor executor) {
+		try {
+			return toStage(subscribe(subscriptions), executor);
+		} catch (MqttException e) {
+			return failedStage(e);
+		} catch (IllegalArgumentException e) {
+			return failedStage(e);
+		}
+	}
+
+	/**
+	 * Requests the server to unsubscribe the client from one or more topics.
+	 *
+	 * @param topicFilters
+	 *            one or more topics to unsubscribe from.
+	 * @return a stage which completes with the token when the server has
+	 *         acknowledged the unsubscribe, or exceptionally with an
+	 *         {@link MqttException} if it fails
+	 * @see #unsubscribe(String[])
+	 * @see #setCompletionExecutor(Executor)
+	 */
+	public CompletionStage<IMqttToken> unsubscribeAsync(String[] topicFilters) {
+		return unsubscribeAsync(topicFilters, completionExecutor);
+	}
+
+	/**
+	 * Requests the server to unsubscribe the client from one or more topics,
+	 * with the stage completed by the given executor.
+	 *
+	 * @param topicFilters
+	 *            one or more topics to unsubscribe from.
+	 * @param executor
+	 *            completes the stage, or null to complete it directly
+	 * @return a stage which completes with the token when the server has
+	 *         acknowledged the unsubscribe, or exceptionally with an
+	 *         {@link MqttException} if it fails
+	 * @see #unsubscribeAsync(String[])
+	 */
+	public CompletionStage<IMqttToken> unsubscribeAsync(String[] topicFilters, Executor executor) {
+		try {
+			return toStage(unsubscribe(topicFilters), executor);
+		} catch (MqttException e) {
+			return failedStage(e);
+		} catch (IllegalArgumentException e) {
+			return failedStage(e);
+		}
+	}
+
+	/**
+	 * Returns a stage which is completed when the token completes, by the
+	 * executor if there is one, or else by the thread which completes the
+	 * token. This does not use the callback thread.
+	 */
+	private static CompletionStage<IMqttToken> toStage(IMqttToken token, final Executor executor) {
+		final CompletableFuture<IMqttToken> future = new CompletableFuture<IMqttToken>();
+		((MqttToken) token).internalTok.setCompletionListener(token, new MqttActionListener() {
+
+			@Override
+			public void onSuccess(IMqttToken asyncActionToken) {
+				complete(executor, () -> future.complete(asyncActionToken));
+			}
+
+			@Override
+			public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+				complete(executor, () -> future.completeExceptionally(exception));
+			}
+		});
+		return future;
+	}
+
+	private static void complete(Executor executor, Runnable completion) {
+		if (executor != null) {
+			try {
+				executor.execute(completion);
+				return;
+			} catch (RejectedExecutionException e) {
+				// The executor has been shut down, so complete the stage here
+				// rather than leave it incomplete
+			}
+		}
+		completion.run();
+	}
+
+	private static CompletionStage<IMqttToken> failedStage(Throwable exception) {
+		CompletableFuture<IMqttToken> future = new CompletableFuture<IMqttToken>();
+		future.completeExceptionally(exception);
+		return future;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1583,6 +2016,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		final String methodName = "attemptReconnect";
 		// @Trace 500=Attempting to reconnect client: {0}
 		log.fine(CLASS_NAME, methodName, "500", new Object[] { this.mqttSession.getClientId() });
+		comms.getMetrics().reconnectAttempted();
 		try {
 			connect(this.connOpts, this.userContext, new MqttReconnectActionListener(methodName));
 		} catch (MqttSecurityException ex) {
@@ -1599,8 +2033,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		// @Trace 503=Start reconnect timer for client: {0}, delay: {1}
 		log.fine(CLASS_NAME, methodName, "503",
 				new Object[] { this.mqttSession.getClientId(), Long.valueOf(reconnectDelay) });
-		reconnectTimer = new Timer("MQTT Reconnect: " + this.mqttSession.getClientId());
-		reconnectTimer.schedule(new ReconnectTask(), reconnectDelay);
+		reconnectTimeout = HashedWheelTimer.getDefault().schedule(new ReconnectTask(), reconnectDelay);
 	}
 
 	private void stopReconnectCycle() {
@@ -1609,22 +2042,34 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		log.fine(CLASS_NAME, methodName, "504", new Object[] { this.mqttSession.getClientId() });
 		synchronized (clientLock) {
 			if (this.connOpts.isAutomaticReconnect()) {
-				if (reconnectTimer != null) {
-					reconnectTimer.cancel();
-					reconnectTimer = null;
+				if (reconnectTimeout != null) {
+					reconnectTimeout.cancel();
+					reconnectTimeout = null;
 				}
 				reconnectDelay = 1000; // Reset Delay Timer
 			}
 		}
 	}
 
-	private class ReconnectTask extends TimerTask {
+	private class ReconnectTask implements Runnable {
 		private static final String methodName = "ReconnectTask.run";
 
 		public void run() {
-			// @Trace 506=Triggering Automatic Reconnect attempt.
-			log.fine(CLASS_NAME, methodName, "506");
-			attemptReconnect();
+			// The attempt may block, so it is not made on the timer's thread,
+			// which is shared by every client
+			ExecutorService executor = executorService != null ? executorService
+					: HashedWheelTimer.getDefaultExecutor();
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						// @Trace 506=Triggering Automatic Reconnect attempt.
+						log.fine(CLASS_NAME, methodName, "506");
+						attemptReconnect();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// The client's executor has been shut down
+			}
 		}
 	}
 
@@ -1696,8 +2141,8 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 					new Object[] { MqttAsyncClient.this.mqttSession.getClientId(), String.valueOf(reconnectDelay) });
 			synchronized (clientLock) {
 				if (MqttAsyncClient.this.connOpts.isAutomaticReconnect()) {
-					if (reconnectTimer != null) {
-						reconnectTimer.schedule(new ReconnectTask(), delay);
+					if (reconnectTimeout != null) {
+						reconnectTimeout = HashedWheelTimer.getDefault().schedule(new ReconnectTask(), delay);
 					} else {
 						// The previous reconnect timer was cancelled
 						reconnectDelay = delay;
@@ -1785,6 +2230,7 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		// @TRACE 113=<
 		log.fine(CLASS_NAME, methodName, "113");
 		comms.close(force);
+		metrics.unregisterMBean();
 		// @TRACE 114=>
 		log.fine(CLASS_NAME, methodName, "114");
 
@@ -1800,6 +2246,16 @@ public class MqttAsyncClient implements MqttClientInterface, IMqttAsyncClient {
 		return new Debug(this.mqttSession.getClientId(), comms);
 	}
 
+	/**
+	 * Returns the metrics of this client, which are kept for the life of the
+	 * client, across connections.
+	 *
+	 * @return the metrics
+	 */
+	public MqttClientMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public IMqttToken authenticate(int reasonCode, Object userContext, MqttProperties properties) throws MqttException {
 		MqttToken token = new MqttToken(getClientId());
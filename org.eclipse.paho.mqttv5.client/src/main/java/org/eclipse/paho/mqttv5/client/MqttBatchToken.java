@@ -0,0 +1,53 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+/**
+ * The token returned by
+ * {@link MqttAsyncClient#publishBatch(String[], org.eclipse.paho.mqttv5.common.MqttMessage[], Object, MqttActionListener)},
+ * which completes once every message in the batch has completed.
+ * <p>
+ * If any message failed the batch token fails with the first exception seen.
+ * The outcome of each message, and its message ID and reason codes, are on
+ * its own token from {@link #getTokens()}.
+ * </p>
+ */
+public class MqttBatchToken extends MqttToken {
+
+	private final MqttToken[] tokens;
+
+	public MqttBatchToken(String logContext, MqttToken[] tokens) {
+		super(logContext);
+		this.tokens = tokens;
+	}
+
+	/**
+	 * @return the token of each message, in the order the messages were given
+	 */
+	public IMqttToken[] getTokens() {
+		IMqttToken[] result = new IMqttToken[tokens.length];
+		System.arraycopy(tokens, 0, result, 0, tokens.length);
+		return result;
+	}
+
+	/**
+	 * @return the number of messages which have failed so far
+	 */
+	public int getFailedCount() {
+		int failed = 0;
+		for (MqttToken token : tokens) {
+			if (token.getException() != null) {
+				failed++;
+			}
+		}
+		return failed;
+	}
+}
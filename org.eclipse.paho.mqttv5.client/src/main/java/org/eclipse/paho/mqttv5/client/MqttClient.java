@@ -741,4 +741,14 @@ public class MqttClient implements IMqttClient {
 		return (aClient.getDebug());
 	}
 
+	/**
+	 * Returns the metrics of this client.
+	 *
+	 * @return the metrics
+	 * @see MqttAsyncClient#getMetrics()
+	 */
+	public MqttClientMetrics getMetrics() {
+		return aClient.getMetrics();
+	}
+
 }
@@ -0,0 +1,247 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.eclipse.paho.mqttv5.client.internal.ClientComms;
+import org.eclipse.paho.mqttv5.client.internal.ClientMetrics;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+/**
+ * The metrics of a client: messages and bytes sent and received, the depth of
+ * its queues, and the latency of acknowledgements, callbacks and persistence.
+ * <p>
+ * The counters are updated without locking as the client works, and read by
+ * polling the getters, which always return the current values. Counts of
+ * queued packets walk the queues, so are best polled no more than every few
+ * seconds. Rates are found by polling twice and dividing the difference by the
+ * time between.
+ * </p>
+ * <p>
+ * The metrics can also be registered as a JMX MXBean with
+ * {@link #registerMBean()}, or for every client by setting the system property
+ * {@value #JMX_PROPERTY} to true. The bean is unregistered when the client is
+ * closed.
+ * </p>
+ *
+ * @see MqttAsyncClient#getMetrics()
+ */
+public class MqttClientMetrics implements MqttClientMetricsMXBean {
+
+	/**
+	 * The system property which, when true, registers the metrics of each
+	 * client as an MXBean.
+	 */
+	public static final String JMX_PROPERTY = "org.eclipse.paho.mqttv5.client.metrics.jmx";
+	/** The domain of the MXBean names. */
+	public static final String JMX_DOMAIN = "org.eclipse.paho.mqttv5.client";
+
+	private final ClientComms comms;
+	private final ClientMetrics metrics;
+	// An ObjectName, held as an Object so that this class loads without JMX
+	private Object objectName;
+
+	MqttClientMetrics(ClientComms comms) {
+		this.comms = comms;
+		this.metrics = comms.getMetrics();
+	}
+
+	/**
+	 * @param qos
+	 *            the QoS
+	 * @return the number of PUBLISH packets sent at the QoS, including
+	 *         retransmissions
+	 */
+	public long getMessagesSent(int qos) {
+		return metrics.getMessagesSent(qos);
+	}
+
+	/**
+	 * @param qos
+	 *            the QoS
+	 * @return the number of PUBLISH packets received at the QoS
+	 */
+	public long getMessagesReceived(int qos) {
+		return metrics.getMessagesReceived(qos);
+	}
+
+	public long[] getMessagesSent() {
+		return new long[] { getMessagesSent(0), getMessagesSent(1), getMessagesSent(2) };
+	}
+
+	public long[] getMessagesReceived() {
+		return new long[] { getMessagesReceived(0), getMessagesReceived(1), getMessagesReceived(2) };
+	}
+
+	public long getBytesSent() {
+		return metrics.getBytesSent();
+	}
+
+	public long getBytesReceived() {
+		return metrics.getBytesReceived();
+	}
+
+	public int getPendingMessages() {
+		return comms.getPendingMessageCount();
+	}
+
+	public int getPendingFlows() {
+		return comms.getPendingFlowCount();
+	}
+
+	public int getInFlight() {
+		return comms.getInFlightCount();
+	}
+
+	public int getCallbackQueueDepth() {
+		return comms.getCallbackQueueDepth();
+	}
+
+	/**
+	 * @return the time from sending a QoS 1 PUBLISH to receiving its PUBACK
+	 */
+	public LatencyHistogram getPubAckLatency() {
+		return metrics.getPubAckLatency();
+	}
+
+	/**
+	 * @return the time from sending a QoS 2 PUBLISH to receiving its PUBCOMP
+	 */
+	public LatencyHistogram getPubCompLatency() {
+		return metrics.getPubCompLatency();
+	}
+
+	/**
+	 * @return the time arriving messages wait before their callback is called
+	 */
+	public LatencyHistogram getCallbackQueueWait() {
+		return metrics.getCallbackQueueWait();
+	}
+
+	/**
+	 * @return the time taken to put a message into persistence
+	 */
+	public LatencyHistogram getPersistenceLatency() {
+		return metrics.getPersistenceLatency();
+	}
+
+	/**
+	 * @return the number of times the client has connected
+	 */
+	public long getConnects() {
+		return metrics.getConnects();
+	}
+
+	/**
+	 * @return the number of times the connection has been lost
+	 */
+	public long getConnectionsLost() {
+		return metrics.getConnectionsLost();
+	}
+
+	/**
+	 * @return the number of automatic reconnects attempted
+	 */
+	public long getReconnectAttempts() {
+		return metrics.getReconnectAttempts();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent with a Topic Alias in place of
+	 *         the topic
+	 */
+	public long getTopicAliasHits() {
+		return metrics.getTopicAliasHits();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent with the full topic while the
+	 *         server accepted Topic Aliases, including those which set up an
+	 *         alias
+	 */
+	public long getTopicAliasMisses() {
+		return metrics.getTopicAliasMisses();
+	}
+
+	/**
+	 * @return the number of times a Topic Alias was moved to another topic by
+	 *         the {@link TopicAliasPolicy}
+	 */
+	public long getTopicAliasReassignments() {
+		return metrics.getTopicAliasReassignments();
+	}
+
+	/**
+	 * @return the fraction of PUBLISH packets sent with a Topic Alias in place
+	 *         of the topic, while the server accepted Topic Aliases, or 0 if
+	 *         there were none
+	 */
+	public double getTopicAliasHitRate() {
+		long hits = getTopicAliasHits();
+		long total = hits + getTopicAliasMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, named by the
+	 * client ID and server URI in the {@value #JMX_DOMAIN} domain.
+	 *
+	 * @throws MqttException
+	 *             if the metrics cannot be registered, for example because
+	 *             another client with the same ID and server URI has
+	 *             registered them
+	 */
+	public synchronized void registerMBean() throws MqttException {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=MqttClientMetrics,clientId="
+					+ ObjectName.quote(comms.getClient().getClientId()) + ",serverURI="
+					+ ObjectName.quote(comms.getClient().getServerURI()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			throw new MqttException(e);
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if they were
+	 * registered.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean((ObjectName) objectName);
+		} catch (Exception e) {
+			// Already gone
+		}
+		objectName = null;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("messagesSent=").append(getMessagesSent(0)).append('/').append(getMessagesSent(1)).append('/')
+				.append(getMessagesSent(2));
+		sb.append(" messagesReceived=").append(getMessagesReceived(0)).append('/').append(getMessagesReceived(1))
+				.append('/').append(getMessagesReceived(2));
+		sb.append(" bytesSent=").append(getBytesSent()).append(" bytesReceived=").append(getBytesReceived());
+		sb.append(" inFlight=").append(getInFlight()).append(" pubAck=[").append(getPubAckLatency())
+				.append("] pubComp=[").append(getPubCompLatency()).append(']');
+		return sb.toString();
+	}
+}
@@ -115,9 +115,22 @@ public class MqttConnectionOptions {
 	private Properties sslClientProps = null; // SSL Client Properties
 	private HostnameVerifier sslHostnameVerifier = null; // SSL Hostname Verifier
 	private Map<String, String> customWebSocketHeaders;
+	private boolean webSocketCompressionEnabled = false; // Whether permessage-deflate is offered on ws and wss.
+	private boolean webSocketClientNoContextTakeover = false; // Reset the compressor after each message sent.
+	private boolean webSocketServerNoContextTakeover = false; // Ask the server to reset its compressor each message.
+	private int webSocketServerMaxWindowBits = 15; // The largest window the server may compress with.
 
 	// Client Operation Parameters
 	private int executorServiceTimeout = 1; // How long to wait in seconds when terminating the executor service.
+	private boolean sendBatchingEnabled = false; // Whether the sender coalesces queued packets into one flush.
+	private int sendBatchMaxMessages = 64; // Most packets in one flush when batching.
+	private int sendBatchMaxBytes = 64 * 1024; // Buffered bytes at which a batch is flushed.
+	private long sendBatchLingerMicros = 0; // How long to wait for more packets before flushing a batch.
+	private int callbackThreads = 0; // Workers delivering messages to callbacks, 0 for the single callback thread.
+	private int callbackQueueSize = 10; // Messages waiting for delivery, per worker.
+	private BackpressurePolicy callbackBackpressurePolicy = BackpressurePolicy.BLOCK; // When the callback queue is full.
+	private boolean virtualThreadsEnabled = false; // Whether the comms threads are virtual threads, where available.
+	private TopicAliasPolicy topicAliasPolicy = TopicAliasPolicy.FIRST_COME; // Which published topics get aliases.
 
 	/**
 	 * Returns the MQTT version.
@@ -925,6 +938,23 @@ public class MqttConnectionOptions {
 		} else {
 			p.put("SSLProperties", getSSLProperties());
 		}
+		p.put("SendBatching", Boolean.valueOf(isSendBatchingEnabled()));
+		if (isSendBatchingEnabled()) {
+			p.put("SendBatchMaxMessages", getSendBatchMaxMessages());
+			p.put("SendBatchMaxBytes", getSendBatchMaxBytes());
+			p.put("SendBatchLingerMicros", getSendBatchLingerMicros());
+		}
+		p.put("CallbackThreads", getCallbackThreads());
+		p.put("CallbackQueueSize", getCallbackQueueSize());
+		p.put("CallbackBackpressurePolicy", getCallbackBackpressurePolicy());
+		p.put("VirtualThreads", Boolean.valueOf(isVirtualThreadsEnabled()));
+		p.put("TopicAliasPolicy", getTopicAliasPolicy());
+		p.put("WebSocketCompression", Boolean.valueOf(isWebSocketCompressionEnabled()));
+		if (isWebSocketCompressionEnabled()) {
+			p.put("WebSocketClientNoContextTakeover", Boolean.valueOf(isWebSocketClientNoContextTakeover()));
+			p.put("WebSocketServerNoContextTakeover", Boolean.valueOf(isWebSocketServerNoContextTakeover()));
+			p.put("WebSocketServerMaxWindowBits", getWebSocketServerMaxWindowBits());
+		}
 		return p;
 	}
 
@@ -942,6 +972,96 @@ public class MqttConnectionOptions {
 		return customWebSocketHeaders;
 	}
 
+	/**
+	 * Returns whether WebSocket connections offer compression.
+	 * 
+	 * @see #setWebSocketCompressionEnabled(boolean)
+	 * @return true if the permessage-deflate extension is offered
+	 */
+	public boolean isWebSocketCompressionEnabled() {
+		return webSocketCompressionEnabled;
+	}
+
+	/**
+	 * Enables or disables compression on ws and wss connections. When enabled
+	 * the client offers the permessage-deflate extension (RFC 7692) in the
+	 * WebSocket handshake, and if the server accepts it every frame sent in
+	 * either direction may be compressed. Servers which do not support the
+	 * extension simply decline it, and the connection carries uncompressed
+	 * frames as before.
+	 * 
+	 * @param webSocketCompressionEnabled
+	 *            true to offer permessage-deflate, defaults to false.
+	 */
+	public void setWebSocketCompressionEnabled(boolean webSocketCompressionEnabled) {
+		this.webSocketCompressionEnabled = webSocketCompressionEnabled;
+	}
+
+	/**
+	 * @return whether the client compresses each WebSocket message on its own.
+	 */
+	public boolean isWebSocketClientNoContextTakeover() {
+		return webSocketClientNoContextTakeover;
+	}
+
+	/**
+	 * Sets whether the client compresses each WebSocket message on its own,
+	 * rather than with reference to the messages it sent before. This lowers
+	 * the memory the server needs to decompress, at some cost in compression.
+	 * The server may also require this in its response to the offer.
+	 * 
+	 * @param webSocketClientNoContextTakeover
+	 *            true to offer client_no_context_takeover, defaults to false.
+	 */
+	public void setWebSocketClientNoContextTakeover(boolean webSocketClientNoContextTakeover) {
+		this.webSocketClientNoContextTakeover = webSocketClientNoContextTakeover;
+	}
+
+	/**
+	 * @return whether the server is asked to compress each WebSocket message on
+	 *         its own.
+	 */
+	public boolean isWebSocketServerNoContextTakeover() {
+		return webSocketServerNoContextTakeover;
+	}
+
+	/**
+	 * Sets whether the server is asked to compress each WebSocket message on
+	 * its own, rather than with reference to the messages it sent before.
+	 * 
+	 * @param webSocketServerNoContextTakeover
+	 *            true to offer server_no_context_takeover, defaults to false.
+	 */
+	public void setWebSocketServerNoContextTakeover(boolean webSocketServerNoContextTakeover) {
+		this.webSocketServerNoContextTakeover = webSocketServerNoContextTakeover;
+	}
+
+	/**
+	 * @return the base 2 logarithm of the largest window the server may
+	 *         compress WebSocket messages with.
+	 */
+	public int getWebSocketServerMaxWindowBits() {
+		return webSocketServerMaxWindowBits;
+	}
+
+	/**
+	 * Sets the largest window the server may compress WebSocket messages with,
+	 * as the base 2 logarithm of its size. Smaller windows use less memory on
+	 * the server. The client always compresses with the largest, 15 bit,
+	 * window, and fails the handshake if the server asks for a smaller one.
+	 * 
+	 * @param webSocketServerMaxWindowBits
+	 *            the window bits, from 8 to 15, defaults to 15.
+	 * @throws IllegalArgumentException
+	 *             if the value is outside that range
+	 */
+	public void setWebSocketServerMaxWindowBits(int webSocketServerMaxWindowBits) {
+		if (webSocketServerMaxWindowBits < 8 || webSocketServerMaxWindowBits > 15) {
+			throw new IllegalArgumentException();
+		}
+		this.webSocketServerMaxWindowBits = webSocketServerMaxWindowBits;
+	}
+
 	public String toString() {
 		return Debug.dumpProperties(getDebug(), "Connection options");
 	}
@@ -968,4 +1088,261 @@ public class MqttConnectionOptions {
 	public void setExecutorServiceTimeout(int executorServiceTimeout) {
 		this.executorServiceTimeout = executorServiceTimeout;
 	}
+
+	/**
+	 * Returns whether the client coalesces outgoing packets.
+	 * 
+	 * @see #setSendBatchingEnabled(boolean)
+	 * @return true if send batching is enabled
+	 */
+	public boolean isSendBatchingEnabled() {
+		return sendBatchingEnabled;
+	}
+
+	/**
+	 * Enables or disables send batching. By default every packet, including
+	 * every acknowledgement, is flushed to the network as soon as it is written.
+	 * When batching is enabled the client writes all of the packets which are
+	 * ready to be sent into its output buffer and flushes them together, which
+	 * reduces the number of network writes when many messages are published or
+	 * acknowledged at once. A batch is flushed when it holds
+	 * {@link #getSendBatchMaxMessages()} packets or
+	 * {@link #getSendBatchMaxBytes()} bytes, or when no further packet becomes
+	 * ready within {@link #getSendBatchLingerMicros()} microseconds.
+	 * 
+	 * @param sendBatchingEnabled
+	 *            true to coalesce outgoing packets, defaults to false.
+	 */
+	public void setSendBatchingEnabled(boolean sendBatchingEnabled) {
+		this.sendBatchingEnabled = sendBatchingEnabled;
+	}
+
+	/**
+	 * @return the maximum number of packets flushed together when send
+	 *         batching is enabled.
+	 */
+	public int getSendBatchMaxMessages() {
+		return sendBatchMaxMessages;
+	}
+
+	/**
+	 * Sets the maximum number of packets flushed together when send batching
+	 * is enabled.
+	 * 
+	 * @param sendBatchMaxMessages
+	 *            the number of packets, at least 1, defaults to 64.
+	 * @throws IllegalArgumentException
+	 *             if the value is less than 1
+	 */
+	public void setSendBatchMaxMessages(int sendBatchMaxMessages) {
+		if (sendBatchMaxMessages < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchMaxMessages = sendBatchMaxMessages;
+	}
+
+	/**
+	 * @return the number of buffered bytes at which a batch is flushed when
+	 *         send batching is enabled.
+	 */
+	public int getSendBatchMaxBytes() {
+		return sendBatchMaxBytes;
+	}
+
+	/**
+	 * Sets the number of buffered bytes at which a batch is flushed when send
+	 * batching is enabled. A single packet larger than this is still sent, in a
+	 * batch of its own.
+	 * 
+	 * @param sendBatchMaxBytes
+	 *            the number of bytes, at least 1, defaults to 65536.
+	 * @throws IllegalArgumentException
+	 *             if the value is less than 1
+	 */
+	public void setSendBatchMaxBytes(int sendBatchMaxBytes) {
+		if (sendBatchMaxBytes < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchMaxBytes = sendBatchMaxBytes;
+	}
+
+	/**
+	 * @return the time in microseconds to wait for further packets before a
+	 *         batch is flushed.
+	 */
+	public long getSendBatchLingerMicros() {
+		return sendBatchLingerMicros;
+	}
+
+	/**
+	 * Sets how long, in microseconds, the client waits for further packets
+	 * before flushing a batch which is not yet full. The default of 0 flushes
+	 * as soon as no more packets are ready, so batching adds no latency; a
+	 * small linger gives more packets a chance to share a network write at the
+	 * cost of delaying the packets already in the batch.
+	 * 
+	 * @param sendBatchLingerMicros
+	 *            the time in microseconds, defaults to 0.
+	 * @throws IllegalArgumentException
+	 *             if the value is negative
+	 */
+	public void setSendBatchLingerMicros(long sendBatchLingerMicros) {
+		if (sendBatchLingerMicros < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.sendBatchLingerMicros = sendBatchLingerMicros;
+	}
+
+	/**
+	 * @return the number of worker threads delivering messages to the
+	 *         callbacks, or 0 if a single callback thread is used.
+	 */
+	public int getCallbackThreads() {
+		return callbackThreads;
+	}
+
+	/**
+	 * Sets the number of worker threads which deliver arriving messages to
+	 * {@link MqttCallback#messageArrived(String, org.eclipse.paho.mqttv5.common.MqttMessage)}
+	 * and the per subscription {@link IMqttMessageListener}s.
+	 * <p>
+	 * By default all messages are delivered on the single callback thread, one
+	 * at a time, so a slow callback holds up every message behind it. With
+	 * worker threads each topic is assigned to one worker, so messages on the
+	 * same topic are still delivered in order, one at a time, while messages on
+	 * other topics are delivered in parallel. Callbacks must then be safe to
+	 * call from several threads at once.
+	 * </p>
+	 * <p>
+	 * Unless manual acknowledgements are enabled, the PUBACK or PUBCOMP for a
+	 * message is only sent once its callback has returned.
+	 * </p>
+	 * 
+	 * @param callbackThreads
+	 *            the number of workers, defaults to 0 for the single callback
+	 *            thread.
+	 * @throws IllegalArgumentException
+	 *             if the value is negative
+	 */
+	public void setCallbackThreads(int callbackThreads) {
+		if (callbackThreads < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.callbackThreads = callbackThreads;
+	}
+
+	/**
+	 * @return the number of arriving messages which may wait for delivery to
+	 *         the callbacks.
+	 */
+	public int getCallbackQueueSize() {
+		return callbackQueueSize;
+	}
+
+	/**
+	 * Sets the number of arriving messages which may wait for delivery to the
+	 * callbacks before the {@link #getCallbackBackpressurePolicy()} applies.
+	 * When worker threads are used this is the size of the queue for each
+	 * worker.
+	 * 
+	 * @param callbackQueueSize
+	 *            the number of messages, defaults to 10.
+	 * @throws IllegalArgumentException
+	 *             if the value is less than 1
+	 */
+	public void setCallbackQueueSize(int callbackQueueSize) {
+		if (callbackQueueSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.callbackQueueSize = callbackQueueSize;
+	}
+
+	/**
+	 * @return what the client does with an arriving message when the callback
+	 *         queue is full.
+	 */
+	public BackpressurePolicy getCallbackBackpressurePolicy() {
+		return callbackBackpressurePolicy;
+	}
+
+	/**
+	 * Sets what the client does with an arriving message when the callback
+	 * queue is full.
+	 * 
+	 * @param callbackBackpressurePolicy
+	 *            the policy, defaults to {@link BackpressurePolicy#BLOCK}.
+	 * @throws IllegalArgumentException
+	 *             if the policy is null
+	 */
+	public void setCallbackBackpressurePolicy(BackpressurePolicy callbackBackpressurePolicy) {
+		if (callbackBackpressurePolicy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.callbackBackpressurePolicy = callbackBackpressurePolicy;
+	}
+
+	/**
+	 * Returns whether the client runs its comms on virtual threads.
+	 * 
+	 * @see #setVirtualThreadsEnabled(boolean)
+	 * @return true if virtual threads are enabled
+	 */
+	public boolean isVirtualThreadsEnabled() {
+		return virtualThreadsEnabled;
+	}
+
+	/**
+	 * Enables or disables virtual threads for the comms. By default the
+	 * client starts a platform thread each to send, receive and call back,
+	 * and one for each callback worker, unless an executor service was given
+	 * to the client. When virtual threads are enabled and the client has no
+	 * executor service, each of these runs on a virtual thread instead, so
+	 * that a process can hold many thousands of connections without a
+	 * thread stack for each.
+	 * <p>
+	 * Virtual threads need a Java 21 or later runtime. On earlier runtimes
+	 * this option is ignored and platform threads are used. With the option
+	 * enabled, reads from TCP, SSL and WebSocket connections also have no
+	 * timeout, so a receiver waits for data without waking every second.
+	 * </p>
+	 * <p>
+	 * A <code>tcp+nio://</code> connection has no receiver thread, but still
+	 * has a sender and a callback thread. Enabling virtual threads as well
+	 * makes these cheap, which is the intended setup for very large numbers
+	 * of connections.
+	 * </p>
+	 * 
+	 * @param virtualThreadsEnabled
+	 *            true to use virtual threads, defaults to false.
+	 */
+	public void setVirtualThreadsEnabled(boolean virtualThreadsEnabled) {
+		this.virtualThreadsEnabled = virtualThreadsEnabled;
+	}
+
+	/**
+	 * @return how the client chooses which published topics to replace with a
+	 *         Topic Alias.
+	 */
+	public TopicAliasPolicy getTopicAliasPolicy() {
+		return topicAliasPolicy;
+	}
+
+	/**
+	 * Sets how the client chooses which published topics to replace with a
+	 * Topic Alias, when the server accepts them. The policy only matters once
+	 * the client publishes to more topics than the server's Topic Alias
+	 * Maximum; {@link MqttClientMetrics#getTopicAliasHitRate()} shows how well
+	 * it is working.
+	 *
+	 * @param topicAliasPolicy
+	 *            the policy, defaults to {@link TopicAliasPolicy#FIRST_COME}.
+	 * @throws IllegalArgumentException
+	 *             if the policy is null
+	 */
+	public void setTopicAliasPolicy(TopicAliasPolicy topicAliasPolicy) {
+		if (topicAliasPolicy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.topicAliasPolicy = topicAliasPolicy;
+	}
 }
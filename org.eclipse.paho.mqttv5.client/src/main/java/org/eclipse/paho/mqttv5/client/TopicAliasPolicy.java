@@ -0,0 +1,47 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client;
+
+/**
+ * How the client chooses which topics to replace with a Topic Alias when it
+ * publishes, once the server's Topic Alias Maximum is reached.
+ * <p>
+ * When a topic is given an alias, or an alias is moved to another topic, the
+ * PUBLISH carries both the full topic and the alias so that the server learns
+ * the new mapping. Later messages to the topic carry only the alias.
+ * </p>
+ *
+ * @see MqttConnectionOptions#setTopicAliasPolicy(TopicAliasPolicy)
+ * @see MqttClientMetrics#getTopicAliasHitRate()
+ */
+public enum TopicAliasPolicy {
+
+	/**
+	 * Give aliases to the first topics published on the connection and never
+	 * move them. Suits a small, fixed set of topics.
+	 */
+	FIRST_COME,
+
+	/**
+	 * When every alias is in use, move the alias of the least recently
+	 * published topic to the new topic. Suits topics whose popularity changes
+	 * over time.
+	 */
+	LRU,
+
+	/**
+	 * When every alias is in use, move the alias of the least often published
+	 * topic to a new topic once the new topic has been published more often.
+	 * Counts are halved periodically so that topics which were once popular
+	 * give way. Suits a stable set of hot topics among many rare ones.
+	 */
+	LFU
+}
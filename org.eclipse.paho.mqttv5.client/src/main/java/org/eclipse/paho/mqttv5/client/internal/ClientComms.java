@@ -23,6 +23,7 @@ import java.util.Enumeration;
 import java.util.Properties;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.paho.mqttv5.client.BufferedMessage;
 import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
@@ -83,7 +84,11 @@ public class ClientComms {
 	private boolean resting = false;
 	private DisconnectedMessageBuffer disconnectedMessageBuffer;
 	private ExecutorService executorService;
+	// Runs the comms threads of the current connection: the client's executor
+	// service, the virtual thread executor, or null to start platform threads
+	private ExecutorService commsExecutor;
 	private MqttConnectionState mqttConnection;
+	private final ClientMetrics metrics = new ClientMetrics();
 
 	/**
 	 * Creates a new ClientComms object, using the specified module to handle the
@@ -232,6 +237,84 @@ public class ClientComms {
 		}
 	}
 
+	/**
+	 * Sends a batch of PUBLISH messages to the broker in one step if connected,
+	 * only waiting for the messages to be stored. If the messages have to go
+	 * to the offline buffer instead, either the whole batch is buffered or,
+	 * if it does not fit, none of it.
+	 *
+	 * @param messages
+	 *            The messages to send, in order
+	 * @param tokens
+	 *            The token for each message
+	 * @throws MqttException
+	 *             if an error occurs sending the messages
+	 */
+	public void sendNoWait(MqttPublish[] messages, MqttToken[] tokens) throws MqttException {
+		final String methodName = "sendNoWait";
+
+		boolean connected = isConnected();
+		if (!connected || (disconnectedMessageBuffer != null && disconnectedMessageBuffer.getMessageCount() != 0)) {
+			if (disconnectedMessageBuffer == null || (!connected && !isResting())) {
+				// @TRACE 208=failed: not connected
+				log.fine(CLASS_NAME, methodName, "208");
+				throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_CLIENT_NOT_CONNECTED);
+			}
+			// @TRACE 508=Client Resting, Offline Buffer available. Adding message to
+			// buffer. message={0}
+			log.fine(CLASS_NAME, methodName, "508", new Object[] { messages[0].getKey() });
+			if (disconnectedMessageBuffer.isPersistBuffer()) {
+				for (MqttPublish message : messages) {
+					this.clientState.persistBufferedMessage(message);
+				}
+			}
+			try {
+				disconnectedMessageBuffer.putMessages(messages, tokens);
+			} catch (MqttException e) {
+				if (disconnectedMessageBuffer.isPersistBuffer()) {
+					for (MqttPublish message : messages) {
+						this.clientState.discardBufferedMessage(message);
+					}
+				}
+				throw e;
+			}
+			return;
+		}
+
+		for (int i = 0; i < messages.length; i++) {
+			if (tokens[i].getClient() != null) {
+				// @TRACE 213=fail: token in use: key={0} message={1} token={2}
+				log.fine(CLASS_NAME, methodName, "213", new Object[] { messages[i].getKey(), messages[i], tokens[i] });
+
+				throw new MqttException(MqttClientException.REASON_CODE_TOKEN_INUSE);
+			}
+		}
+		for (int i = 0; i < messages.length; i++) {
+			MqttMessage mqttMessage = messages[i].getMessage();
+			// Override the QoS if the server has set a maximum
+			if (this.mqttConnection.getMaximumQoS() != null
+					&& mqttMessage.getQos() > this.mqttConnection.getMaximumQoS()) {
+				mqttMessage.setQos(this.mqttConnection.getMaximumQoS());
+			}
+			// Override the Retain flag if the server has disabled it
+			if (this.mqttConnection.isRetainAvailable() != null && mqttMessage.isRetained()
+					&& (this.mqttConnection.isRetainAvailable() == false)) {
+				mqttMessage.setRetained(false);
+			}
+			// Associate the client with the token - also marks it as in use.
+			tokens[i].internalTok.setClient(getClient());
+		}
+
+		try {
+			this.clientState.sendBatch(messages, tokens);
+		} catch (MqttException e) {
+			for (MqttToken token : tokens) {
+				token.internalTok.setClient(null); // undo client setting on error
+			}
+			throw e;
+		}
+	}
+
 	/**
 	 * Close and tidy up.
 	 *
@@ -303,6 +386,15 @@ public class ClientComms {
 
 				conOptions = options;
 
+				commsExecutor = executorService;
+				if (commsExecutor == null && conOptions.isVirtualThreadsEnabled()) {
+					commsExecutor = VirtualThreads.executor();
+					if (commsExecutor == null) {
+						// @TRACE 225=virtual threads are not available, using platform threads
+						log.fine(CLASS_NAME, methodName, "225");
+					}
+				}
+
 				MqttConnect connect = new MqttConnect(client.getClientId(), conOptions.getMqttVersion(),
 						conOptions.isCleanStart(), conOptions.getKeepAliveInterval(),
 						conOptions.getConnectionProperties(), conOptions.getWillMessageProperties());
@@ -330,7 +422,7 @@ public class ClientComms {
 				this.clientState.setCleanStart(conOptions.isCleanStart());
 
 				tokenStore.open();
-				ConnectBG conbg = new ConnectBG(this, token, connect, executorService);
+				ConnectBG conbg = new ConnectBG(this, token, connect, commsExecutor);
 				conbg.start();
 			} else {
 				// @TRACE 207=connect failed: not disconnected {0}
@@ -358,6 +450,7 @@ public class ClientComms {
 				log.fine(CLASS_NAME, methodName, "215");
 
 				conState = CONNECTED;
+				metrics.connected();
 				return;
 			}
 		}
@@ -483,6 +576,9 @@ public class ClientComms {
 		if (endToken != null && callback != null) {
 			callback.asyncOperationComplete(endToken);
 		}
+		if (wasConnected && reason != null) {
+			metrics.connectionLost();
+		}
 		if (wasConnected && callback != null) {
 			// Let the user know client has disconnected either normally or abnormally
 			callback.connectionLost(reason, message);
@@ -566,7 +662,7 @@ public class ClientComms {
 			// @TRACE 218=state=DISCONNECTING
 			log.fine(CLASS_NAME, methodName, "218");
 			conState = DISCONNECTING;
-			DisconnectBG discbg = new DisconnectBG(disconnect, quiesceTimeout, token, executorService);
+			DisconnectBG discbg = new DisconnectBG(disconnect, quiesceTimeout, token, commsExecutor);
 			discbg.start();
 		}
 	}
@@ -668,6 +764,10 @@ public class ClientComms {
 		this.callback.messageArrivedComplete(messageId, qos);
 	}
 
+	void deferredAckComplete(int messageId, int qos) throws MqttException {
+		this.callback.deferredAckComplete(messageId, qos);
+	}
+
 	public void setMessageListener(Integer subscriptionId, String topicFilter, IMqttMessageListener messageListener) {
 		this.callback.setMessageListener(subscriptionId, topicFilter, messageListener);
 	}
@@ -724,6 +824,26 @@ public class ClientComms {
 		return conOptions;
 	}
 
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getPendingMessageCount() {
+		return clientState.getPendingMessageCount();
+	}
+
+	public int getPendingFlowCount() {
+		return clientState.getPendingFlowCount();
+	}
+
+	public int getInFlightCount() {
+		return clientState.getInFlightCount();
+	}
+
+	public int getCallbackQueueDepth() {
+		return callback.getQueueDepth();
+	}
+
 	public Properties getDebug() {
 		Properties props = new Properties();
 		props.put("conState", Integer.valueOf(conState));
@@ -750,10 +870,10 @@ public class ClientComms {
 		}
 
 		void start() {
-			if (executorService == null) {
+			if (commsExecutor == null) {
 				new Thread(this).start();
 			} else {
-				executorService.execute(this);
+				commsExecutor.execute(this);
 			}
 		}
 
@@ -781,11 +901,24 @@ public class ClientComms {
 				// packet.
 				NetworkModule networkModule = networkModules[networkModuleIndex];
 				networkModule.start();
-				receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
-				receiver.start("MQTT Rec: " + getClient().getClientId(), executorService);
+				if (networkModule instanceof NIONetworkModule) {
+					// Reads are driven by the shared event loop, no receiver thread is needed
+					receiver = new CommsReceiver(clientComms, clientState, tokenStore, callback,
+							(NIONetworkModule) networkModule);
+				} else {
+					receiver = new CommsReceiver(clientComms, clientState, tokenStore, networkModule.getInputStream());
+				}
+				receiver.start("MQTT Rec: " + getClient().getClientId(), commsExecutor);
+				clientState.setTopicAliasPolicy(conOptions.getTopicAliasPolicy());
 				sender = new CommsSender(clientComms, clientState, tokenStore, networkModule.getOutputStream());
-				sender.start("MQTT Snd: " + getClient().getClientId(), executorService);
-				callback.start("MQTT Call: " + getClient().getClientId(), executorService);
+				if (conOptions.isSendBatchingEnabled()) {
+					sender.setSendBatching(conOptions.getSendBatchMaxMessages(), conOptions.getSendBatchMaxBytes(),
+							TimeUnit.MICROSECONDS.toNanos(conOptions.getSendBatchLingerMicros()));
+				}
+				sender.start("MQTT Snd: " + getClient().getClientId(), commsExecutor);
+				callback.setDispatchOptions(conOptions.getCallbackThreads(), conOptions.getCallbackQueueSize(),
+						conOptions.getCallbackBackpressurePolicy());
+				callback.start("MQTT Call: " + getClient().getClientId(), commsExecutor);
 				internalSend(conPacket, conToken);
 			} catch (MqttException ex) {
 				// @TRACE 212=connect failed: unexpected exception
@@ -820,10 +953,10 @@ public class ClientComms {
 
 		void start() {
 			threadName = "MQTT Disc: "+getClient().getClientId();
-			if (executorService == null) {
+			if (commsExecutor == null) {
 				new Thread(this).start();
 			} else {
-				executorService.execute(this);
+				commsExecutor.execute(this);
 			}
 		}
 
@@ -935,10 +1068,10 @@ public class ClientComms {
 			log.fine(CLASS_NAME, methodName, "509");
 
 			disconnectedMessageBuffer.setPublishCallback(new ReconnectDisconnectedBufferCallback(methodName));
-			if (executorService == null) {
+			if (commsExecutor == null) {
 				new Thread(disconnectedMessageBuffer).start();
 			} else {
-				executorService.execute(disconnectedMessageBuffer);
+				commsExecutor.execute(disconnectedMessageBuffer);
 			}
 		}
 	}
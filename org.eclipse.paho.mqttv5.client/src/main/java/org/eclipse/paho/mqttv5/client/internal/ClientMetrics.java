@@ -0,0 +1,170 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.paho.mqttv5.client.LatencyHistogram;
+
+/**
+ * The counters and latencies of one client, updated by the comms threads
+ * without locking and read through
+ * {@link org.eclipse.paho.mqttv5.client.MqttClientMetrics}.
+ */
+public class ClientMetrics {
+
+	private final AtomicLongArray messagesSent = new AtomicLongArray(3);
+	private final AtomicLongArray messagesReceived = new AtomicLongArray(3);
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong connectionsLost = new AtomicLong();
+	private final AtomicLong reconnectAttempts = new AtomicLong();
+	private final AtomicLong topicAliasHits = new AtomicLong();
+	private final AtomicLong topicAliasMisses = new AtomicLong();
+	private final AtomicLong topicAliasReassignments = new AtomicLong();
+
+	private final LatencyHistogram pubAckLatency = new LatencyHistogram();
+	private final LatencyHistogram pubCompLatency = new LatencyHistogram();
+	private final LatencyHistogram callbackQueueWait = new LatencyHistogram();
+	private final LatencyHistogram persistenceLatency = new LatencyHistogram();
+
+	public void messageSent(int qos) {
+		messagesSent.incrementAndGet(qos);
+	}
+
+	public void messageReceived(int qos) {
+		messagesReceived.incrementAndGet(qos);
+	}
+
+	public void bytesSent(int count) {
+		bytesSent.addAndGet(count);
+	}
+
+	public void bytesReceived(int count) {
+		bytesReceived.addAndGet(count);
+	}
+
+	public void connected() {
+		connects.incrementAndGet();
+	}
+
+	public void connectionLost() {
+		connectionsLost.incrementAndGet();
+	}
+
+	public void reconnectAttempted() {
+		reconnectAttempts.incrementAndGet();
+	}
+
+	public void topicAliasHit() {
+		topicAliasHits.incrementAndGet();
+	}
+
+	public void topicAliasMiss() {
+		topicAliasMisses.incrementAndGet();
+	}
+
+	public void topicAliasReassigned() {
+		topicAliasReassignments.incrementAndGet();
+	}
+
+	/**
+	 * @param qos
+	 *            the QoS
+	 * @return the number of PUBLISH packets sent at the QoS, including
+	 *         retransmissions
+	 */
+	public long getMessagesSent(int qos) {
+		return messagesSent.get(qos);
+	}
+
+	/**
+	 * @param qos
+	 *            the QoS
+	 * @return the number of PUBLISH packets received at the QoS
+	 */
+	public long getMessagesReceived(int qos) {
+		return messagesReceived.get(qos);
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getConnects() {
+		return connects.get();
+	}
+
+	public long getConnectionsLost() {
+		return connectionsLost.get();
+	}
+
+	public long getReconnectAttempts() {
+		return reconnectAttempts.get();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent with a Topic Alias in place of
+	 *         the topic
+	 */
+	public long getTopicAliasHits() {
+		return topicAliasHits.get();
+	}
+
+	/**
+	 * @return the number of PUBLISH packets sent with the full topic while the
+	 *         server accepted Topic Aliases
+	 */
+	public long getTopicAliasMisses() {
+		return topicAliasMisses.get();
+	}
+
+	/**
+	 * @return the number of times a Topic Alias was moved to another topic
+	 */
+	public long getTopicAliasReassignments() {
+		return topicAliasReassignments.get();
+	}
+
+	/**
+	 * @return the time from sending a QoS 1 PUBLISH to receiving its PUBACK
+	 */
+	public LatencyHistogram getPubAckLatency() {
+		return pubAckLatency;
+	}
+
+	/**
+	 * @return the time from sending a QoS 2 PUBLISH to receiving its PUBCOMP
+	 */
+	public LatencyHistogram getPubCompLatency() {
+		return pubCompLatency;
+	}
+
+	/**
+	 * @return the time arriving messages wait before their callback is called
+	 */
+	public LatencyHistogram getCallbackQueueWait() {
+		return callbackQueueWait;
+	}
+
+	/**
+	 * @return the time taken to put a message into persistence
+	 */
+	public LatencyHistogram getPersistenceLatency() {
+		return persistenceLatency;
+	}
+}
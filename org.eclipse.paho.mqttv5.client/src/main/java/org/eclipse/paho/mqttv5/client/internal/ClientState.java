@@ -23,18 +23,23 @@
 package org.eclipse.paho.mqttv5.client.internal;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.eclipse.paho.mqttv5.client.LatencyHistogram;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
 import org.eclipse.paho.mqttv5.client.MqttPingSender;
 import org.eclipse.paho.mqttv5.client.MqttToken;
+import org.eclipse.paho.mqttv5.client.TopicAliasPolicy;
 import org.eclipse.paho.mqttv5.client.logging.Logger;
 import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
 import org.eclipse.paho.mqttv5.common.MqttException;
@@ -75,13 +80,14 @@ import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
  * PUBLISH or PUBREL - outboundqos1 hashtable if a QoS 1 PUBLISH (see
  * restoreState)
  * 
- * 3) On Connect, copy messages from the outbound hashtables to the
- * pendingMessages or pendingFlows vector in messageid order. - Initial message
+ * 3) On Connect, copy messages from the outbound hashtables to the message
+ * or flow lane of the pending OutboundQueue in messageid order. - Initial message
  * publish goes onto the pendingmessages buffer. - PUBREL goes onto the
  * pendingflows buffer (see restoreInflightMessages)
  * 
  * 4) Sender thread reads messages from the pendingflows and pendingmessages
- * buffer one at a time. The message is removed from the pendingbuffer but
+ * buffer one at a time, waiting on the OutboundQueue rather than a lock when
+ * there is nothing to send. The message is removed from the pendingbuffer but
  * remains on the outbound* hashtable. The hashtable is the place where the full
  * set of outstanding messages are stored in memory. (Persistence is only used
  * at start up)
@@ -107,27 +113,31 @@ public class ClientState implements MqttState {
 	private static final String PERSISTENCE_CONFIRMED_PREFIX = "sc-";
 	private static final String PERSISTENCE_RECEIVED_PREFIX = "r-";
 
-	private static final int MIN_MSG_ID = 1; // Lowest possible MQTT message ID to use
-	private static final int MAX_MSG_ID = 65535; // Highest possible MQTT message ID to use
-	private int nextMsgId = MIN_MSG_ID - 1; // The next available message ID to use
-	private ConcurrentHashMap<Integer, Integer> inUseMsgIds; // Used to store a set of in-use message IDs
+	private static final int MAX_MSG_ID = MessageIdAllocator.MAX_MSG_ID; // Highest possible MQTT message ID to use
+	private MessageIdAllocator messageIds; // The set of in-use message IDs
 
-	volatile private Vector<MqttWireMessage> pendingMessages;
-	volatile private Vector<MqttWireMessage> pendingFlows;
+	// The pending flows and messages waiting for the sender thread
+	private final OutboundQueue pending = new OutboundQueue();
 
 	private CommsTokenStore tokenStore;
 	private ClientComms clientComms = null;
+	private final ClientMetrics metrics;
 	private CommsCallback callback = null;
 	//private long keepAlive;
 	private boolean cleanStart;
 	private MqttClientPersistence persistence;
 
-	private int actualInFlight = 0;
-	private int inFlightPubRels = 0;
+	// Only the sender thread increments these, so the window can be checked
+	// and then taken without a lock
+	private final AtomicInteger actualInFlight = new AtomicInteger();
+	private final AtomicInteger inFlightPubRels = new AtomicInteger();
+	// Slots of the in-flight window held for queued batch messages the sender
+	// has not yet taken
+	private final AtomicInteger reservedInFlight = new AtomicInteger();
 
-	private final Object queueLock = new Object();
-	private final Object quiesceLock = new Object();
-	private boolean quiescing = false;
+	private final ReentrantLock quiesceLock = new ReentrantLock();
+	private final Condition quiesced = quiesceLock.newCondition();
+	private volatile boolean quiescing = false;
 
 	private long lastOutboundActivity = 0;
 	private long lastInboundActivity = 0;
@@ -136,7 +146,7 @@ public class ClientState implements MqttState {
 	private final Object pingOutstandingLock = new Object();
 	private int pingOutstanding = 0;
 
-	private boolean connected = false;
+	private volatile boolean connected = false;
 
 	private ConcurrentHashMap<Integer, MqttWireMessage> outboundQoS2 = null;
 	private ConcurrentHashMap<Integer, MqttWireMessage> outboundQoS1 = null;
@@ -146,8 +156,9 @@ public class ClientState implements MqttState {
 	private MqttPingSender pingSender = null;
 
 	// Topic Alias Maps
-	private Hashtable<String, Integer> outgoingTopicAliases;
-	private Hashtable<Integer, String> incomingTopicAliases;
+	// Replaced rather than cleared, as the sender may still be using it
+	private volatile OutgoingTopicAliases outgoingTopicAliases;
+	private ConcurrentHashMap<Integer, String> incomingTopicAliases;
 
 	private MqttConnectionState mqttConnection;
 
@@ -158,23 +169,20 @@ public class ClientState implements MqttState {
 		log.setResourceName(clientComms.getClient().getClientId());
 		log.finer(CLASS_NAME, "<Init>", "");
 
-		inUseMsgIds = new ConcurrentHashMap<>();
-		pendingFlows = new Vector<MqttWireMessage>();
-		pendingMessages = new Vector<MqttWireMessage>(mqttConnection.getReceiveMaximum());
+		messageIds = new MessageIdAllocator();
 		outboundQoS2 = new ConcurrentHashMap<>();
 		outboundQoS1 = new ConcurrentHashMap<>();
 		outboundQoS0 = new ConcurrentHashMap<>();
 		inboundQoS2 = new ConcurrentHashMap<>();
 		pingCommand = new MqttPingReq();
-		inFlightPubRels = 0;
-		actualInFlight = 0;
-		this.outgoingTopicAliases = new Hashtable<String, Integer>();
-		this.incomingTopicAliases = new Hashtable<Integer, String>();
+		this.incomingTopicAliases = new ConcurrentHashMap<>();
 
 		this.persistence = persistence;
 		this.callback = callback;
 		this.tokenStore = tokenStore;
 		this.clientComms = clientComms;
+		this.metrics = clientComms.getMetrics();
+		this.outgoingTopicAliases = new OutgoingTopicAliases(TopicAliasPolicy.FIRST_COME, metrics);
 		this.pingSender = pingSender;
 		this.mqttConnection = mqttConnection;
 
@@ -215,15 +223,14 @@ public class ClientState implements MqttState {
 		log.fine(CLASS_NAME, methodName, ">");
 
 		persistence.clear();
-		inUseMsgIds.clear();
-		pendingMessages.clear();
-		pendingFlows.clear();
+		messageIds.clear();
+		pending.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		outboundQoS0.clear();
 		inboundQoS2.clear();
 		tokenStore.clear();
-		outgoingTopicAliases.clear();
+		outgoingTopicAliases = new OutgoingTopicAliases(outgoingTopicAliases.getPolicy(), metrics);
 		incomingTopicAliases.clear();
 	}
 
@@ -231,7 +238,7 @@ public class ClientState implements MqttState {
 		final String methodName = "clearConnectionState";
 		// @TRACE=665=Clearing Connection State (Topic Aliases)
 		log.fine(CLASS_NAME, methodName, "665");
-		outgoingTopicAliases.clear();
+		outgoingTopicAliases = new OutgoingTopicAliases(outgoingTopicAliases.getPolicy(), metrics);
 		incomingTopicAliases.clear();
 
 	}
@@ -344,7 +351,7 @@ public class ClientState implements MqttState {
 		Enumeration<String> messageKeys = persistence.keys();
 		MqttPersistable persistable;
 		String key;
-		int highestMsgId = nextMsgId;
+		int highestMsgId = messageIds.getNext() - 1;
 		Vector<String> orphanedPubRels = new Vector<String>();
 		// @TRACE 600=>
 		log.fine(CLASS_NAME, methodName, "600");
@@ -397,8 +404,7 @@ public class ClientState implements MqttState {
 					}
 					MqttToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put(Integer.valueOf(sendMessage.getMessageId()),
-							Integer.valueOf(sendMessage.getMessageId()));
+					messageIds.markInUse(sendMessage.getMessageId());
 				} else if (key.startsWith(PERSISTENCE_SENT_BUFFERED_PREFIX)) {
 
 					// Buffered outgoing messages that have not yet been sent at all
@@ -426,8 +432,7 @@ public class ClientState implements MqttState {
 
 					MqttToken tok = tokenStore.restoreToken(sendMessage);
 					tok.internalTok.setClient(clientComms.getClient());
-					inUseMsgIds.put(Integer.valueOf(sendMessage.getMessageId()),
-							Integer.valueOf(sendMessage.getMessageId()));
+					messageIds.markInUse(sendMessage.getMessageId());
 
 				} else if (key.startsWith(PERSISTENCE_CONFIRMED_PREFIX)) {
 					MqttPubRel pubRelMessage = (MqttPubRel) message;
@@ -447,13 +452,13 @@ public class ClientState implements MqttState {
 			persistence.remove(key);
 		}
 
-		nextMsgId = highestMsgId;
+		messageIds.setLast(highestMsgId);
 	}
 
 	private void restoreInflightMessages() {
 		final String methodName = "restoreInflightMessages";
-		pendingMessages = new Vector<MqttWireMessage>(this.mqttConnection.getReceiveMaximum());
-		pendingFlows = new Vector<MqttWireMessage>();
+		Vector<MqttWireMessage> pendingMessages = new Vector<MqttWireMessage>(this.mqttConnection.getReceiveMaximum());
+		Vector<MqttWireMessage> pendingFlows = new Vector<MqttWireMessage>();
 
 		Enumeration<Integer> keys = outboundQoS2.keys();
 		while (keys.hasMoreElements()) {
@@ -464,6 +469,8 @@ public class ClientState implements MqttState {
 				log.fine(CLASS_NAME, methodName, "610", new Object[] { key });
 				// set DUP flag only for PUBLISH, but NOT for PUBREL (spec 3.1.1)
 				msg.setDuplicate(true);
+				// The aliases of the old connection mean nothing on the new one
+				((MqttPublish) msg).clearTopicAlias();
 				insertInOrder(pendingMessages, (MqttPublish) msg);
 			} else if (msg instanceof MqttPubRel) {
 				// @TRACE 611=QoS 2 pubrel key={0}
@@ -477,6 +484,7 @@ public class ClientState implements MqttState {
 			Object key = keys.nextElement();
 			MqttPublish msg = (MqttPublish) outboundQoS1.get(key);
 			msg.setDuplicate(true);
+			msg.clearTopicAlias();
 			// @TRACE 612=QoS 1 publish key={0}
 			log.fine(CLASS_NAME, methodName, "612", new Object[] { key });
 
@@ -486,14 +494,14 @@ public class ClientState implements MqttState {
 		while (keys.hasMoreElements()) {
 			Object key = keys.nextElement();
 			MqttPublish msg = (MqttPublish) outboundQoS0.get(key);
+			msg.clearTopicAlias();
 			// @TRACE 512=QoS 0 publish key={0}
 			log.fine(CLASS_NAME, methodName, "512", new Object[] { key });
 			insertInOrder(pendingMessages, msg);
 
 		}
 
-		this.pendingFlows = reOrder(pendingFlows);
-		this.pendingMessages = reOrder(pendingMessages);
+		pending.reset(reOrder(pendingFlows), reOrder(pendingMessages));
 	}
 
 	/*
@@ -510,24 +518,6 @@ public class ClientState implements MqttState {
 		if (message.isMessageIdRequired() && (message.getMessageId() == 0)) {
 			message.setMessageId(getNextMessageId());
 		}
-		// Set Topic Alias if required
-		if (message instanceof MqttPublish && ((MqttPublish) message).getTopicName() != null 
-	        		&& this.mqttConnection != null && this.mqttConnection.getOutgoingTopicAliasMaximum() > 0) {
-                        String topic = ((MqttPublish) message).getTopicName();
-			if (outgoingTopicAliases.containsKey(topic)) {
-				// Existing Topic Alias, Assign it and remove the topic string
-				((MqttPublish) message).getProperties().setTopicAlias(outgoingTopicAliases.get(topic));
-				((MqttPublish) message).setTopicName(null);
-			} else {
-				int nextOutgoingTopicAlias = this.mqttConnection.getNextOutgoingTopicAlias();
-				if (nextOutgoingTopicAlias <= this.mqttConnection.getOutgoingTopicAliasMaximum()) {
-					// Create a new Topic Alias and increment the counter
-					((MqttPublish) message).getProperties().setTopicAlias(nextOutgoingTopicAlias);
-					outgoingTopicAliases.put(((MqttPublish) message).getTopicName(), nextOutgoingTopicAlias);
-				}
-			}
-		}
-
 		if (token != null) {
 			try {
 				token.internalTok.setMessageID(message.getMessageId());
@@ -536,64 +526,169 @@ public class ClientState implements MqttState {
 		}
 
 		if (message instanceof MqttPublish) {
-			synchronized (queueLock) {
-				if (actualInFlight >= this.mqttConnection.getReceiveMaximum()) {
-					// @TRACE 613= sending {0} msgs at max inflight window
-					log.fine(CLASS_NAME, methodName, "613", new Object[] { Integer.valueOf(actualInFlight) });
+			int inFlight = actualInFlight.get();
+			if (inFlight >= this.mqttConnection.getReceiveMaximum()) {
+				// @TRACE 613= sending {0} msgs at max inflight window
+				log.fine(CLASS_NAME, methodName, "613", new Object[] { Integer.valueOf(inFlight) });
 
-					throw new MqttException(MqttClientException.REASON_CODE_MAX_INFLIGHT);
-				}
-
-				MqttMessage innerMessage = ((MqttPublish) message).getMessage();
-				// @TRACE 628=pending publish key={0} qos={1} message={2}
-				log.fine(CLASS_NAME, methodName, "628", new Object[] { Integer.valueOf(message.getMessageId()),
-						Integer.valueOf(innerMessage.getQos()), message });
+				throw new MqttException(MqttClientException.REASON_CODE_MAX_INFLIGHT);
+			}
 
-				switch (innerMessage.getQos()) {
-				case 2:
-					outboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
-					persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-					break;
-				case 1:
-					outboundQoS1.put(Integer.valueOf(message.getMessageId()), message);
-					persistence.put(getSendPersistenceKey(message), (MqttPublish) message);
-					break;
-				}
-				tokenStore.saveToken(token, message);
-				pendingMessages.addElement(message);
-				queueLock.notifyAll();
+			MqttMessage innerMessage = ((MqttPublish) message).getMessage();
+			// @TRACE 628=pending publish key={0} qos={1} message={2}
+			log.fine(CLASS_NAME, methodName, "628", new Object[] { Integer.valueOf(message.getMessageId()),
+					Integer.valueOf(innerMessage.getQos()), message });
+
+			switch (innerMessage.getQos()) {
+			case 2:
+				outboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
+				persist(getSendPersistenceKey(message), (MqttPublish) message);
+				break;
+			case 1:
+				outboundQoS1.put(Integer.valueOf(message.getMessageId()), message);
+				persist(getSendPersistenceKey(message), (MqttPublish) message);
+				break;
 			}
+			// The token must be in place before the sender can see the message
+			tokenStore.saveToken(token, message);
+			pending.addMessage(message);
 		} else {
 			// @TRACE 615=pending send key={0} message {1}
 			log.fine(CLASS_NAME, methodName, "615", new Object[] { Integer.valueOf(message.getMessageId()), message });
 
 			if (message instanceof MqttConnect) {
-				synchronized (queueLock) {
-					// Add the connect action at the head of the pending queue ensuring it jumps
-					// ahead of any of other pending actions.
-					tokenStore.saveToken(token, message);
-					pendingFlows.insertElementAt(message, 0);
-					queueLock.notifyAll();
-				}
+				// Add the connect action at the head of the pending queue ensuring it jumps
+				// ahead of any of other pending actions.
+				tokenStore.saveToken(token, message);
+				pending.addFlowFirst(message);
 			} else {
 				if (message instanceof MqttPingReq) {
 					this.pingCommand = message;
 				} else if (message instanceof MqttPubRel) {
 					outboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
-					persistence.put(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
+					persist(getSendConfirmPersistenceKey(message), (MqttPubRel) message);
 				} else if (message instanceof MqttPubComp) {
 					persistence.remove(getReceivedPersistenceKey(message));
 				}
 
-				synchronized (queueLock) {
-					if (!(message instanceof MqttAck)) {
-						tokenStore.saveToken(token, message);
+				if (!(message instanceof MqttAck)) {
+					tokenStore.saveToken(token, message);
+				}
+				pending.addFlow(message);
+			}
+		}
+	}
+
+	/**
+	 * Queues a batch of PUBLISH messages in one step. The message IDs for the
+	 * whole batch are claimed together, the tokens are saved under one lock and
+	 * the messages join the queue as one contiguous run, which the sender writes
+	 * out before flushing. Either every message is queued or, if an exception is
+	 * thrown, none is.
+	 * <p>
+	 * Unlike {@link #send(MqttWireMessage, MqttToken)}, which only refuses a
+	 * message when the in-flight window is already full, the batch is refused
+	 * unless the whole of it fits in the window alongside the messages in flight
+	 * and the other batches still queued. Its slots are reserved until the
+	 * sender takes each message.
+	 * </p>
+	 *
+	 * @param messages
+	 *            the messages to send, in order
+	 * @param tokens
+	 *            the token for each message
+	 * @throws MqttException
+	 *             if the batch does not fit in the window, there are not enough
+	 *             message IDs free, or a message could not be persisted
+	 */
+	public void sendBatch(MqttPublish[] messages, MqttToken[] tokens) throws MqttException {
+		final String methodName = "sendBatch";
+		int reserved;
+		do {
+			reserved = reservedInFlight.get();
+			int inFlight = actualInFlight.get() + reserved;
+			if (inFlight + messages.length > this.mqttConnection.getReceiveMaximum()) {
+				// @TRACE 613= sending {0} msgs at max inflight window
+				log.fine(CLASS_NAME, methodName, "613", new Object[] { Integer.valueOf(inFlight) });
+
+				throw new MqttException(MqttClientException.REASON_CODE_MAX_INFLIGHT);
+			}
+		} while (!reservedInFlight.compareAndSet(reserved, reserved + messages.length));
+		int[] ids = new int[messages.length];
+		if (!messageIds.allocate(ids, messages.length)) {
+			reservedInFlight.addAndGet(-messages.length);
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+		// @TRACE 671=pending publish batch of {0} messages, first key={1}
+		log.fine(CLASS_NAME, methodName, "671",
+				new Object[] { Integer.valueOf(messages.length), Integer.valueOf(ids[0]) });
+
+		int prepared = 0;
+		try {
+			for (; prepared < messages.length; prepared++) {
+				MqttPublish message = messages[prepared];
+				message.setMessageId(ids[prepared]);
+				tokens[prepared].internalTok.setMessageID(ids[prepared]);
+				tokens[prepared].internalTok.setMoreInBatch(prepared < messages.length - 1);
+				tokens[prepared].internalTok.setWindowReserved(true);
+
+				MqttMessage innerMessage = message.getMessage();
+				// @TRACE 628=pending publish key={0} qos={1} message={2}
+				log.fine(CLASS_NAME, methodName, "628", new Object[] { Integer.valueOf(message.getMessageId()),
+						Integer.valueOf(innerMessage.getQos()), message });
+
+				switch (innerMessage.getQos()) {
+				case 2:
+					outboundQoS2.put(Integer.valueOf(message.getMessageId()), message);
+					persist(getSendPersistenceKey(message), message);
+					break;
+				case 1:
+					outboundQoS1.put(Integer.valueOf(message.getMessageId()), message);
+					persist(getSendPersistenceKey(message), message);
+					break;
+				}
+			}
+			// The tokens must be in place before the sender can see the messages
+			tokenStore.saveTokens(tokens, messages);
+		} catch (MqttException e) {
+			for (int i = 0; i < messages.length; i++) {
+				if (i <= prepared) {
+					outboundQoS1.remove(Integer.valueOf(ids[i]));
+					outboundQoS2.remove(Integer.valueOf(ids[i]));
+					tokens[i].internalTok.setWindowReserved(false);
+					if (messages[i].getMessage().getQos() > 0) {
+						try {
+							persistence.remove(getSendPersistenceKey(messages[i]));
+						} catch (MqttPersistenceException removeFailure) {
+							// Report why the batch failed, not the clean up
+							e.addSuppressed(removeFailure);
+						}
 					}
-					pendingFlows.addElement(message);
-					queueLock.notifyAll();
 				}
+				releaseMessageId(ids[i]);
+				messages[i].setMessageId(0);
 			}
+			reservedInFlight.addAndGet(-messages.length);
+			throw e;
 		}
+		pending.addMessages(Arrays.asList(messages));
+	}
+
+	/**
+	 * Sets the policy used to give Topic Aliases to published topics, starting
+	 * afresh with no aliases. Called before the sender starts.
+	 * 
+	 * @param policy
+	 *            the policy
+	 */
+	public void setTopicAliasPolicy(TopicAliasPolicy policy) {
+		outgoingTopicAliases = new OutgoingTopicAliases(policy, metrics);
+	}
+
+	private void persist(String key, MqttPersistable message) throws MqttPersistenceException {
+		long start = System.nanoTime();
+		persistence.put(key, message);
+		metrics.getPersistenceLatency().record(System.nanoTime() - start);
 	}
 
 	/*
@@ -650,6 +745,21 @@ public class ClientState implements MqttState {
 
 	}
 
+	/**
+	 * Undoes {@link #persistBufferedMessage(MqttWireMessage)} for a message which
+	 * could not be buffered after all, freeing its message ID.
+	 * 
+	 * @param message
+	 *            the message which was persisted but not buffered
+	 */
+	void discardBufferedMessage(MqttWireMessage message) {
+		unPersistBufferedMessage(message);
+		if (message.getMessageId() != 0) {
+			releaseMessageId(message.getMessageId());
+			message.setMessageId(0);
+		}
+	}
+
 	/**
 	 * This removes the MqttSend message from the outbound queue and persistence.
 	 * 
@@ -660,28 +770,28 @@ public class ClientState implements MqttState {
 	 */
 	protected void undo(MqttPublish message) throws MqttPersistenceException {
 		final String methodName = "undo";
-		synchronized (queueLock) {
-			// @TRACE 618=key={0} QoS={1}
-			log.fine(CLASS_NAME, methodName, "618", new Object[] { Integer.valueOf(message.getMessageId()),
-					Integer.valueOf(message.getMessage().getQos()) });
-
-			if (message.getMessage().getQos() == 1) {
-				outboundQoS1.remove(Integer.valueOf(message.getMessageId()));
-			} else {
-				outboundQoS2.remove(Integer.valueOf(message.getMessageId()));
-			}
-			pendingMessages.removeElement(message);
-			persistence.remove(getSendPersistenceKey(message));
-			tokenStore.removeToken(message);
-			if (message.getMessage().getQos() > 0) {
-				// Free this message Id so it can be used again
-				releaseMessageId(message.getMessageId());
-				// Set the messageId to 0 so if it's ever retried, it will get a new messageId
-				message.setMessageId(0);
-			}
+		// @TRACE 618=key={0} QoS={1}
+		log.fine(CLASS_NAME, methodName, "618", new Object[] { Integer.valueOf(message.getMessageId()),
+				Integer.valueOf(message.getMessage().getQos()) });
 
-			checkQuiesceLock();
+		if (message.getMessage().getQos() == 1) {
+			outboundQoS1.remove(Integer.valueOf(message.getMessageId()));
+		} else {
+			outboundQoS2.remove(Integer.valueOf(message.getMessageId()));
+		}
+		if (pending.removeMessage(message)) {
+			releaseWindowReservation(message);
+		}
+		persistence.remove(getSendPersistenceKey(message));
+		tokenStore.removeToken(message);
+		if (message.getMessage().getQos() > 0) {
+			// Free this message Id so it can be used again
+			releaseMessageId(message.getMessageId());
+			// Set the messageId to 0 so if it's ever retried, it will get a new messageId
+			message.setMessageId(0);
 		}
+
+		checkQuiesceLock();
 	}
 
 	/*
@@ -696,12 +806,15 @@ public class ClientState implements MqttState {
 		// @TRACE 616=checkForActivity entered
 		log.fine(CLASS_NAME, methodName, "616", new Object[] {});
 
-		synchronized (quiesceLock) {
+		quiesceLock.lock();
+		try {
 			// ref bug: https://bugs.eclipse.org/bugs/show_bug.cgi?id=440698
 			// No ping while quiescing
 			if (quiescing) {
 				return null;
 			}
+		} finally {
+			quiesceLock.unlock();
 		}
 
 		MqttToken token = null;
@@ -783,12 +896,11 @@ public class ClientState implements MqttState {
 						token.setActionCallback(pingCallback);
 					}
 					tokenStore.saveToken(token, pingCommand);
-					pendingFlows.insertElementAt(pingCommand, 0);
+					// Adding the ping wakes the sender thread since it may be waiting in
+					// ClientState.get()
+					pending.addFlowFirst(pingCommand);
 
 					nextPingTime = keepAlive;
-
-					// Wake sender thread since it may be in wait state (in ClientState.get())
-					notifyQueueLock();
 				} else {
 					log.fine(CLASS_NAME, methodName, "634", null);
 					nextPingTime = Math.max(1, keepAlive - (time - lastOutboundActivity));
@@ -817,79 +929,164 @@ public class ClientState implements MqttState {
 		final String methodName = "get";
 		MqttWireMessage result = null;
 
-		synchronized (queueLock) {
-			while (result == null) {
-
-				// If there is no work wait until there is work.
-				// If the inflight window is full and no flows are pending wait until space is
-				// freed.
-				// In both cases queueLock will be notified.
-				if ((pendingMessages.isEmpty() && pendingFlows.isEmpty())
-						|| (pendingFlows.isEmpty() && actualInFlight >= this.mqttConnection.getReceiveMaximum())) {
-					try {
-						// @TRACE 644=wait for new work or for space in the inflight window
-						log.fine(CLASS_NAME, methodName, "644");
+		while (result == null) {
 
-						queueLock.wait();
+			// If there is no work wait until there is work.
+			// If the inflight window is full and no flows are pending wait until space is
+			// freed.
+			// In both cases the sender is woken by the OutboundQueue.
+			if (isSenderIdle()) {
+				// @TRACE 644=wait for new work or for space in the inflight window
+				log.fine(CLASS_NAME, methodName, "644");
 
-						// @TRACE 647=new work or ping arrived
-						log.fine(CLASS_NAME, methodName, "647");
-					} catch (InterruptedException e) {
-					}
-				}
+				pending.await(this::isSenderIdle);
 
-				// Handle the case where not connected. This should only be the case if:
-				// - in the process of disconnecting / shutting down
-				// - in the process of connecting
-				if (pendingFlows == null || (!connected && (pendingFlows.isEmpty()
-						|| !((MqttWireMessage) pendingFlows.elementAt(0) instanceof MqttConnect)))) {
-					// @TRACE 621=no outstanding flows and not connected
-					log.fine(CLASS_NAME, methodName, "621");
+				// @TRACE 647=new work or ping arrived
+				log.fine(CLASS_NAME, methodName, "647");
+			}
 
-					return null;
+			// Handle the case where not connected. This should only be the case if:
+			// - in the process of disconnecting / shutting down
+			// - in the process of connecting
+			if (!connected && !(pending.peekFlow() instanceof MqttConnect)) {
+				if (isAwaitingConnack()) {
+					// Woken before the CONNECT was queued or before the CONNACK
+					// arrived, so wait for either or for the connect to fail
+					pending.await(this::isAwaitingConnack);
+					continue;
 				}
+				// @TRACE 621=no outstanding flows and not connected
+				log.fine(CLASS_NAME, methodName, "621");
 
-				// Check if there is a need to send a ping to keep the session alive.
-				// Note this check is done before processing messages. If not done first
-				// an app that only publishes QoS 0 messages will prevent keepalive processing
-				// from functioning.
-				// checkForActivity(); //Use pinger, don't check here
-
-				// Now process any queued flows or messages
-				if (!pendingFlows.isEmpty()) {
-					// Process the first "flow" in the queue
-					result = (MqttWireMessage) pendingFlows.remove(0);
-					if (result instanceof MqttPubRel) {
-						inFlightPubRels++;
-
-						// @TRACE 617=+1 inflightpubrels={0}
-						log.fine(CLASS_NAME, methodName, "617", new Object[] { Integer.valueOf(inFlightPubRels) });
-					}
+				return null;
+			}
 
-					checkQuiesceLock();
-				} else if (!pendingMessages.isEmpty()) {
+			// Check if there is a need to send a ping to keep the session alive.
+			// Note this check is done before processing messages. If not done first
+			// an app that only publishes QoS 0 messages will prevent keepalive processing
+			// from functioning.
+			// checkForActivity(); //Use pinger, don't check here
 
-					// If the inflight window is full then messages are not
-					// processed until the inflight window has space.
-					if (actualInFlight < this.mqttConnection.getReceiveMaximum()) {
-						// The in flight window is not full so process the
-						// first message in the queue
-						result = (MqttWireMessage) pendingMessages.elementAt(0);
-						pendingMessages.removeElementAt(0);
-						actualInFlight++;
+			// Now process any queued flows or messages
+			result = takeNext();
+		} // end while
+		return result;
+	}
 
-						// @TRACE 623=+1 actualInFlight={0}
-						log.fine(CLASS_NAME, methodName, "623", new Object[] { Integer.valueOf(actualInFlight) });
-					} else {
-						// @TRACE 622=inflight window full
-						log.fine(CLASS_NAME, methodName, "622");
+	/**
+	 * Takes the next message the sender may send without waiting: the first
+	 * pending flow or, if the inflight window has space, the first pending
+	 * message.
+	 *
+	 * @return the message, or null if there is nothing which can be sent
+	 */
+	private MqttWireMessage takeNext() {
+		final String methodName = "takeNext";
+		MqttWireMessage result = pending.pollFlow();
+		if (result != null) {
+			// Process the first "flow" in the queue
+			if (result instanceof MqttPubRel) {
+				int pubRels = inFlightPubRels.incrementAndGet();
+
+				// @TRACE 617=+1 inflightpubrels={0}
+				log.fine(CLASS_NAME, methodName, "617", new Object[] { Integer.valueOf(pubRels) });
+			}
+
+			checkQuiesceLock();
+		} else if (pending.hasMessages()) {
+
+			// If the inflight window is full then messages are not
+			// processed until the inflight window has space. Only this
+			// thread takes from the window, so it cannot be over-filled.
+			if (actualInFlight.get() < this.mqttConnection.getReceiveMaximum()) {
+				// The in flight window is not full so process the
+				// first message in the queue
+				result = pending.pollMessage();
+				if (result != null) {
+					releaseWindowReservation(result);
+					// Aliases are given here, in the order the messages are sent
+					if (result instanceof MqttPublish) {
+						outgoingTopicAliases.apply((MqttPublish) result,
+								mqttConnection.getOutgoingTopicAliasMaximum());
 					}
+					int inFlight = actualInFlight.incrementAndGet();
+
+					// @TRACE 623=+1 actualInFlight={0}
+					log.fine(CLASS_NAME, methodName, "623", new Object[] { Integer.valueOf(inFlight) });
 				}
-			} // end while
-		} // synchronized
+			} else {
+				// @TRACE 622=inflight window full
+				log.fine(CLASS_NAME, methodName, "622");
+			}
+		}
 		return result;
 	}
 
+	/**
+	 * Gives up the window slot reserved for a batch message, now that the sender
+	 * has taken it and it counts as in flight.
+	 */
+	private void releaseWindowReservation(MqttWireMessage message) {
+		if (reservedInFlight.get() > 0) {
+			MqttToken token = tokenStore.getToken(message);
+			if (token != null && token.internalTok.releaseWindowReservation()) {
+				reservedInFlight.updateAndGet(reserved -> Math.max(0, reserved - 1));
+			}
+		}
+	}
+
+	/**
+	 * Returns the next message for the CommsSender to add to a batch which it
+	 * has already started. Unlike {@link #get()} this does not wait for work
+	 * indefinitely or send a CONNECT: if nothing can be sent within the linger
+	 * time, or the client is not connected, null is returned and the sender
+	 * flushes what it has.
+	 * 
+	 * @param lingerNanos
+	 *            how long to wait for more work, in nanoseconds, which may be 0
+	 * @return the next message to send, or null if there is none
+	 */
+	protected MqttWireMessage poll(long lingerNanos) {
+		if (!connected) {
+			return null;
+		}
+		MqttWireMessage result = takeNext();
+		if (result == null && lingerNanos > 0) {
+			long deadline = System.nanoTime() + lingerNanos;
+			long remaining = lingerNanos;
+			while (result == null && remaining > 0 && connected) {
+				pending.await(this::isSenderIdle, remaining);
+				result = takeNext();
+				remaining = deadline - System.nanoTime();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return true while connecting, if the CONNECT has not been queued yet or
+	 *         has been sent and the CONNACK has not arrived
+	 */
+	private boolean isAwaitingConnack() {
+		ClientComms comms = clientComms;
+		return !connected && !(pending.peekFlow() instanceof MqttConnect) && comms != null && comms.isConnecting();
+	}
+
+	/**
+	 * Not connected counts as not idle, so that a sender which checked the
+	 * connection just before {@link #disconnected(MqttException)} does not then
+	 * park and miss the wake up from stopping the sender.
+	 *
+	 * @return true if the sender is connected and has nothing it is allowed to
+	 *         send
+	 */
+	private boolean isSenderIdle() {
+		if (!connected || pending.hasFlows()) {
+			return false;
+		}
+		return !pending.hasMessages() || actualInFlight.get() >= this.mqttConnection.getReceiveMaximum();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -900,6 +1097,7 @@ public class ClientState implements MqttState {
 		final String methodName = "notifySentBytes";
 		if (sentBytesCount > 0) {
 			this.lastOutboundActivity = System.nanoTime();
+			metrics.bytesSent(sentBytesCount);
 		}
 		// @TRACE 643=sent bytes count={0}
 		log.fine(CLASS_NAME, methodName, "643", new Object[] { Integer.valueOf(sentBytesCount) });
@@ -914,12 +1112,21 @@ public class ClientState implements MqttState {
 	protected void notifySent(MqttWireMessage message) {
 		final String methodName = "notifySent";
 
-		this.lastOutboundActivity = System.nanoTime();
+		long now = System.nanoTime();
+		this.lastOutboundActivity = now;
 		// @TRACE 625=key={0}
 		log.fine(CLASS_NAME, methodName, "625", new Object[] { message.getKey() });
 
+		int qos = -1;
+		if (message instanceof MqttPublish) {
+			qos = ((MqttPublish) message).getMessage().getQos();
+			metrics.messageSent(qos);
+		}
 		MqttToken token = tokenStore.getToken(message);
 		if (token == null) return;
+		if (qos > 0) {
+			token.internalTok.setSentNanos(now);
+		}
 		token.internalTok.notifySent();
 		if (message instanceof MqttPingReq) {
 			synchronized (pingOutstandingLock) {
@@ -936,6 +1143,7 @@ public class ClientState implements MqttState {
 				// once a QoS 0 message is sent we can clean up its records straight away as
 				// we won't be hearing about it again
 				token.internalTok.markComplete(null, null);
+				token.internalTok.notifyComplete();
 				callback.asyncOperationComplete(token);
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
@@ -947,14 +1155,13 @@ public class ClientState implements MqttState {
 
 	private void decrementInFlight() {
 		final String methodName = "decrementInFlight";
-		synchronized (queueLock) {
-			actualInFlight--;
-			// @TRACE 646=-1 actualInFlight={0}
-			log.fine(CLASS_NAME, methodName, "646", new Object[] { Integer.valueOf(actualInFlight) });
+		int inFlight = actualInFlight.decrementAndGet();
+		// @TRACE 646=-1 actualInFlight={0}
+		log.fine(CLASS_NAME, methodName, "646", new Object[] { Integer.valueOf(inFlight) });
 
-			if (!checkQuiesceLock()) {
-				queueLock.notifyAll();
-			}
+		if (!checkQuiesceLock()) {
+			// There is space in the inflight window
+			pending.wakeUp();
 		}
 	}
 
@@ -963,15 +1170,18 @@ public class ClientState implements MqttState {
 		// if (quiescing && actualInFlight == 0 && pendingFlows.size() == 0 &&
 		// inFlightPubRels == 0 && callback.isQuiesced()) {
 		int tokC = tokenStore.count();
-		if (quiescing && tokC == 0 && pendingFlows.size() == 0 && callback.isQuiesced()) {
+		if (quiescing && tokC == 0 && !pending.hasFlows() && callback.isQuiesced()) {
 			// @TRACE 626=quiescing={0} actualInFlight={1} pendingFlows={2}
 			// inFlightPubRels={3} callbackQuiesce={4} tokens={5}
 			log.fine(CLASS_NAME, methodName, "626",
-					new Object[] { Boolean.valueOf(quiescing), Integer.valueOf(actualInFlight),
-							Integer.valueOf(pendingFlows.size()), Integer.valueOf(inFlightPubRels),
+					new Object[] { Boolean.valueOf(quiescing), Integer.valueOf(actualInFlight.get()),
+							Integer.valueOf(pending.getFlows().size()), Integer.valueOf(inFlightPubRels.get()),
 							Boolean.valueOf(callback.isQuiesced()), Integer.valueOf(tokC) });
-			synchronized (quiesceLock) {
-				quiesceLock.notifyAll();
+			quiesceLock.lock();
+			try {
+				quiesced.signalAll();
+			} finally {
+				quiesceLock.unlock();
 			}
 			return true;
 		}
@@ -989,6 +1199,7 @@ public class ClientState implements MqttState {
 		final String methodName = "notifyReceivedBytes";
 		if (receivedBytesCount > 0) {
 			this.lastInboundActivity = System.nanoTime();
+			metrics.bytesReceived(receivedBytesCount);
 		}
 		// @TRACE 630=received bytes count={0}
 		log.fine(CLASS_NAME, methodName, "630", new Object[] { Integer.valueOf(receivedBytesCount) });
@@ -1036,6 +1247,12 @@ public class ClientState implements MqttState {
 					new MqttProperties());
 			this.send(rel, token);
 		} else if (ack instanceof MqttPubAck || ack instanceof MqttPubComp) {
+			long sent = token.internalTok.getSentNanos();
+			if (sent != 0) {
+				LatencyHistogram latency = ack instanceof MqttPubAck ? metrics.getPubAckLatency()
+						: metrics.getPubCompLatency();
+				latency.record(System.nanoTime() - sent);
+			}
 
 			// QoS 1 & 2 notify users of result before removing from
 			// persistence
@@ -1057,18 +1274,19 @@ public class ClientState implements MqttState {
 
 			int rc = ((MqttConnAck) ack).getReturnCode();
 			if (rc == 0) {
-				synchronized (queueLock) {
-					if (cleanStart) {
-						clearState();
-						// Add the connect token back in so that users can be
-						// notified when connect completes.
-						tokenStore.saveToken(token, ack);
-					}
-					inFlightPubRels = 0;
-					actualInFlight = 0;
-					restoreInflightMessages();
-					connected();
+				// The sender thread is not woken until connected, so it cannot see the
+				// restored messages while the client still appears disconnected.
+				if (cleanStart) {
+					clearState();
+					// Add the connect token back in so that users can be
+					// notified when connect completes.
+					tokenStore.saveToken(token, ack);
 				}
+				inFlightPubRels.set(0);
+				actualInFlight.set(0);
+				reservedInFlight.set(0);
+				restoreInflightMessages();
+				connected();
 			} else {
 
 				mex = ExceptionHelper.createMqttException(rc);
@@ -1080,9 +1298,7 @@ public class ClientState implements MqttState {
 			tokenStore.removeToken(ack);
 
 			// Notify the sender thread that there maybe work for it to do now
-			synchronized (queueLock) {
-				queueLock.notifyAll();
-			}
+			pending.wakeUp();
 		} else {
 			notifyResult(ack, token, mex);
 			releaseMessageId(ack.getMessageId());
@@ -1143,15 +1359,34 @@ public class ClientState implements MqttState {
 					new Object[] { pubRel.getMessageId(), pubRel.toString(), pubRel.getReasonCodes()[0] });
 			throw new MqttException(pubRel.getReasonCodes()[0]);
 		} else {
-			// Currently this client has no need of the properties, so this is left empty.
-			MqttPubComp pubComp = new MqttPubComp(MqttReturnCode.RETURN_CODE_SUCCESS, pubRel.getMessageId(),
-					new MqttProperties());
-			// @TRACE 668=Creating MqttPubComp: {0}
-			log.info(CLASS_NAME, methodName, "668", new Object[] { pubComp.toString() });
-			this.send(pubComp, null);
+			if (callback != null && callback.deferPubComp(pubRel.getMessageId())) {
+				// The callback sends the PUBCOMP once messageArrived has returned
+				// @TRACE 669=PUBCOMP deferred until messageArrived returns key={0}
+				log.fine(CLASS_NAME, methodName, "669", new Object[] { Integer.valueOf(pubRel.getMessageId()) });
+				return;
+			}
+			sendPubComp(pubRel.getMessageId());
 		}
 	}
 
+	/**
+	 * Completes the delivery of an in-bound QoS 2 message by sending its
+	 * PUBCOMP.
+	 * 
+	 * @param messageId
+	 *            The message id of the PUBREL being answered
+	 * @throws MqttException
+	 *             When an exception occurs whilst sending the PUBCOMP
+	 */
+	protected void sendPubComp(int messageId) throws MqttException {
+		final String methodName = "sendPubComp";
+		// Currently this client has no need of the properties, so this is left empty.
+		MqttPubComp pubComp = new MqttPubComp(MqttReturnCode.RETURN_CODE_SUCCESS, messageId, new MqttProperties());
+		// @TRACE 668=Creating MqttPubComp: {0}
+		log.info(CLASS_NAME, methodName, "668", new Object[] { pubComp.toString() });
+		this.send(pubComp, null);
+	}
+
 	/**
 	 * Called by the CommsReceiver when a message has been received. Handles inbound
 	 * messages and other flows such as PUBREL.
@@ -1198,7 +1433,7 @@ public class ClientState implements MqttState {
 						incomingTopicAliases.put(send.getProperties().getTopicAlias(), send.getTopicName());
 					} else {
 						// No Topic String, so must be in incomingTopicAliases.
-						if (incomingTopicAliases.contains(incomingTopicAlias)) {
+						if (incomingTopicAliases.containsKey(incomingTopicAlias)) {
 							send.setTopicName(incomingTopicAliases.get(incomingTopicAlias));
 						} else {
 							// @TRACE 654=Unknown Topic Alias: Incoming Alias={1}
@@ -1209,6 +1444,7 @@ public class ClientState implements MqttState {
 					}
 				}
 
+				metrics.messageReceived(send.getMessage().getQos());
 				switch (send.getMessage().getQos()) {
 				case 0:
 				case 1:
@@ -1217,7 +1453,7 @@ public class ClientState implements MqttState {
 					}
 					break;
 				case 2:
-					persistence.put(getReceivedPersistenceKey(message), (MqttPublish) message);
+					persist(getReceivedPersistenceKey(message), (MqttPublish) message);
 					inboundQoS2.put(Integer.valueOf(send.getMessageId()), send);
 					if (callback != null) {
 						callback.messageArrived(send);
@@ -1281,14 +1517,14 @@ public class ClientState implements MqttState {
 				persistence.remove(getSendBufferedPersistenceKey(message));
 				outboundQoS2.remove(Integer.valueOf(ack.getMessageId()));
 
-				inFlightPubRels--;
+				int pubRels = inFlightPubRels.decrementAndGet();
 				decrementInFlight();
 				releaseMessageId(message.getMessageId());
 				tokenStore.removeToken(message);
 
 				// @TRACE 645=removed QoS 2 publish/pubrel. key={0}, -1 inFlightPubRels={1}
 				log.fine(CLASS_NAME, methodName, "645",
-						new Object[] { Integer.valueOf(ack.getMessageId()), Integer.valueOf(inFlightPubRels) });
+						new Object[] { Integer.valueOf(ack.getMessageId()), Integer.valueOf(pubRels) });
 			}
 
 			checkQuiesceLock();
@@ -1374,10 +1610,13 @@ public class ClientState implements MqttState {
 		Enumeration<MqttToken> outTE = outT.elements();
 		while (outTE.hasMoreElements()) {
 			MqttToken tok = (MqttToken) outTE.nextElement();
-			synchronized (tok) {
+			tok.internalTok.lockFlow();
+			try {
 				if (!tok.isComplete() && !tok.internalTok.isCompletePending() && tok.getException() == null) {
 					tok.internalTok.setException(shutReason);
 				}
+			} finally {
+				tok.internalTok.unlockFlow();
 			}
 			if (!(tok.internalTok.isDeliveryToken())) {
 				// If not a delivery token it is not valid on
@@ -1410,8 +1649,7 @@ public class ClientState implements MqttState {
 
 			clearConnectionState();
 
-			pendingMessages.clear();
-			pendingFlows.clear();
+			pending.clear();
 			synchronized (pingOutstandingLock) {
 				// Reset pingOutstanding to allow reconnects to assume no previous ping.
 				pingOutstanding = 0;
@@ -1428,8 +1666,8 @@ public class ClientState implements MqttState {
 	 * @param msgId
 	 *            A message ID that can be freed up for re-use.
 	 */
-	private synchronized void releaseMessageId(int msgId) {
-		inUseMsgIds.remove(Integer.valueOf(msgId));
+	private void releaseMessageId(int msgId) {
+		messageIds.release(msgId);
 	}
 
 	/**
@@ -1438,26 +1676,12 @@ public class ClientState implements MqttState {
 	 * 
 	 * @return the next MQTT message ID to use
 	 */
-	private synchronized int getNextMessageId() throws MqttException {
-		int startingMessageId = nextMsgId;
-		// Allow two complete passes of the message ID range. This gives
-		// any asynchronous releases a chance to occur
-		int loopCount = 0;
-		do {
-			nextMsgId++;
-			if (nextMsgId > MAX_MSG_ID) {
-				nextMsgId = MIN_MSG_ID;
-			}
-			if (nextMsgId == startingMessageId) {
-				loopCount++;
-				if (loopCount == 2) {
-					throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
-				}
-			}
-		} while (inUseMsgIds.containsKey(Integer.valueOf(nextMsgId)));
-		Integer id = Integer.valueOf(nextMsgId);
-		inUseMsgIds.put(id, id);
-		return nextMsgId;
+	private int getNextMessageId() throws MqttException {
+		int id = messageIds.allocate();
+		if (id == 0) {
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_NO_MESSAGE_IDS_AVAILABLE);
+		}
+		return id;
 	}
 
 	/*
@@ -1472,43 +1696,41 @@ public class ClientState implements MqttState {
 		if (timeout > 0) {
 			// @TRACE 637=timeout={0}
 			log.fine(CLASS_NAME, methodName, "637", new Object[] { Long.valueOf(timeout) });
-			synchronized (queueLock) {
-				this.quiescing = true;
-			}
+			this.quiescing = true;
 			// We don't want to handle any new inbound messages
 			callback.quiesce();
 			notifyQueueLock();
 
-			synchronized (quiesceLock) {
-				try {
-					// If token count is not zero there is outbound work to process and
-					// if pending flows is not zero there is outstanding work to complete and
-					// if call back is not quiseced there it needs to complete.
-					int tokc = tokenStore.count();
-					if (tokc > 0 || pendingFlows.size() > 0 || !callback.isQuiesced()) {
-						// @TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1}
-						// inFlightPubRels={2} tokens={3}
-						log.fine(CLASS_NAME, methodName, "639",
-								new Object[] { Integer.valueOf(actualInFlight), Integer.valueOf(pendingFlows.size()),
-										Integer.valueOf(inFlightPubRels), Integer.valueOf(tokc) });
-
-						// wait for outstanding in flight messages to complete and
-						// any pending flows to complete
-						quiesceLock.wait(timeout);
-					}
-				} catch (InterruptedException ex) {
-					// Don't care, as we're shutting down anyway
+			quiesceLock.lock();
+			try {
+				// If token count is not zero there is outbound work to process and
+				// if pending flows is not zero there is outstanding work to complete and
+				// if call back is not quiseced there it needs to complete.
+				int tokc = tokenStore.count();
+				if (tokc > 0 || pending.hasFlows() || !callback.isQuiesced()) {
+					// @TRACE 639=wait for outstanding: actualInFlight={0} pendingFlows={1}
+					// inFlightPubRels={2} tokens={3}
+					log.fine(CLASS_NAME, methodName, "639",
+							new Object[] { Integer.valueOf(actualInFlight.get()),
+									Integer.valueOf(pending.getFlows().size()), Integer.valueOf(inFlightPubRels.get()),
+									Integer.valueOf(tokc) });
+
+					// wait for outstanding in flight messages to complete and
+					// any pending flows to complete
+					quiesced.await(timeout, TimeUnit.MILLISECONDS);
 				}
+			} catch (InterruptedException ex) {
+				// Don't care, as we're shutting down anyway
+			} finally {
+				quiesceLock.unlock();
 			}
 
 			// Quiesce time up or inflight messages delivered. Ensure pending delivery
 			// vectors are cleared ready for disconnect to be sent as the final flow.
-			synchronized (queueLock) {
-				pendingMessages.clear();
-				pendingFlows.clear();
-				quiescing = false;
-				actualInFlight = 0;
-			}
+			pending.clear();
+			quiescing = false;
+			actualInFlight.set(0);
+			reservedInFlight.set(0);
 			// @TRACE 640=finished
 			log.fine(CLASS_NAME, methodName, "640");
 		}
@@ -1522,11 +1744,9 @@ public class ClientState implements MqttState {
 	@Override
 	public void notifyQueueLock() {
 		final String methodName = "notifyQueueLock";
-		synchronized (queueLock) {
-			// @TRACE 638=notifying queueLock holders
-			log.fine(CLASS_NAME, methodName, "638");
-			queueLock.notifyAll();
-		}
+		// @TRACE 638=notifying queueLock holders
+		log.fine(CLASS_NAME, methodName, "638");
+		pending.wakeUp();
 	}
 
 	protected void deliveryComplete(MqttPublish message) throws MqttPersistenceException {
@@ -1556,7 +1776,7 @@ public class ClientState implements MqttState {
 	 */
 	@Override
 	public int getActualInFlight() {
-		return actualInFlight;
+		return actualInFlight.get();
 	}
 	
 	public Long getOutgoingMaximumPacketSize() {
@@ -1572,19 +1792,14 @@ public class ClientState implements MqttState {
 	 * disconnect / connect cycle.
 	 */
 	protected void close() {
-		inUseMsgIds.clear();
-		if (pendingMessages != null) {
-			pendingMessages.clear();
-		}
-		pendingFlows.clear();
+		messageIds.clear();
+		pending.clear();
 		outboundQoS2.clear();
 		outboundQoS1.clear();
 		outboundQoS0.clear();
 		inboundQoS2.clear();
 		tokenStore.clear();
-		inUseMsgIds = null;
-		pendingMessages = null;
-		pendingFlows = null;
+		messageIds = null;
 		outboundQoS2 = null;
 		outboundQoS1 = null;
 		outboundQoS0 = null;
@@ -1596,6 +1811,27 @@ public class ClientState implements MqttState {
 		pingCommand = null;
 	}
 
+	/**
+	 * @return the number of messages waiting to be sent
+	 */
+	public int getPendingMessageCount() {
+		return pending.getMessages().size();
+	}
+
+	/**
+	 * @return the number of control packets waiting to be sent
+	 */
+	public int getPendingFlowCount() {
+		return pending.getFlows().size();
+	}
+
+	/**
+	 * @return the number of messages sent and not yet acknowledged
+	 */
+	public int getInFlightCount() {
+		return actualInFlight.get();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1604,13 +1840,13 @@ public class ClientState implements MqttState {
 	@Override
 	public Properties getDebug() {
 		Properties props = new Properties();
-		props.put("In use msgids", inUseMsgIds);
-		props.put("pendingMessages", pendingMessages);
-		props.put("pendingFlows", pendingFlows);
+		props.put("In use msgids", messageIds.toString());
+		props.put("pendingMessages", pending.getMessages());
+		props.put("pendingFlows", pending.getFlows());
 		props.put("serverReceiveMaximum", Integer.valueOf(this.mqttConnection.getReceiveMaximum()));
-		props.put("nextMsgID", Integer.valueOf(nextMsgId));
-		props.put("actualInFlight", Integer.valueOf(actualInFlight));
-		props.put("inFlightPubRels", Integer.valueOf(inFlightPubRels));
+		props.put("nextMsgID", Integer.valueOf(messageIds.getNext()));
+		props.put("actualInFlight", Integer.valueOf(actualInFlight.get()));
+		props.put("inFlightPubRels", Integer.valueOf(inFlightPubRels.get()));
 		props.put("quiescing", Boolean.valueOf(quiescing));
 		props.put("pingoutstanding", Integer.valueOf(pingOutstanding));
 		props.put("lastOutboundActivity", Long.valueOf(lastOutboundActivity));
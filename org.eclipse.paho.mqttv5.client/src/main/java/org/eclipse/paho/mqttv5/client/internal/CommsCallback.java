@@ -19,12 +19,19 @@
 package org.eclipse.paho.mqttv5.client.internal;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.eclipse.paho.mqttv5.client.BackpressurePolicy;
 import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttCallback;
@@ -42,7 +49,6 @@ import org.eclipse.paho.mqttv5.common.packet.MqttPubComp;
 import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
 import org.eclipse.paho.mqttv5.common.packet.MqttReturnCode;
 import org.eclipse.paho.mqttv5.common.packet.UserProperty;
-import org.eclipse.paho.mqttv5.common.util.MqttTopicValidator;
 
 /**
  * Bridge between Receiver and the external API. This class gets called by
@@ -54,11 +60,17 @@ public class CommsCallback implements Runnable {
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
 	private static final int INBOUND_QUEUE_SIZE = 10;
+	// The results of deliverMessage
+	private static final int NOT_DELIVERED = 0;
+	private static final int DELIVERED = 1;
+	// Delivered to a MessagePublisher, which sends the acknowledgement
+	private static final int ACK_DEFERRED = 2;
 	private MqttCallback mqttCallback;
 	private MqttCallback reconnectInternalCallback;
-	private HashMap<Integer, IMqttMessageListener> callbackMap; // Map of message handler callbacks to internal IDs
-	private HashMap<String, Integer> callbackTopicMap; // Map of Topic Strings to internal callback Ids
-	private HashMap<Integer, Integer> subscriptionIdMap; // Map of Subscription Ids to callback Ids
+	private Map<Integer, IMqttMessageListener> callbackMap; // Map of message handler callbacks to internal IDs
+	private Map<String, Integer> callbackTopicMap; // Map of Topic Strings to internal callback Ids
+	private Map<Integer, Integer> subscriptionIdMap; // Map of Subscription Ids to callback Ids
+	private TopicFilterTrie<Integer> callbackTopicTrie; // Topic filters indexed by level, to internal callback Ids
 	private AtomicInteger messageHandlerId = new AtomicInteger(0);
 	private ClientComms clientComms;
 	private ArrayList<MqttPublish> messageQueue;
@@ -68,24 +80,36 @@ public class CommsCallback implements Runnable {
 
 	private State current_state = State.STOPPED;
 	private State target_state = State.STOPPED;	
-	private final Object lifecycle = new Object();
+	private final ReentrantLock lifecycle = new ReentrantLock();
+	// Signalled whenever current_state or target_state changes
+	private final Condition stateChanged = lifecycle.newCondition();
 	private Thread callbackThread;
 	private String threadName;
 	private Future<?> callbackFuture;
 	
-	private final Object workAvailable = new Object();
-	private final Object spaceAvailable = new Object();
+	// Guards messageQueue and completeQueue
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private final Condition workAvailable = queueLock.newCondition();
+	private final Condition spaceAvailable = queueLock.newCondition();
 	private ClientState clientState;
 	private boolean manualAcks = false;
+	private int queueSize = INBOUND_QUEUE_SIZE;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+	private MessageDispatcher dispatcher; // Delivers messages on worker threads, if configured
+	// QoS 2 messages waiting to be delivered, TRUE once their PUBREL has arrived
+	private final Map<Integer, Boolean> qos2InDelivery = new ConcurrentHashMap<>();
+	// Run once when space next becomes available, for a receiver which must not wait
+	private final AtomicReference<Runnable> spaceListener = new AtomicReference<>();
 
 
 	CommsCallback(ClientComms clientComms) {
 		this.clientComms = clientComms;
 		this.messageQueue = new ArrayList<>(INBOUND_QUEUE_SIZE);
 		this.completeQueue = new ArrayList<>(INBOUND_QUEUE_SIZE);
-		this.callbackMap = new HashMap<>();
-		this.callbackTopicMap = new HashMap<>();
-		this.subscriptionIdMap = new HashMap<>();
+		this.callbackMap = new ConcurrentHashMap<>();
+		this.callbackTopicMap = new ConcurrentHashMap<>();
+		this.subscriptionIdMap = new ConcurrentHashMap<>();
+		this.callbackTopicTrie = new TopicFilterTrie<>();
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
@@ -93,6 +117,29 @@ public class CommsCallback implements Runnable {
 		this.clientState = clientState;
 	}
 
+	/**
+	 * Sets how arriving messages are delivered to the application. This takes
+	 * effect the next time the callback is started.
+	 * 
+	 * @param threads
+	 *            the number of worker threads, or 0 to deliver messages on the
+	 *            callback thread
+	 * @param queueSize
+	 *            the number of messages which may wait for delivery, per worker
+	 * @param policy
+	 *            what to do with a message which arrives when the queue is full
+	 */
+	public void setDispatchOptions(int threads, int queueSize, BackpressurePolicy policy) {
+		lifecycle.lock();
+		try {
+			this.queueSize = queueSize;
+			this.backpressurePolicy = policy;
+			this.dispatcher = threads > 0 ? new MessageDispatcher(this, clientComms, threads, queueSize, policy) : null;
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
 	/**
 	 * Starts up the Callback thread.
 	 * 
@@ -103,25 +150,36 @@ public class CommsCallback implements Runnable {
 	 */
 	public void start(String threadName, ExecutorService executorService) {
 		this.threadName = threadName;
-		synchronized (lifecycle) {
+		lifecycle.lock();
+		try {
 			if (current_state == State.STOPPED) {
 				// Preparatory work before starting the background thread.
 				// For safety ensure any old events are cleared.
-				synchronized (workAvailable) {
+				queueLock.lock();
+				try {
 					messageQueue.clear();
 					completeQueue.clear();
+				} finally {
+					queueLock.unlock();
 				}
+				qos2InDelivery.clear();
 				target_state = State.RUNNING;
 				if (executorService == null) {
 					new Thread(this).start();
 				} else {
 					callbackFuture = executorService.submit(this);
 				}
+				if (dispatcher != null) {
+					dispatcher.start(threadName, executorService);
+				}
 			}
+			// Wait for the thread to start, unless it has already been told to stop
+			while (!isRunning() && target_state == State.RUNNING) {
+				stateChanged.awaitUninterruptibly();
+			}
+		} finally {
+			lifecycle.unlock();
 		}
-		while (!isRunning()) {
-			try { Thread.sleep(100); } catch (Exception e) { }
-		}			
 	}
 
 	/**
@@ -129,34 +187,38 @@ public class CommsCallback implements Runnable {
 	 */
 	public void stop() {
 		final String methodName = "stop";
-		synchronized (lifecycle) {
+		lifecycle.lock();
+		try {
 			if (callbackFuture != null) {
 				callbackFuture.cancel(true);
 			}
+		} finally {
+			lifecycle.unlock();
+		}
+		MessageDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null) {
+			dispatcher.stop();
 		}
 		if (isRunning()) {
 			// @TRACE 700=stopping
 			log.fine(CLASS_NAME, methodName, "700");
-			synchronized (lifecycle) {
-				target_state = State.STOPPED;
-			}
+			setTargetState(State.STOPPED);
 			if (!Thread.currentThread().equals(callbackThread)) {
-				synchronized (workAvailable) {
+				queueLock.lock();
+				try {
 					// @TRACE 701=notify workAvailable and wait for run
 					// to finish
 					log.fine(CLASS_NAME, methodName, "701");
-					workAvailable.notifyAll();
-				}
-				// Wait for the thread to finish.
-				while (isRunning()) {
-					try { Thread.sleep(100); } catch (Exception e) { }
-					clientState.notifyQueueLock();
+					workAvailable.signalAll();
+				} finally {
+					queueLock.unlock();
 				}
 			}
 			callbackThread = null;
 			// @TRACE 703=stopped
 			log.fine(CLASS_NAME, methodName, "703");
 		}
+		spaceFreed();
 	}
 
 	public void setCallback(MqttCallback mqttCallback) {
@@ -176,21 +238,22 @@ public class CommsCallback implements Runnable {
 		callbackThread = Thread.currentThread();
 		callbackThread.setName(threadName);
 		
-		synchronized (lifecycle) {
-			current_state = State.RUNNING;
-		}
+		setCurrentState(State.RUNNING);
 
 		while (isRunning()) {
 			try {
 				// If no work is currently available, then wait until there is some...
 				try {
-					synchronized (workAvailable) {
+					queueLock.lock();
+					try {
 						if (isRunning() && messageQueue.isEmpty()
 								&& completeQueue.isEmpty()) {
 							// @TRACE 704=wait for workAvailable
 							log.fine(CLASS_NAME, methodName, "704");
-							workAvailable.wait();
+							workAvailable.await();
 						}
+					} finally {
+						queueLock.unlock();
 					}
 				} catch (InterruptedException e) {
 				}
@@ -198,12 +261,15 @@ public class CommsCallback implements Runnable {
 				if (isRunning()) {
 					// Check for deliveryComplete callbacks...
 					MqttToken token = null;
-					synchronized (workAvailable) {
+					queueLock.lock();
+					try {
 						if (!completeQueue.isEmpty()) {
 							// First call the delivery arrived callback if needed
 							token = completeQueue.get(0);
 							completeQueue.remove(0);
 						}
+					} finally {
+						queueLock.unlock();
 					}
 					if (null != token) {
 						handleActionComplete(token);
@@ -211,7 +277,8 @@ public class CommsCallback implements Runnable {
 
 					// Check for messageArrived callbacks...
 					MqttPublish message = null;
-					synchronized (workAvailable) {
+					queueLock.lock();
+					try {
 						if (!messageQueue.isEmpty()) {
 							// Note, there is a window on connect where a publish
 							// could arrive before we've
@@ -219,6 +286,8 @@ public class CommsCallback implements Runnable {
 							message = messageQueue.get(0);
 							messageQueue.remove(0);
 						}
+					} finally {
+						queueLock.unlock();
 					}
 					if (null != message) {
 						handleMessage(message);
@@ -238,25 +307,28 @@ public class CommsCallback implements Runnable {
 				clientComms.shutdownConnection(null, new MqttException(ex), null);
 			} finally {
 
-			    synchronized (spaceAvailable) {
+			    queueLock.lock();
+			    try {
                     // Notify the spaceAvailable lock, to say that there's now
                     // some space on the queue...
 
 					// @TRACE 706=notify spaceAvailable
 					log.fine(CLASS_NAME, methodName, "706");
-					spaceAvailable.notifyAll();
-				}
+					spaceAvailable.signalAll();
+			    } finally {
+			    	queueLock.unlock();
+			    }
+				spaceFreed();
 			}
 		}
-		synchronized (lifecycle) {
-			current_state = State.STOPPED;
-		}
+		setCurrentState(State.STOPPED);
 		callbackThread = null;
 	}
 
 	private void handleActionComplete(MqttToken token) throws MqttException {
 		final String methodName = "handleActionComplete";
-		synchronized (token) {
+		token.internalTok.lockFlow();
+		try {
 			// @TRACE 705=callback and notify for key={0}
 			log.fine(CLASS_NAME, methodName, "705", new Object[] { token.internalTok.getKey() });
 			if (token.isComplete()) {
@@ -292,6 +364,8 @@ public class CommsCallback implements Runnable {
 				}
 			}
 
+		} finally {
+			token.internalTok.unlockFlow();
 		}
 	}
 
@@ -375,32 +449,137 @@ public class CommsCallback implements Runnable {
 	public void messageArrived(MqttPublish sendMessage) {
 		final String methodName = "messageArrived";
 		if (mqttCallback != null || callbackMap.size() > 0) {
+			sendMessage.setArrivalNanos(System.nanoTime());
+			boolean deferPubComp = !manualAcks && sendMessage.getMessage().getQos() == 2;
+			if (deferPubComp) {
+				qos2InDelivery.putIfAbsent(Integer.valueOf(sendMessage.getMessageId()), Boolean.FALSE);
+			}
+			MessageDispatcher dispatcher = this.dispatcher;
+			if (dispatcher != null) {
+				if (isQuiescing() || !dispatcher.dispatch(sendMessage, () -> !isRunning() || isQuiescing())) {
+					discarded(sendMessage, deferPubComp);
+				}
+				return;
+			}
 			// If we already have enough messages queued up in memory, wait
 			// until some more queue space becomes available. This helps
 			// the client protect itself from getting flooded by messages
 			// from the server.
-			synchronized (spaceAvailable) {
-				while (isRunning() && !isQuiescing() && messageQueue.size() >= INBOUND_QUEUE_SIZE) {
+			queueLock.lock();
+			try {
+				while (isRunning() && !isQuiescing() && messageQueue.size() >= queueSize) {
+					if (backpressurePolicy == BackpressurePolicy.DROP_QOS0 && sendMessage.getMessage().getQos() == 0) {
+						// @TRACE 728=discarded message key={0} topic={1}, callback queue full
+						log.fine(CLASS_NAME, methodName, "728", new Object[] {
+								Integer.valueOf(sendMessage.getMessageId()), sendMessage.getTopicName() });
+						return;
+					}
 					try {
 						// @TRACE 709=wait for spaceAvailable
 						log.fine(CLASS_NAME, methodName, "709");
-						spaceAvailable.wait(200);
+						spaceAvailable.await(200, TimeUnit.MILLISECONDS);
 					} catch (InterruptedException ex) {
 					}
 				}
+			} finally {
+				queueLock.unlock();
 			}
 			if (!isQuiescing()) {
 				// Notify the CommsCallback thread that there's work to do...
-				synchronized (workAvailable) {
+				queueLock.lock();
+				try {
 					messageQueue.add(sendMessage);
 					// @TRACE 710=new msg avail, notify workAvailable
 					log.fine(CLASS_NAME, methodName, "710");
-					workAvailable.notifyAll();
+					workAvailable.signalAll();
+				} finally {
+					queueLock.unlock();
 				}
+			} else {
+				discarded(sendMessage, deferPubComp);
 			}
 		}
 	}
 
+	/**
+	 * Tells a receiver which must not wait, such as one driven by a
+	 * {@link NIONetworkModule}, whether {@link #messageArrived(MqttPublish)}
+	 * would take the message without waiting for space. The answer holds only
+	 * while the caller is the one thread adding messages.
+	 *
+	 * @param message
+	 *            the message about to arrive
+	 * @return true if the message can be passed on now
+	 */
+	boolean canAccept(MqttPublish message) {
+		if (mqttCallback == null && callbackMap.isEmpty()) {
+			return true;
+		}
+		if (!isRunning() || isQuiescing()
+				|| (backpressurePolicy == BackpressurePolicy.DROP_QOS0 && message.getMessage().getQos() == 0)) {
+			return true;
+		}
+		MessageDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null) {
+			return dispatcher.canAccept(message);
+		}
+		queueLock.lock();
+		try {
+			return messageQueue.size() < queueSize;
+		} finally {
+			queueLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the listener once there is space for the message, or straight away
+	 * if there already is. Replaces any listener still waiting.
+	 *
+	 * @param listener
+	 *            run on the thread which frees the space, so must not block
+	 * @param message
+	 *            the message waiting for space
+	 */
+	void notifyWhenSpace(Runnable listener, MqttPublish message) {
+		spaceListener.set(listener);
+		// The space may have been freed before the listener was set
+		if (canAccept(message)) {
+			spaceFreed();
+		}
+	}
+
+	/**
+	 * Called whenever a message leaves the queues, or the callback stops.
+	 */
+	void spaceFreed() {
+		if (spaceListener.get() != null) {
+			Runnable listener = spaceListener.getAndSet(null);
+			if (listener != null) {
+				listener.run();
+			}
+		}
+	}
+
+	private void discarded(MqttPublish sendMessage, boolean deferPubComp) {
+		if (deferPubComp) {
+			qos2InDelivery.remove(Integer.valueOf(sendMessage.getMessageId()));
+		}
+	}
+
+	/**
+	 * Called when a PUBREL arrives for an in-bound QoS 2 message. If the message
+	 * is still waiting to be delivered, or is being delivered, the PUBCOMP is
+	 * left to be sent once the application's callback has returned, so that the
+	 * server does not consider the message delivered before it has been.
+	 * 
+	 * @param messageId
+	 *            the message id of the PUBREL
+	 * @return true if the PUBCOMP will be sent by the callback
+	 */
+	boolean deferPubComp(int messageId) {
+		return qos2InDelivery.replace(Integer.valueOf(messageId), Boolean.FALSE, Boolean.TRUE);
+	}
+
 	/**
 	 * This method is called when an Auth Message is received.
 	 * 
@@ -449,42 +628,88 @@ public class CommsCallback implements Runnable {
 	 */
 	public void quiesce() {
 		final String methodName = "quiesce";
-		synchronized (lifecycle) {
-			if (current_state == State.RUNNING)
-			current_state = State.QUIESCING;
+		lifecycle.lock();
+		try {
+			if (current_state == State.RUNNING) {
+				current_state = State.QUIESCING;
+				stateChanged.signalAll();
+			}
+		} finally {
+			lifecycle.unlock();
 		}
-		synchronized (spaceAvailable) {
+		queueLock.lock();
+		try {
 			// @TRACE 711=quiesce notify spaceAvailable
 			log.fine(CLASS_NAME, methodName, "711");
 			// Unblock anything waiting for space...
-			spaceAvailable.notifyAll();
+			spaceAvailable.signalAll();
+		} finally {
+			queueLock.unlock();
 		}
+		spaceFreed();
+	}
+
+	/**
+	 * @return the number of arrived messages waiting for their callback
+	 */
+	public int getQueueDepth() {
+		int depth;
+		queueLock.lock();
+		try {
+			depth = messageQueue.size();
+		} finally {
+			queueLock.unlock();
+		}
+		MessageDispatcher dispatcher = this.dispatcher;
+		return dispatcher == null ? depth : depth + dispatcher.queued();
 	}
 
 	boolean areQueuesEmpty() {
-		synchronized (workAvailable) {
-			return completeQueue.isEmpty() && messageQueue.isEmpty();
+		queueLock.lock();
+		try {
+			if (!completeQueue.isEmpty() || !messageQueue.isEmpty()) {
+				return false;
+			}
+		} finally {
+			queueLock.unlock();
 		}
+		MessageDispatcher dispatcher = this.dispatcher;
+		return dispatcher == null || dispatcher.isIdle();
+	}
+
+	void checkQuiesceLock() {
+		clientState.checkQuiesceLock();
 	}
 
 	public boolean isQuiesced() {
 		return (isQuiescing() && areQueuesEmpty());
 	}
 
-	private void handleMessage(MqttPublish publishMessage) throws Exception {
+	void handleMessage(MqttPublish publishMessage) throws Exception {
 		final String methodName = "handleMessage";
 		// If quisecing process any pending messages.
 		String destName = publishMessage.getTopicName();
+		long arrived = publishMessage.getArrivalNanos();
+		if (arrived != 0) {
+			clientComms.getMetrics().getCallbackQueueWait().record(System.nanoTime() - arrived);
+		}
 
 		// @TRACE 713=call messageArrived key={0} topic={1}
 		log.fine(CLASS_NAME, methodName, "713", new Object[] { Integer.valueOf(publishMessage.getMessageId()), destName });
-		deliverMessage(destName, publishMessage.getMessageId(), publishMessage.getMessage());
+		int delivery = deliverMessage(destName, publishMessage.getMessageId(), publishMessage.getMessage());
 
 		// If we are not in manual ACK mode:
-		if (!this.manualAcks && publishMessage.getMessage().getQos() == 1) {
+		if (delivery == ACK_DEFERRED) {
+			// The publisher acknowledges the message once its subscriber has taken it
+		} else if (!this.manualAcks && publishMessage.getMessage().getQos() == 1) {
 			this.clientComms.internalSend(new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS,
 					publishMessage.getMessageId(), new MqttProperties()),
 					new MqttToken(clientComms.getClient().getClientId()));
+		} else if (!this.manualAcks && publishMessage.getMessage().getQos() == 2) {
+			// Send the PUBCOMP now if its PUBREL arrived during delivery
+			if (Boolean.TRUE.equals(qos2InDelivery.remove(Integer.valueOf(publishMessage.getMessageId())))) {
+				clientState.sendPubComp(publishMessage.getMessageId());
+			}
 		}
 	}
 
@@ -503,16 +728,44 @@ public class CommsCallback implements Runnable {
 		}
 	}
 
+	/**
+	 * Acknowledges a message which was held by a {@link MessagePublisher} until
+	 * its subscriber asked for it. A QoS 2 message is completed by sending its
+	 * PUBCOMP if its PUBREL has already arrived, or else when the PUBREL
+	 * arrives.
+	 * 
+	 * @param messageId
+	 *            the message id
+	 * @param qos
+	 *            the QoS of the message
+	 * @throws MqttException
+	 *             if the acknowledgement could not be sent
+	 */
+	void deferredAckComplete(int messageId, int qos) throws MqttException {
+		if (qos == 1) {
+			this.clientComms.internalSend(
+					new MqttPubAck(MqttReturnCode.RETURN_CODE_SUCCESS, messageId, new MqttProperties()),
+					new MqttToken(clientComms.getClient().getClientId()));
+		} else if (qos == 2) {
+			if (Boolean.TRUE.equals(qos2InDelivery.remove(Integer.valueOf(messageId)))) {
+				clientState.sendPubComp(messageId);
+			}
+		}
+	}
+
 	public void asyncOperationComplete(MqttToken token) {
 		final String methodName = "asyncOperationComplete";
 
 		if (isRunning()) {
 			// invoke callbacks on callback thread
-			synchronized (workAvailable) {
+			queueLock.lock();
+			try {
 				completeQueue.add(token);
 				// @TRACE 715=new workAvailable. key={0}
 				log.fine(CLASS_NAME, methodName, "715", new Object[] { token.internalTok.getKey() });
-				workAvailable.notifyAll();
+				workAvailable.signalAll();
+			} finally {
+				queueLock.unlock();
 			}
 		} else {
 			// invoke async callback on invokers thread
@@ -544,6 +797,7 @@ public class CommsCallback implements Runnable {
 		int internalId = messageHandlerId.incrementAndGet();
 		this.callbackMap.put(internalId, messageListener);
 		this.callbackTopicMap.put(topicFilter, internalId);
+		this.callbackTopicTrie.put(topicFilter, internalId);
 
 		if (subscriptionId != null) {
 			this.subscriptionIdMap.put(subscriptionId, internalId);
@@ -560,16 +814,18 @@ public class CommsCallback implements Runnable {
 	 *            the topic filter that identifies the Message listener to remove.
 	 */
 	public void removeMessageListener(String topicFilter) {
-		Integer callbackId = this.callbackTopicMap.get(topicFilter);
-		this.callbackMap.remove(callbackId);
-		this.callbackTopicMap.remove(topicFilter);
+		if (topicFilter == null) {
+			return;
+		}
+		Integer callbackId = this.callbackTopicMap.remove(topicFilter);
+		if (callbackId == null) {
+			return;
+		}
+		removed(this.callbackMap.remove(callbackId));
+		this.callbackTopicTrie.remove(topicFilter);
 
 		// Reverse lookup the subscription ID if it exists to remove that as well
-		for (Map.Entry<Integer, Integer> entry : this.subscriptionIdMap.entrySet()) {
-			if (entry.getValue().equals(callbackId)) {
-				this.subscriptionIdMap.remove(entry.getKey());
-			}
-		}
+		this.subscriptionIdMap.values().remove(callbackId);
 	}
 
 	/**
@@ -583,34 +839,75 @@ public class CommsCallback implements Runnable {
 	 *            remove.
 	 */
 	public void removeMessageListener(Integer subscriptionId) {
-		Integer callbackId = this.subscriptionIdMap.get(subscriptionId);
-		this.subscriptionIdMap.remove(callbackId);
-		this.callbackMap.remove(callbackId);
+		if (subscriptionId == null) {
+			return;
+		}
+		Integer callbackId = this.subscriptionIdMap.remove(subscriptionId);
+		if (callbackId == null) {
+			return;
+		}
+		removed(this.callbackMap.remove(callbackId));
 
 		// Reverse lookup the topic if it exists to remove that as well
-		for (Map.Entry<String, Integer> entry : this.callbackTopicMap.entrySet()) {
+		Iterator<Map.Entry<String, Integer>> entries = this.callbackTopicMap.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Integer> entry = entries.next();
 			if (entry.getValue().equals(callbackId)) {
-				this.callbackTopicMap.remove(entry.getKey());
+				entries.remove();
+				this.callbackTopicTrie.remove(entry.getKey());
 			}
 		}
 	}
 
 	public void removeMessageListeners() {
+		List<IMqttMessageListener> listeners = new ArrayList<>(this.callbackMap.values());
 		this.callbackMap.clear();
 		this.subscriptionIdMap.clear();
 		this.callbackTopicMap.clear();
+		this.callbackTopicTrie.clear();
+		for (IMqttMessageListener listener : listeners) {
+			removed(listener);
+		}
 	}
 
-	protected boolean deliverMessage(String topicName, int messageId, MqttMessage aMessage) throws Exception {
+	/**
+	 * Tells a publisher that its subscription has gone, so that it completes.
+	 */
+	private void removed(IMqttMessageListener listener) {
+		if (listener instanceof MessagePublisher) {
+			((MessagePublisher) listener).complete();
+		}
+	}
+
+	/**
+	 * Delivers a message to the listeners whose subscriptions it matches, or
+	 * else to the client callback.
+	 * 
+	 * @return {@link #NOT_DELIVERED}, {@link #DELIVERED}, or
+	 *         {@link #ACK_DEFERRED} if a publisher took the message and will
+	 *         acknowledge it itself
+	 */
+	protected int deliverMessage(String topicName, int messageId, MqttMessage aMessage) throws Exception {
 		boolean delivered = false;
+		boolean ackDeferred = false;
 		String methodName = "deliverMessage";
 
 		if (aMessage.getProperties().getSubscriptionIdentifiers().isEmpty()) {
 			// No Subscription IDs, use topic filter matching
-			for (Map.Entry<String, Integer> entry : this.callbackTopicMap.entrySet()) {
-				if (MqttTopicValidator.isMatched(entry.getKey(), topicName)) {
+			List<Integer> callbackIds = new ArrayList<>(2);
+			this.callbackTopicTrie.match(topicName, callbackIds);
+			for (Integer callbackId : callbackIds) {
+				// The listener may have been removed since the match
+				IMqttMessageListener listener = this.callbackMap.get(callbackId);
+				if (listener instanceof MessagePublisher) {
 					aMessage.setId(messageId);
-					this.callbackMap.get(entry.getValue()).messageArrived(topicName, aMessage);
+					// Only one publisher may acknowledge the message
+					((MessagePublisher) listener).offer(topicName, aMessage, !manualAcks && !ackDeferred);
+					ackDeferred = !manualAcks;
+					delivered = true;
+				} else if (listener != null) {
+					aMessage.setId(messageId);
+					listener.messageArrived(topicName, aMessage);
 					delivered = true;
 				}
 			}
@@ -618,10 +915,17 @@ public class CommsCallback implements Runnable {
 		} else {
 			// We have Subscription IDs
 			for (Integer subId : aMessage.getProperties().getSubscriptionIdentifiers()) {
-				if (this.subscriptionIdMap.containsKey(subId)) {
-					Integer callbackId = this.subscriptionIdMap.get(subId);
+				Integer callbackId = this.subscriptionIdMap.get(subId);
+				IMqttMessageListener listener = callbackId == null ? null : this.callbackMap.get(callbackId);
+				if (listener instanceof MessagePublisher) {
+					aMessage.setId(messageId);
+					// Only one publisher may acknowledge the message
+					((MessagePublisher) listener).offer(topicName, aMessage, !manualAcks && !ackDeferred);
+					ackDeferred = !manualAcks;
+					delivered = true;
+				} else if (listener != null) {
 					aMessage.setId(messageId);
-					this.callbackMap.get(callbackId).messageArrived(topicName, aMessage);
+					listener.messageArrived(topicName, aMessage);
 					delivered = true;
 				}
 			}
@@ -643,7 +947,7 @@ public class CommsCallback implements Runnable {
 			delivered = true;
 		}
 
-		return delivered;
+		return ackDeferred ? ACK_DEFERRED : delivered ? DELIVERED : NOT_DELIVERED;
 	}
 
 	public boolean doesSubscriptionIdentifierExist(int subscriptionIdentifier) {
@@ -651,20 +955,42 @@ public class CommsCallback implements Runnable {
 	}
 
 	public boolean isRunning() {
-		boolean result;
-		synchronized (lifecycle) {
-			result = ((current_state == State.RUNNING || current_state == State.QUIESCING)
-					&& target_state == State.RUNNING);
+		lifecycle.lock();
+		try {
+			return (current_state == State.RUNNING || current_state == State.QUIESCING)
+					&& target_state == State.RUNNING;
+		} finally {
+			lifecycle.unlock();
 		}
-		return result;
 	}
 	
 	public boolean isQuiescing() {
-		boolean result;
-		synchronized (lifecycle) {
-			result = (current_state == State.QUIESCING);
+		lifecycle.lock();
+		try {
+			return current_state == State.QUIESCING;
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private void setCurrentState(State state) {
+		lifecycle.lock();
+		try {
+			current_state = state;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private void setTargetState(State state) {
+		lifecycle.lock();
+		try {
+			target_state = state;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
 		}
-		return result;
 	}
 	
 }
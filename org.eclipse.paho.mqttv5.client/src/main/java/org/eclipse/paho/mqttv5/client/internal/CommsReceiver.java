@@ -17,18 +17,30 @@ package org.eclipse.paho.mqttv5.client.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.MqttToken;
 import org.eclipse.paho.mqttv5.client.logging.Logger;
 import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
+import org.eclipse.paho.mqttv5.client.wire.MqttClientPacketDecoder;
 import org.eclipse.paho.mqttv5.client.wire.MqttInputStream;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.packet.MqttAck;
 import org.eclipse.paho.mqttv5.common.packet.MqttDisconnect;
+import org.eclipse.paho.mqttv5.common.packet.MqttPacketDecoder;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
 import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+import org.eclipse.paho.mqttv5.common.packet.SizeClassBufferPool;
 
 /**
  * Receives MQTT packets from the server.
@@ -39,9 +51,14 @@ public class CommsReceiver implements Runnable {
 
 	private enum State {STOPPED, RUNNING, STARTING, RECEIVING}
 
+	/** Packets decoded but not yet handled above which reading is paused. */
+	static final int INBOUND_LIMIT = 64;
+
 	private State current_state = State.STOPPED;
 	private State target_state = State.STOPPED;
-	private final Object lifecycle = new Object();
+	private final ReentrantLock lifecycle = new ReentrantLock();
+	// Signalled whenever current_state or target_state changes
+	private final Condition stateChanged = lifecycle.newCondition();
 	private String threadName;
 	private Future<?> receiverFuture;
 	
@@ -50,6 +67,38 @@ public class CommsReceiver implements Runnable {
 	private MqttInputStream in;
 	private CommsTokenStore tokenStore = null;
 	private Thread recThread = null;
+	private volatile MqttToken token = null;
+
+	// Used when the packets are pushed to the receiver by a NIONetworkModule
+	// rather than read by the receiver's own thread.
+	private NIONetworkModule networkModule = null;
+	private ExecutorService executorService = null;
+	private MqttPacketDecoder decoder = null;
+	private CommsCallback callback = null;
+	// Packets decoded by the event loop, handled in order by one task at a
+	// time on the handler, as handling may wait for persistence
+	private Executor handler = null;
+	private final Queue<MqttWireMessage> inbound = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger inboundCount = new AtomicInteger(0);
+	private final AtomicBoolean handling = new AtomicBoolean(false);
+	private final AtomicBoolean readingHeld = new AtomicBoolean(false);
+	private final Runnable handleInbound = new Runnable() {
+		public void run() {
+			handleInbound();
+		}
+	};
+	private final Runnable spaceAvailable = new Runnable() {
+		public void run() {
+			handler.execute(handleInbound);
+		}
+	};
+	private final Runnable resumeReading = new Runnable() {
+		public void run() {
+			if (isRunning()) {
+				networkModule.resumeReading();
+			}
+		}
+	};
 
 	public CommsReceiver(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, InputStream in) {
 		this.in = new MqttInputStream(clientState, in, clientComms.getClient().getClientId());
@@ -59,6 +108,33 @@ public class CommsReceiver implements Runnable {
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
+	/**
+	 * Creates a receiver which is driven by the event loop of the network
+	 * module instead of a thread of its own.
+	 *
+	 * @param clientComms
+	 *            the {@link ClientComms}
+	 * @param clientState
+	 *            the {@link ClientState}
+	 * @param tokenStore
+	 *            the {@link CommsTokenStore}
+	 * @param callback
+	 *            the {@link CommsCallback}, asked whether it has space before
+	 *            each message is passed on, as the handler must not wait
+	 * @param networkModule
+	 *            the network module which will deliver the received data
+	 */
+	public CommsReceiver(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore,
+			CommsCallback callback, NIONetworkModule networkModule) {
+		this.networkModule = networkModule;
+		this.callback = callback;
+		this.decoder = new MqttClientPacketDecoder(clientState, SizeClassBufferPool.getDefault());
+		this.clientComms = clientComms;
+		this.clientState = clientState;
+		this.tokenStore = tokenStore;
+		log.setResourceName(clientComms.getClient().getClientId());
+	}
+
 	/**
 	 * Starts up the Receiver's thread.
 	 * 
@@ -72,7 +148,25 @@ public class CommsReceiver implements Runnable {
 		final String methodName = "start";
 		// @TRACE 855=starting
 		log.fine(CLASS_NAME, methodName, "855");
-		synchronized (lifecycle) {
+		lifecycle.lock();
+		try {
+			if (networkModule != null) {
+				// No thread is needed, the network module pushes data to us
+				this.executorService = executorService;
+				this.handler = executorService != null ? executorService : networkModule.getWorkers();
+				target_state = State.RUNNING;
+				current_state = State.RUNNING;
+				networkModule.setReceiver(new NIONetworkModule.Receiver() {
+					public void dataReceived(ByteBuffer data) {
+						CommsReceiver.this.dataReceived(data);
+					}
+
+					public void connectionLost(IOException cause) {
+						CommsReceiver.this.connectionLost(cause);
+					}
+				});
+				return;
+			}
 			if (current_state == State.STOPPED && target_state == State.STOPPED) {
 				target_state = State.RUNNING;
 				if (executorService == null) {
@@ -81,9 +175,12 @@ public class CommsReceiver implements Runnable {
 					receiverFuture = executorService.submit(this);
 				}
 			}
-		}
-		while (!isRunning()) {
-			try { Thread.sleep(100); } catch (Exception e) { }
+			// Wait for the thread to start, unless it has already been told to stop
+			while (!isRunning() && target_state == State.RUNNING) {
+				stateChanged.awaitUninterruptibly();
+			}
+		} finally {
+			lifecycle.unlock();
 		}
 	}
 
@@ -92,7 +189,8 @@ public class CommsReceiver implements Runnable {
 	 */
 	public void stop() {
 		final String methodName = "stop";
-		synchronized (lifecycle) {
+		lifecycle.lock();
+		try {
 			if (receiverFuture != null) {
 				receiverFuture.cancel(true);
 			}
@@ -101,9 +199,12 @@ public class CommsReceiver implements Runnable {
 			if (isRunning()) {
 				target_state = State.STOPPED;
 			}
-		}
-		while (isRunning()) {
-			try { Thread.sleep(100); } catch (Exception e) { }
+			if (networkModule != null) {
+				current_state = State.STOPPED;
+			}
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
 		}
 		//@TRACE 851=stopped
 		log.fine(CLASS_NAME,methodName,"851");
@@ -116,68 +217,28 @@ public class CommsReceiver implements Runnable {
 		recThread = Thread.currentThread();
 		recThread.setName(threadName);
 		final String methodName = "run";
-		MqttToken token = null;
 
-		synchronized (lifecycle) {
-			current_state = State.RUNNING;
-		}
+		setCurrentState(State.RUNNING);
 		
 		try {
 			State my_target;
-			synchronized (lifecycle) {
-				my_target = target_state;
-			}
+			my_target = getTargetState();
 			while (my_target == State.RUNNING && (in != null)) {
 				try {
 					//@TRACE 852=network read message
 					log.fine(CLASS_NAME,methodName,"852");
 					if (in.available() > 0) {
-						synchronized (lifecycle) {
-							current_state = State.RECEIVING;
-						}
+						setCurrentState(State.RECEIVING);
 					}
 					MqttWireMessage message = in.readMqttWireMessage();
-					synchronized (lifecycle) {
-						current_state = State.RUNNING;
-					}
+					setCurrentState(State.RUNNING);
 
-					// instanceof checks if message is null
-					if (message instanceof MqttAck) {
-						token = tokenStore.getToken(message);
-						if (token != null) {
-							synchronized (token) {
-								// Ensure the notify processing is done under a lock on the token
-								// This ensures that the send processing can complete before the
-								// receive processing starts! ( request and ack and ack processing
-								// can occur before request processing is complete if not!
-								clientState.notifyReceivedAck((MqttAck) message);
-							}
-						} else {
-							// This is an ack for a message we no longer have a ticket for.
-							log.fine(CLASS_NAME, methodName, "857");
-							clientState.handleOrphanedAcks((MqttAck) message);
-						} 
-					} else if (message != null && message instanceof MqttDisconnect) {
-						// This is a Disconnect Message
-						clientComms.shutdownConnection(null, new MqttException(MqttClientException.REASON_CODE_SERVER_DISCONNECTED, (MqttDisconnect) message), (MqttDisconnect) message);
-					} else {
-						if (message != null) {
-							// A new message has arrived
-							clientState.notifyReceivedMsg(message);
-						}
-                                                else {
-                                                    if (!clientComms.isConnected() && !clientComms.isConnecting()) {
-                                                         throw new IOException("Connection is lost.");
-                                                    }
-                                                }
-					}
+					handleMessage(message);
 				} 
 				catch (MqttException ex) {
 					// @TRACE 856=Stopping, MQttException
 					log.fine(CLASS_NAME, methodName, "856", null, ex);
-					synchronized (lifecycle) {
-						target_state = State.STOPPED;
-					}
+					setTargetState(State.STOPPED);
 					// Token maybe null but that is handled in shutdown
 					clientComms.shutdownConnection(token, ex, null);
 				} 
@@ -185,9 +246,7 @@ public class CommsReceiver implements Runnable {
 					// @TRACE 853=Stopping due to IOException
 					log.fine(CLASS_NAME, methodName, "853");
                                         if (target_state != State.STOPPED) {
-					    synchronized (lifecycle) {
-						target_state = State.STOPPED;
-					    }
+					    setTargetState(State.STOPPED);
 					    // An EOFException could be raised if the broker processes the
 					    // DISCONNECT and ends the socket before we complete. As such,
 					    // only shutdown the connection if we're not already shutting down.
@@ -198,18 +257,12 @@ public class CommsReceiver implements Runnable {
                                         }
 				}
 				finally {
-					synchronized (lifecycle) {
-						current_state = State.RUNNING;
-					}
-				}
-				synchronized (lifecycle) {
-					my_target = target_state;
+					setCurrentState(State.RUNNING);
 				}
+				my_target = getTargetState();
 			} // end while
 		} finally {
-			synchronized (lifecycle) {
-				current_state = State.STOPPED;
-			}
+			setCurrentState(State.STOPPED);
 		} // end try
 
 		recThread = null;
@@ -217,13 +270,205 @@ public class CommsReceiver implements Runnable {
 		log.fine(CLASS_NAME,methodName,"854");
 	}
 
+	/**
+	 * Decodes data pushed by the network module, and hands the packets to the
+	 * handler. Called on the event loop thread; a packet may span any number
+	 * of calls, including its fixed header.
+	 *
+	 * @param data
+	 *            the bytes read from the network
+	 */
+	void dataReceived(ByteBuffer data) {
+		final String methodName = "dataReceived";
+		if (!isRunning()) {
+			return;
+		}
+		clientState.notifyReceivedBytes(data.remaining());
+		try {
+			MqttWireMessage message;
+			while ((message = decoder.decode(data)) != null) {
+				// @TRACE 530= Received {0}
+				log.fine(CLASS_NAME, methodName, "530", new Object[] { message });
+				// The rest of the data must still be decoded, as it is only valid now
+				inbound.add(message);
+				inboundCount.incrementAndGet();
+			}
+			if (inboundCount.get() >= INBOUND_LIMIT) {
+				holdReading();
+			}
+			if (!inbound.isEmpty() && handling.compareAndSet(false, true)) {
+				handler.execute(handleInbound);
+			}
+			setCurrentState(decoder.isDecoding() ? State.RECEIVING : State.RUNNING);
+		} catch (MqttException ex) {
+			// @TRACE 856=Stopping, MQttException
+			log.fine(CLASS_NAME, methodName, "856", null, ex);
+			setTargetState(State.STOPPED);
+			// Token maybe null but that is handled in shutdown
+			shutdownConnection(token, ex, null);
+		}
+	}
+
+	/**
+	 * Stops reading until the handler has caught up, leaving the server held
+	 * back by TCP flow control. Runs on the event loop thread.
+	 */
+	private void holdReading() {
+		readingHeld.set(true);
+		networkModule.pauseReading();
+		// The handler may have caught up before it could see reading was held
+		if (inboundCount.get() <= INBOUND_LIMIT / 2 && readingHeld.compareAndSet(true, false)) {
+			networkModule.resumeReading();
+		}
+	}
+
+	/**
+	 * Processes the packets decoded by the event loop, in the order they
+	 * arrived. Runs on the handler, one task at a time, so that acks and
+	 * persistence never hold up the loop's other connections. When the
+	 * callback has no space the task ends, and another carries on once it has.
+	 */
+	private void handleInbound() {
+		final String methodName = "handleInbound";
+		try {
+			do {
+				MqttWireMessage message;
+				while ((message = inbound.peek()) != null) {
+					if (!isRunning()) {
+						inbound.clear();
+						inboundCount.set(0);
+						break;
+					}
+					if (!canHandle(message)) {
+						// Still handling, so the loop does not start another task meanwhile
+						callback.notifyWhenSpace(spaceAvailable, (MqttPublish) message);
+						return;
+					}
+					inbound.poll();
+					if (inboundCount.decrementAndGet() <= INBOUND_LIMIT / 2 && readingHeld.compareAndSet(true, false)) {
+						networkModule.execute(resumeReading);
+					}
+					handleMessage(message);
+				}
+				handling.set(false);
+				// A packet may have been added after the queue was seen to be empty
+			} while (!inbound.isEmpty() && handling.compareAndSet(false, true));
+		} catch (MqttException ex) {
+			// @TRACE 856=Stopping, MQttException
+			log.fine(CLASS_NAME, methodName, "856", null, ex);
+			setTargetState(State.STOPPED);
+			shutdownConnection(token, ex, null);
+		} catch (IOException ioe) {
+			connectionLost(ioe);
+		}
+	}
+
+	/**
+	 * @return true if handling the packet now cannot wait for the callback
+	 */
+	private boolean canHandle(MqttWireMessage message) {
+		return !(message instanceof MqttPublish) || callback.canAccept((MqttPublish) message);
+	}
+
+	/**
+	 * Called on the event loop thread when the network module can no longer
+	 * read from the network, or on the handler when a packet cannot be
+	 * handled.
+	 *
+	 * @param ioe
+	 *            the cause
+	 */
+	void connectionLost(IOException ioe) {
+		final String methodName = "connectionLost";
+		// @TRACE 853=Stopping due to IOException
+		log.fine(CLASS_NAME, methodName, "853");
+		lifecycle.lock();
+		try {
+			if (target_state == State.STOPPED) {
+				return;
+			}
+			target_state = State.STOPPED;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
+		}
+		if (!clientComms.isDisconnecting()) {
+			shutdownConnection(token, new MqttException(MqttClientException.REASON_CODE_CONNECTION_LOST, ioe), null);
+		}
+	}
+
+	/**
+	 * Shuts the connection down. When driven by an event loop the shutdown is
+	 * handed to another thread, as it waits for the other comms threads to
+	 * stop and must not hold up the loop or the handler.
+	 */
+	private void shutdownConnection(final MqttToken token, final MqttException reason, final MqttDisconnect message) {
+		if (networkModule == null) {
+			clientComms.shutdownConnection(token, reason, message);
+			return;
+		}
+		Runnable shutdown = new Runnable() {
+			public void run() {
+				clientComms.shutdownConnection(token, reason, message);
+			}
+		};
+		if (executorService == null) {
+			new Thread(shutdown, "MQTT Shutdown: " + clientComms.getClient().getClientId()).start();
+		} else {
+			executorService.execute(shutdown);
+		}
+	}
+
+	/**
+	 * Processes a packet received from the server.
+	 *
+	 * @param message
+	 *            the packet, or null if a complete packet could not be read
+	 */
+	private void handleMessage(MqttWireMessage message) throws MqttException, IOException {
+		final String methodName = "handleMessage";
+		// instanceof checks if message is null
+		if (message instanceof MqttAck) {
+			token = tokenStore.getToken(message);
+			if (token != null) {
+				token.internalTok.lockFlow();
+				try {
+					// Ensure the notify processing is done under a lock on the token
+					// This ensures that the send processing can complete before the
+					// receive processing starts! ( request and ack and ack processing
+					// can occur before request processing is complete if not!
+					clientState.notifyReceivedAck((MqttAck) message);
+				} finally {
+					token.internalTok.unlockFlow();
+				}
+			} else {
+				// This is an ack for a message we no longer have a ticket for.
+				log.fine(CLASS_NAME, methodName, "857");
+				clientState.handleOrphanedAcks((MqttAck) message);
+			} 
+		} else if (message != null && message instanceof MqttDisconnect) {
+			// This is a Disconnect Message
+			shutdownConnection(null, new MqttException(MqttClientException.REASON_CODE_SERVER_DISCONNECTED, (MqttDisconnect) message), (MqttDisconnect) message);
+		} else {
+			if (message != null) {
+				// A new message has arrived
+				clientState.notifyReceivedMsg(message);
+			} else {
+				if (!clientComms.isConnected() && !clientComms.isConnecting()) {
+					throw new IOException("Connection is lost.");
+				}
+			}
+		}
+	}
+
 	public boolean isRunning() {
-		boolean result;
-		synchronized (lifecycle) {
-			result = ((current_state == State.RUNNING || current_state == State.RECEIVING)
-					&& target_state == State.RUNNING);
+		lifecycle.lock();
+		try {
+			return (current_state == State.RUNNING || current_state == State.RECEIVING)
+					&& target_state == State.RUNNING;
+		} finally {
+			lifecycle.unlock();
 		}
-		return result;
 	}
 
 	/**
@@ -232,10 +477,40 @@ public class CommsReceiver implements Runnable {
 	 * @return true if the receiver is receiving data, false otherwise.
 	 */
 	public boolean isReceiving() {
-		boolean result;
-		synchronized (lifecycle) {
-			result = (current_state == State.RECEIVING);
+		lifecycle.lock();
+		try {
+			return current_state == State.RECEIVING;
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private void setCurrentState(State state) {
+		lifecycle.lock();
+		try {
+			current_state = state;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private void setTargetState(State state) {
+		lifecycle.lock();
+		try {
+			target_state = state;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private State getTargetState() {
+		lifecycle.lock();
+		try {
+			return target_state;
+		} finally {
+			lifecycle.unlock();
 		}
-		return result;
 	}
 }
@@ -17,8 +17,11 @@ package org.eclipse.paho.mqttv5.client.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.MqttToken;
@@ -27,7 +30,9 @@ import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
 import org.eclipse.paho.mqttv5.client.wire.MqttOutputStream;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.packet.MqttAck;
+import org.eclipse.paho.mqttv5.common.packet.MqttConnect;
 import org.eclipse.paho.mqttv5.common.packet.MqttDisconnect;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
 import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
 
 
@@ -40,7 +45,9 @@ public class CommsSender implements Runnable {
 
     private State current_state = State.STOPPED;
 	private State target_state = State.STOPPED;
-	private final Object lifecycle = new Object();
+	private final ReentrantLock lifecycle = new ReentrantLock();
+	// Signalled whenever current_state or target_state changes
+	private final Condition stateChanged = lifecycle.newCondition();
 	private Thread 	sendThread		= null;
 	private String threadName;
 	private Future<?> senderFuture;
@@ -50,6 +57,18 @@ public class CommsSender implements Runnable {
 	private ClientComms clientComms = null;
 	private CommsTokenStore tokenStore = null;
 
+	// Write coalescing, off unless setSendBatching is called
+	private boolean batching = false;
+	private int batchMaxMessages;
+	private int batchMaxBytes;
+	private long batchLingerNanos;
+	// The buffered bytes at which a publishBatch is flushed when not batching
+	private static final int PUBLISH_BATCH_MAX_BYTES = 64 * 1024;
+	// The PUBLISH and other packets with tokens written in the current batch,
+	// and their tokens, whose flows are held until the batch is flushed
+	private final ArrayList<MqttWireMessage> batchWritten = new ArrayList<>();
+	private final ArrayList<MqttToken> batchTokens = new ArrayList<>();
+
 
 	public CommsSender(ClientComms clientComms, ClientState clientState, CommsTokenStore tokenStore, OutputStream out) {
 		this.out = new MqttOutputStream(clientState, out, clientComms.getClient().getClientId());
@@ -59,6 +78,28 @@ public class CommsSender implements Runnable {
 		log.setResourceName(clientComms.getClient().getClientId());
 	}
 
+	/**
+	 * Enables write coalescing. Once the sender has a message to send it keeps
+	 * taking whatever else can be sent, writing each message into the output
+	 * buffer, and then flushes them to the network together. A batch ends when
+	 * either limit is reached or nothing more arrives within the linger time.
+	 * Must be called before {@link #start(String, ExecutorService)}.
+	 * 
+	 * @param maxMessages
+	 *            the most messages to send in one flush
+	 * @param maxBytes
+	 *            the number of buffered bytes at which the batch is flushed
+	 * @param lingerNanos
+	 *            how long to wait for further messages before flushing, in
+	 *            nanoseconds
+	 */
+	public void setSendBatching(int maxMessages, int maxBytes, long lingerNanos) {
+		this.batching = maxMessages > 1;
+		this.batchMaxMessages = maxMessages;
+		this.batchMaxBytes = maxBytes;
+		this.batchLingerNanos = lingerNanos;
+	}
+
 	/**
 	 * Starts up the Sender thread.
 	 * @param threadName the threadname
@@ -66,7 +107,8 @@ public class CommsSender implements Runnable {
 	 */
 	public void start(String threadName, ExecutorService executorService) {
 		this.threadName = threadName;
-		synchronized (lifecycle) {
+		lifecycle.lock();
+		try {
 			if (current_state == State.STOPPED && target_state == State.STOPPED) {
 				target_state = State.RUNNING;
 				if (executorService == null) {
@@ -75,9 +117,12 @@ public class CommsSender implements Runnable {
 					senderFuture = executorService.submit(this);
 				}
 			}
-		}
-		while (!isRunning()) {
-			try { Thread.sleep(100); } catch (Exception e) { }
+			// Wait for the thread to start, unless it has already been told to stop
+			while (!isRunning() && target_state == State.RUNNING) {
+				stateChanged.awaitUninterruptibly();
+			}
+		} finally {
+			lifecycle.unlock();
 		}
 	}
 
@@ -91,7 +136,8 @@ public class CommsSender implements Runnable {
 			return;
 		}
 			
-		synchronized (lifecycle) {
+		lifecycle.lock();
+		try {
 			if (senderFuture != null) {
 				senderFuture.cancel(true);
 			}
@@ -99,13 +145,13 @@ public class CommsSender implements Runnable {
 			log.fine(CLASS_NAME,methodName,"800");
 			if (isRunning()) {
 				target_state = State.STOPPED;
-				clientState.notifyQueueLock();
+				stateChanged.signalAll();
 			}
+		} finally {
+			lifecycle.unlock();
 		}
-		while (isRunning()) {
-			try { Thread.sleep(100); } catch (Exception e) { }
-			clientState.notifyQueueLock();
-		}
+		// Wake the sender if it is waiting for a message to send
+		clientState.notifyQueueLock();
 		//@TRACE 801=stopped
 		log.fine(CLASS_NAME,methodName,"801");
 	}
@@ -116,15 +162,11 @@ public class CommsSender implements Runnable {
 		final String methodName = "run";
 		MqttWireMessage message = null;
 		
-		synchronized (lifecycle) {
-			current_state = State.RUNNING;
-		}
+		setCurrentState(State.RUNNING);
 
 		try {
 			State my_target;
-			synchronized (lifecycle) {
-				my_target = target_state;
-			}
+			my_target = getTargetState();
 			while (my_target == State.RUNNING && (out != null)) {
 				try {
 					message = clientState.get();
@@ -132,7 +174,9 @@ public class CommsSender implements Runnable {
 						//@TRACE 802=network send key={0} msg={1}
 						log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
 
-						if (message instanceof MqttAck) {
+						if (batching || isMoreInBatch(message)) {
+							sendBatch(message);
+						} else if (message instanceof MqttAck) {
 							out.write(message);
 							out.flush();
 						} else {
@@ -141,7 +185,8 @@ public class CommsSender implements Runnable {
 							// to check for null for the case where clear occurs
 							// while trying to send a message.
 							if (token != null) {
-								synchronized (token) {
+								token.internalTok.lockFlow();
+								try {
 									out.write(message);
 									try {
 										out.flush();
@@ -153,29 +198,31 @@ public class CommsSender implements Runnable {
 										}
 									}
 									clientState.notifySent(message);
+								} finally {
+									token.internalTok.unlockFlow();
 								}
 							}
 						}
 					} else { // null message
 						//@TRACE 803=get message returned null, stopping}
 						log.fine(CLASS_NAME,methodName,"803");
-						synchronized (lifecycle) {
-							target_state = State.STOPPED;
-						}
+						setTargetState(State.STOPPED);
 					}
 				} catch (MqttException me) {
 					handleRunException(message, me);
 				} catch (Exception ex) {
 					handleRunException(message, ex);
 				}
-				synchronized (lifecycle) {
-					my_target = target_state;
-				}
+				my_target = getTargetState();
 			} // end while
 		} finally {
-			synchronized (lifecycle) {
+			lifecycle.lock();
+			try {
 				current_state = State.STOPPED;
 				sendThread = null;
+				stateChanged.signalAll();
+			} finally {
+				lifecycle.unlock();
 			}
 		}
 
@@ -184,6 +231,95 @@ public class CommsSender implements Runnable {
 
 	}
 
+	/**
+	 * @return true if the message was queued by a publishBatch and the
+	 *         messages after it are from the same batch
+	 */
+	private boolean isMoreInBatch(MqttWireMessage message) {
+		if (!(message instanceof MqttPublish)) {
+			return false;
+		}
+		MqttToken token = tokenStore.getToken(message);
+		return token != null && token.internalTok.isMoreInBatch();
+	}
+
+	/**
+	 * Writes the first message and as many of the messages which follow it as
+	 * the batch limits allow, then flushes them with a single network write.
+	 * The tokens are only told their messages have been sent once the flush
+	 * has succeeded. Each token's flow is held from the write until then, so
+	 * that it is marked sent before any response to the message is processed.
+	 * If the flush fails the messages are not marked sent, and their tokens
+	 * are failed when the connection is shut down.
+	 * <p>
+	 * When batching is off this is only used for the messages of a
+	 * publishBatch, which are written until the last of the batch, or until
+	 * nothing more can be sent straight away.
+	 * </p>
+	 */
+	private void sendBatch(MqttWireMessage first) throws MqttException, IOException {
+		final String methodName = "sendBatch";
+		MqttWireMessage message = first;
+		MqttWireMessage last = null;
+		int count = 0;
+		boolean moreInBatch = false;
+		try {
+			while (message != null) {
+				if (message instanceof MqttAck) {
+					out.write(message);
+					last = message;
+					count++;
+				} else {
+					MqttToken token = tokenStore.getToken(message);
+					// While quiescing the tokenstore can be cleared so need
+					// to check for null for the case where clear occurs
+					// while trying to send a message.
+					if (token != null) {
+						token.internalTok.lockFlow();
+						batchTokens.add(token);
+						out.write(message);
+						batchWritten.add(message);
+						moreInBatch = token.internalTok.isMoreInBatch();
+						last = message;
+						count++;
+					}
+				}
+				if (message instanceof MqttConnect || message instanceof MqttDisconnect) {
+					break;
+				}
+				if (batching ? count >= batchMaxMessages || out.getBufferedBytes() >= batchMaxBytes
+						: !moreInBatch || out.getBufferedBytes() >= PUBLISH_BATCH_MAX_BYTES) {
+					break;
+				}
+				message = clientState.poll(batching ? batchLingerNanos : 0);
+				if (message != null) {
+					//@TRACE 802=network send key={0} msg={1}
+					log.fine(CLASS_NAME,methodName,"802", new Object[] {message.getKey(),message});
+				}
+			}
+			try {
+				out.flush();
+			} catch (IOException ex) {
+				// The flush has been seen to fail on disconnect of a SSL socket
+				// as disconnect is in progress this should not be treated as an error
+				if (!(last instanceof MqttDisconnect)) {
+					throw ex;
+				}
+			}
+			for (int i = 0; i < batchWritten.size(); i++) {
+				clientState.notifySent(batchWritten.get(i));
+			}
+		} finally {
+			for (int i = 0; i < batchTokens.size(); i++) {
+				batchTokens.get(i).internalTok.unlockFlow();
+			}
+			batchTokens.clear();
+			batchWritten.clear();
+		}
+		//@TRACE 806=flushed batch of {0} messages
+		log.fine(CLASS_NAME,methodName,"806", new Object[] {Integer.valueOf(count)});
+	}
+
 	private void handleRunException(MqttWireMessage message, Exception ex) {
 		final String methodName = "handleRunException";
 		//@TRACE 804=exception
@@ -194,17 +330,45 @@ public class CommsSender implements Runnable {
 		} else {
 			mex = (MqttException)ex;
 		}
-		synchronized (lifecycle) {
-			target_state = State.STOPPED;
-		}
+		setTargetState(State.STOPPED);
 		clientComms.shutdownConnection(null, mex, null);
 	}
 
 	public boolean isRunning() {
-		boolean result;
-		synchronized (lifecycle) {
-			result = (current_state == State.RUNNING && target_state == State.RUNNING);
+		lifecycle.lock();
+		try {
+			return current_state == State.RUNNING && target_state == State.RUNNING;
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private void setCurrentState(State state) {
+		lifecycle.lock();
+		try {
+			current_state = state;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private void setTargetState(State state) {
+		lifecycle.lock();
+		try {
+			target_state = state;
+			stateChanged.signalAll();
+		} finally {
+			lifecycle.unlock();
+		}
+	}
+
+	private State getTargetState() {
+		lifecycle.lock();
+		try {
+			return target_state;
+		} finally {
+			lifecycle.unlock();
 		}
-		return result;
 	}
 }
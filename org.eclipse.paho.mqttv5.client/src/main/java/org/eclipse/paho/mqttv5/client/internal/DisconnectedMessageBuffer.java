@@ -64,6 +64,29 @@ public class DisconnectedMessageBuffer implements Runnable {
 		}
 	}
 	
+	/**
+	 * Adds a batch of messages to the offline buffer, either all of them or,
+	 * if they do not fit, none. If deleteOldestMessages is enabled the oldest
+	 * messages are deleted to make room, but never those of the batch itself.
+	 * @param messages the messages that will be buffered, in order
+	 * @param tokens the token for each message
+	 * @throws MqttException if the Buffer does not have room for the batch
+	 */
+	public void putMessages(MqttWireMessage[] messages, MqttToken[] tokens) throws MqttException{
+		synchronized (bufLock) {
+			int excess = buffer.size() + messages.length - bufferOpts.getBufferSize();
+			if (excess > 0 && (!bufferOpts.isDeleteOldestMessages() || messages.length > bufferOpts.getBufferSize())) {
+				throw new MqttException(MqttClientException.REASON_CODE_DISCONNECTED_BUFFER_FULL);
+			}
+			if (excess > 0) {
+				buffer.subList(0, excess).clear();
+			}
+			for (int i = 0; i < messages.length; i++) {
+				buffer.add(new BufferedMessage(messages[i], tokens[i]));
+			}
+		}
+	}
+	
 	/**
 	 * Retrieves a message from the buffer at the given index.
 	 * @param messageIndex the index of the message to be retrieved in the buffer
@@ -0,0 +1,277 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.eclipse.paho.mqttv5.client.BackpressurePolicy;
+import org.eclipse.paho.mqttv5.client.logging.Logger;
+import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+
+/**
+ * Delivers arriving messages to the application on a number of worker
+ * threads, so that a slow callback for one topic does not hold up messages on
+ * other topics.
+ * <p>
+ * Each worker drains its own bounded queue. A message is always queued to the
+ * worker chosen by the hash of its topic, so messages on the same topic are
+ * delivered one at a time and in the order in which they arrived. When a
+ * worker's queue is full the {@link BackpressurePolicy} decides whether the
+ * receiver waits for space or discards the message.
+ * </p>
+ */
+public class MessageDispatcher {
+	private static final String CLASS_NAME = MessageDispatcher.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	// How long the receiver waits for space before re-checking whether it should give up
+	private static final long OFFER_TIMEOUT_MILLIS = 200;
+
+	private final CommsCallback callback;
+	private final ClientComms clientComms;
+	private final BackpressurePolicy policy;
+	private final Worker[] workers;
+	// Messages queued or being delivered, across all workers
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private volatile boolean running = false;
+	private CountDownLatch stopped;
+
+	/**
+	 * @param callback
+	 *            delivers each message to the application
+	 * @param clientComms
+	 *            the connection to shut down if a callback fails
+	 * @param threads
+	 *            the number of workers
+	 * @param queueSize
+	 *            the number of messages each worker can hold waiting
+	 * @param policy
+	 *            what to do with a message when its worker's queue is full
+	 */
+	public MessageDispatcher(CommsCallback callback, ClientComms clientComms, int threads, int queueSize,
+			BackpressurePolicy policy) {
+		this.callback = callback;
+		this.clientComms = clientComms;
+		this.policy = policy;
+		this.workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(queueSize);
+		}
+		log.setResourceName(clientComms.getClient().getClientId());
+	}
+
+	/**
+	 * Starts the workers, discarding anything left queued from a previous
+	 * connection.
+	 *
+	 * @param threadName
+	 *            the base name of the worker threads
+	 * @param executorService
+	 *            used to run the workers, or null to start a thread for each
+	 */
+	public void start(String threadName, ExecutorService executorService) {
+		outstanding.set(0);
+		stopped = new CountDownLatch(workers.length);
+		running = true;
+		for (int i = 0; i < workers.length; i++) {
+			Worker worker = workers[i];
+			worker.queue.clear();
+			worker.name = threadName + "-" + i;
+			if (executorService == null) {
+				new Thread(worker).start();
+			} else {
+				executorService.submit(worker);
+			}
+		}
+	}
+
+	/**
+	 * Stops the workers. Messages still queued are not delivered. A callback in
+	 * progress is left to return by itself, only workers waiting for a message
+	 * are interrupted. Unless it is called by one of the workers, this waits for
+	 * any callback in progress to return.
+	 */
+	public void stop() {
+		final String methodName = "stop";
+		if (!running) {
+			return;
+		}
+		running = false;
+		boolean onWorker = false;
+		for (Worker worker : workers) {
+			Thread thread = worker.thread;
+			if (thread == Thread.currentThread()) {
+				onWorker = true;
+			} else {
+				worker.interruptIfIdle();
+			}
+		}
+		if (!onWorker) {
+			try {
+				stopped.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// @TRACE 729=dispatcher stopped
+		log.fine(CLASS_NAME, methodName, "729");
+	}
+
+	/**
+	 * Queues a message for delivery on the worker for its topic.
+	 *
+	 * @param message
+	 *            the message
+	 * @param giveUp
+	 *            checked while waiting for space, returns true if the message
+	 *            should no longer be queued, for example because the client is
+	 *            quiescing
+	 * @return true if the message was queued, false if it was discarded
+	 */
+	public boolean dispatch(MqttPublish message, BooleanSupplier giveUp) {
+		final String methodName = "dispatch";
+		Worker worker = workerFor(message);
+		outstanding.incrementAndGet();
+		boolean queued = worker.queue.offer(message);
+		if (!queued && (policy == BackpressurePolicy.BLOCK || message.getMessage().getQos() > 0)) {
+			try {
+				while (!queued && running && !giveUp.getAsBoolean()) {
+					// @TRACE 709=wait for spaceAvailable
+					log.fine(CLASS_NAME, methodName, "709");
+					queued = worker.queue.offer(message, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!queued) {
+			outstanding.decrementAndGet();
+			// @TRACE 728=discarded message key={0} topic={1}, callback queue full
+			log.fine(CLASS_NAME, methodName, "728",
+					new Object[] { Integer.valueOf(message.getMessageId()), message.getTopicName() });
+		}
+		return queued;
+	}
+
+	/**
+	 * @param message
+	 *            the message about to be dispatched
+	 * @return true if the worker for the message's topic has room for it
+	 */
+	public boolean canAccept(MqttPublish message) {
+		return !running || workerFor(message).queue.remainingCapacity() > 0;
+	}
+
+	private Worker workerFor(MqttPublish message) {
+		return workers[(message.getTopicName().hashCode() & Integer.MAX_VALUE) % workers.length];
+	}
+
+	/**
+	 * @return the number of messages waiting for a worker
+	 */
+	public int queued() {
+		int queued = 0;
+		for (Worker worker : workers) {
+			queued += worker.queue.size();
+		}
+		return queued;
+	}
+
+	/**
+	 * @return true if no message is queued or being delivered
+	 */
+	public boolean isIdle() {
+		return outstanding.get() == 0;
+	}
+
+	private class Worker implements Runnable {
+		private final BlockingQueue<MqttPublish> queue;
+		private volatile Thread thread;
+		private String name;
+		// True while waiting for a message, guarded by the worker
+		private boolean idle = false;
+
+		Worker(int queueSize) {
+			this.queue = new ArrayBlockingQueue<>(queueSize);
+		}
+
+		public void run() {
+			final String methodName = "run";
+			thread = Thread.currentThread();
+			thread.setName(name);
+			try {
+				while (true) {
+					synchronized (this) {
+						if (!running) {
+							break;
+						}
+						idle = true;
+					}
+					MqttPublish message;
+					try {
+						message = queue.take();
+					} catch (InterruptedException e) {
+						continue;
+					} finally {
+						synchronized (this) {
+							idle = false;
+							// An interrupt meant for the wait must not reach the callback
+							Thread.interrupted();
+						}
+					}
+					if (!running) {
+						outstanding.decrementAndGet();
+						break;
+					}
+					callback.spaceFreed();
+					try {
+						callback.handleMessage(message);
+					} catch (Throwable ex) {
+						// Users code could throw an Error or Exception e.g. in the case
+						// of class NoClassDefFoundError
+						// @TRACE 714=callback threw exception
+						log.fine(CLASS_NAME, methodName, "714", null, ex);
+						clientComms.shutdownConnection(null, new MqttException(ex), null);
+					} finally {
+						outstanding.decrementAndGet();
+					}
+					if (callback.isQuiescing()) {
+						callback.checkQuiesceLock();
+					}
+				}
+			} finally {
+				thread = null;
+				// Do not leave the interrupt from stop() on a pooled thread
+				Thread.interrupted();
+				stopped.countDown();
+			}
+		}
+
+		/**
+		 * Interrupts the worker if it is waiting for a message, so that it sees it
+		 * has been stopped. A worker delivering a message is left to finish.
+		 */
+		synchronized void interruptIfIdle() {
+			Thread thread = this.thread;
+			if (idle && thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out MQTT message IDs from 1 to 65535 without locking.
+ * <p>
+ * The IDs in use are held as a bitmap of 1024 words. An allocation scans
+ * forward from the ID after the one last handed out, a whole word at a time,
+ * and claims the first clear bit with a compare-and-set. IDs therefore go
+ * round in order, as the server expects, and finding a free ID costs at most
+ * one pass over the bitmap however full it is. Releasing an ID clears its bit.
+ * </p>
+ */
+public class MessageIdAllocator {
+
+	/** The lowest MQTT message ID. */
+	public static final int MIN_MSG_ID = 1;
+	/** The highest MQTT message ID. */
+	public static final int MAX_MSG_ID = 65535;
+
+	private static final int WORDS = (MAX_MSG_ID + 1) >>> 6;
+
+	// Bit 0 of the first word stands for ID 0, which is never handed out
+	private final AtomicLongArray bits = new AtomicLongArray(WORDS);
+	// The ID after the one last handed out, where the next search starts
+	private final AtomicInteger next = new AtomicInteger(MIN_MSG_ID);
+	private final AtomicInteger inUse = new AtomicInteger(0);
+
+	public MessageIdAllocator() {
+		bits.set(0, 1L);
+	}
+
+	/**
+	 * Marks the next free ID as in use.
+	 *
+	 * @return the ID, or 0 if every ID is in use
+	 */
+	public int allocate() {
+		int start = next.get();
+		int word = start >>> 6;
+		// Ignore the IDs before the starting point in its word, until the
+		// search comes round to them again
+		long fromStart = -1L << (start & 63);
+		for (int i = 0; i <= WORDS; i++) {
+			int index = (word + i) & (WORDS - 1);
+			long mask = i == 0 ? fromStart : i == WORDS ? ~fromStart : -1L;
+			long value = bits.get(index);
+			long free;
+			while ((free = ~value & mask) != 0) {
+				long bit = Long.lowestOneBit(free);
+				if (bits.compareAndSet(index, value, value | bit)) {
+					int id = (index << 6) + Long.numberOfTrailingZeros(bit);
+					inUse.incrementAndGet();
+					next.set(id == MAX_MSG_ID ? MIN_MSG_ID : id + 1);
+					return id;
+				}
+				value = bits.get(index);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Marks the next free IDs as in use, for a batch of messages. The search is
+	 * the same as for {@link #allocate()}, but all the IDs wanted from one word
+	 * are claimed with a single compare-and-set. Either every ID is allocated
+	 * or, if there are not enough free, none is.
+	 *
+	 * @param ids
+	 *            receives the IDs, in the order they were found
+	 * @param count
+	 *            the number of IDs wanted
+	 * @return false if there were not enough free IDs
+	 */
+	public boolean allocate(int[] ids, int count) {
+		int start = next.get();
+		int word = start >>> 6;
+		long fromStart = -1L << (start & 63);
+		int found = 0;
+		for (int i = 0; i <= WORDS && found < count; i++) {
+			int index = (word + i) & (WORDS - 1);
+			long mask = i == 0 ? fromStart : i == WORDS ? ~fromStart : -1L;
+			long value = bits.get(index);
+			long free;
+			while ((free = ~value & mask) != 0) {
+				long claim = lowestBits(free, count - found);
+				if (bits.compareAndSet(index, value, value | claim)) {
+					inUse.addAndGet(Long.bitCount(claim));
+					for (; claim != 0; claim &= claim - 1) {
+						ids[found++] = (index << 6) + Long.numberOfTrailingZeros(claim);
+					}
+					break;
+				}
+				value = bits.get(index);
+			}
+		}
+		if (found < count) {
+			for (int i = 0; i < found; i++) {
+				release(ids[i]);
+			}
+			return false;
+		}
+		if (count > 0) {
+			int last = ids[count - 1];
+			next.set(last == MAX_MSG_ID ? MIN_MSG_ID : last + 1);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the lowest <code>n</code> bits set in <code>bits</code>
+	 */
+	private static long lowestBits(long bits, int n) {
+		if (Long.bitCount(bits) <= n) {
+			return bits;
+		}
+		long result = 0;
+		for (int i = 0; i < n; i++) {
+			long bit = Long.lowestOneBit(bits);
+			result |= bit;
+			bits &= ~bit;
+		}
+		return result;
+	}
+
+	/**
+	 * Marks an ID as in use, for example when restoring in-flight messages.
+	 *
+	 * @param id
+	 *            the ID
+	 * @return false if the ID was already in use
+	 */
+	public boolean markInUse(int id) {
+		checkId(id);
+		int index = id >>> 6;
+		long bit = 1L << (id & 63);
+		long value;
+		do {
+			value = bits.get(index);
+			if ((value & bit) != 0) {
+				return false;
+			}
+		} while (!bits.compareAndSet(index, value, value | bit));
+		inUse.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Makes an ID available again. Nothing happens if it is not in use.
+	 *
+	 * @param id
+	 *            the ID
+	 */
+	public void release(int id) {
+		if (id < MIN_MSG_ID || id > MAX_MSG_ID) {
+			return;
+		}
+		int index = id >>> 6;
+		long bit = 1L << (id & 63);
+		long value;
+		do {
+			value = bits.get(index);
+			if ((value & bit) == 0) {
+				return;
+			}
+		} while (!bits.compareAndSet(index, value, value & ~bit));
+		inUse.decrementAndGet();
+	}
+
+	/**
+	 * @param id
+	 *            the ID
+	 * @return true if the ID is in use
+	 */
+	public boolean isInUse(int id) {
+		if (id < MIN_MSG_ID || id > MAX_MSG_ID) {
+			return false;
+		}
+		return (bits.get(id >>> 6) & (1L << (id & 63))) != 0;
+	}
+
+	/**
+	 * @return the number of IDs in use
+	 */
+	public int inUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return the ID the next search starts from
+	 */
+	public int getNext() {
+		return next.get();
+	}
+
+	/**
+	 * Sets where the next search starts, so that the IDs carry on after
+	 * those of restored messages.
+	 *
+	 * @param id
+	 *            the last ID handed out
+	 */
+	public void setLast(int id) {
+		next.set(id >= MAX_MSG_ID || id < MIN_MSG_ID ? MIN_MSG_ID : id + 1);
+	}
+
+	/**
+	 * Releases every ID.
+	 */
+	public void clear() {
+		for (int i = 0; i < WORDS; i++) {
+			long released = Long.bitCount(bits.getAndSet(i, i == 0 ? 1L : 0L));
+			if (i == 0) {
+				released--;
+			}
+			inUse.addAndGet((int) -released);
+		}
+	}
+
+	private static void checkId(int id) {
+		if (id < MIN_MSG_ID || id > MAX_MSG_ID) {
+			throw new IllegalArgumentException("Invalid message ID: " + id);
+		}
+	}
+
+	public String toString() {
+		StringBuilder ids = new StringBuilder("[");
+		for (int i = 0; i < WORDS; i++) {
+			long value = bits.get(i);
+			if (i == 0) {
+				value &= ~1L;
+			}
+			while (value != 0) {
+				long bit = Long.lowestOneBit(value);
+				if (ids.length() > 1) {
+					ids.append(", ");
+				}
+				ids.append((i << 6) + Long.numberOfTrailingZeros(bit));
+				value &= ~bit;
+			}
+		}
+		return ids.append(']').toString();
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.mqttv5.client.IMqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.IMqttMessageDemand;
+import org.eclipse.paho.mqttv5.client.IMqttMessageListener;
+import org.eclipse.paho.mqttv5.client.IMqttMessagePublisher;
+import org.eclipse.paho.mqttv5.client.IMqttMessageSubscriber;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.logging.Logger;
+import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.MqttSubscription;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+/**
+ * Delivers the messages of one subscription as its subscriber requests them.
+ * <p>
+ * The callback hands each message to {@link #offer}, which never blocks.
+ * Messages beyond the subscriber's demand are held, and so is the
+ * acknowledgement of a QoS 1 or 2 message until the subscriber has taken it,
+ * so the server stops sending once the client's receive maximum is used up.
+ * Only QoS 0 messages are limited by the buffer size, and those beyond it
+ * are discarded.
+ * </p>
+ * <p>
+ * Messages are delivered by whichever thread finds them deliverable, either
+ * the callback or the subscriber calling request, but never by two at once.
+ * </p>
+ */
+public class MessagePublisher implements IMqttMessagePublisher, IMqttMessageListener, IMqttMessageDemand {
+	private static final String CLASS_NAME = MessagePublisher.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	private final IMqttAsyncClient client;
+	private final ClientComms comms;
+	private final MqttSubscription subscription;
+	private final int bufferSize;
+
+	private final ConcurrentLinkedQueue<Delivery> buffer = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger bufferedQos0 = new AtomicInteger();
+	private final AtomicLong requested = new AtomicLong();
+	// Counts the calls to drain, so that only one thread delivers at a time
+	private final AtomicInteger wip = new AtomicInteger();
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+	private volatile IMqttMessageSubscriber subscriber;
+	private volatile boolean cancelled = false;
+	private volatile boolean done = false;
+	private volatile Throwable error = null;
+
+	private static class Delivery {
+		final String topic;
+		final MqttMessage message;
+		final boolean ack;
+
+		Delivery(String topic, MqttMessage message, boolean ack) {
+			this.topic = topic;
+			this.message = message;
+			this.ack = ack;
+		}
+	}
+
+	/**
+	 * @param client
+	 *            the client to subscribe with
+	 * @param comms
+	 *            the comms of the client, to send acknowledgements
+	 * @param subscription
+	 *            the subscription
+	 * @param bufferSize
+	 *            the number of QoS 0 messages to hold beyond the demand
+	 */
+	public MessagePublisher(IMqttAsyncClient client, ClientComms comms, MqttSubscription subscription,
+			int bufferSize) {
+		if (bufferSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.client = client;
+		this.comms = comms;
+		this.subscription = subscription;
+		this.bufferSize = bufferSize;
+		log.setResourceName(client.getClientId());
+	}
+
+	@Override
+	public void subscribe(IMqttMessageSubscriber subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new IMqttMessageDemand() {
+				public void request(long n) {
+				}
+
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("The publisher already has a subscriber"));
+			return;
+		}
+		this.subscriber = subscriber;
+		subscriber.onSubscribe(this);
+		if (cancelled) {
+			return;
+		}
+		try {
+			client.subscribe(new MqttSubscription[] { subscription }, null, new MqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					int[] reasonCodes = asyncActionToken.getReasonCodes();
+					if (reasonCodes != null && reasonCodes.length > 0 && reasonCodes[0] >= 0x80) {
+						fail(new MqttException(reasonCodes[0]));
+					}
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+					fail(exception);
+				}
+			}, this, new MqttProperties());
+		} catch (MqttException e) {
+			fail(e);
+		} catch (IllegalArgumentException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Adds a message for the subscriber.
+	 *
+	 * @param topic
+	 *            the topic of the message
+	 * @param message
+	 *            the message
+	 * @param ack
+	 *            whether this publisher must acknowledge the message once it
+	 *            has been taken
+	 */
+	void offer(String topic, MqttMessage message, boolean ack) {
+		final String methodName = "offer";
+		if (message.getQos() == 0) {
+			if (bufferedQos0.incrementAndGet() > bufferSize && requested.get() == 0) {
+				bufferedQos0.decrementAndGet();
+				// @TRACE 730=discarded QoS 0 message topic={0}, publisher buffer full
+				log.fine(CLASS_NAME, methodName, "730", new Object[] { topic });
+				return;
+			}
+		}
+		buffer.offer(new Delivery(topic, message, ack));
+		drain();
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) {
+		offer(topic, message, false);
+	}
+
+	@Override
+	public void request(long n) {
+		if (n <= 0) {
+			fail(new IllegalArgumentException("The number of messages requested must be positive: " + n));
+			return;
+		}
+		long current;
+		long next;
+		do {
+			current = requested.get();
+			if (current == Long.MAX_VALUE) {
+				break;
+			}
+			next = current + n;
+			if (next < 0) {
+				next = Long.MAX_VALUE;
+			}
+		} while (!requested.compareAndSet(current, next));
+		drain();
+	}
+
+	@Override
+	public void cancel() {
+		if (cancelled) {
+			return;
+		}
+		cancelled = true;
+		try {
+			client.unsubscribe(subscription.getTopic());
+		} catch (MqttException e) {
+			// The client is not connected, so only the listener is removed
+			comms.removeMessageListener(subscription.getTopic());
+		}
+		drain();
+	}
+
+	/**
+	 * Called when the subscription has been removed from the client, by an
+	 * unsubscribe or the end of a clean session.
+	 */
+	void complete() {
+		done = true;
+		drain();
+	}
+
+	private void fail(Throwable exception) {
+		error = exception;
+		comms.removeMessageListener(subscription.getTopic());
+		drain();
+	}
+
+	private void drain() {
+		final String methodName = "drain";
+		if (wip.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			if (cancelled) {
+				discardAll();
+			} else if (error != null) {
+				cancelled = true;
+				discardAll();
+				subscriber.onError(error);
+			} else if (subscriber != null) {
+				long wanted = requested.get();
+				long taken = 0;
+				while (taken != wanted && !cancelled) {
+					Delivery delivery = buffer.poll();
+					if (delivery == null) {
+						break;
+					}
+					taken(delivery);
+					try {
+						subscriber.onNext(delivery.topic, delivery.message);
+					} catch (Throwable ex) {
+						// @TRACE 731=Cancelling, exception thrown from onNext: {0}
+						log.fine(CLASS_NAME, methodName, "731", new Object[] { ex });
+						cancel();
+					}
+					acknowledge(delivery);
+					taken++;
+				}
+				if (taken != 0 && wanted != Long.MAX_VALUE) {
+					requested.addAndGet(-taken);
+				}
+				if (done && buffer.isEmpty() && !cancelled) {
+					cancelled = true;
+					subscriber.onComplete();
+				}
+			}
+			missed = wip.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Acknowledges and discards the messages held, once the subscriber is no
+	 * longer interested in them.
+	 */
+	private void discardAll() {
+		Delivery delivery;
+		while ((delivery = buffer.poll()) != null) {
+			taken(delivery);
+			acknowledge(delivery);
+		}
+	}
+
+	private void taken(Delivery delivery) {
+		if (delivery.message.getQos() == 0) {
+			bufferedQos0.decrementAndGet();
+		}
+	}
+
+	private void acknowledge(Delivery delivery) {
+		final String methodName = "acknowledge";
+		if (delivery.ack && delivery.message.getQos() > 0) {
+			try {
+				comms.deferredAckComplete(delivery.message.getId(), delivery.message.getQos());
+			} catch (MqttException ex) {
+				// The connection has gone, so the server will send the message again
+				// @TRACE 732=Could not acknowledge message key={0}: {1}
+				log.fine(CLASS_NAME, methodName, "732",
+						new Object[] { Integer.valueOf(delivery.message.getId()), ex });
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.paho.mqttv5.client.logging.Logger;
+import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
+
+/**
+ * A single selector thread which services the channels of many
+ * {@link NIONetworkModule} instances.
+ * <p>
+ * All selection key manipulation is performed on the event loop thread. Other
+ * threads hand work to the loop with {@link #execute(Runnable)}, which wakes
+ * the selector only when a wakeup is not already pending.
+ * </p>
+ */
+public class NIOEventLoop implements Runnable {
+	private static final String CLASS_NAME = NIOEventLoop.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/**
+	 * Receives readiness notifications for a channel registered with the loop.
+	 * The handler is the attachment of the channel's {@link SelectionKey}.
+	 */
+	public interface Handler {
+		/**
+		 * Called on the event loop thread when the channel is ready.
+		 *
+		 * @param key
+		 *            the selected key
+		 */
+		void handleReady(SelectionKey key);
+	}
+
+	private final Selector selector;
+	// Shared by all the loop's channels, as only the loop thread reads
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(NIONetworkModule.READ_BUFFER_SIZE);
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	NIOEventLoop(String threadName) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, threadName);
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	Selector selector() {
+		return selector;
+	}
+
+	/**
+	 * @return the buffer the loop's channels are read into, only for use on
+	 *         the loop thread
+	 */
+	ByteBuffer readBuffer() {
+		return readBuffer;
+	}
+
+	/**
+	 * @return true if the calling thread is this loop's selector thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs the task on the event loop thread. If called from the loop thread
+	 * the task is queued behind any other pending tasks rather than run inline.
+	 *
+	 * @param task
+	 *            the work to perform
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		final String methodName = "run";
+		while (running) {
+			try {
+				if (tasks.isEmpty()) {
+					selector.select();
+				} else {
+					// Queued by the loop itself while handling keys, with no wakeup
+					selector.selectNow();
+				}
+				wakeupPending.set(false);
+				runTasks();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					try {
+						((Handler) key.attachment()).handleReady(key);
+					} catch (CancelledKeyException e) {
+						// the channel was closed while it was being serviced
+					}
+				}
+			} catch (Throwable t) {
+				// Never let one misbehaving channel take the whole loop down
+				// @TRACE 254=event loop {0} caught exception
+				log.fine(CLASS_NAME, methodName, "254", new Object[] { thread.getName() }, t);
+			}
+		}
+		runTasks();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// ignore as we are shutting down
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+}
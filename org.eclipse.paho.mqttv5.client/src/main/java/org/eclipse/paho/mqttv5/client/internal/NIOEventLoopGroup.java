@@ -0,0 +1,127 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link NIOEventLoop} selector threads shared by any number
+ * of {@link NIONetworkModule} connections. Connections are assigned to the
+ * loops round-robin when they are started.
+ * <p>
+ * The default group is created on first use and is shared by every client in
+ * the JVM. Its size is taken from the system property
+ * {@value #THREADS_PROPERTY}, falling back to the number of available
+ * processors.
+ * </p>
+ * <p>
+ * Work which may block, such as persisting a received message, must not run
+ * on a selector thread. The group has a pool of worker threads for it, which
+ * grows with the number of connections doing such work at once.
+ * </p>
+ */
+public class NIOEventLoopGroup {
+
+	/** System property holding the number of selector threads in the default group. */
+	public static final String THREADS_PROPERTY = "org.eclipse.paho.mqttv5.client.nio.threads";
+
+	private static NIOEventLoopGroup defaultGroup = null;
+
+	private final NIOEventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger(0);
+	private final ExecutorService workers;
+
+	/**
+	 * Creates and starts a group of selector threads.
+	 *
+	 * @param threads
+	 *            the number of selector threads, at least one
+	 * @param name
+	 *            prefix for the selector thread names
+	 * @throws IOException
+	 *             if a selector cannot be opened
+	 */
+	public NIOEventLoopGroup(int threads, String name) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException();
+		}
+		loops = new NIOEventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new NIOEventLoop(name + " " + i);
+		}
+		for (NIOEventLoop loop : loops) {
+			loop.start();
+		}
+		final AtomicInteger workerCount = new AtomicInteger(0);
+		workers = Executors.newCachedThreadPool(task -> {
+			Thread worker = new Thread(task, name + " Worker " + workerCount.incrementAndGet());
+			worker.setDaemon(true);
+			return worker;
+		});
+	}
+
+	/**
+	 * @return the group shared by all clients
+	 * @throws IOException
+	 *             if the group has to be created and a selector cannot be
+	 *             opened
+	 */
+	public static synchronized NIOEventLoopGroup getDefault() throws IOException {
+		if (defaultGroup == null) {
+			int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()).intValue();
+			defaultGroup = new NIOEventLoopGroup(Math.max(1, threads), "MQTT NIO");
+		}
+		return defaultGroup;
+	}
+
+	/**
+	 * @return the loop the next connection should be registered with
+	 */
+	public NIOEventLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	/**
+	 * @return the threads which run the work handed off by the group's
+	 *         connections that may block
+	 */
+	public Executor workers() {
+		return workers;
+	}
+
+	/**
+	 * @return the number of selector threads in this group
+	 */
+	public int size() {
+		return loops.length;
+	}
+
+	/**
+	 * Stops all the selector threads, and the worker threads once they finish
+	 * their work. Channels still registered with the group are no longer
+	 * serviced.
+	 */
+	public void shutdown() {
+		for (NIOEventLoop loop : loops) {
+			loop.shutdown();
+		}
+		workers.shutdown();
+		synchronized (NIOEventLoopGroup.class) {
+			if (defaultGroup == this) {
+				defaultGroup = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,605 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.logging.Logger;
+import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttBufferPool;
+import org.eclipse.paho.mqttv5.common.packet.SizeClassBufferPool;
+
+/**
+ * A network module for connecting over TCP using a non-blocking
+ * {@link SocketChannel} serviced by a shared {@link NIOEventLoopGroup}.
+ * <p>
+ * Reads are performed on the event loop thread and handed to the registered
+ * {@link Receiver}, so no receiver thread is required for the connection.
+ * Writes are queued by the caller and drained by the event loop; the writing
+ * thread is only blocked when more than {@link #HIGH_WATER_MARK} bytes are
+ * waiting to be sent. The buffers written are taken from a
+ * {@link MqttBufferPool} and returned to it by the event loop once sent.
+ * </p>
+ * <p>
+ * Only the receiver's thread is saved. Each client still has its own
+ * {@link CommsSender} thread, which writes to the module's stream, and its
+ * own {@link CommsCallback} thread, so a connection costs two threads rather
+ * than three. To hold many thousands of connections, pair this module with
+ * {@link org.eclipse.paho.mqttv5.client.MqttConnectionOptions#setVirtualThreadsEnabled(boolean)
+ * virtual threads}, which then also run the handling of received packets.
+ * </p>
+ */
+public class NIONetworkModule implements NetworkModule, NIOEventLoop.Handler {
+	private static final String CLASS_NAME = NIONetworkModule.class.getName();
+	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
+
+	/** Size of the buffer, one per event loop, each read from a channel is made into. */
+	static final int READ_BUFFER_SIZE = 16 * 1024;
+	/** Bytes queued for writing above which the writing thread waits. */
+	static final int HIGH_WATER_MARK = 256 * 1024;
+
+	/**
+	 * Consumes the data read from the channel. Both methods are called on the
+	 * event loop thread and must not block for long, as other connections
+	 * share the thread. A receiver which cannot take more data yet calls
+	 * {@link NIONetworkModule#pauseReading()} instead of waiting.
+	 */
+	public interface Receiver {
+		/**
+		 * @param data
+		 *            the bytes read; only valid for the duration of the call
+		 */
+		void dataReceived(ByteBuffer data);
+
+		/**
+		 * @param cause
+		 *            why the channel can no longer be read
+		 */
+		void connectionLost(IOException cause);
+	}
+
+	private final NIOEventLoopGroup group;
+	private final String host;
+	private final int port;
+	private final MqttBufferPool bufferPool;
+	private int conTimeout;
+
+	private SocketChannel channel;
+	private NIOEventLoop loop;
+	private SelectionKey key;
+	private volatile Receiver receiver;
+	private volatile boolean closed = true;
+	// Only used on the event loop thread
+	private boolean readPaused = false;
+
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong pendingBytes = new AtomicLong(0);
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final ReentrantLock drainLock = new ReentrantLock();
+	private final Condition drained = drainLock.newCondition();
+	private volatile boolean writerWaiting = false;
+
+	private ChannelInputStream in;
+	private ChannelOutputStream out;
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			flushPending();
+		}
+	};
+
+	/**
+	 * Constructs a new NIONetworkModule using the specified host and port.
+	 *
+	 * @param group
+	 *            the event loops that service the connection
+	 * @param host
+	 *            The server hostname
+	 * @param port
+	 *            The server port
+	 * @param resourceContext
+	 *            The Resource Context
+	 */
+	public NIONetworkModule(NIOEventLoopGroup group, String host, int port, String resourceContext) {
+		this(group, host, port, resourceContext, SizeClassBufferPool.getDefault());
+	}
+
+	/**
+	 * Constructs a new NIONetworkModule using the specified host and port.
+	 *
+	 * @param group
+	 *            the event loops that service the connection
+	 * @param host
+	 *            The server hostname
+	 * @param port
+	 *            The server port
+	 * @param resourceContext
+	 *            The Resource Context
+	 * @param bufferPool
+	 *            the pool the buffers for writes, and for reads through
+	 *            {@link #getInputStream()}, are taken from
+	 */
+	public NIONetworkModule(NIOEventLoopGroup group, String host, int port, String resourceContext,
+			MqttBufferPool bufferPool) {
+		log.setResourceName(resourceContext);
+		this.group = group;
+		this.host = host;
+		this.port = port;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Starts the module by connecting a socket channel to the server and
+	 * registering it with one of the group's event loops.
+	 *
+	 * @throws IOException
+	 *             if there is an error creating the channel
+	 * @throws MqttException
+	 *             if there is an error connecting to the server
+	 */
+	public void start() throws IOException, MqttException {
+		final String methodName = "start";
+		// @TRACE 252=connect to host {0} port {1} timeout {2}
+		log.fine(CLASS_NAME, methodName, "252", new Object[] { host, Integer.valueOf(port), Long.valueOf(conTimeout * 1000) });
+		channel = SocketChannel.open();
+		boolean connected = false;
+		try {
+			// Connect in blocking mode so the connect timeout is honoured
+			channel.socket().connect(new InetSocketAddress(host, port), conTimeout * 1000);
+			channel.configureBlocking(false);
+			connected = true;
+		} catch (ConnectException ex) {
+			// @TRACE 250=Failed to create TCP socket
+			log.fine(CLASS_NAME, methodName, "250", null, ex);
+			throw new MqttException(MqttClientException.REASON_CODE_SERVER_CONNECT_ERROR, ex);
+		} finally {
+			if (!connected) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// ignore, the original failure is reported
+				}
+			}
+		}
+		closed = false;
+		loop = group.next();
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					key = channel.register(loop.selector(), 0, NIONetworkModule.this);
+					if ((receiver != null || in != null) && !readPaused) {
+						key.interestOps(SelectionKey.OP_READ);
+					}
+					flushPending();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the consumer of the data read from the channel and starts reading.
+	 * Once a receiver is set the stream returned by {@link #getInputStream()}
+	 * no longer receives any data.
+	 *
+	 * @param receiver
+	 *            the consumer, called on the event loop thread
+	 */
+	public void setReceiver(Receiver receiver) {
+		this.receiver = receiver;
+		enableRead();
+	}
+
+	/**
+	 * Returns a stream over the data read from the channel, for use by callers
+	 * that need a blocking stream rather than a {@link Receiver}. As with
+	 * {@link TCPNetworkModule} reads time out after one second with a
+	 * {@link SocketTimeoutException}.
+	 */
+	public synchronized InputStream getInputStream() throws IOException {
+		if (in == null) {
+			in = new ChannelInputStream();
+			enableRead();
+		}
+		return in;
+	}
+
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new ChannelOutputStream();
+		}
+		return out;
+	}
+
+	/**
+	 * Stops the module, by closing the socket channel.
+	 *
+	 * @throws IOException
+	 *             if there is an error closing the channel
+	 */
+	public void stop() throws IOException {
+		closed = true;
+		drainLock.lock();
+		try {
+			drained.signalAll();
+		} finally {
+			drainLock.unlock();
+		}
+		if (in != null) {
+			in.end(new EOFException());
+		}
+		if (channel != null) {
+			// Closing the channel cancels its key with the selector
+			channel.close();
+		}
+	}
+
+	/**
+	 * Set the maximum time to wait for a socket to be established
+	 *
+	 * @param timeout
+	 *            The connection timeout
+	 */
+	public void setConnectTimeout(int timeout) {
+		this.conTimeout = timeout;
+	}
+
+	public String getServerURI() {
+		return "tcp+nio://" + host + ":" + port;
+	}
+
+	/**
+	 * Runs the task on the event loop thread which services this connection.
+	 *
+	 * @param task
+	 *            the work to perform
+	 */
+	public void execute(Runnable task) {
+		loop.execute(task);
+	}
+
+	/**
+	 * @return the worker threads of the group servicing this connection, for
+	 *         work which must not hold up the event loop
+	 */
+	public Executor getWorkers() {
+		return group.workers();
+	}
+
+	/**
+	 * Stops reading from the channel until {@link #resumeReading()} is called,
+	 * leaving the data in the socket's receive buffer so that TCP flow control
+	 * holds back the server. Only called on the event loop thread.
+	 */
+	public void pauseReading() {
+		readPaused = true;
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Starts reading from the channel again. Only called on the event loop
+	 * thread.
+	 */
+	public void resumeReading() {
+		readPaused = false;
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	public void handleReady(SelectionKey key) {
+		if (key.isReadable()) {
+			read();
+		}
+		if (key.isValid() && key.isWritable()) {
+			flushPending();
+		}
+	}
+
+	private void enableRead() {
+		if (loop != null) {
+			loop.execute(new Runnable() {
+				public void run() {
+					if (key != null && key.isValid() && !readPaused) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads what is available from the channel. The number of reads is bounded
+	 * so that one busy connection cannot starve the others on the loop.
+	 */
+	private void read() {
+		ByteBuffer readBuffer = loop.readBuffer();
+		for (int i = 0; i < 4 && !readPaused; i++) {
+			int count;
+			readBuffer.clear();
+			try {
+				count = channel.read(readBuffer);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			if (count < 0) {
+				fail(new EOFException());
+				return;
+			}
+			if (count == 0) {
+				return;
+			}
+			readBuffer.flip();
+			Receiver r = receiver;
+			if (r != null) {
+				r.dataReceived(readBuffer);
+			} else if (in != null) {
+				in.add(readBuffer);
+			}
+			if (count < READ_BUFFER_SIZE) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes as much of the queued data as the channel accepts, registering
+	 * for write readiness if some remains. Runs on the event loop thread.
+	 */
+	private void flushPending() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		ByteBuffer buffer;
+		while ((buffer = writeQueue.peek()) != null) {
+			int count;
+			try {
+				count = channel.write(buffer);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			written(count);
+			if (buffer.hasRemaining()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			writeQueue.poll();
+			// Only the loop takes buffers off the queue, so nothing else can be using it
+			bufferPool.release(buffer);
+		}
+		if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void written(int count) {
+		long pending = pendingBytes.addAndGet(-count);
+		if (writerWaiting && pending <= HIGH_WATER_MARK / 2) {
+			drainLock.lock();
+			try {
+				drained.signalAll();
+			} finally {
+				drainLock.unlock();
+			}
+		}
+	}
+
+	private void enqueue(ByteBuffer buffer) throws IOException {
+		long pending = pendingBytes.addAndGet(buffer.remaining());
+		writeQueue.add(buffer);
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(flushTask);
+		}
+		if (pending > HIGH_WATER_MARK) {
+			drainLock.lock();
+			writerWaiting = true;
+			try {
+				while (!closed && pendingBytes.get() > HIGH_WATER_MARK / 2) {
+					drained.await(1000, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e.getMessage());
+			} finally {
+				writerWaiting = false;
+				drainLock.unlock();
+			}
+		}
+		if (closed) {
+			throw new EOFException();
+		}
+	}
+
+	private void fail(IOException cause) {
+		if (closed) {
+			return;
+		}
+		try {
+			stop();
+		} catch (IOException e) {
+			// ignore, the connection is already broken
+		}
+		Receiver r = receiver;
+		if (r != null) {
+			r.connectionLost(cause);
+		} else if (in != null) {
+			in.end(cause);
+		}
+	}
+
+	/**
+	 * The data read by the event loop, presented as a blocking stream. Each
+	 * read is copied out of the loop's shared buffer into a pooled buffer,
+	 * which is returned to the pool once it has been read.
+	 */
+	private class ChannelInputStream extends InputStream {
+		private final BlockingQueue<Object> chunks = new LinkedBlockingQueue<Object>();
+		private ByteBuffer current = null;
+		private IOException failure = null;
+
+		void add(ByteBuffer data) {
+			ByteBuffer copy = bufferPool.acquire(data.remaining());
+			copy.put(data);
+			copy.flip();
+			chunks.add(copy);
+		}
+
+		void end(IOException cause) {
+			chunks.add(cause);
+		}
+
+		private boolean fill() throws IOException {
+			if (current != null) {
+				if (current.hasRemaining()) {
+					return true;
+				}
+				ByteBuffer finished = current;
+				current = null;
+				bufferPool.release(finished);
+			}
+			if (failure != null) {
+				return false;
+			}
+			Object next;
+			try {
+				next = chunks.poll(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e.getMessage());
+			}
+			if (next == null) {
+				throw new SocketTimeoutException();
+			}
+			if (next instanceof IOException) {
+				failure = (IOException) next;
+				return false;
+			}
+			current = (ByteBuffer) next;
+			return true;
+		}
+
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return current.get() & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			return count;
+		}
+
+		public int available() {
+			ByteBuffer c = current;
+			return c == null ? 0 : c.remaining();
+		}
+	}
+
+	/**
+	 * Collects the bytes of a write until it is flushed, then hands them to the
+	 * event loop as a single buffer. The buffers come from the pool, and the
+	 * loop releases each once it has been written.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+		// A lock rather than a monitor, as flush may wait for the queue to drain
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private ByteBuffer buffer = null;
+
+		private void ensureCapacity(int len) throws IOException {
+			if (closed) {
+				throw new EOFException();
+			}
+			if (buffer == null) {
+				buffer = bufferPool.acquire(Math.max(len, 1024));
+			} else if (buffer.remaining() < len) {
+				ByteBuffer larger = bufferPool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + len));
+				buffer.flip();
+				larger.put(buffer);
+				bufferPool.release(buffer);
+				buffer = larger;
+			}
+		}
+
+		public void write(int b) throws IOException {
+			writeLock.lock();
+			try {
+				ensureCapacity(1);
+				buffer.put((byte) b);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			writeLock.lock();
+			try {
+				ensureCapacity(len);
+				buffer.put(b, off, len);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		public void flush() throws IOException {
+			writeLock.lock();
+			try {
+				if (buffer == null || buffer.position() == 0) {
+					return;
+				}
+				buffer.flip();
+				ByteBuffer toSend = buffer;
+				buffer = null;
+				enqueue(toSend);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		public void close() throws IOException {
+			NIONetworkModule.this.stop();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.spi.NetworkModuleFactory;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+/**
+ * Creates {@link NIONetworkModule}s for <code>tcp+nio://</code> URIs. All the
+ * modules share the default {@link NIOEventLoopGroup}.
+ */
+public class NIONetworkModuleFactory implements NetworkModuleFactory {
+
+	@Override
+	public Set<String> getSupportedUriSchemes() {
+		return Collections.unmodifiableSet(new HashSet<>(Arrays.asList("tcp+nio")));
+	}
+
+	@Override
+	public void validateURI(URI brokerUri) throws IllegalArgumentException {
+		String path = brokerUri.getPath();
+		if (path != null && !path.isEmpty()) {
+			throw new IllegalArgumentException("URI path must be empty \"" + brokerUri.toString() + "\"");
+		}
+	}
+
+	@Override
+	public NetworkModule createNetworkModule(URI brokerUri, MqttConnectionOptions options, String clientId)
+			throws MqttException
+	{
+		String host = brokerUri.getHost();
+		int port = brokerUri.getPort(); // -1 if not defined
+		if (port == -1) {
+			port = 1883;
+		}
+		String path = brokerUri.getPath();
+		if (path != null && !path.isEmpty()) {
+			throw new IllegalArgumentException(brokerUri.toString());
+		}
+		if (options.getSocketFactory() instanceof SSLSocketFactory) {
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_SOCKET_FACTORY_MISMATCH);
+		}
+		NIOEventLoopGroup group;
+		try {
+			group = NIOEventLoopGroup.getDefault();
+		} catch (IOException e) {
+			throw ExceptionHelper.createMqttException(e);
+		}
+		NIONetworkModule networkModule = new NIONetworkModule(group, host, port, clientId);
+		networkModule.setConnectTimeout(options.getConnectionTimeout());
+		return networkModule;
+	}
+}
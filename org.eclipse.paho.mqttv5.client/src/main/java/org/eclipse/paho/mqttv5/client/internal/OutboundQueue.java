@@ -0,0 +1,237 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+
+/**
+ * The work waiting for the {@link CommsSender}, held in two lanes: a priority
+ * lane of flows (CONNECT, acknowledgements, PUBREL, PINGREQ and the like)
+ * which are always sent first, and a lane of PUBLISH messages which are
+ * subject to the in-flight window.
+ * <p>
+ * Any number of threads may add work without blocking each other, and
+ * without a lock. {@link #reset(Collection, Collection)} swaps in a new pair
+ * of lanes in one step; a producer which added to the old pair as it was
+ * swapped out moves its work across. There is a single consumer, the sender
+ * thread, which parks in {@link #await(BooleanSupplier)} when there is nothing it
+ * can send and is unparked when work is added or {@link #wakeUp()} is called.
+ * </p>
+ */
+public class OutboundQueue {
+
+	/**
+	 * The two lanes, replaced together by reset and clear.
+	 */
+	private static final class Lanes {
+		final ConcurrentLinkedDeque<MqttWireMessage> flows = new ConcurrentLinkedDeque<>();
+		final ConcurrentLinkedQueue<MqttWireMessage> messages = new ConcurrentLinkedQueue<>();
+		// Set once the lanes have been swapped out
+		volatile boolean retired = false;
+	}
+
+	private final AtomicReference<Lanes> lanes = new AtomicReference<>(new Lanes());
+	private volatile Thread waiter;
+
+	/**
+	 * Adds a flow to the back of the priority lane.
+	 *
+	 * @param message
+	 *            the flow to send
+	 */
+	public void addFlow(MqttWireMessage message) {
+		Lanes current = lanes.get();
+		current.flows.offerLast(message);
+		// Swapped out meanwhile; unless the consumer already took it, move it across
+		if (current.retired && current.flows.removeLastOccurrence(message)) {
+			addFlow(message);
+			return;
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Adds a flow to the front of the priority lane, ahead of any other pending
+	 * flows.
+	 *
+	 * @param message
+	 *            the flow to send
+	 */
+	public void addFlowFirst(MqttWireMessage message) {
+		Lanes current = lanes.get();
+		current.flows.offerFirst(message);
+		if (current.retired && current.flows.removeFirstOccurrence(message)) {
+			addFlowFirst(message);
+			return;
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Adds a PUBLISH to the back of the message lane.
+	 *
+	 * @param message
+	 *            the message to send
+	 */
+	public void addMessage(MqttWireMessage message) {
+		Lanes current = lanes.get();
+		current.messages.offer(message);
+		if (current.retired && current.messages.remove(message)) {
+			addMessage(message);
+			return;
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Adds several PUBLISH messages to the back of the message lane as one
+	 * contiguous run. The messages are linked together before the run is
+	 * appended with a single update, so no other message can come between them.
+	 *
+	 * @param batch
+	 *            the messages to send, in order
+	 */
+	public void addMessages(Collection<? extends MqttWireMessage> batch) {
+		Lanes current = lanes.get();
+		current.messages.addAll(batch);
+		if (current.retired) {
+			List<MqttWireMessage> stragglers = new ArrayList<>();
+			for (MqttWireMessage message : batch) {
+				if (current.messages.remove(message)) {
+					stragglers.add(message);
+				}
+			}
+			if (!stragglers.isEmpty()) {
+				addMessages(stragglers);
+				return;
+			}
+		}
+		wakeUp();
+	}
+
+	public MqttWireMessage peekFlow() {
+		return lanes.get().flows.peekFirst();
+	}
+
+	public MqttWireMessage pollFlow() {
+		return lanes.get().flows.pollFirst();
+	}
+
+	public MqttWireMessage pollMessage() {
+		return lanes.get().messages.poll();
+	}
+
+	public boolean hasFlows() {
+		return !lanes.get().flows.isEmpty();
+	}
+
+	public boolean hasMessages() {
+		return !lanes.get().messages.isEmpty();
+	}
+
+	public boolean removeMessage(MqttWireMessage message) {
+		return lanes.get().messages.remove(message);
+	}
+
+	/**
+	 * Replaces the contents of both lanes, for example with the in-flight
+	 * messages restored on reconnect. The new lanes are filled before they are
+	 * swapped in, so work added meanwhile always comes after them. The consumer
+	 * is not woken, so the caller can finish updating any state it depends on
+	 * before calling {@link #wakeUp()}.
+	 *
+	 * @param newFlows
+	 *            the flows, in the order they are to be sent
+	 * @param newMessages
+	 *            the messages, in the order they are to be sent
+	 */
+	public void reset(Collection<MqttWireMessage> newFlows, Collection<MqttWireMessage> newMessages) {
+		Lanes replacement = new Lanes();
+		replacement.flows.addAll(newFlows);
+		replacement.messages.addAll(newMessages);
+		lanes.getAndSet(replacement).retired = true;
+	}
+
+	public void clear() {
+		lanes.getAndSet(new Lanes()).retired = true;
+	}
+
+	/**
+	 * Parks the calling thread, which must be the only consumer, while there is
+	 * nothing it can do. The condition is re-checked after the thread has
+	 * announced itself so a concurrent {@link #wakeUp()} is never missed.
+	 * Returns on wake up, spuriously, or if the thread is interrupted, in which
+	 * case the interrupt is consumed just as a monitor wait would.
+	 *
+	 * @param idle
+	 *            true while the consumer has nothing it can do
+	 */
+	public void await(BooleanSupplier idle) {
+		waiter = Thread.currentThread();
+		try {
+			if (idle.getAsBoolean()) {
+				LockSupport.park(this);
+				Thread.interrupted();
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * As {@link #await(BooleanSupplier)}, but returns once the timeout has elapsed even
+	 * if the consumer has not been woken.
+	 *
+	 * @param idle
+	 *            true while the consumer has nothing it can do
+	 * @param nanos
+	 *            the maximum time to wait, in nanoseconds
+	 */
+	public void await(BooleanSupplier idle, long nanos) {
+		waiter = Thread.currentThread();
+		try {
+			if (nanos > 0 && idle.getAsBoolean()) {
+				LockSupport.parkNanos(this, nanos);
+				Thread.interrupted();
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * Unparks the consumer if it is waiting, so that it re-examines the queues
+	 * and the client state.
+	 */
+	public void wakeUp() {
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public Collection<MqttWireMessage> getFlows() {
+		return lanes.get().flows;
+	}
+
+	public Collection<MqttWireMessage> getMessages() {
+		return lanes.get().messages;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.eclipse.paho.mqttv5.client.TopicAliasPolicy;
+import org.eclipse.paho.mqttv5.common.packet.MqttPublish;
+
+/**
+ * The Topic Aliases the client has given to the topics it publishes on one
+ * connection, chosen by a {@link TopicAliasPolicy}.
+ * <p>
+ * Aliases are given by the sender as it takes each PUBLISH from the queue, so
+ * the order in which the server learns a mapping is the order in which the
+ * messages are written. That makes it safe to move an alias to another topic:
+ * no message using the old mapping can follow the one which changes it. As
+ * only the sender thread uses an instance it needs no locking; a new instance
+ * replaces it when the connection state is cleared.
+ * </p>
+ */
+public class OutgoingTopicAliases {
+
+	// How many PUBLISH packets, per alias, between halving the LFU counts
+	private static final int LFU_AGING_PERIOD = 16;
+
+	private final TopicAliasPolicy policy;
+	private final ClientMetrics metrics;
+	// The mapped topics, least recently used first for LRU
+	private final LinkedHashMap<String, Alias> aliases;
+	// The mapped topics, least often used first, for LFU
+	private final TreeSet<Alias> byUse;
+	// How often each unmapped topic has been published, for LFU
+	private final Map<String, int[]> candidates;
+	private long nextSequence = 0;
+	private int untilAging = 0;
+
+	private static final class Alias implements Comparable<Alias> {
+		final String topic;
+		final int alias;
+		final long sequence;
+		int uses;
+
+		Alias(String topic, int alias, long sequence, int uses) {
+			this.topic = topic;
+			this.alias = alias;
+			this.sequence = sequence;
+			this.uses = uses;
+		}
+
+		public int compareTo(Alias other) {
+			if (uses != other.uses) {
+				return uses < other.uses ? -1 : 1;
+			}
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	public OutgoingTopicAliases(TopicAliasPolicy policy, ClientMetrics metrics) {
+		this.policy = policy;
+		this.metrics = metrics;
+		this.aliases = new LinkedHashMap<>(16, 0.75f, policy == TopicAliasPolicy.LRU);
+		this.byUse = policy == TopicAliasPolicy.LFU ? new TreeSet<>() : null;
+		this.candidates = policy == TopicAliasPolicy.LFU ? new HashMap<>() : null;
+	}
+
+	public TopicAliasPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Gives the message a Topic Alias if the policy allows. A topic which
+	 * already has an alias is replaced by it; a topic which is given an alias
+	 * now keeps its topic name, so the server learns the mapping. Any alias
+	 * the message already had is removed first, as its properties may be
+	 * shared with earlier messages or it may be being sent again on a new
+	 * connection.
+	 *
+	 * @param message
+	 *            the PUBLISH about to be sent
+	 * @param maximum
+	 *            the server's Topic Alias Maximum, 0 if it accepts none
+	 */
+	public void apply(MqttPublish message, int maximum) {
+		message.clearTopicAlias();
+		String topic = message.getTopicName();
+		if (topic == null || maximum <= 0) {
+			return;
+		}
+		if (byUse != null && --untilAging <= 0) {
+			age(maximum);
+		}
+
+		Alias entry = aliases.get(topic);
+		if (entry != null) {
+			if (byUse != null) {
+				byUse.remove(entry);
+				entry.uses++;
+				byUse.add(entry);
+			}
+			message.replaceTopicName(entry.alias);
+			metrics.topicAliasHit();
+			return;
+		}
+
+		metrics.topicAliasMiss();
+		int alias;
+		int uses = 1;
+		if (aliases.size() < maximum) {
+			alias = aliases.size() + 1;
+		} else {
+			Alias victim = null;
+			if (policy == TopicAliasPolicy.LRU) {
+				victim = aliases.values().iterator().next();
+			} else if (policy == TopicAliasPolicy.LFU) {
+				int[] count = candidates.get(topic);
+				if (count == null) {
+					count = new int[1];
+					candidates.put(topic, count);
+				}
+				uses = ++count[0];
+				if (uses > byUse.first().uses) {
+					victim = byUse.pollFirst();
+					candidates.remove(topic);
+				}
+			}
+			if (victim == null) {
+				// Sent with the full topic only
+				return;
+			}
+			aliases.remove(victim.topic);
+			alias = victim.alias;
+			metrics.topicAliasReassigned();
+		}
+
+		entry = new Alias(topic, alias, nextSequence++, uses);
+		aliases.put(topic, entry);
+		if (byUse != null) {
+			byUse.add(entry);
+		}
+		message.getProperties().setTopicAlias(alias);
+	}
+
+	/**
+	 * Halves the LFU counts, forgetting unmapped topics which fall to 0.
+	 */
+	private void age(int maximum) {
+		untilAging = maximum * LFU_AGING_PERIOD;
+		// Halving can make counts equal, so the order is rebuilt
+		List<Alias> mapped = new ArrayList<>(byUse);
+		byUse.clear();
+		for (Alias entry : mapped) {
+			entry.uses >>= 1;
+			byUse.add(entry);
+		}
+		Iterator<int[]> counts = candidates.values().iterator();
+		while (counts.hasNext()) {
+			int[] count = counts.next();
+			count[0] >>= 1;
+			if (count[0] == 0) {
+				counts.remove();
+			}
+		}
+	}
+}
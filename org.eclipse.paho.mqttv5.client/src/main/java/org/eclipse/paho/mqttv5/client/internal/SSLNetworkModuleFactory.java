@@ -83,6 +83,9 @@ public class SSLNetworkModuleFactory implements NetworkModuleFactory {
 				netModule.setEnabledCiphers(enabledCiphers);
 			}
 		}
+		if (options.isVirtualThreadsEnabled()) {
+			netModule.setReadTimeout(0);
+		}
 		return netModule;
 	}
 }
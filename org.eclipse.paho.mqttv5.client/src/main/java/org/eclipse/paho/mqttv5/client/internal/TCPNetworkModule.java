@@ -42,6 +42,7 @@ public class TCPNetworkModule implements NetworkModule {
 	private String host;
 	private int port;
 	private int conTimeout;
+	private int readTimeout = 1000;
 
 	/**
 	 * Constructs a new TCPNetworkModule using the specified host and
@@ -73,7 +74,7 @@ public class TCPNetworkModule implements NetworkModule {
 			SocketAddress sockaddr = new InetSocketAddress(host, port);
 			socket = factory.createSocket();
 			socket.connect(sockaddr, conTimeout*1000);
-			socket.setSoTimeout(1000);
+			socket.setSoTimeout(readTimeout);
 		}
 		catch (ConnectException ex) {
 			//@TRACE 250=Failed to create TCP socket
@@ -119,6 +120,19 @@ public class TCPNetworkModule implements NetworkModule {
 		}
 	}
 
+	/**
+	 * Set the time a read waits for data before it times out, so that a
+	 * receiver blocked in read wakes to check whether it should stop. A
+	 * receiver on a virtual thread can instead wait without a timeout, as
+	 * stop() shuts the input down and a blocked virtual thread holds no
+	 * platform thread.
+	 * @param timeout the read timeout in milliseconds, or 0 for none.
+	 * Defaults to 1000.
+	 */
+	public void setReadTimeout(int timeout) {
+		this.readTimeout = timeout;
+	}
+
 	/**
 	 * Set the maximum time to wait for a socket to be established
 	 * @param timeout  The connection timeout
@@ -59,6 +59,9 @@ public class TCPNetworkModuleFactory implements NetworkModuleFactory {
 		}
 		TCPNetworkModule networkModule = new TCPNetworkModule(factory, host, port, clientId);
 		networkModule.setConnectTimeout(options.getConnectionTimeout());
+		if (options.isVirtualThreadsEnabled()) {
+			networkModule.setReadTimeout(0);
+		}
 		return networkModule;
 	}
 }
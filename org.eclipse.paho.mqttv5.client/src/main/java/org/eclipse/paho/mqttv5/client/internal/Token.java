@@ -16,6 +16,11 @@
 
 package org.eclipse.paho.mqttv5.client.internal;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
 import org.eclipse.paho.mqttv5.client.MqttActionListener;
 import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.MqttClientInterface;
@@ -41,8 +46,13 @@ public class Token {
 	private boolean pendingComplete = false;
 	private boolean sent = false;
 
-	private final Object responseLock = new Object();
-	private final Object sentLock = new Object();
+	private final ReentrantLock responseLock = new ReentrantLock();
+	private final Condition responseArrived = responseLock.newCondition();
+	private final Condition messageSent = responseLock.newCondition();
+	// Held while the message is written and while its acknowledgement is
+	// processed, so that the send processing completes before the receive
+	// processing starts
+	private final ReentrantLock flowLock = new ReentrantLock();
 
 	protected MqttMessage message = null;
 	private MqttWireMessage response = null;
@@ -61,6 +71,16 @@ public class Token {
 	private boolean notified = false;
 
 	private int[] reasonCodes = null;
+	// When a QoS 1 or 2 PUBLISH was written, for the acknowledgement latency
+	private volatile long sentNanos = 0;
+	// Whether the next PUBLISH queued is from the same batch as this one
+	private boolean moreInBatch = false;
+	// Whether the PUBLISH holds a slot of the in-flight window reserved for its batch
+	private volatile boolean windowReserved = false;
+	// Told once, on the thread which completes the token, when it completes
+	private MqttActionListener completionListener = null;
+	private IMqttToken completionToken = null;
+	private boolean completionNotified = false;
 
         private boolean deliveryToken = false;
 
@@ -159,7 +179,8 @@ public class Token {
 
 	protected MqttWireMessage waitForResponse(long timeout) throws MqttException {
 		final String methodName = "waitForResponse";
-		synchronized (responseLock) {
+		responseLock.lock();
+		try {
 			// @TRACE 400=>key={0} timeout={1} sent={2} completed={3} hasException={4}
 			// response={5} token={6}
 			log.fine(
@@ -174,9 +195,9 @@ public class Token {
 						log.fine(CLASS_NAME, methodName, "408", new Object[] { getKey(), Long.valueOf(timeout) });
 
 						if (timeout <= 0) {
-							responseLock.wait();
+							responseArrived.await();
 						} else {
-							responseLock.wait(timeout);
+							responseArrived.await(timeout, TimeUnit.MILLISECONDS);
 						}
 					} catch (InterruptedException e) {
 						exception = new MqttException(e);
@@ -195,6 +216,8 @@ public class Token {
 					}
 				}
 			}
+		} finally {
+			responseLock.unlock();
 		}
 		// @TRACE 402=key={0} response={1}
 		log.fine(CLASS_NAME, methodName, "402", new Object[] { getKey(), this.response });
@@ -214,12 +237,15 @@ public class Token {
 		// @TRACE 411=>key={0} response={1} excep={2}
 		log.fine(CLASS_NAME, methodName, "411", new Object[] { getKey(), msg, ex });
 		
-		synchronized (responseLock){
+		responseLock.lock();
+		try {
 			if(msg instanceof MqttPubRec) {
 				if(msg.getReasonCodes() != null) {
 					updateReasonCodes(msg.getReasonCodes());
 				}
 			}
+		} finally {
+			responseLock.unlock();
 		}
 		
 	}
@@ -254,7 +280,8 @@ public class Token {
 		// @TRACE 404=>key={0} response={1} excep={2}
 		log.fine(CLASS_NAME, methodName, "404", new Object[] { getKey(), msg, ex });
 
-		synchronized (responseLock) {
+		responseLock.lock();
+		try {
 			// If reason codes are available, store them here.
 			if (msg instanceof MqttPubAck || msg instanceof MqttPubComp || msg instanceof MqttPubRec
 					|| msg instanceof MqttPubRel || msg instanceof MqttSubAck || msg instanceof MqttUnsubAck) {
@@ -271,6 +298,8 @@ public class Token {
 			this.pendingComplete = true;
 			this.response = msg;
 			this.exception = ex;
+		} finally {
+			responseLock.unlock();
 		}
 	}
 
@@ -283,7 +312,8 @@ public class Token {
 		// @TRACE 411=>key={0} response={1} excep={2}
 		log.fine(CLASS_NAME, methodName, "404", new Object[] { getKey(), this.response, this.exception });
 
-		synchronized (responseLock) {
+		responseLock.lock();
+		try {
 			// If pending complete is set then normally the token can be marked
 			// as complete and users notified. An abnormal error may have
 			// caused the client to shutdown beween pending complete being set
@@ -295,11 +325,63 @@ public class Token {
 				pendingComplete = false;
 			}
 
-			responseLock.notifyAll();
-		}
-		synchronized (sentLock) {
+			responseArrived.signalAll();
 			sent = true;
-			sentLock.notifyAll();
+			messageSent.signalAll();
+		} finally {
+			responseLock.unlock();
+		}
+		fireCompletionListener();
+	}
+
+	/**
+	 * Sets a listener to be told when the token completes. Unlike the action
+	 * callback, the listener is called straight from the thread which
+	 * completes the token, usually the receiver, so it must not block. If the
+	 * token has already completed the listener is called at once.
+	 *
+	 * @param token
+	 *            the token to pass to the listener
+	 * @param listener
+	 *            the listener
+	 */
+	public void setCompletionListener(IMqttToken token, MqttActionListener listener) {
+		responseLock.lock();
+		try {
+			this.completionToken = token;
+			this.completionListener = listener;
+		} finally {
+			responseLock.unlock();
+		}
+		fireCompletionListener();
+	}
+
+	private void fireCompletionListener() {
+		final String methodName = "fireCompletionListener";
+		MqttActionListener listener;
+		MqttException ex;
+		responseLock.lock();
+		try {
+			listener = completionListener;
+			ex = exception;
+			if (listener == null || completionNotified || (!completed && ex == null) || pendingComplete) {
+				return;
+			}
+			completionNotified = true;
+		} finally {
+			responseLock.unlock();
+		}
+		try {
+			if (ex == null) {
+				listener.onSuccess(completionToken);
+			} else {
+				listener.onFailure(completionToken, ex);
+			}
+		} catch (RuntimeException e) {
+			// The listener must not break the completion of the token for the
+			// thread which completed it
+			// @TRACE 412=key={0} completion listener threw exception
+			log.fine(CLASS_NAME, methodName, "412", new Object[] { getKey() }, e);
 		}
 	}
 
@@ -321,18 +403,17 @@ public class Token {
 
 	public void waitUntilSent() throws MqttException {
 		final String methodName = "waitUntilSent";
-		synchronized (sentLock) {
-			synchronized (responseLock) {
-				if (this.exception != null) {
-					throw this.exception;
-				}
+		responseLock.lock();
+		try {
+			if (this.exception != null) {
+				throw this.exception;
 			}
 			while (!sent) {
 				try {
 					// @TRACE 409=wait key={0}
 					log.fine(CLASS_NAME, methodName, "409", new Object[] { getKey() });
 
-					sentLock.wait();
+					messageSent.await();
 				} catch (InterruptedException e) {
 				}
 			}
@@ -343,6 +424,8 @@ public class Token {
 				}
 				throw this.exception;
 			}
+		} finally {
+			responseLock.unlock();
 		}
 	}
 
@@ -354,16 +437,49 @@ public class Token {
 		final String methodName = "notifySent";
 		// @TRACE 403=> key={0}
 		log.fine(CLASS_NAME, methodName, "403", new Object[] { getKey() });
-		synchronized (responseLock) {
+		responseLock.lock();
+		try {
 			this.response = null;
 			this.completed = false;
-		}
-		synchronized (sentLock) {
 			sent = true;
-			sentLock.notifyAll();
+			messageSent.signalAll();
+		} finally {
+			responseLock.unlock();
 		}
 	}
 
+	protected void setSentNanos(long sentNanos) {
+		this.sentNanos = sentNanos;
+	}
+
+	protected long getSentNanos() {
+		return sentNanos;
+	}
+
+	protected void setMoreInBatch(boolean moreInBatch) {
+		this.moreInBatch = moreInBatch;
+	}
+
+	protected boolean isMoreInBatch() {
+		return moreInBatch;
+	}
+
+	protected void setWindowReserved(boolean windowReserved) {
+		this.windowReserved = windowReserved;
+	}
+
+	/**
+	 * @return true if the PUBLISH held a reserved slot of the in-flight window,
+	 *         which it gives up
+	 */
+	protected boolean releaseWindowReservation() {
+		if (!windowReserved) {
+			return false;
+		}
+		windowReserved = false;
+		return true;
+	}
+
 	public MqttClientInterface getClient() {
 		return client;
 	}
@@ -425,9 +541,25 @@ public class Token {
 		return key;
 	}
 
+	/**
+	 * Takes the lock which keeps the sending of this token's message and the
+	 * processing of its acknowledgement apart. Unlike a monitor, a thread
+	 * waiting for it does not hold on to its carrier when it is virtual.
+	 */
+	public void lockFlow() {
+		flowLock.lock();
+	}
+
+	public void unlockFlow() {
+		flowLock.unlock();
+	}
+
 	public void setException(MqttException exception) {
-		synchronized (responseLock) {
+		responseLock.lock();
+		try {
 			this.exception = exception;
+		} finally {
+			responseLock.unlock();
 		}
 	}
 
@@ -0,0 +1,216 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps topic filters to values so that the values whose filters match a topic
+ * name can be found by walking the levels of the topic, rather than by testing
+ * every filter in turn.
+ * <p>
+ * Each node of the trie is one topic level; the <code>+</code> and
+ * <code>#</code> wildcards are held as ordinary children and followed when
+ * matching. A shared subscription filter of the form
+ * <code>$share/{ShareName}/{filter}</code> is indexed under
+ * <code>{filter}</code>, which is the topic the server publishes on.
+ * Topic names beginning with <code>$</code> are not matched by filters
+ * beginning with a wildcard.
+ * </p>
+ * <p>
+ * Updates are serialised with each other; matching takes no lock and may run
+ * concurrently with updates.
+ * </p>
+ *
+ * @param <T>
+ *            the type of value held for each filter
+ */
+public class TopicFilterTrie<T> {
+
+	private static final String SHARED_SUBSCRIPTION_PREFIX = "$share/";
+	private static final String SINGLE_LEVEL_WILDCARD = "+";
+	private static final String MULTI_LEVEL_WILDCARD = "#";
+
+	private final Node<T> root = new Node<>();
+	private volatile int size = 0;
+
+	/**
+	 * Adds or replaces the value for a topic filter.
+	 *
+	 * @param topicFilter
+	 *            the topic filter, which has already been validated
+	 * @param value
+	 *            the value for the filter
+	 * @return the previous value for the filter, or null if there was none
+	 */
+	public synchronized T put(String topicFilter, T value) {
+		Node<T> node = root;
+		for (String level : levels(indexedFilter(topicFilter))) {
+			Node<T> child = node.children.get(level);
+			if (child == null) {
+				child = new Node<>();
+				node.children.put(level, child);
+			}
+			node = child;
+		}
+		Map<String, T> values = node.values;
+		if (values == null) {
+			values = new ConcurrentHashMap<>(2);
+			node.values = values;
+		}
+		T previous = values.put(topicFilter, value);
+		if (previous == null) {
+			size++;
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes the value for a topic filter, and any nodes left empty.
+	 *
+	 * @param topicFilter
+	 *            the topic filter
+	 * @return the value which was removed, or null if there was none
+	 */
+	public synchronized T remove(String topicFilter) {
+		List<String> levels = levels(indexedFilter(topicFilter));
+		List<Node<T>> path = new ArrayList<>(levels.size() + 1);
+		Node<T> node = root;
+		path.add(node);
+		for (String level : levels) {
+			node = node.children.get(level);
+			if (node == null) {
+				return null;
+			}
+			path.add(node);
+		}
+		if (node.values == null) {
+			return null;
+		}
+		T removed = node.values.remove(topicFilter);
+		if (removed == null) {
+			return null;
+		}
+		size--;
+		if (node.values.isEmpty()) {
+			node.values = null;
+		}
+		// Prune the branch back to the last node still in use
+		for (int i = levels.size(); i > 0; i--) {
+			Node<T> current = path.get(i);
+			if (current.values != null || !current.children.isEmpty()) {
+				break;
+			}
+			path.get(i - 1).children.remove(levels.get(i - 1));
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		root.children.clear();
+		root.values = null;
+		size = 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the values of every filter which matches a topic name.
+	 *
+	 * @param topicName
+	 *            the topic name of a received message
+	 * @param matches
+	 *            the collection the matching values are added to
+	 */
+	public void match(String topicName, Collection<T> matches) {
+		if (size == 0) {
+			return;
+		}
+		List<String> levels = levels(topicName);
+		boolean systemTopic = topicName.startsWith("$");
+		match(root, levels, 0, !systemTopic, matches);
+	}
+
+	private void match(Node<T> node, List<String> levels, int index, boolean wildcards, Collection<T> matches) {
+		if (wildcards) {
+			// '#' matches this level, everything below it, and the parent level
+			Node<T> multi = node.children.get(MULTI_LEVEL_WILDCARD);
+			if (multi != null) {
+				addValues(multi, matches);
+			}
+		}
+		if (index == levels.size()) {
+			addValues(node, matches);
+			return;
+		}
+		if (wildcards) {
+			Node<T> single = node.children.get(SINGLE_LEVEL_WILDCARD);
+			if (single != null) {
+				match(single, levels, index + 1, true, matches);
+			}
+		}
+		Node<T> exact = node.children.get(levels.get(index));
+		if (exact != null) {
+			match(exact, levels, index + 1, true, matches);
+		}
+	}
+
+	private void addValues(Node<T> node, Collection<T> matches) {
+		Map<String, T> values = node.values;
+		if (values != null) {
+			matches.addAll(values.values());
+		}
+	}
+
+	/**
+	 * @return the filter a subscription is matched against, which for a shared
+	 *         subscription is the filter following the share name
+	 */
+	private static String indexedFilter(String topicFilter) {
+		if (topicFilter.startsWith(SHARED_SUBSCRIPTION_PREFIX)) {
+			int filterStart = topicFilter.indexOf('/', SHARED_SUBSCRIPTION_PREFIX.length());
+			if (filterStart > 0) {
+				return topicFilter.substring(filterStart + 1);
+			}
+		}
+		return topicFilter;
+	}
+
+	/**
+	 * Splits a topic into its levels, keeping empty levels.
+	 */
+	private static List<String> levels(String topic) {
+		List<String> levels = new ArrayList<>(8);
+		int start = 0;
+		int end;
+		while ((end = topic.indexOf('/', start)) >= 0) {
+			levels.add(topic.substring(start, end));
+			start = end + 1;
+		}
+		levels.add(topic.substring(start));
+		return levels;
+	}
+
+	private static class Node<T> {
+		final Map<String, Node<T>> children = new ConcurrentHashMap<>(4);
+		volatile Map<String, T> values;
+	}
+}
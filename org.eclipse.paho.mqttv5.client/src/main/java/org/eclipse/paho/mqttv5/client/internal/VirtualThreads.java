@@ -0,0 +1,57 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives access to virtual threads when the runtime has them, Java 21 or
+ * later, while the client itself is still built for Java 8.
+ * <p>
+ * A single executor is shared by every client. It starts a new virtual
+ * thread for each task and holds no threads of its own, so it never needs
+ * to be shut down.
+ * </p>
+ */
+public final class VirtualThreads {
+
+	private static final ExecutorService EXECUTOR = createExecutor();
+
+	private VirtualThreads() {
+	}
+
+	private static ExecutorService createExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			// Before Java 21, or virtual threads are otherwise unavailable
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the runtime supports virtual threads
+	 */
+	public static boolean isAvailable() {
+		return EXECUTOR != null;
+	}
+
+	/**
+	 * @return an executor which runs each task on a new virtual thread, or
+	 *         null if the runtime does not support virtual threads
+	 */
+	public static ExecutorService executor() {
+		return EXECUTOR;
+	}
+}
@@ -19,9 +19,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.SyncFailedException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
 import org.eclipse.paho.mqttv5.client.internal.FileLock;
@@ -40,15 +48,29 @@ import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
  * 
  * The sub-directory's name is created from a concatenation of the client ID and connection key
  * with any instance of '/', '\\', ':' or ' ' removed.
+ * 
+ * By default each put forces its file to disk before returning. With
+ * {@link SyncPolicy#GROUP_COMMIT} puts made at the same time by several threads
+ * wait for a single barrier which forces all of their files and the directory,
+ * so that the disk's sync rate no longer limits the rate of publishing.
  */
 public class MqttDefaultFilePersistence implements MqttClientPersistence {
 	private static final String MESSAGE_FILE_EXTENSION = ".msg";
 	private static final String MESSAGE_BACKUP_FILE_EXTENSION = ".bup";
 	private static final String LOCK_FILENAME = ".lck"; 
+	// Windows does not let a directory be opened to force it
+	private static final boolean DIRECTORY_SYNC_SUPPORTED = !System.getProperty("os.name", "").startsWith("Windows");
 
 	private File dataDir;
 	private File clientDir = null;
 	private FileLock fileLock = null;
+	private SyncPolicy syncPolicy = SyncPolicy.EVERY_WRITE;
+	private long groupCommitWindowNanos = 0;
+
+	// Files written but not yet forced, and whether a thread is forcing them
+	private final Object commitLock = new Object();
+	private List<PendingSync> pendingSyncs = new ArrayList<PendingSync>();
+	private boolean syncing = false;
 	
 	//TODO
 	private static FilenameFilter FILENAME_FILTER;
@@ -72,6 +94,36 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		dataDir = new File(directory);
 	}
 	
+	/**
+	 * @param syncPolicy
+	 *            {@link SyncPolicy#EVERY_WRITE}, the default, or
+	 *            {@link SyncPolicy#GROUP_COMMIT}.
+	 * @throws IllegalArgumentException
+	 *             for any other policy, as they would give up the guarantee
+	 *             that a put is on disk when it returns
+	 */
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		if (syncPolicy != SyncPolicy.EVERY_WRITE && syncPolicy != SyncPolicy.GROUP_COMMIT) {
+			throw new IllegalArgumentException();
+		}
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * Sets how long the thread which forces a group of files waits for other
+	 * puts to join the group first. The default of 0 only groups the puts made
+	 * while the previous group was being forced.
+	 * 
+	 * @param groupCommitWindowMicros
+	 *            the time in microseconds, defaults to 0.
+	 */
+	public void setGroupCommitWindow(long groupCommitWindowMicros) {
+		if (groupCommitWindowMicros < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitWindowMicros);
+	}
+
 	public void open(String clientId) throws MqttPersistenceException {
 		
 		if (dataDir.exists() && !dataDir.isDirectory()) {
@@ -170,12 +222,19 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 		try {
 			FileOutputStream fos = new FileOutputStream(file);
-			fos.write(message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength());
-			if (message.getPayloadBytes()!=null) {
-				fos.write(message.getPayloadBytes(), message.getPayloadOffset(), message.getPayloadLength());
+			try {
+				fos.write(message.getHeaderBytes(), message.getHeaderOffset(), message.getHeaderLength());
+				if (message.getPayloadBytes()!=null) {
+					fos.write(message.getPayloadBytes(), message.getPayloadOffset(), message.getPayloadLength());
+				}
+				if (syncPolicy == SyncPolicy.GROUP_COMMIT) {
+					groupCommit(fos.getFD());
+				} else {
+					fos.getFD().sync();
+				}
+			} finally {
+				fos.close();
 			}
-			fos.getFD().sync();
-			fos.close();
 			if (backupFile.exists()) {
 				// The write has completed successfully, delete the backup 
 				backupFile.delete();
@@ -196,6 +255,115 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 	}
 
+	/**
+	 * Waits until a written file has been forced to disk, along with the
+	 * directory holding it. The first thread to arrive while no files are
+	 * being forced forces the files of every thread waiting, and the threads
+	 * arriving meanwhile wait for the next group.
+	 * 
+	 * @param fd
+	 *            the file descriptor of the written file, which must remain open
+	 * @throws IOException
+	 *             if the file or its directory could not be forced
+	 */
+	private void groupCommit(FileDescriptor fd) throws IOException {
+		PendingSync pending = new PendingSync(fd);
+		boolean leader = false;
+		boolean interrupted = false;
+		synchronized (commitLock) {
+			pendingSyncs.add(pending);
+			while (!pending.done && syncing) {
+				try {
+					commitLock.wait();
+				} catch (InterruptedException e) {
+					if (pendingSyncs.remove(pending)) {
+						// No thread has taken the file yet, so the put can give up
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+					// The file is being forced and must stay open until it has been
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (!pending.done) {
+				syncing = true;
+				leader = true;
+			}
+		}
+		if (leader) {
+			if (groupCommitWindowNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(groupCommitWindowNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			List<PendingSync> group;
+			synchronized (commitLock) {
+				group = pendingSyncs;
+				pendingSyncs = new ArrayList<PendingSync>();
+			}
+			try {
+				for (PendingSync sync : group) {
+					try {
+						sync.fd.sync();
+						sync.synced = true;
+					} catch (SyncFailedException ex) {
+						sync.failure = ex;
+					}
+				}
+				try {
+					syncDirectory(clientDir);
+				} catch (IOException ex) {
+					// Files created in the directory may not survive a crash
+					for (PendingSync sync : group) {
+						if (sync.failure == null) {
+							sync.failure = ex;
+						}
+					}
+				}
+			} finally {
+				synchronized (commitLock) {
+					for (PendingSync sync : group) {
+						if (!sync.synced && sync.failure == null) {
+							sync.failure = new SyncFailedException("File was not forced");
+						}
+						sync.done = true;
+					}
+					syncing = false;
+					commitLock.notifyAll();
+				}
+			}
+		}
+		if (pending.failure != null) {
+			throw pending.failure;
+		}
+	}
+
+	/**
+	 * Forces a directory, so that files created in it survive a crash. This
+	 * does nothing on platforms which do not allow a directory to be opened.
+	 * 
+	 * @param dir
+	 *            the directory to force
+	 * @throws IOException
+	 *             if the directory could not be forced
+	 */
+	void syncDirectory(File dir) throws IOException {
+		if (dir == null || !DIRECTORY_SYNC_SUPPORTED) {
+			return;
+		}
+		FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
 	public MqttPersistable get(String key) throws MqttPersistenceException {
 		checkIsOpen();
 		MqttPersistable result;
@@ -297,4 +465,15 @@ public class MqttDefaultFilePersistence implements MqttClientPersistence {
 		}
 		clientDir.delete();
 	}
+
+	private static class PendingSync {
+		final FileDescriptor fd;
+		boolean synced = false;
+		boolean done = false;
+		IOException failure = null;
+
+		PendingSync(FileDescriptor fd) {
+			this.fd = fd;
+		}
+	}
 }
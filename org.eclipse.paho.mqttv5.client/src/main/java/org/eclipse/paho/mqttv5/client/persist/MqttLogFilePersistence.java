@@ -0,0 +1,781 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.internal.FileLock;
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that keeps
+ * the persisted data in a few append-only log files, rather than in a file for
+ * each message as {@link MqttDefaultFilePersistence} does.
+ * <p>
+ * As with {@link MqttDefaultFilePersistence}, a sub-directory is made beneath
+ * the directory given for each client ID. Each put and remove is appended to
+ * the newest log file, the active segment, as a checksummed record, and a new
+ * segment is started once the active one reaches the segment size. An index of
+ * where the latest data for each key is held is kept in memory, so
+ * {@link #keys()} and {@link #containsKey(String)} do not touch the disk; it is
+ * rebuilt by reading the segments when the persistence is opened, and any
+ * incomplete record left at the end of a segment by a crash is discarded.
+ * </p>
+ * <p>
+ * A segment is deleted once nothing in it or in an older segment is still
+ * needed. If the older segments come to hold more stale data than the
+ * compaction threshold allows, because a few keys are kept for a long time,
+ * the data still needed is copied into the active segment and the older
+ * segments are deleted.
+ * </p>
+ * <p>
+ * When changes are forced out to the storage device is set by the
+ * {@link SyncPolicy}. The default, {@link SyncPolicy#GROUP_COMMIT}, does not
+ * return from a put or remove until the change is on disk, and lets threads
+ * which change the persistence at the same time share a single force.
+ * </p>
+ * <p>
+ * The settings must be made before the persistence is opened.
+ * </p>
+ */
+public class MqttLogFilePersistence implements MqttClientPersistence {
+	private static final String SEGMENT_FILE_EXTENSION = ".log";
+	private static final String LOCK_FILENAME = ".lck";
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	// The record length before a record and the CRC after it
+	private static final int RECORD_FRAMING = 8;
+	// The type and key length at the start of every record
+	private static final int RECORD_KEY_START = 3;
+
+	private final File dataDir;
+	private SyncPolicy syncPolicy = SyncPolicy.GROUP_COMMIT;
+	private long syncIntervalMillis = 100;
+	private long segmentSize = 16 * 1024 * 1024;
+	private double compactionThreshold = 0.5;
+
+	private File clientDir = null;
+	private FileLock fileLock = null;
+	private final Map<String, Entry> index = new HashMap<>();
+	// Oldest first, the last is the active segment
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private Segment active = null;
+	private boolean compacting = false;
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+	private final CRC32 crc = new CRC32();
+
+	// Bytes appended since the persistence was opened, and how many of them
+	// are known to be on disk
+	private long written = 0;
+	private long synced = 0;
+	private final Object syncLock = new Object();
+	private Timer syncTimer = null;
+
+	public MqttLogFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a log file based persistent data store within the specified
+	 * directory.
+	 *
+	 * @param directory
+	 *            the directory to use.
+	 */
+	public MqttLogFilePersistence(String directory) {
+		dataDir = new File(directory);
+	}
+
+	/**
+	 * @param syncPolicy
+	 *            when changes are forced out to the storage device, defaults to
+	 *            {@link SyncPolicy#GROUP_COMMIT}.
+	 */
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		if (syncPolicy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * @param syncIntervalMillis
+	 *            how often changes are forced with {@link SyncPolicy#INTERVAL},
+	 *            defaults to 100 milliseconds.
+	 */
+	public void setSyncInterval(long syncIntervalMillis) {
+		if (syncIntervalMillis < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.syncIntervalMillis = syncIntervalMillis;
+	}
+
+	/**
+	 * @param segmentSize
+	 *            the size in bytes at which a new segment is started, defaults
+	 *            to 16 MiB.
+	 */
+	public void setSegmentSize(long segmentSize) {
+		if (segmentSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * @param compactionThreshold
+	 *            the fraction of the older segments which may be stale before
+	 *            the data still needed is copied out of them, defaults to 0.5.
+	 */
+	public void setCompactionThreshold(double compactionThreshold) {
+		if (!(compactionThreshold > 0 && compactionThreshold <= 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	public void open(String clientId) throws MqttPersistenceException {
+
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists()) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		StringBuilder keyBuffer = new StringBuilder();
+		for (int i = 0; i < clientId.length(); i++) {
+			char c = clientId.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+
+		synchronized (this) {
+			if (clientDir != null) {
+				return;
+			}
+			File dir = new File(dataDir, keyBuffer.toString());
+			if (!dir.exists()) {
+				dir.mkdir();
+			}
+
+			// Two writers appending to the same segment would corrupt it
+			try {
+				fileLock = new FileLock(dir, LOCK_FILENAME);
+			} catch (Exception e) {
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e);
+			}
+
+			clientDir = dir;
+			written = 0;
+			try {
+				load();
+				releaseDeadSegments();
+				if (shouldCompact()) {
+					copyLiveData();
+				}
+			} catch (IOException ex) {
+				abandonOpen();
+				throw new MqttPersistenceException(ex);
+			} catch (MqttPersistenceException ex) {
+				abandonOpen();
+				throw ex;
+			}
+
+			if (syncPolicy == SyncPolicy.INTERVAL) {
+				syncTimer = new Timer("MQTT Persistence Sync: " + clientId, true);
+				syncTimer.schedule(new SyncTask(), syncIntervalMillis, syncIntervalMillis);
+			}
+		}
+		synchronized (syncLock) {
+			synced = 0;
+		}
+	}
+
+	private void abandonOpen() {
+		closeSegments();
+		index.clear();
+		fileLock.release();
+		fileLock = null;
+		clientDir = null;
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 *
+	 * @throws MqttPersistenceException
+	 *             if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	public void close() throws MqttPersistenceException {
+
+		synchronized (this) {
+			if (clientDir == null) {
+				return;
+			}
+			if (syncTimer != null) {
+				syncTimer.cancel();
+				syncTimer = null;
+			}
+			boolean empty = index.isEmpty();
+			try {
+				if (empty) {
+					deleteSegments();
+				} else {
+					active.channel.force(false);
+				}
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			} finally {
+				closeSegments();
+				index.clear();
+				if (fileLock != null) {
+					fileLock.release();
+					fileLock = null;
+				}
+				if (empty) {
+					clientDir.delete();
+				}
+				clientDir = null;
+			}
+		}
+	}
+
+	/**
+	 * Appends the specified persistent data to the active segment.
+	 *
+	 * @param message
+	 *            The {@link MqttPersistable} message to be persisted
+	 * @throws MqttPersistenceException
+	 *             if an exception occurs whilst persisting the message
+	 */
+	public void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		long position;
+		synchronized (this) {
+			checkIsOpen();
+			try {
+				position = append(RECORD_PUT, key, message);
+				if (syncPolicy == SyncPolicy.EVERY_WRITE) {
+					active.channel.force(false);
+				}
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+		}
+		commit(position);
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (this) {
+			checkIsOpen();
+			Entry entry = index.get(key);
+			if (entry == null) {
+				return null;
+			}
+			try {
+				return read(key, entry);
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Appends a record that the data with the specified key has been removed.
+	 */
+	public void remove(String key) throws MqttPersistenceException {
+		long position;
+		synchronized (this) {
+			checkIsOpen();
+			if (!index.containsKey(key)) {
+				return;
+			}
+			try {
+				position = append(RECORD_REMOVE, key, null);
+				if (syncPolicy == SyncPolicy.EVERY_WRITE) {
+					active.channel.force(false);
+				}
+				releaseDeadSegments();
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+		}
+		commit(position);
+	}
+
+	/**
+	 * Returns the keys of all of the persistent data, from the index held in
+	 * memory.
+	 *
+	 * @return the keys of all of the persistent data.
+	 * @throws MqttPersistenceException
+	 *             if the persistence has not been opened
+	 */
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkIsOpen();
+		return new Vector<>(index.keySet()).elements();
+	}
+
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		return index.containsKey(key);
+	}
+
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		long nextId = active.id + 1;
+		index.clear();
+		deleteSegments();
+		try {
+			startSegment(nextId);
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Copies the data still needed out of all but the active segment, and
+	 * deletes them.
+	 *
+	 * @throws MqttPersistenceException
+	 *             if an exception occurs whilst copying the data
+	 */
+	public synchronized void compact() throws MqttPersistenceException {
+		checkIsOpen();
+		try {
+			copyLiveData();
+		} catch (IOException ex) {
+			throw new MqttPersistenceException(ex);
+		}
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c == '-';
+	}
+
+	/**
+	 * Rebuilds the index by reading every segment, oldest first.
+	 */
+	private void load() throws IOException {
+		File[] files = clientDir.listFiles(new PersistenceFileNameFilter(SEGMENT_FILE_EXTENSION));
+		if (files == null) {
+			throw new IOException("Unable to list " + clientDir);
+		}
+		List<Long> ids = new ArrayList<>(files.length);
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				ids.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length())));
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+		Long[] sorted = ids.toArray(new Long[ids.size()]);
+		Arrays.sort(sorted);
+		for (Long id : sorted) {
+			Segment segment = new Segment(id.longValue(), segmentFile(id.longValue()));
+			segments.addLast(segment);
+			replay(segment);
+		}
+		if (segments.isEmpty()) {
+			startSegment(1);
+		} else {
+			active = segments.peekLast();
+		}
+	}
+
+	/**
+	 * Applies the records in a segment to the index. The segment is truncated
+	 * at the first record which is incomplete or fails its checksum, which is
+	 * where the writer stopped if it crashed.
+	 */
+	private void replay(Segment segment) throws IOException {
+		long fileLength = segment.channel.size();
+		long offset = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		try {
+			while (offset + RECORD_FRAMING <= fileLength) {
+				int length = in.readInt();
+				if (length < RECORD_KEY_START || length > fileLength - offset - RECORD_FRAMING) {
+					break;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				int checksum = in.readInt();
+				crc.reset();
+				crc.update(record, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				int keyLength = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+				if (RECORD_KEY_START + keyLength > length) {
+					break;
+				}
+				String key = new String(record, RECORD_KEY_START, keyLength, StandardCharsets.UTF_8);
+				if (record[0] == RECORD_PUT) {
+					int dataStart = RECORD_KEY_START + keyLength + 4;
+					if (dataStart > length) {
+						break;
+					}
+					int headerLength = ByteBuffer.wrap(record, dataStart - 4, 4).getInt();
+					int payloadLength = length - dataStart - headerLength;
+					if (headerLength < 0 || payloadLength < 0) {
+						break;
+					}
+					index(key, new Entry(segment, offset + 4 + dataStart, headerLength, payloadLength,
+							RECORD_FRAMING + length));
+				} else if (record[0] == RECORD_REMOVE) {
+					index(key, null);
+				} else {
+					break;
+				}
+				offset += RECORD_FRAMING + length;
+			}
+		} catch (EOFException e) {
+			// Truncated by the file length check
+		} finally {
+			in.close();
+		}
+		if (offset < fileLength) {
+			segment.channel.truncate(offset);
+		}
+		segment.size = offset;
+	}
+
+	/**
+	 * Appends a record to the active segment and updates the index.
+	 *
+	 * @return the position in the log at the end of the record
+	 */
+	private long append(byte type, String key, MqttPersistable message)
+			throws IOException, MqttPersistenceException {
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int headerLength = 0;
+		int payloadLength = 0;
+		int length = RECORD_KEY_START + keyBytes.length;
+		if (type == RECORD_PUT) {
+			headerLength = message.getHeaderLength();
+			payloadLength = message.getPayloadBytes() == null ? 0 : message.getPayloadLength();
+			length += 4 + headerLength + payloadLength;
+		}
+		if (active.size > 0 && active.size + RECORD_FRAMING + length > segmentSize) {
+			roll();
+		}
+
+		ByteBuffer buffer = writeBuffer(RECORD_FRAMING + length);
+		buffer.putInt(length);
+		buffer.put(type);
+		buffer.putShort((short) keyBytes.length);
+		buffer.put(keyBytes);
+		if (type == RECORD_PUT) {
+			buffer.putInt(headerLength);
+			buffer.put(message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+			if (payloadLength > 0) {
+				buffer.put(message.getPayloadBytes(), message.getPayloadOffset(), payloadLength);
+			}
+		}
+		crc.reset();
+		crc.update(buffer.array(), 4, length);
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+
+		long start = active.size;
+		long position = start;
+		while (buffer.hasRemaining()) {
+			position += active.channel.write(buffer, position);
+		}
+		active.size = position;
+		written += RECORD_FRAMING + length;
+
+		if (type == RECORD_PUT) {
+			index(key, new Entry(active, start + 4 + RECORD_KEY_START + keyBytes.length + 4, headerLength,
+					payloadLength, RECORD_FRAMING + length));
+		} else {
+			index(key, null);
+		}
+		return written;
+	}
+
+	/**
+	 * Points the index at the latest data for a key, or removes it, and keeps
+	 * count of how much of each segment is still needed.
+	 */
+	private void index(String key, Entry entry) {
+		Entry previous = entry == null ? index.remove(key) : index.put(key, entry);
+		if (previous != null) {
+			previous.segment.live -= previous.size;
+		}
+		if (entry != null) {
+			entry.segment.live += entry.size;
+		}
+	}
+
+	private MqttPersistable read(String key, Entry entry) throws IOException {
+		byte[] data = new byte[entry.headerLength + entry.payloadLength];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long position = entry.offset;
+		while (buffer.hasRemaining()) {
+			int read = entry.segment.channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
+		}
+		return new MqttPersistentData(key, data, 0, entry.headerLength, data, entry.headerLength,
+				entry.payloadLength);
+	}
+
+	/**
+	 * Makes sure the log is on disk up to the given position, according to
+	 * the sync policy.
+	 */
+	private void commit(long position) throws MqttPersistenceException {
+		if (syncPolicy == SyncPolicy.GROUP_COMMIT) {
+			try {
+				sync(position);
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Forces the active segment unless another thread has already forced it
+	 * past the given position. Threads which wait here while another forces
+	 * the segment usually find their own records covered when it has done so.
+	 */
+	private void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= position) {
+				return;
+			}
+			FileChannel channel;
+			long target;
+			synchronized (this) {
+				if (active == null) {
+					return;
+				}
+				channel = active.channel;
+				target = written;
+			}
+			channel.force(false);
+			synced = target;
+		}
+	}
+
+	/**
+	 * Seals the active segment and starts a new one. Earlier segments are
+	 * forced as they are sealed, so forcing the active segment is enough to
+	 * make the whole log durable. While compacting the segment is always
+	 * forced, as the copies in it may allow an older segment to be deleted.
+	 */
+	private void roll() throws IOException, MqttPersistenceException {
+		if (syncPolicy != SyncPolicy.NONE || compacting) {
+			active.channel.force(false);
+		}
+		startSegment(active.id + 1);
+		releaseDeadSegments();
+		if (!compacting && shouldCompact()) {
+			copyLiveData();
+		}
+	}
+
+	private void startSegment(long id) throws IOException {
+		Segment segment = new Segment(id, segmentFile(id));
+		segment.channel.truncate(0);
+		segments.addLast(segment);
+		active = segment;
+	}
+
+	private File segmentFile(long id) {
+		return new File(clientDir, String.format("%019d", Long.valueOf(id)) + SEGMENT_FILE_EXTENSION);
+	}
+
+	/**
+	 * Deletes the oldest segments while nothing in them is needed. A segment
+	 * is only deleted once all older ones have been, as its remove records may
+	 * still be hiding data in an older segment.
+	 */
+	private void releaseDeadSegments() {
+		while (segments.size() > 1 && segments.peekFirst().live == 0) {
+			segments.pollFirst().delete();
+		}
+	}
+
+	private boolean shouldCompact() {
+		long sealedSize = 0;
+		long sealedLive = 0;
+		for (Segment segment : segments) {
+			if (segment != active) {
+				sealedSize += segment.size;
+				sealedLive += segment.live;
+			}
+		}
+		return sealedSize > 0 && sealedSize - sealedLive >= sealedSize * compactionThreshold;
+	}
+
+	/**
+	 * Copies the data still needed in the sealed segments to the end of the
+	 * log and deletes the sealed segments once the copies are on disk.
+	 */
+	private void copyLiveData() throws IOException, MqttPersistenceException {
+		List<Segment> sealed = new ArrayList<>(segments);
+		sealed.remove(active);
+		if (sealed.isEmpty()) {
+			return;
+		}
+		compacting = true;
+		try {
+			List<String> keys = new ArrayList<>();
+			for (Map.Entry<String, Entry> entry : index.entrySet()) {
+				if (entry.getValue().segment != active) {
+					keys.add(entry.getKey());
+				}
+			}
+			for (String key : keys) {
+				Entry entry = index.get(key);
+				if (sealed.contains(entry.segment)) {
+					append(RECORD_PUT, key, read(key, entry));
+				}
+			}
+			// The copies must be on disk before the originals are deleted
+			for (Segment segment : segments) {
+				if (!sealed.contains(segment)) {
+					segment.channel.force(false);
+				}
+			}
+			for (Segment segment : sealed) {
+				segments.remove(segment);
+				segment.delete();
+			}
+		} finally {
+			compacting = false;
+		}
+	}
+
+	private ByteBuffer writeBuffer(int size) {
+		if (writeBuffer.capacity() < size) {
+			writeBuffer = ByteBuffer.allocate(Math.max(size, writeBuffer.capacity() * 2));
+		}
+		writeBuffer.clear();
+		return writeBuffer;
+	}
+
+	private void deleteSegments() {
+		for (Segment segment : segments) {
+			segment.delete();
+		}
+		segments.clear();
+		active = null;
+	}
+
+	private void closeSegments() {
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+		active = null;
+	}
+
+	private class SyncTask extends TimerTask {
+		public void run() {
+			long position;
+			synchronized (MqttLogFilePersistence.this) {
+				position = written;
+			}
+			try {
+				sync(position);
+			} catch (IOException ex) {
+				// The next put or remove will report the problem
+			}
+		}
+	}
+
+	private static class Segment {
+		final long id;
+		final File file;
+		final FileChannel channel;
+		// Bytes of valid records, and how many of them hold data still needed
+		long size = 0;
+		long live = 0;
+
+		Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Ignore, the segment is no longer used
+			}
+		}
+
+		void delete() {
+			close();
+			file.delete();
+		}
+	}
+
+	private static class Entry {
+		final Segment segment;
+		// Where the header and payload start in the segment
+		final long offset;
+		final int headerLength;
+		final int payloadLength;
+		// The size of the whole record
+		final int size;
+
+		Entry(Segment segment, long offset, int headerLength, int payloadLength, int size) {
+			this.segment = segment;
+			this.offset = offset;
+			this.headerLength = headerLength;
+			this.payloadLength = payloadLength;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,736 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.internal.FileLock;
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+
+/**
+ * An implementation of the {@link MqttClientPersistence} interface that keeps
+ * the in-flight messages in a single memory-mapped file of fixed size slots.
+ * <p>
+ * The client persists messages under keys made of a prefix for the state of
+ * the message, <code>s-</code>, <code>sc-</code>, <code>r-</code> or
+ * <code>sb-</code>, and its message id. This persistence only accepts keys of
+ * that form, which lets it find the slot holding a message from a table
+ * indexed by prefix and message id, so that puts, gets and removes do not
+ * search for or create any file. A message larger than a slot is held in a
+ * chain of slots. When all of the slots are in use the file is doubled in
+ * size.
+ * </p>
+ * <p>
+ * Each message is written with a sequence number and a checksum. When the
+ * persistence is opened the slot table is rebuilt by scanning the slots;
+ * a message whose checksum does not match, because the process or machine
+ * failed while it was being written, is discarded, and if a message was
+ * replaced but both copies survived, the later one is kept.
+ * </p>
+ * <p>
+ * When changes are forced out to the storage device is set by the
+ * {@link SyncPolicy}. {@link SyncPolicy#EVERY_WRITE} forces the mapped file
+ * before each put or remove returns; {@link SyncPolicy#INTERVAL} forces it in
+ * the background.
+ * </p>
+ * <p>
+ * The settings must be made before the persistence is opened.
+ * </p>
+ */
+public class MqttMappedFilePersistence implements MqttClientPersistence {
+	private static final String SLOT_FILENAME = "slots.map";
+	private static final String LOCK_FILENAME = ".lck";
+	private static final int MAGIC = 0x504d5153;
+	private static final int VERSION = 1;
+
+	// The key prefixes used by ClientState, the index of each is its kind
+	private static final String[] PREFIXES = { "s-", "sc-", "r-", "sb-" };
+	private static final int MAX_MESSAGE_ID = 65535;
+
+	private static final byte SLOT_FREE = 0;
+	private static final byte SLOT_HEAD = 1;
+	private static final byte SLOT_CONTINUATION = 2;
+
+	// The layout of a slot. Continuation slots only use the state and next
+	// fields. Slot 0 holds the file header instead.
+	private static final int STATE = 0;
+	private static final int KIND = 1;
+	private static final int MESSAGE_ID = 2;
+	private static final int HEADER_LENGTH = 4;
+	private static final int PAYLOAD_LENGTH = 8;
+	private static final int NEXT = 12;
+	private static final int SEQUENCE = 16;
+	private static final int CHECKSUM = 24;
+	private static final int DATA = 32;
+	private static final int MIN_SLOT_SIZE = 64;
+
+	private final File dataDir;
+	private SyncPolicy syncPolicy = SyncPolicy.EVERY_WRITE;
+	private long syncIntervalMillis = 100;
+	private int slotSize = 512;
+	private int initialCapacity = 256;
+
+	private File clientDir = null;
+	private FileLock fileLock = null;
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	// A view of the map for bulk reads and writes at a position
+	private ByteBuffer view;
+	private int capacity;
+	// The head slot of each message, by kind and message id, 0 if none
+	private int[] heads;
+	private int count;
+	private int[] freeSlots;
+	private int freeCount;
+	private long sequence;
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer fields = ByteBuffer.allocate(DATA);
+
+	// Changes made since the persistence was opened, and how many of them are
+	// known to be on disk
+	private long changes = 0;
+	private long synced = 0;
+	private final Object syncLock = new Object();
+	private Timer syncTimer = null;
+
+	public MqttMappedFilePersistence() {
+		this(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Create a memory-mapped persistent data store within the specified
+	 * directory.
+	 *
+	 * @param directory
+	 *            the directory to use.
+	 */
+	public MqttMappedFilePersistence(String directory) {
+		dataDir = new File(directory);
+	}
+
+	/**
+	 * @param syncPolicy
+	 *            when changes are forced out to the storage device, defaults to
+	 *            {@link SyncPolicy#EVERY_WRITE}.
+	 */
+	public void setSyncPolicy(SyncPolicy syncPolicy) {
+		if (syncPolicy == null) {
+			throw new IllegalArgumentException();
+		}
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * @param syncIntervalMillis
+	 *            how often changes are forced with {@link SyncPolicy#INTERVAL},
+	 *            defaults to 100 milliseconds.
+	 */
+	public void setSyncInterval(long syncIntervalMillis) {
+		if (syncIntervalMillis < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.syncIntervalMillis = syncIntervalMillis;
+	}
+
+	/**
+	 * @param slotSize
+	 *            the size in bytes of each slot of a new file, defaults to 512.
+	 *            An existing file keeps the slot size it was created with.
+	 */
+	public void setSlotSize(int slotSize) {
+		if (slotSize < MIN_SLOT_SIZE) {
+			throw new IllegalArgumentException();
+		}
+		this.slotSize = slotSize;
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            the number of slots in a new file, defaults to 256.
+	 */
+	public void setInitialCapacity(int initialCapacity) {
+		if (initialCapacity < 2) {
+			throw new IllegalArgumentException();
+		}
+		this.initialCapacity = initialCapacity;
+	}
+
+	public void open(String clientId) throws MqttPersistenceException {
+
+		if (dataDir.exists() && !dataDir.isDirectory()) {
+			throw new MqttPersistenceException();
+		} else if (!dataDir.exists()) {
+			if (!dataDir.mkdirs()) {
+				throw new MqttPersistenceException();
+			}
+		}
+		if (!dataDir.canWrite()) {
+			throw new MqttPersistenceException();
+		}
+
+		StringBuilder keyBuffer = new StringBuilder();
+		for (int i = 0; i < clientId.length(); i++) {
+			char c = clientId.charAt(i);
+			if (isSafeChar(c)) {
+				keyBuffer.append(c);
+			}
+		}
+
+		synchronized (this) {
+			if (clientDir != null) {
+				return;
+			}
+			File dir = new File(dataDir, keyBuffer.toString());
+			if (!dir.exists()) {
+				dir.mkdir();
+			}
+
+			// Two processes mapping the same file would overwrite each other's slots
+			try {
+				fileLock = new FileLock(dir, LOCK_FILENAME);
+			} catch (Exception e) {
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e);
+			}
+
+			clientDir = dir;
+			try {
+				load();
+			} catch (IOException ex) {
+				closeFile();
+				fileLock.release();
+				fileLock = null;
+				clientDir = null;
+				throw new MqttPersistenceException(ex);
+			}
+
+			if (syncPolicy == SyncPolicy.INTERVAL) {
+				syncTimer = new Timer("MQTT Persistence Sync: " + clientId, true);
+				syncTimer.schedule(new SyncTask(), syncIntervalMillis, syncIntervalMillis);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the persistence has been opened.
+	 *
+	 * @throws MqttPersistenceException
+	 *             if the persistence has not been opened.
+	 */
+	private void checkIsOpen() throws MqttPersistenceException {
+		if (clientDir == null) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	public void close() throws MqttPersistenceException {
+
+		synchronized (this) {
+			if (clientDir == null) {
+				return;
+			}
+			if (syncTimer != null) {
+				syncTimer.cancel();
+				syncTimer = null;
+			}
+			boolean empty = count == 0;
+			try {
+				map.force();
+			} finally {
+				closeFile();
+				if (empty) {
+					new File(clientDir, SLOT_FILENAME).delete();
+				}
+				if (fileLock != null) {
+					fileLock.release();
+					fileLock = null;
+				}
+				if (empty) {
+					clientDir.delete();
+				}
+				clientDir = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the specified persistent data to free slots, and then makes them
+	 * the slots for the key.
+	 *
+	 * @param message
+	 *            The {@link MqttPersistable} message to be persisted
+	 * @throws MqttPersistenceException
+	 *             if the key is not one used by the client, or an exception
+	 *             occurs whilst persisting the message
+	 */
+	public void put(String key, MqttPersistable message) throws MqttPersistenceException {
+		long change;
+		synchronized (this) {
+			checkIsOpen();
+			int slotKey = slotKey(key);
+			if (slotKey < 0) {
+				throw new MqttPersistenceException();
+			}
+			int headerLength = message.getHeaderLength();
+			int payloadLength = message.getPayloadBytes() == null ? 0 : message.getPayloadLength();
+			int[] chain;
+			try {
+				chain = allocate(slotsFor(headerLength + payloadLength));
+			} catch (IOException ex) {
+				throw new MqttPersistenceException(ex);
+			}
+
+			writeData(chain, 0, message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+			if (payloadLength > 0) {
+				writeData(chain, headerLength, message.getPayloadBytes(), message.getPayloadOffset(), payloadLength);
+			}
+			for (int i = 1; i < chain.length; i++) {
+				int offset = offset(chain[i]);
+				map.put(offset + STATE, SLOT_CONTINUATION);
+				map.putInt(offset + NEXT, i + 1 < chain.length ? chain[i + 1] : 0);
+			}
+
+			int head = offset(chain[0]);
+			long headSequence = sequence++;
+			headerFields(slotKey, headerLength, payloadLength, chain.length > 1 ? chain[1] : 0, headSequence);
+			crc.reset();
+			crc.update(fields.array(), 0, CHECKSUM);
+			crc.update(message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+			if (payloadLength > 0) {
+				crc.update(message.getPayloadBytes(), message.getPayloadOffset(), payloadLength);
+			}
+			fields.putInt(CHECKSUM, (int) crc.getValue());
+			writeBytes(head, fields.array(), 0, DATA);
+
+			int previous = heads[slotKey];
+			heads[slotKey] = chain[0];
+			if (previous != 0) {
+				// The new copy must be on disk before the old one is freed
+				if (syncPolicy == SyncPolicy.EVERY_WRITE || syncPolicy == SyncPolicy.GROUP_COMMIT) {
+					map.force();
+				}
+				release(previous);
+			} else {
+				count++;
+			}
+			change = ++changes;
+			if (syncPolicy == SyncPolicy.EVERY_WRITE) {
+				map.force();
+			}
+		}
+		commit(change);
+	}
+
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		synchronized (this) {
+			checkIsOpen();
+			int slotKey = slotKey(key);
+			int head = slotKey < 0 ? 0 : heads[slotKey];
+			if (head == 0) {
+				return null;
+			}
+			int offset = offset(head);
+			int headerLength = map.getInt(offset + HEADER_LENGTH);
+			int payloadLength = map.getInt(offset + PAYLOAD_LENGTH);
+			byte[] data = new byte[headerLength + payloadLength];
+			readData(head, data);
+			return new MqttPersistentData(key, data, 0, headerLength, data, headerLength, payloadLength);
+		}
+	}
+
+	/**
+	 * Frees the slots holding the data with the specified key.
+	 */
+	public void remove(String key) throws MqttPersistenceException {
+		long change;
+		synchronized (this) {
+			checkIsOpen();
+			int slotKey = slotKey(key);
+			if (slotKey < 0 || heads[slotKey] == 0) {
+				return;
+			}
+			release(heads[slotKey]);
+			heads[slotKey] = 0;
+			count--;
+			change = ++changes;
+			if (syncPolicy == SyncPolicy.EVERY_WRITE) {
+				map.force();
+			}
+		}
+		commit(change);
+	}
+
+	/**
+	 * Returns the keys of all of the persistent data, from the slot table held
+	 * in memory.
+	 *
+	 * @return the keys of all of the persistent data.
+	 * @throws MqttPersistenceException
+	 *             if the persistence has not been opened
+	 */
+	public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+		checkIsOpen();
+		Vector<String> result = new Vector<>(count);
+		for (int slotKey = 0; slotKey < heads.length && result.size() < count; slotKey++) {
+			if (heads[slotKey] != 0) {
+				result.addElement(PREFIXES[slotKey >>> 16] + (slotKey & 0xffff));
+			}
+		}
+		return result.elements();
+	}
+
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		int slotKey = slotKey(key);
+		return slotKey >= 0 && heads[slotKey] != 0;
+	}
+
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		for (int slotKey = 0; slotKey < heads.length; slotKey++) {
+			if (heads[slotKey] != 0) {
+				release(heads[slotKey]);
+				heads[slotKey] = 0;
+			}
+		}
+		count = 0;
+		map.force();
+	}
+
+	private boolean isSafeChar(char c) {
+		return Character.isJavaIdentifierPart(c) || c == '-';
+	}
+
+	/**
+	 * @return the index in the slot table for a key made of a known prefix and
+	 *         a message id, or -1 for any other key
+	 */
+	private static int slotKey(String key) {
+		for (int kind = 0; kind < PREFIXES.length; kind++) {
+			String prefix = PREFIXES[kind];
+			if (key.startsWith(prefix)) {
+				int id = 0;
+				int length = key.length();
+				if (length == prefix.length() || length > prefix.length() + 5) {
+					return -1;
+				}
+				for (int i = prefix.length(); i < length; i++) {
+					char c = key.charAt(i);
+					if (c < '0' || c > '9') {
+						return -1;
+					}
+					id = id * 10 + (c - '0');
+				}
+				return id > MAX_MESSAGE_ID ? -1 : (kind << 16) | id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Maps the slot file, creating it if needed, and rebuilds the slot table
+	 * from the head slots whose checksums match.
+	 */
+	private void load() throws IOException {
+		File slotFile = new File(clientDir, SLOT_FILENAME);
+		boolean exists = slotFile.exists() && slotFile.length() > 0;
+		file = new RandomAccessFile(slotFile, "rw");
+		if (exists) {
+			file.seek(0);
+			if (file.length() < MIN_SLOT_SIZE || file.readInt() != MAGIC || file.readInt() != VERSION) {
+				throw new IOException("Not a slot file " + slotFile);
+			}
+			int fileSlotSize = file.readInt();
+			if (fileSlotSize < MIN_SLOT_SIZE || file.length() / fileSlotSize < 2) {
+				throw new IOException("Not a slot file " + slotFile);
+			}
+			slotSize = fileSlotSize;
+			capacity = (int) Math.min(file.length() / slotSize, Integer.MAX_VALUE / slotSize);
+		} else {
+			capacity = initialCapacity;
+			file.setLength((long) capacity * slotSize);
+		}
+		map();
+		if (!exists) {
+			map.putInt(0, MAGIC);
+			map.putInt(4, VERSION);
+			map.putInt(8, slotSize);
+			map.force();
+		}
+
+		heads = new int[PREFIXES.length << 16];
+		freeSlots = new int[capacity];
+		freeCount = 0;
+		count = 0;
+		sequence = 0;
+		changes = 0;
+		synchronized (syncLock) {
+			synced = 0;
+		}
+
+		boolean[] used = new boolean[capacity];
+		boolean stale = false;
+		for (int slot = 1; slot < capacity; slot++) {
+			int offset = offset(slot);
+			if (map.get(offset + STATE) != SLOT_HEAD) {
+				continue;
+			}
+			int[] chain = validChain(slot);
+			if (chain == null) {
+				continue;
+			}
+			int slotKey = ((map.get(offset + KIND) & 0xff) << 16) | (map.getShort(offset + MESSAGE_ID) & 0xffff);
+			long headSequence = map.getLong(offset + SEQUENCE);
+			sequence = Math.max(sequence, headSequence + 1);
+			int previous = heads[slotKey];
+			if (previous != 0) {
+				// Keep the later copy and stop the other coming back once it is freed
+				stale = true;
+				if (map.getLong(offset(previous) + SEQUENCE) > headSequence) {
+					map.put(offset + STATE, SLOT_FREE);
+					continue;
+				}
+				map.put(offset(previous) + STATE, SLOT_FREE);
+				markChain(previous, used, false);
+			} else {
+				count++;
+			}
+			heads[slotKey] = slot;
+			markChain(slot, used, true);
+		}
+		if (stale) {
+			map.force();
+		}
+		for (int slot = capacity - 1; slot > 0; slot--) {
+			if (!used[slot]) {
+				freeSlots[freeCount++] = slot;
+			}
+		}
+	}
+
+	/**
+	 * @return the slots holding the message starting at a head slot, or null
+	 *         if the chain is broken or the checksum does not match
+	 */
+	private int[] validChain(int head) {
+		int offset = offset(head);
+		int kind = map.get(offset + KIND) & 0xff;
+		int headerLength = map.getInt(offset + HEADER_LENGTH);
+		int payloadLength = map.getInt(offset + PAYLOAD_LENGTH);
+		if (kind >= PREFIXES.length || headerLength < 0 || payloadLength < 0
+				|| (long) headerLength + payloadLength > (long) (capacity - 1) * (slotSize - DATA)) {
+			return null;
+		}
+		int[] chain = new int[slotsFor(headerLength + payloadLength)];
+		chain[0] = head;
+		for (int i = 1; i < chain.length; i++) {
+			int next = map.getInt(offset(chain[i - 1]) + NEXT);
+			if (next <= 0 || next >= capacity || map.get(offset(next) + STATE) != SLOT_CONTINUATION) {
+				return null;
+			}
+			chain[i] = next;
+		}
+		crc.reset();
+		byte[] headFields = new byte[CHECKSUM];
+		readBytes(offset, headFields, 0, CHECKSUM);
+		crc.update(headFields, 0, CHECKSUM);
+		byte[] data = new byte[headerLength + payloadLength];
+		readData(head, data);
+		crc.update(data, 0, data.length);
+		return map.getInt(offset + CHECKSUM) == (int) crc.getValue() ? chain : null;
+	}
+
+	private void markChain(int head, boolean[] used, boolean value) {
+		for (int slot = head, i = slotsFor(dataLength(head)); i > 0; i--) {
+			used[slot] = value;
+			slot = map.getInt(offset(slot) + NEXT);
+		}
+	}
+
+	private int dataLength(int head) {
+		int offset = offset(head);
+		return map.getInt(offset + HEADER_LENGTH) + map.getInt(offset + PAYLOAD_LENGTH);
+	}
+
+	private int slotsFor(int dataLength) {
+		int perSlot = slotSize - DATA;
+		return Math.max(1, (dataLength + perSlot - 1) / perSlot);
+	}
+
+	private int offset(int slot) {
+		return slot * slotSize;
+	}
+
+	private void headerFields(int slotKey, int headerLength, int payloadLength, int next, long headSequence) {
+		fields.clear();
+		fields.put(STATE, SLOT_HEAD);
+		fields.put(KIND, (byte) (slotKey >>> 16));
+		fields.putShort(MESSAGE_ID, (short) slotKey);
+		fields.putInt(HEADER_LENGTH, headerLength);
+		fields.putInt(PAYLOAD_LENGTH, payloadLength);
+		fields.putInt(NEXT, next);
+		fields.putLong(SEQUENCE, headSequence);
+	}
+
+	/**
+	 * Takes slots from the free list, doubling the file if there are not
+	 * enough.
+	 */
+	private int[] allocate(int slots) throws IOException {
+		if (freeCount < slots) {
+			grow(slots);
+		}
+		int[] chain = new int[slots];
+		for (int i = 0; i < slots; i++) {
+			chain[i] = freeSlots[--freeCount];
+		}
+		return chain;
+	}
+
+	/**
+	 * Frees the slots of a message. Marking the head slot free is enough to
+	 * stop the message being restored.
+	 */
+	private void release(int head) {
+		int slots = slotsFor(dataLength(head));
+		map.put(offset(head) + STATE, SLOT_FREE);
+		for (int slot = head; slots > 0; slots--) {
+			freeSlots[freeCount++] = slot;
+			slot = map.getInt(offset(slot) + NEXT);
+		}
+	}
+
+	private void grow(int slots) throws IOException {
+		long newCapacity = capacity;
+		while (newCapacity - capacity + freeCount < slots) {
+			newCapacity *= 2;
+		}
+		if (newCapacity * slotSize > Integer.MAX_VALUE) {
+			throw new IOException("Slot file is full");
+		}
+		if (syncPolicy != SyncPolicy.NONE) {
+			map.force();
+		}
+		file.setLength(newCapacity * slotSize);
+		int oldCapacity = capacity;
+		capacity = (int) newCapacity;
+		map();
+		int[] free = new int[capacity];
+		System.arraycopy(freeSlots, 0, free, 0, freeCount);
+		freeSlots = free;
+		for (int slot = capacity - 1; slot >= oldCapacity; slot--) {
+			freeSlots[freeCount++] = slot;
+		}
+	}
+
+	private void map() throws IOException {
+		map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * slotSize);
+		view = map.duplicate();
+	}
+
+	private void writeData(int[] chain, int position, byte[] src, int srcOffset, int length) {
+		int perSlot = slotSize - DATA;
+		while (length > 0) {
+			int within = position % perSlot;
+			int n = Math.min(length, perSlot - within);
+			writeBytes(offset(chain[position / perSlot]) + DATA + within, src, srcOffset, n);
+			position += n;
+			srcOffset += n;
+			length -= n;
+		}
+	}
+
+	private void readData(int head, byte[] data) {
+		int perSlot = slotSize - DATA;
+		int slot = head;
+		for (int position = 0; position < data.length; position += perSlot) {
+			readBytes(offset(slot) + DATA, data, position, Math.min(perSlot, data.length - position));
+			slot = map.getInt(offset(slot) + NEXT);
+		}
+	}
+
+	private void writeBytes(int offset, byte[] src, int srcOffset, int length) {
+		view.position(offset);
+		view.put(src, srcOffset, length);
+	}
+
+	private void readBytes(int offset, byte[] dst, int dstOffset, int length) {
+		view.position(offset);
+		view.get(dst, dstOffset, length);
+	}
+
+	/**
+	 * Makes sure a change is on disk, according to the sync policy.
+	 */
+	private void commit(long change) {
+		if (syncPolicy == SyncPolicy.GROUP_COMMIT) {
+			sync(change);
+		}
+	}
+
+	/**
+	 * Forces the map unless another thread has already forced it after the
+	 * given change was made.
+	 */
+	private void sync(long change) {
+		synchronized (syncLock) {
+			if (synced >= change) {
+				return;
+			}
+			MappedByteBuffer current;
+			long target;
+			synchronized (this) {
+				if (clientDir == null) {
+					return;
+				}
+				current = map;
+				target = changes;
+			}
+			current.force();
+			synced = target;
+		}
+	}
+
+	private void closeFile() {
+		map = null;
+		view = null;
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Ignore, the file is no longer used
+			}
+			file = null;
+		}
+	}
+
+	private class SyncTask extends TimerTask {
+		public void run() {
+			long change;
+			synchronized (MqttMappedFilePersistence.this) {
+				change = changes;
+			}
+			sync(change);
+		}
+	}
+}
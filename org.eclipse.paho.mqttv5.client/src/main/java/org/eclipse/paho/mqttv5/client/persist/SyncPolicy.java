@@ -0,0 +1,48 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.persist;
+
+/**
+ * When a file based persistence forces the data it has written out to the
+ * storage device.
+ * <p>
+ * Until data has been forced it may only be held by the operating system, and
+ * can be lost if the machine, rather than just the JVM, fails.
+ * </p>
+ */
+public enum SyncPolicy {
+
+	/**
+	 * Force every change before the call which made it returns. This is the
+	 * safest and the slowest policy.
+	 */
+	EVERY_WRITE,
+
+	/**
+	 * Force every change before the call which made it returns, but let changes
+	 * made at the same time by several threads share a single force. This is
+	 * as safe as {@link #EVERY_WRITE} and costs less when several threads
+	 * publish at once.
+	 */
+	GROUP_COMMIT,
+
+	/**
+	 * Force changes in the background at a fixed interval, without waiting.
+	 * Changes made within the last interval can be lost if the machine fails.
+	 */
+	INTERVAL,
+
+	/**
+	 * Leave it to the operating system to write changes out, and only force
+	 * them when the persistence is closed.
+	 */
+	NONE
+}
@@ -0,0 +1,232 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate WebSocket extension, defined by RFC 7692.
+ * <p>
+ * An instance is created for each connection. It supplies the offer sent in
+ * the handshake, applies the parameters the server agrees to, and then holds
+ * the compressor for outgoing messages and the decompressor for incoming ones.
+ * </p>
+ * <p>
+ * The client always compresses with a 32KiB window, as that is the only size
+ * {@link Deflater} supports. It therefore does not offer
+ * client_max_window_bits, and fails the handshake if the server asks it to use
+ * a smaller window.
+ * </p>
+ */
+class PerMessageDeflate {
+
+	static final String EXTENSION_NAME = "permessage-deflate";
+
+	private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+	private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+	private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+	private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+	static final int MIN_WINDOW_BITS = 8;
+	static final int MAX_WINDOW_BITS = 15;
+
+	// The end of a sync flush, removed from each compressed message
+	static final byte[] TAIL = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+	private boolean clientNoContextTakeover;
+	private boolean serverNoContextTakeover;
+	private final int serverMaxWindowBits;
+
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+	private byte[] output = new byte[1024];
+	private volatile boolean ended = false;
+
+	/**
+	 * @param clientNoContextTakeover
+	 *            whether the client resets its compressor after each message
+	 * @param serverNoContextTakeover
+	 *            whether to ask the server to reset its compressor after each
+	 *            message
+	 * @param serverMaxWindowBits
+	 *            the largest window, from 8 to 15 bits, the server may compress
+	 *            with
+	 */
+	PerMessageDeflate(boolean clientNoContextTakeover, boolean serverNoContextTakeover, int serverMaxWindowBits) {
+		if (serverMaxWindowBits < MIN_WINDOW_BITS || serverMaxWindowBits > MAX_WINDOW_BITS) {
+			throw new IllegalArgumentException();
+		}
+		this.clientNoContextTakeover = clientNoContextTakeover;
+		this.serverNoContextTakeover = serverNoContextTakeover;
+		this.serverMaxWindowBits = serverMaxWindowBits;
+	}
+
+	/**
+	 * @return the value of the Sec-WebSocket-Extensions request header
+	 */
+	String getOffer() {
+		StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		if (clientNoContextTakeover) {
+			offer.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+		}
+		if (serverNoContextTakeover) {
+			offer.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+		}
+		if (serverMaxWindowBits < MAX_WINDOW_BITS) {
+			offer.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(serverMaxWindowBits);
+		}
+		return offer.toString();
+	}
+
+	/**
+	 * Applies the server's response to the offer.
+	 *
+	 * @param response
+	 *            the value of the Sec-WebSocket-Extensions response header, or
+	 *            null if there was none
+	 * @return true if the server accepted the extension
+	 * @throws IOException
+	 *             if the response is not a valid answer to the offer
+	 */
+	boolean accept(String response) throws IOException {
+		if (response == null || response.trim().isEmpty()) {
+			return false;
+		}
+		String[] parameters = response.split(";");
+		if (response.indexOf(',') >= 0 || !parameters[0].trim().equalsIgnoreCase(EXTENSION_NAME)) {
+			throw new IOException("WebSocket Response header: Unexpected extensions " + response.trim());
+		}
+		for (int i = 1; i < parameters.length; i++) {
+			String parameter = parameters[i].trim();
+			String value = null;
+			int equals = parameter.indexOf('=');
+			if (equals >= 0) {
+				value = parameter.substring(equals + 1).trim().replace("\"", "");
+				parameter = parameter.substring(0, equals).trim();
+			}
+			if (parameter.equalsIgnoreCase(CLIENT_NO_CONTEXT_TAKEOVER)) {
+				clientNoContextTakeover = true;
+			} else if (parameter.equalsIgnoreCase(SERVER_NO_CONTEXT_TAKEOVER)) {
+				serverNoContextTakeover = true;
+			} else if (parameter.equalsIgnoreCase(SERVER_MAX_WINDOW_BITS)) {
+				windowBits(parameter, value);
+			} else if (parameter.equalsIgnoreCase(CLIENT_MAX_WINDOW_BITS)) {
+				if (windowBits(parameter, value) < MAX_WINDOW_BITS) {
+					throw new IOException("WebSocket Response header: Unsupported " + parameters[i].trim());
+				}
+			} else {
+				throw new IOException("WebSocket Response header: Unexpected extension parameter " + parameter);
+			}
+		}
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		inflater = new Inflater(true);
+		return true;
+	}
+
+	private static int windowBits(String parameter, String value) throws IOException {
+		try {
+			int bits = Integer.parseInt(value);
+			if (bits >= MIN_WINDOW_BITS && bits <= MAX_WINDOW_BITS) {
+				return bits;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IOException("WebSocket Response header: Invalid " + parameter + " " + value);
+	}
+
+	/**
+	 * @return true once the server has accepted the extension
+	 */
+	boolean isNegotiated() {
+		return deflater != null;
+	}
+
+	/**
+	 * Compresses one message.
+	 *
+	 * @return the length of the compressed message, which is held in
+	 *         {@link #getOutput()}
+	 * @throws IOException
+	 *             if the connection has been closed
+	 */
+	int compress(byte[] b, int off, int len) throws IOException {
+		synchronized (deflater) {
+			checkNotEnded();
+			deflater.setInput(b, off, len);
+			int count = 0;
+			while (true) {
+				count += deflater.deflate(output, count, output.length - count, Deflater.SYNC_FLUSH);
+				if (output.length - count > 0) {
+					break;
+				}
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			if (clientNoContextTakeover) {
+				deflater.reset();
+			}
+			// Every sync flush ends with the same empty block, which the receiver puts back
+			return count - TAIL.length;
+		}
+	}
+
+	byte[] getOutput() {
+		return output;
+	}
+
+	/**
+	 * @return the decompressor, which must be used while holding its lock and
+	 *         after checking {@link #checkNotEnded()}
+	 */
+	Inflater getInflater() {
+		return inflater;
+	}
+
+	/**
+	 * @throws IOException
+	 *             if {@link #end()} has been called
+	 */
+	void checkNotEnded() throws IOException {
+		if (ended) {
+			throw new IOException("WebSocket closed");
+		}
+	}
+
+	/**
+	 * Frees the native memory held by the compressor and decompressor. Called
+	 * once the connection has been closed, so a thread still sending or
+	 * receiving finishes its message first and then gets an IOException.
+	 */
+	void end() {
+		if (deflater == null || ended) {
+			return;
+		}
+		ended = true;
+		synchronized (deflater) {
+			deflater.end();
+		}
+		synchronized (inflater) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Called when a whole message has been decompressed.
+	 */
+	void messageInflated() {
+		if (serverNoContextTakeover) {
+			inflater.reset();
+		}
+	}
+}
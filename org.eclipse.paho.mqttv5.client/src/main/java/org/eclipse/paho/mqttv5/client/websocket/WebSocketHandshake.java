@@ -46,6 +46,7 @@ public class WebSocketHandshake {
 	private static final String HTTP_HEADER_CONNECTION = "connection";
 	private static final String HTTP_HEADER_CONNECTION_VALUE = "upgrade";
 	private static final String HTTP_HEADER_SEC_WEBSOCKET_PROTOCOL = "sec-websocket-protocol";
+	private static final String HTTP_HEADER_SEC_WEBSOCKET_EXTENSIONS = "sec-websocket-extensions";
 
 	InputStream input;
 	OutputStream output;
@@ -53,14 +54,21 @@ public class WebSocketHandshake {
 	String host;
 	int port;
 	Map<String, String> customWebSocketHeaders;
+	PerMessageDeflate perMessageDeflate;
 
 	public WebSocketHandshake(InputStream input, OutputStream output, String uri, String host, int port, Map<String, String> customWebSocketHeaders) {
+		this(input, output, uri, host, port, customWebSocketHeaders, null);
+	}
+
+	WebSocketHandshake(InputStream input, OutputStream output, String uri, String host, int port,
+			Map<String, String> customWebSocketHeaders, PerMessageDeflate perMessageDeflate) {
 		this.input = input;
 		this.output = output;
 		this.uri = uri;
 		this.host = host;
 		this.port = port;
 		this.customWebSocketHeaders = customWebSocketHeaders;
+		this.perMessageDeflate = perMessageDeflate;
 	}
 
 	/**
@@ -109,6 +117,9 @@ public class WebSocketHandshake {
 			pw.print("Sec-WebSocket-Key: " + key + LINE_SEPARATOR);
 			pw.print("Sec-WebSocket-Protocol: mqtt" + LINE_SEPARATOR);
 			pw.print("Sec-WebSocket-Version: 13" + LINE_SEPARATOR);
+			if (perMessageDeflate != null) {
+				pw.print("Sec-WebSocket-Extensions: " + perMessageDeflate.getOffer() + LINE_SEPARATOR);
+			}
 
 			if (customWebSocketHeaders != null) {
 				customWebSocketHeaders.entrySet().forEach(entry ->
@@ -176,6 +187,10 @@ public class WebSocketHandshake {
 			throw new IOException("WebSocket Response header: Incorrect Sec-WebSocket-Key");
 		}
 
+		if (perMessageDeflate != null) {
+			perMessageDeflate.accept(headerMap.get(HTTP_HEADER_SEC_WEBSOCKET_EXTENSIONS));
+		}
+
 	}
 
 	/**
@@ -15,11 +15,9 @@
  */
 package org.eclipse.paho.mqttv5.client.websocket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
@@ -38,34 +36,35 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	private String uri;
 	private String host;
 	private int port;
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	ByteBuffer recievedPayload;
 	Map<String, String> customWebSocketHeaders;
+	private PerMessageDeflate perMessageDeflate;
 
 	/**
-	 * Overrides the flush method.
-	 * This allows us to encode the MQTT payload into a WebSocket
-	 *  Frame before passing it through to the real socket.
+	 * Encodes the MQTT data into WebSocket Frames before
+	 * passing it through to the real socket.
 	 */
-	private ByteArrayOutputStream outputStream = new ExtendedByteArrayOutputStream(this);
+	private WebSocketFrameWriter frameWriter;
+	private WebSocketOutputStream outputStream;
 	
 	public WebSocketNetworkModule(SocketFactory factory, String uri, String host, int port, String resourceContext){
 		super(factory, host, port, resourceContext);
 		this.uri = uri;
 		this.host = host;
 		this.port = port;
-		this.pipedInputStream = new PipedInputStream();
 		
 		log.setResourceName(resourceContext);
 	}
 	
 	public void start() throws IOException, MqttException {
 		super.start();
-		WebSocketHandshake handshake = new WebSocketHandshake(getSocketInputStream(), getSocketOutputStream(), uri, host, port, customWebSocketHeaders);
+		WebSocketHandshake handshake = new WebSocketHandshake(getSocketInputStream(), getSocketOutputStream(), uri, host, port, customWebSocketHeaders, perMessageDeflate);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("webSocketReceiver");
+		PerMessageDeflate deflate = perMessageDeflate != null && perMessageDeflate.isNegotiated() ? perMessageDeflate : null;
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream(), deflate);
+		this.frameWriter = new WebSocketFrameWriter(getSocketOutputStream());
+		this.outputStream = new WebSocketOutputStream(frameWriter, deflate);
 	}
 	
 	OutputStream getSocketOutputStream() throws IOException {
@@ -77,7 +76,7 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 	}
 	
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	public OutputStream getOutputStream() throws IOException {
@@ -88,20 +87,34 @@ public class WebSocketNetworkModule extends TCPNetworkModule {
 		this.customWebSocketHeaders = customWebSocketHeaders;
 	}
 
+	/**
+	 * @param perMessageDeflate
+	 *            the permessage-deflate extension to offer in the handshake, or
+	 *            null to send uncompressed frames
+	 */
+	void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
 	/**
 	 * Stops the module, by closing the TCP socket.
 	 */
 	public void stop() throws IOException {
 		// Creating Close Frame
-		WebSocketFrame frame = new WebSocketFrame((byte)0x08, true, "1000".getBytes());
-		byte[] rawFrame = frame.encodeFrame();
-		getSocketOutputStream().write(rawFrame);
-		getSocketOutputStream().flush();
+		try {
+			if (frameWriter != null) {
+				byte[] closePayload = "1000".getBytes();
+				frameWriter.writeFrame(WebSocketFrameWriter.OPCODE_CLOSE, closePayload, 0, closePayload.length);
+				frameWriter.flush();
+			}
 
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
+			super.stop();
+		} finally {
+			// After the socket is closed, so that a blocked read has returned
+			if (perMessageDeflate != null) {
+				perMessageDeflate.end();
+			}
 		}
-		super.stop();
 	}
 	
 	public String getServerURI() {
@@ -56,6 +56,13 @@ public class WebSocketNetworkModuleFactory implements NetworkModuleFactory {
 				clientId);
 		netModule.setConnectTimeout(options.getConnectionTimeout());
 		netModule.setCustomWebSocketHeaders(options.getCustomWebSocketHeaders());
+		if (options.isWebSocketCompressionEnabled()) {
+			netModule.setPerMessageDeflate(new PerMessageDeflate(options.isWebSocketClientNoContextTakeover(),
+					options.isWebSocketServerNoContextTakeover(), options.getWebSocketServerMaxWindowBits()));
+		}
+		if (options.isVirtualThreadsEnabled()) {
+			netModule.setReadTimeout(0);
+		}
 		return netModule;
 	}
 }
@@ -15,11 +15,9 @@
  */
 package org.eclipse.paho.mqttv5.client.websocket;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 
@@ -35,36 +33,37 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	private static final String CLASS_NAME = WebSocketSecureNetworkModule.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 	
-	private PipedInputStream pipedInputStream;
-	private WebSocketReceiver webSocketReceiver;
+	private WebSocketInputStream webSocketInputStream;
 	private String uri;
 	private String host;
 	private int port;
 	ByteBuffer recievedPayload;
 	Map<String, String> customWebSocketHeaders;
+	private PerMessageDeflate perMessageDeflate;
 
 	/**
-	 * Overrides the flush method.
-	 * This allows us to encode the MQTT payload into a WebSocket
-	 *  Frame before passing it through to the real socket.
+	 * Encodes the MQTT data into WebSocket Frames before
+	 * passing it through to the real socket.
 	 */
-	private ByteArrayOutputStream outputStream = new ExtendedByteArrayOutputStream(this);
+	private WebSocketFrameWriter frameWriter;
+	private WebSocketOutputStream outputStream;
 
 	public WebSocketSecureNetworkModule(SSLSocketFactory factory, String uri, String host, int port, String clientId) {
 		super(factory, host, port, clientId);
 		this.uri = uri;
 		this.host = host;
 		this.port = port;
-		this.pipedInputStream = new PipedInputStream();
 		log.setResourceName(clientId);
 	}
 
 	public void start() throws IOException, MqttException {
 		super.start();
-		WebSocketHandshake handshake = new WebSocketHandshake(super.getInputStream(), super.getOutputStream(), uri, host, port, customWebSocketHeaders);
+		WebSocketHandshake handshake = new WebSocketHandshake(super.getInputStream(), super.getOutputStream(), uri, host, port, customWebSocketHeaders, perMessageDeflate);
 		handshake.execute();
-		this.webSocketReceiver = new WebSocketReceiver(getSocketInputStream(), pipedInputStream);
-		webSocketReceiver.start("WssSocketReceiver");
+		PerMessageDeflate deflate = perMessageDeflate != null && perMessageDeflate.isNegotiated() ? perMessageDeflate : null;
+		this.webSocketInputStream = new WebSocketInputStream(getSocketInputStream(), deflate);
+		this.frameWriter = new WebSocketFrameWriter(getSocketOutputStream());
+		this.outputStream = new WebSocketOutputStream(frameWriter, deflate);
 
 	}
 
@@ -77,7 +76,7 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 	}
 	
 	public InputStream getInputStream() throws IOException {
-		return pipedInputStream;
+		return webSocketInputStream;
 	}
 	
 	public OutputStream getOutputStream() throws IOException {
@@ -88,17 +87,31 @@ public class WebSocketSecureNetworkModule extends SSLNetworkModule{
 		this.customWebSocketHeaders = customWebSocketHeaders;
 	}
 
+	/**
+	 * @param perMessageDeflate
+	 *            the permessage-deflate extension to offer in the handshake, or
+	 *            null to send uncompressed frames
+	 */
+	void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+	}
+
 	public void stop() throws IOException {
 		// Creating Close Frame
-		WebSocketFrame frame = new WebSocketFrame((byte)0x08, true, "1000".getBytes());
-		byte[] rawFrame = frame.encodeFrame();
-		getSocketOutputStream().write(rawFrame);
-		getSocketOutputStream().flush();
+		try {
+			if (frameWriter != null) {
+				byte[] closePayload = "1000".getBytes();
+				frameWriter.writeFrame(WebSocketFrameWriter.OPCODE_CLOSE, closePayload, 0, closePayload.length);
+				frameWriter.flush();
+			}
 
-		if(webSocketReceiver != null){
-			webSocketReceiver.stop();
+			super.stop();
+		} finally {
+			// After the socket is closed, so that a blocked read has returned
+			if (perMessageDeflate != null) {
+				perMessageDeflate.end();
+			}
 		}
-		super.stop();
 	}
 
 	public String getServerURI() {
@@ -70,6 +70,10 @@ public class WebSocketSecureNetworkModuleFactory implements NetworkModuleFactory
 		netModule.setSSLHostnameVerifier(options.getSSLHostnameVerifier());
 		netModule.setHttpsHostnameVerificationEnabled(options.isHttpsHostnameVerificationEnabled());
 		netModule.setCustomWebSocketHeaders(options.getCustomWebSocketHeaders());
+		if (options.isWebSocketCompressionEnabled()) {
+			netModule.setPerMessageDeflate(new PerMessageDeflate(options.isWebSocketClientNoContextTakeover(),
+					options.isWebSocketServerNoContextTakeover(), options.getWebSocketServerMaxWindowBits()));
+		}
 		// Ciphers suites need to be set, if they are available
 		if (wSSFactoryFactory != null) {
 			String[] enabledCiphers = wSSFactoryFactory.getEnabledCipherSuites(null);
@@ -77,6 +81,9 @@ public class WebSocketSecureNetworkModuleFactory implements NetworkModuleFactory
 				((SSLNetworkModule) netModule).setEnabledCiphers(enabledCiphers);
 			}
 		}
+		if (options.isVirtualThreadsEnabled()) {
+			netModule.setReadTimeout(0);
+		}
 		return netModule;
 	}
 }
@@ -0,0 +1,52 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.client.wire;
+
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.internal.MqttState;
+import org.eclipse.paho.mqttv5.common.ExceptionHelper;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttBufferPool;
+import org.eclipse.paho.mqttv5.common.packet.MqttPacketDecoder;
+import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+
+/**
+ * The packet decoder used by the client, which reports invalid packets with
+ * the client's reason codes and enforces the incoming maximum packet size
+ * negotiated for the connection.
+ */
+public class MqttClientPacketDecoder extends MqttPacketDecoder {
+
+	private final MqttState clientState;
+
+	public MqttClientPacketDecoder(MqttState clientState, MqttBufferPool bufferPool) {
+		super(bufferPool);
+		this.clientState = clientState;
+	}
+
+	@Override
+	protected void checkPacketType(byte type, byte reserved) throws MqttException {
+		if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) || (type > MqttWireMessage.MESSAGE_TYPE_AUTH)) {
+			// Invalid MQTT message type...
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INVALID_MESSAGE);
+		}
+		MqttWireMessage.validateReservedBits(type, reserved);
+	}
+
+	@Override
+	protected void checkPacketLength(int packetLength) throws MqttException {
+		Long maximumPacketSize = clientState.getIncomingMaximumPacketSize();
+		if (maximumPacketSize != null && packetLength > maximumPacketSize) {
+			// Incoming packet is too large
+			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INCOMING_PACKET_TOO_LARGE);
+		}
+	}
+}
@@ -15,21 +15,19 @@
  */
 package org.eclipse.paho.mqttv5.client.wire;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
-import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.internal.MqttState;
 import org.eclipse.paho.mqttv5.client.logging.Logger;
 import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
-import org.eclipse.paho.mqttv5.common.ExceptionHelper;
 import org.eclipse.paho.mqttv5.common.MqttException;
-import org.eclipse.paho.mqttv5.common.packet.MqttDataTypes;
+import org.eclipse.paho.mqttv5.common.packet.MqttPacketDecoder;
 import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+import org.eclipse.paho.mqttv5.common.packet.SizeClassBufferPool;
 
 
 /**
@@ -40,30 +38,35 @@ public class MqttInputStream extends InputStream {
 	private static final String CLASS_NAME = MqttInputStream.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	private static final int READ_BUFFER_SIZE = 8192;
+
 	private MqttState clientState = null;
-	private DataInputStream in;	
-	private ByteArrayOutputStream bais;
-	private int remLen;
-	private int packetLen;
-	private byte[] packet;
+	private InputStream in;
+	private MqttPacketDecoder decoder;
+	private ByteBuffer readBuffer;
 
 	public MqttInputStream(MqttState clientState, InputStream in, String clientId) {
 		this.clientState = clientState;
-		this.in = new DataInputStream(in);		
-		this.bais = new ByteArrayOutputStream();
-		this.remLen = -1;
+		this.in = in;
+		this.decoder = new MqttClientPacketDecoder(clientState, SizeClassBufferPool.getDefault());
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.readBuffer.limit(0);
 		log.setResourceName(clientId);
 	}
 	
 	public int read() throws IOException {
+		if (readBuffer.hasRemaining()) {
+			return readBuffer.get() & 0xFF;
+		}
 		return in.read();
 	}
 	
 	public int available() throws IOException {
-		return in.available();
+		return readBuffer.remaining() + in.available();
 	}
 	
 	public void close() throws IOException {
+		decoder.reset();
 		in.close();
 	}
 	
@@ -79,88 +82,32 @@ public class MqttInputStream extends InputStream {
 	public MqttWireMessage readMqttWireMessage() throws IOException, MqttException {
 		final String methodName ="readMqttWireMessage";
 		
-		MqttWireMessage message = null;
-		try {
-			// read header
-			if (remLen < 0) {
-				// Assume we can read the whole header at once.
-				// The header is very small so it's likely we
-				// are able to read it fully or not at all.
-				// This keeps the parser lean since we don't
-				// need to cope with a partial header.
-				// Should we lose synch with the stream,
-				// the keepalive mechanism would kick in
-				// closing the connection.
-				bais.reset();
-				
-				byte first = in.readByte();
-				clientState.notifyReceivedBytes(1);
-
-				byte type = (byte) ((first >>> 4) & 0x0F);
-				if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) ||
-						(type > MqttWireMessage.MESSAGE_TYPE_AUTH)) {
-					// Invalid MQTT message type...
-					throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INVALID_MESSAGE);
+		while (true) {
+			if (!readBuffer.hasRemaining()) {
+				// Everything read so far has been given to the decoder, which
+				// keeps any partial packet itself, so the buffer can be refilled.
+				int count;
+				try {
+					count = in.read(readBuffer.array(), 0, readBuffer.capacity());
+				} catch (SocketTimeoutException e) {
+					// ignore socket read timeout
+					readBuffer.limit(0);
+					return null;
 				}
-				
-				byte reserved = (byte) (first & 0x0F);
-				MqttWireMessage.validateReservedBits(type, reserved);
-				
-				remLen = MqttDataTypes.readVariableByteInteger(in).getValue();
-				bais.write(first);
-				bais.write(MqttWireMessage.encodeVariableByteInteger((int)remLen));
-				packet = new byte[(int)(bais.size()+remLen)];
-				if(this.clientState.getIncomingMaximumPacketSize() != null && 
-						bais.size()+remLen > this.clientState.getIncomingMaximumPacketSize() ) {
-					// Incoming packet is too large
-					throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_INCOMING_PACKET_TOO_LARGE);
+				if (count < 0) {
+					throw new EOFException();
 				}
-				packetLen = 0;
+				readBuffer.position(0);
+				readBuffer.limit(count);
+				clientState.notifyReceivedBytes(count);
 			}
-			
-			// read remaining packet
-			if (remLen >= 0) {
-				// the remaining packet can be read with timeouts
-				readFully();
 
-				// reset packet parsing state 
-				remLen = -1;
-				
-				byte[] header = bais.toByteArray();
-				System.arraycopy(header,0,packet,0, header.length);
-				message = MqttWireMessage.createWireMessage(packet);
+			MqttWireMessage message = decoder.decode(readBuffer);
+			if (message != null) {
 				// @TRACE 530= Received {0} 
 				log.fine(CLASS_NAME, methodName, "530",new Object[] {message});
+				return message;
 			}
-		} catch (SocketTimeoutException e) {
-			// ignore socket read timeout
 		}
-		
-		return message;
 	}
-	
-    private void readFully() throws IOException {
-    	int off = bais.size() + (int) packetLen;
-    	int len = (int) (remLen - packetLen);
-    	if (len < 0)
-    		throw new IndexOutOfBoundsException();
-    	int n = 0;
-    	while (n < len) {
-    		int count = -1;
-    		try {
-    			count = in.read(packet, off + n, len - n);
-    		} catch (SocketTimeoutException e) {
-    			// remember the packet read so far 
-    			packetLen += n;
-    			throw e;
-    		}
-    		
-
-    		if (count < 0) {
-    			throw new EOFException();
-    		}
-    		clientState.notifyReceivedBytes(count);
-    		n += count;
-    	}
-    }
 }
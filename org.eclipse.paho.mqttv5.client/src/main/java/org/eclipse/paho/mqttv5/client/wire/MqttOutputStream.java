@@ -15,9 +15,9 @@
  */
 package org.eclipse.paho.mqttv5.client.wire;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.eclipse.paho.mqttv5.client.MqttClientException;
 import org.eclipse.paho.mqttv5.client.internal.MqttState;
@@ -25,77 +25,141 @@ import org.eclipse.paho.mqttv5.client.logging.Logger;
 import org.eclipse.paho.mqttv5.client.logging.LoggerFactory;
 import org.eclipse.paho.mqttv5.common.ExceptionHelper;
 import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.packet.MqttBufferPool;
 import org.eclipse.paho.mqttv5.common.packet.MqttWireMessage;
+import org.eclipse.paho.mqttv5.common.packet.SizeClassBufferPool;
 
 
 /**
  * An <code>MqttOutputStream</code> lets applications write instances of
  * <code>MqttWireMessage</code>. 
+ * <p>
+ * Each message is encoded directly into a reusable buffer taken from a
+ * {@link MqttBufferPool}, so sending a packet does not allocate intermediate
+ * arrays. Encoded messages accumulate in the buffer until {@link #flush()},
+ * which hands them to the underlying stream in a single write; several
+ * messages written between flushes therefore share one network write.
+ * </p>
  */
 public class MqttOutputStream extends OutputStream {
 	private static final String CLASS_NAME = MqttOutputStream.class.getName();
 	private Logger log = LoggerFactory.getLogger(LoggerFactory.MQTT_CLIENT_MSG_CAT, CLASS_NAME);
 
+	// Buffers larger than this are returned to the pool once they are flushed
+	private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
 	private MqttState clientState = null;
-	private BufferedOutputStream out;
+	private OutputStream out;
+	private MqttBufferPool bufferPool;
+	private ByteBuffer buffer;
 	
 	public MqttOutputStream(MqttState clientState, OutputStream out, String clientId) {
+		this(clientState, out, clientId, SizeClassBufferPool.getDefault());
+	}
+
+	public MqttOutputStream(MqttState clientState, OutputStream out, String clientId, MqttBufferPool bufferPool) {
 		this.clientState = clientState;
-		this.out = new BufferedOutputStream(out);
+		this.out = out;
+		this.bufferPool = bufferPool;
 		log.setResourceName(clientId);
 	}
 	
 	public void close() throws IOException {
 		out.close();
+		if (buffer != null) {
+			bufferPool.release(buffer);
+			buffer = null;
+		}
 	}
 	
 	public void flush() throws IOException {
+		drain();
 		out.flush();
 	}
 	
 	public void write(byte[] b) throws IOException {
+		drain();
 		out.write(b);
 		clientState.notifySentBytes(b.length);
 	}
 	
 	public void write(byte[] b, int off, int len) throws IOException {
+		drain();
 		out.write(b, off, len);
 		clientState.notifySentBytes(len);
 	}
 	
 	public void write(int b) throws IOException {
+		drain();
 		out.write(b);
 	}
 
 	/**
-	 * Writes an <code>MqttWireMessage</code> to the stream.
+	 * @return the number of bytes written by {@link #write(MqttWireMessage)}
+	 *         which have not yet been flushed
+	 */
+	public int getBufferedBytes() {
+		return buffer == null ? 0 : buffer.position();
+	}
+
+	/**
+	 * Hands any encoded messages to the underlying stream in one write.
+	 */
+	private void drain() throws IOException {
+		if (buffer == null) {
+			return;
+		}
+		int count = buffer.position();
+		try {
+			if (count > 0) {
+				out.write(buffer.array(), buffer.arrayOffset(), count);
+			}
+		} finally {
+			buffer.clear();
+			if (buffer.capacity() > RETAINED_BUFFER_SIZE) {
+				bufferPool.release(buffer);
+				buffer = null;
+			}
+		}
+		clientState.notifySentBytes(count);
+	}
+
+	/**
+	 * Writes an <code>MqttWireMessage</code> to the stream. The message is not
+	 * passed to the underlying stream until {@link #flush()} is called.
 	 * @param message The {@link MqttWireMessage} to send
 	 * @throws IOException if an exception is thrown when writing to the output stream.
-	 * @throws MqttException if an exception is thrown when getting the header or payload
+	 * @throws MqttException if an exception is thrown when encoding the message
 	 */
 	public void write(MqttWireMessage message) throws IOException, MqttException {
 		final String methodName = "write";
-		byte[] bytes = message.getHeader();
-		byte[] pl = message.getPayload();
+		int length = message.encodedLength();
 		if(this.clientState.getOutgoingMaximumPacketSize() != null && 
-				bytes.length+pl.length > this.clientState.getOutgoingMaximumPacketSize() ) {
+				length > this.clientState.getOutgoingMaximumPacketSize() ) {
 			// Outgoing packet is too large
 			throw ExceptionHelper.createMqttException(MqttClientException.REASON_CODE_OUTGOING_PACKET_TOO_LARGE);
 		}
-		out.write(bytes,0,bytes.length);
-		clientState.notifySentBytes(bytes.length);
-		
-        int offset = 0;
-        int chunckSize = 1024;
-        while (offset < pl.length) {
-        	int length = Math.min(chunckSize, pl.length - offset);
-        	out.write(pl, offset, length);
-        	offset += chunckSize;
-        	clientState.notifySentBytes(length);
-        }		
+		if (buffer == null) {
+			buffer = bufferPool.acquire(Math.max(length, INITIAL_BUFFER_SIZE));
+		} else if (buffer.remaining() < length) {
+			// Grow, keeping the messages which are waiting to be flushed
+			ByteBuffer larger = bufferPool.acquire(buffer.position() + length);
+			buffer.flip();
+			larger.put(buffer);
+			bufferPool.release(buffer);
+			buffer = larger;
+		}
+		int start = buffer.position();
+		try {
+			message.writeTo(buffer);
+		} catch (MqttException | RuntimeException ex) {
+			// Do not leave part of a packet in front of the next one
+			buffer.position(start);
+			throw ex;
+		}
 		
 		// @TRACE 529= sent {0}
-    	log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
+		log.fine(CLASS_NAME, methodName, "529", new Object[]{message});
 	}
 }
-
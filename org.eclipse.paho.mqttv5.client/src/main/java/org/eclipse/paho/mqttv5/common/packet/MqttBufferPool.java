@@ -0,0 +1,54 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of reusable {@link ByteBuffer}s for encoding and decoding packets.
+ * <p>
+ * Implementations must be thread safe. A buffer must not be used after it has
+ * been released.
+ * </p>
+ */
+public interface MqttBufferPool {
+
+	/**
+	 * A pool which allocates a new heap buffer for every request and lets the
+	 * garbage collector reclaim released buffers.
+	 */
+	MqttBufferPool UNPOOLED = new MqttBufferPool() {
+		public ByteBuffer acquire(int capacity) {
+			return ByteBuffer.allocate(capacity);
+		}
+
+		public void release(ByteBuffer buffer) {
+			// nothing to do
+		}
+	};
+
+	/**
+	 * Obtains a buffer from the pool.
+	 * 
+	 * @param capacity
+	 *            the minimum capacity required
+	 * @return a cleared buffer with at least the requested capacity
+	 */
+	ByteBuffer acquire(int capacity);
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+	 * 
+	 * @param buffer
+	 *            the buffer, which the caller must no longer use
+	 */
+	void release(ByteBuffer buffer);
+}
@@ -5,6 +5,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -100,6 +102,40 @@ public class MqttDataTypes {
 		return (int) ((ch1 << 8) + (ch2 << 0));
 	}
 
+	/**
+	 * Reads a Two Byte Integer from the buffer, advancing its position.
+	 * 
+	 * @param buffer
+	 *            The buffer to read from.
+	 * @return a {@link int} containing the value of the Two Byte int (Between 0 and
+	 *         65535)
+	 * @throws MqttException
+	 *             if the buffer does not contain two more bytes
+	 */
+	public static int readUnsignedTwoByteInt(ByteBuffer buffer) throws MqttException {
+		if (buffer.remaining() < 2) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+		}
+		return buffer.getShort() & 0xFFFF;
+	}
+
+	/**
+	 * Reads a Four Byte Integer from the buffer, advancing its position.
+	 * 
+	 * @param buffer
+	 *            The buffer to read from.
+	 * @return a {@link Long} containing the value of the Four Byte int (Between 0
+	 *         and 4294967295)
+	 * @throws MqttException
+	 *             if the buffer does not contain four more bytes
+	 */
+	public static Long readUnsignedFourByteInt(ByteBuffer buffer) throws MqttException {
+		if (buffer.remaining() < 4) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+		}
+		return buffer.getInt() & 0xFFFFFFFFL;
+	}
+
 	/**
 	 * Encodes a String given into UTF-8, before writing this to the
 	 * {@link DataOutputStream} the length of the encoded string is encoded into two
@@ -131,6 +167,73 @@ public class MqttDataTypes {
 		}
 	}
 
+	/**
+	 * Encodes a String into UTF-8 directly into the buffer, preceded by its two
+	 * byte length, without creating an intermediate byte array.
+	 * 
+	 * @param buffer
+	 *            The buffer to write the encoded UTF-8 string to.
+	 * @param stringToEncode
+	 *            The string to be encoded
+	 * @throws MqttException
+	 *             Thrown when the encoded string is longer than 65535 bytes.
+	 */
+	public static void encodeUTF8(ByteBuffer buffer, String stringToEncode) throws MqttException {
+		validateUTF8String(stringToEncode);
+		int length = encodedUTF8Length(stringToEncode) - 2;
+		if (length > TWO_BYTE_INT_MAX) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+		}
+		buffer.putShort((short) length);
+		for (int i = 0; i < stringToEncode.length(); i++) {
+			char c = stringToEncode.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c)) {
+				// validated above, so always followed by the low surrogate
+				int codePoint = Character.toCodePoint(c, stringToEncode.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else {
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Calculates the number of bytes {@link #encodeUTF8(ByteBuffer, String)}
+	 * will write for the string, including the two byte length.
+	 * 
+	 * @param string
+	 *            The string to be encoded
+	 * @return the encoded length in bytes
+	 */
+	public static int encodedUTF8Length(String string) {
+		int length = 2;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+					&& Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
 	protected static final Charset STRING_ENCODING = StandardCharsets.UTF_8;
 
 	/**
@@ -162,6 +265,36 @@ public class MqttDataTypes {
 		}
 	}
 
+	/**
+	 * Decodes a UTF-8 string from the buffer provided, advancing its position.
+	 * When the buffer is backed by an array the string is decoded from it in
+	 * place.
+	 * 
+	 * @param buffer
+	 *            The buffer from which to read the encoded string.
+	 * @return a decoded String from the buffer.
+	 * @throws MqttException
+	 *             thrown when the buffer does not hold the whole string.
+	 */
+	public static String decodeUTF8(ByteBuffer buffer) throws MqttException {
+		int encodedLength = readUnsignedTwoByteInt(buffer);
+		if (buffer.remaining() < encodedLength) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+		}
+		String output;
+		if (buffer.hasArray()) {
+			output = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), encodedLength,
+					STRING_ENCODING);
+			buffer.position(buffer.position() + encodedLength);
+		} else {
+			byte[] encodedString = new byte[encodedLength];
+			buffer.get(encodedString);
+			output = new String(encodedString, STRING_ENCODING);
+		}
+		validateUTF8String(output);
+		return output;
+	}
+
 	/**
 	 * Validate a UTF-8 String for suitability for MQTT.
 	 * 
@@ -232,6 +365,78 @@ public class MqttDataTypes {
 
 	}
 
+	/**
+	 * Decodes an MQTT Multi-Byte Integer from the given buffer, advancing its
+	 * position.
+	 * 
+	 * @param buffer
+	 *            the buffer to decode a Variable Byte Integer From
+	 * @return a new VariableByteInteger
+	 * @throws MqttException
+	 *             if the buffer does not hold a valid VBI
+	 */
+	public static VariableByteInteger readVariableByteInteger(ByteBuffer buffer) throws MqttException {
+		byte digit;
+		int value = 0;
+		int multiplier = 1;
+		int count = 0;
+
+		try {
+			do {
+				digit = buffer.get();
+				count++;
+				value += ((digit & 0x7F) * multiplier);
+				multiplier *= 128;
+			} while ((digit & 0x80) != 0 && count < 4);
+		} catch (BufferUnderflowException e) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET, e);
+		}
+
+		if ((digit & 0x80) != 0 || value < 0 || value > VARIABLE_BYTE_INT_MAX) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+		}
+
+		return new VariableByteInteger(value, count);
+	}
+
+	/**
+	 * Encodes an MQTT Multi-Byte Integer directly into the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param number
+	 *            the value to encode
+	 * @throws IllegalArgumentException
+	 *             if the value cannot be encoded as a VBI
+	 */
+	public static void writeVariableByteInteger(ByteBuffer buffer, int number) throws IllegalArgumentException {
+		validateVariableByteInt(number);
+		do {
+			byte digit = (byte) (number % 128);
+			number = number / 128;
+			if (number > 0) {
+				digit |= 0x80;
+			}
+			buffer.put(digit);
+		} while (number > 0);
+	}
+
+	/**
+	 * @param number
+	 *            the value to encode
+	 * @return the number of bytes the value occupies as a Variable Byte Integer
+	 */
+	public static int variableByteIntegerLength(int number) {
+		if (number < 128) {
+			return 1;
+		} else if (number < 16384) {
+			return 2;
+		} else if (number < 2097152) {
+			return 3;
+		}
+		return 4;
+	}
+
 	public static byte[] encodeVariableByteInteger(int number) throws IllegalArgumentException {
 		validateVariableByteInt(number);
 		int numBytes = 0;
@@ -0,0 +1,194 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+/**
+ * An incremental decoder which turns a stream of bytes, delivered in buffers
+ * of any size, into {@link MqttWireMessage}s.
+ * <p>
+ * The decoder is a state machine over the fixed header, the remaining length
+ * and the packet body, so a packet may be split across any number of calls to
+ * {@link #decode(ByteBuffer)}, including within its fixed header. When the
+ * whole body of a packet is already in the supplied buffer it is decoded in
+ * place; otherwise the body is gathered into a buffer taken from the
+ * {@link MqttBufferPool}, which is returned to the pool once the packet has
+ * been decoded.
+ * </p>
+ * <p>
+ * Decoded messages never refer to the supplied buffers, so callers are free
+ * to reuse them as soon as {@link #decode(ByteBuffer)} returns. A decoder is
+ * not thread safe; use one per connection.
+ * </p>
+ */
+public class MqttPacketDecoder {
+
+	private enum State {
+		FIXED_HEADER, REMAINING_LENGTH, BODY
+	}
+
+	private final MqttBufferPool bufferPool;
+
+	private State state = State.FIXED_HEADER;
+	private byte first;
+	private int remLen;
+	private int multiplier;
+	private int lengthBytes;
+	private ByteBuffer body;
+
+	/**
+	 * Creates a decoder which gathers split packets in buffers from the given
+	 * pool.
+	 *
+	 * @param bufferPool
+	 *            the pool for packet bodies that span reads
+	 */
+	public MqttPacketDecoder(MqttBufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Consumes bytes from the buffer until a complete packet has been decoded
+	 * or the buffer is exhausted.
+	 *
+	 * @param in
+	 *            the bytes read from the network; its position is advanced past
+	 *            the bytes consumed
+	 * @return the decoded packet, or null if more bytes are needed
+	 * @throws MqttException
+	 *             if the packet is invalid. The decoder is reset and the
+	 *             connection should be closed, as the stream can no longer be
+	 *             framed.
+	 */
+	public MqttWireMessage decode(ByteBuffer in) throws MqttException {
+		try {
+			while (in.hasRemaining() || state == State.BODY) {
+				switch (state) {
+				case FIXED_HEADER:
+					first = in.get();
+					byte type = (byte) ((first >>> 4) & 0x0F);
+					checkPacketType(type, (byte) (first & 0x0F));
+					remLen = 0;
+					multiplier = 1;
+					lengthBytes = 0;
+					state = State.REMAINING_LENGTH;
+					break;
+
+				case REMAINING_LENGTH:
+					byte digit = in.get();
+					lengthBytes++;
+					remLen += (digit & 0x7F) * multiplier;
+					multiplier *= 128;
+					if ((digit & 0x80) != 0) {
+						if (lengthBytes == 4) {
+							throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+						}
+						break;
+					}
+					checkPacketLength(1 + lengthBytes + remLen);
+					state = State.BODY;
+					if (in.remaining() >= remLen) {
+						// The whole body is here, decode it where it lies
+						ByteBuffer slice = in.slice();
+						slice.limit(remLen);
+						in.position(in.position() + remLen);
+						state = State.FIXED_HEADER;
+						return MqttWireMessage.createWireMessage(first, slice);
+					}
+					body = bufferPool.acquire(remLen);
+					body.limit(remLen);
+					break;
+
+				case BODY:
+					int count = Math.min(in.remaining(), body.remaining());
+					int limit = in.limit();
+					in.limit(in.position() + count);
+					body.put(in);
+					in.limit(limit);
+					if (body.hasRemaining()) {
+						return null;
+					}
+					body.flip();
+					try {
+						return MqttWireMessage.createWireMessage(first, body);
+					} finally {
+						release();
+						state = State.FIXED_HEADER;
+					}
+				}
+			}
+			return null;
+		} catch (MqttException e) {
+			reset();
+			throw e;
+		} catch (IllegalArgumentException e) {
+			reset();
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET, e);
+		}
+	}
+
+	/**
+	 * @return true if part of a packet has been consumed but the packet is not
+	 *         yet complete
+	 */
+	public boolean isDecoding() {
+		return state != State.FIXED_HEADER;
+	}
+
+	/**
+	 * Discards any partially decoded packet, returning its buffer to the pool.
+	 */
+	public void reset() {
+		release();
+		state = State.FIXED_HEADER;
+	}
+
+	private void release() {
+		if (body != null) {
+			bufferPool.release(body);
+			body = null;
+		}
+	}
+
+	/**
+	 * Validates the first byte of a packet. Subclasses may override this to
+	 * report errors with their own reason codes.
+	 *
+	 * @param type
+	 *            the packet type
+	 * @param reserved
+	 *            the flags in the low nibble of the first byte
+	 * @throws MqttException
+	 *             if the packet type or flags are invalid
+	 */
+	protected void checkPacketType(byte type, byte reserved) throws MqttException {
+		if ((type < MqttWireMessage.MESSAGE_TYPE_CONNECT) || (type > MqttWireMessage.MESSAGE_TYPE_AUTH)) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+		}
+		MqttWireMessage.validateReservedBits(type, reserved);
+	}
+
+	/**
+	 * Called once the remaining length has been decoded, before any of the
+	 * packet body is consumed. By default any length is accepted.
+	 *
+	 * @param packetLength
+	 *            the length of the whole packet, including its fixed header
+	 * @throws MqttException
+	 *             if the packet should not be accepted
+	 */
+	protected void checkPacketLength(int packetLength) throws MqttException {
+		// any length is accepted
+	}
+}
@@ -16,6 +16,8 @@
  */
 package org.eclipse.paho.mqttv5.common.packet;
 
+import java.nio.ByteBuffer;
+
 import org.eclipse.paho.mqttv5.common.MqttException;
 
 public class MqttPingReq extends MqttWireMessage{
@@ -40,6 +42,16 @@ public class MqttPingReq extends MqttWireMessage{
 		return new byte[0];
 	}
 	
+	@Override
+	public int encodedLength() {
+		return 2;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		writeFixedHeader(buffer, 0);
+	}
+
 	@Override
 	protected byte getMessageInfo() {
 		return 0;
@@ -1,10 +1,9 @@
 package org.eclipse.paho.mqttv5.common.packet;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -199,199 +198,265 @@ public class MqttProperties {
 	 *             if an exception occurs whilst encoding the properties.
 	 */
 	public byte[] encodeProperties() throws MqttException {
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			DataOutputStream outputStream = new DataOutputStream(baos);
+		byte[] encoded = new byte[encodedLength()];
+		writeTo(ByteBuffer.wrap(encoded));
+		return encoded;
+	}
 
-			// Payload Format Indicator
-			if (payloadFormat && validProperties.contains(PAYLOAD_FORMAT_INDICATOR_IDENTIFIER)) {
-				outputStream.write(PAYLOAD_FORMAT_INDICATOR_IDENTIFIER);
-				outputStream.writeByte(0x01);
-			}
+	/**
+	 * Calculates the number of bytes {@link #encodeProperties()} and
+	 * {@link #writeTo(ByteBuffer)} produce, including the property length.
+	 * 
+	 * @return the encoded length in bytes
+	 * @throws MqttException
+	 *             if an exception occurs whilst sizing the properties.
+	 */
+	public int encodedLength() throws MqttException {
+		int length = encode(null);
+		return MqttDataTypes.variableByteIntegerLength(length) + length;
+	}
 
-			// Message Expiry Interval
-			if (messageExpiryInterval != null && validProperties.contains(MESSAGE_EXPIRY_INTERVAL_IDENTIFIER)) {
-				outputStream.write(MESSAGE_EXPIRY_INTERVAL_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(messageExpiryInterval, outputStream);
-			}
+	/**
+	 * Encodes Non-Null Properties that are in the list of valid properties
+	 * directly into the buffer, preceded by their length.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to, with at least {@link #encodedLength()}
+	 *            bytes remaining
+	 * @throws MqttException
+	 *             if an exception occurs whilst encoding the properties.
+	 */
+	public void writeTo(ByteBuffer buffer) throws MqttException {
+		MqttDataTypes.writeVariableByteInteger(buffer, encode(null));
+		encode(buffer);
+	}
 
-			// Content Type
-			if (contentType != null && validProperties.contains(CONTENT_TYPE_IDENTIFIER)) {
-				outputStream.write(CONTENT_TYPE_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, contentType);
-			}
+	/**
+	 * Encodes the properties into the buffer, or only counts their length when
+	 * the buffer is null, so that sizing and writing share one definition.
+	 */
+	private int encode(ByteBuffer buffer) throws MqttException {
+		int length = 0;
 
-			// Response Topic
-			if (responseTopic != null && validProperties.contains(RESPONSE_TOPIC_IDENTIFIER)) {
-				outputStream.write(RESPONSE_TOPIC_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, responseTopic);
-			}
+		// Payload Format Indicator
+		if (payloadFormat && validProperties.contains(PAYLOAD_FORMAT_INDICATOR_IDENTIFIER)) {
+			length += putByte(buffer, PAYLOAD_FORMAT_INDICATOR_IDENTIFIER);
+			length += putByte(buffer, 0x01);
+		}
 
-			// Correlation Data
-			if (correlationData != null && validProperties.contains(CORRELATION_DATA_IDENTIFIER)) {
-				outputStream.write(CORRELATION_DATA_IDENTIFIER);
-				outputStream.writeShort(correlationData.length);
-				outputStream.write(correlationData);
-			}
+		// Message Expiry Interval
+		if (messageExpiryInterval != null && validProperties.contains(MESSAGE_EXPIRY_INTERVAL_IDENTIFIER)) {
+			length += putByte(buffer, MESSAGE_EXPIRY_INTERVAL_IDENTIFIER);
+			length += putFourByteInt(buffer, messageExpiryInterval);
+		}
 
-			// Subscription Identifier
-			if (!publishSubscriptionIdentifiers.isEmpty() && validProperties.contains(SUBSCRIPTION_IDENTIFIER_MULTI)) {
-				for (Integer subscriptionIdentifier : publishSubscriptionIdentifiers) {
-					outputStream.write(SUBSCRIPTION_IDENTIFIER);
-					outputStream.write(MqttDataTypes.encodeVariableByteInteger(subscriptionIdentifier));
-				}
-			}
-			if (subscribeSubscriptionIdentifier != null && validProperties.contains(SUBSCRIPTION_IDENTIFIER_SINGLE)) {
-				outputStream.write(SUBSCRIPTION_IDENTIFIER);
-				outputStream.write(MqttDataTypes.encodeVariableByteInteger(subscribeSubscriptionIdentifier));
-			}
+		// Content Type
+		if (contentType != null && validProperties.contains(CONTENT_TYPE_IDENTIFIER)) {
+			length += putByte(buffer, CONTENT_TYPE_IDENTIFIER);
+			length += putUTF8(buffer, contentType);
+		}
 
-			// Session Expiry Interval
-			if (sessionExpiryInterval != null && validProperties.contains(SESSION_EXPIRY_INTERVAL_IDENTIFIER)) {
-				outputStream.write(SESSION_EXPIRY_INTERVAL_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(sessionExpiryInterval, outputStream);
+		// Response Topic
+		if (responseTopic != null && validProperties.contains(RESPONSE_TOPIC_IDENTIFIER)) {
+			length += putByte(buffer, RESPONSE_TOPIC_IDENTIFIER);
+			length += putUTF8(buffer, responseTopic);
+		}
 
-			}
+		// Correlation Data
+		if (correlationData != null && validProperties.contains(CORRELATION_DATA_IDENTIFIER)) {
+			length += putByte(buffer, CORRELATION_DATA_IDENTIFIER);
+			length += putBinary(buffer, correlationData);
+		}
 
-			// Assigned Client Identifier
-			if (assignedClientIdentifier != null && validProperties.contains(ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER)) {
-				outputStream.write(ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, assignedClientIdentifier);
+		// Subscription Identifier
+		if (!publishSubscriptionIdentifiers.isEmpty() && validProperties.contains(SUBSCRIPTION_IDENTIFIER_MULTI)) {
+			for (Integer subscriptionIdentifier : publishSubscriptionIdentifiers) {
+				length += putByte(buffer, SUBSCRIPTION_IDENTIFIER);
+				length += putVariableByteInteger(buffer, subscriptionIdentifier);
 			}
+		}
+		if (subscribeSubscriptionIdentifier != null && validProperties.contains(SUBSCRIPTION_IDENTIFIER_SINGLE)) {
+			length += putByte(buffer, SUBSCRIPTION_IDENTIFIER);
+			length += putVariableByteInteger(buffer, subscribeSubscriptionIdentifier);
+		}
 
-			// Server Keep Alive
-			if (serverKeepAlive != null && validProperties.contains(SERVER_KEEP_ALIVE_IDENTIFIER)) {
-				outputStream.write(SERVER_KEEP_ALIVE_IDENTIFIER);
-				outputStream.writeShort(serverKeepAlive);
-			}
+		// Session Expiry Interval
+		if (sessionExpiryInterval != null && validProperties.contains(SESSION_EXPIRY_INTERVAL_IDENTIFIER)) {
+			length += putByte(buffer, SESSION_EXPIRY_INTERVAL_IDENTIFIER);
+			length += putFourByteInt(buffer, sessionExpiryInterval);
 
-			// Auth Method
-			if (authenticationMethod != null && validProperties.contains(AUTH_METHOD_IDENTIFIER)) {
-				outputStream.write(AUTH_METHOD_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, authenticationMethod);
-			}
+		}
 
-			// Auth Data
-			if (authenticationData != null && validProperties.contains(AUTH_DATA_IDENTIFIER)) {
-				outputStream.write(AUTH_DATA_IDENTIFIER);
-				outputStream.writeShort(authenticationData.length);
-				outputStream.write(authenticationData);
-			}
+		// Assigned Client Identifier
+		if (assignedClientIdentifier != null && validProperties.contains(ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER)) {
+			length += putByte(buffer, ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER);
+			length += putUTF8(buffer, assignedClientIdentifier);
+		}
 
-			// Request Problem Info
-			if (requestProblemInfo != null && validProperties.contains(REQUEST_PROBLEM_INFO_IDENTIFIER)) {
-				outputStream.write(REQUEST_PROBLEM_INFO_IDENTIFIER);
-				outputStream.write(requestProblemInfo ? 1 : 0);
-			}
+		// Server Keep Alive
+		if (serverKeepAlive != null && validProperties.contains(SERVER_KEEP_ALIVE_IDENTIFIER)) {
+			length += putByte(buffer, SERVER_KEEP_ALIVE_IDENTIFIER);
+			length += putTwoByteInt(buffer, serverKeepAlive);
+		}
 
-			// Will Delay Interval
-			if (willDelayInterval != null && validProperties.contains(WILL_DELAY_INTERVAL_IDENTIFIER)) {
-				outputStream.write(WILL_DELAY_INTERVAL_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(willDelayInterval, outputStream);
-				// outputStream.writeInt(willDelayInterval);
-			}
+		// Auth Method
+		if (authenticationMethod != null && validProperties.contains(AUTH_METHOD_IDENTIFIER)) {
+			length += putByte(buffer, AUTH_METHOD_IDENTIFIER);
+			length += putUTF8(buffer, authenticationMethod);
+		}
 
-			// Request Response Info
-			if (requestResponseInfo != null && validProperties.contains(REQUEST_RESPONSE_INFO_IDENTIFIER)) {
-				outputStream.write(REQUEST_RESPONSE_INFO_IDENTIFIER);
-				outputStream.write(requestResponseInfo ? 1 : 0);
-			}
+		// Auth Data
+		if (authenticationData != null && validProperties.contains(AUTH_DATA_IDENTIFIER)) {
+			length += putByte(buffer, AUTH_DATA_IDENTIFIER);
+			length += putBinary(buffer, authenticationData);
+		}
 
-			// Response Info
-			if (responseInfo != null && validProperties.contains(RESPONSE_INFO_IDENTIFIER)) {
-				outputStream.write(RESPONSE_INFO_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, responseInfo);
-			}
+		// Request Problem Info
+		if (requestProblemInfo != null && validProperties.contains(REQUEST_PROBLEM_INFO_IDENTIFIER)) {
+			length += putByte(buffer, REQUEST_PROBLEM_INFO_IDENTIFIER);
+			length += putByte(buffer, requestProblemInfo ? 1 : 0);
+		}
 
-			// Server Reference
-			if (serverReference != null && validProperties.contains(SERVER_REFERENCE_IDENTIFIER)) {
-				outputStream.write(SERVER_REFERENCE_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, serverReference);
-			}
+		// Will Delay Interval
+		if (willDelayInterval != null && validProperties.contains(WILL_DELAY_INTERVAL_IDENTIFIER)) {
+			length += putByte(buffer, WILL_DELAY_INTERVAL_IDENTIFIER);
+			length += putFourByteInt(buffer, willDelayInterval);
+		}
 
-			// Reason String
-			if (reasonString != null && validProperties.contains(REASON_STRING_IDENTIFIER)) {
-				outputStream.write(REASON_STRING_IDENTIFIER);
-				MqttDataTypes.encodeUTF8(outputStream, reasonString);
-			}
+		// Request Response Info
+		if (requestResponseInfo != null && validProperties.contains(REQUEST_RESPONSE_INFO_IDENTIFIER)) {
+			length += putByte(buffer, REQUEST_RESPONSE_INFO_IDENTIFIER);
+			length += putByte(buffer, requestResponseInfo ? 1 : 0);
+		}
 
-			// Receive Maximum
-			if (receiveMaximum != null && validProperties.contains(RECEIVE_MAXIMUM_IDENTIFIER)) {
-				outputStream.write(RECEIVE_MAXIMUM_IDENTIFIER);
-				outputStream.writeShort(receiveMaximum);
-			}
+		// Response Info
+		if (responseInfo != null && validProperties.contains(RESPONSE_INFO_IDENTIFIER)) {
+			length += putByte(buffer, RESPONSE_INFO_IDENTIFIER);
+			length += putUTF8(buffer, responseInfo);
+		}
 
-			// Topic Alias Maximum
-			if (topicAliasMaximum != null && validProperties.contains(TOPIC_ALIAS_MAXIMUM_IDENTIFIER)) {
-				outputStream.write(TOPIC_ALIAS_MAXIMUM_IDENTIFIER);
-				outputStream.writeShort(topicAliasMaximum);
-			}
+		// Server Reference
+		if (serverReference != null && validProperties.contains(SERVER_REFERENCE_IDENTIFIER)) {
+			length += putByte(buffer, SERVER_REFERENCE_IDENTIFIER);
+			length += putUTF8(buffer, serverReference);
+		}
 
-			// Topic Alias
-			if (topicAlias != null && validProperties.contains(TOPIC_ALIAS_IDENTIFIER)) {
-				outputStream.write(TOPIC_ALIAS_IDENTIFIER);
-				outputStream.writeShort(topicAlias);
-			}
+		// Reason String
+		if (reasonString != null && validProperties.contains(REASON_STRING_IDENTIFIER)) {
+			length += putByte(buffer, REASON_STRING_IDENTIFIER);
+			length += putUTF8(buffer, reasonString);
+		}
 
-			// Maximum QoS
-			if (maximumQoS != null && validProperties.contains(MAXIMUM_QOS_IDENTIFIER)) {
-				outputStream.write(MAXIMUM_QOS_IDENTIFIER);
-				outputStream.writeByte(maximumQoS);
-			}
+		// Receive Maximum
+		if (receiveMaximum != null && validProperties.contains(RECEIVE_MAXIMUM_IDENTIFIER)) {
+			length += putByte(buffer, RECEIVE_MAXIMUM_IDENTIFIER);
+			length += putTwoByteInt(buffer, receiveMaximum);
+		}
 
-			// Retain Available
-			if (retainAvailable != null && validProperties.contains(RETAIN_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(RETAIN_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(retainAvailable);
-			}
+		// Topic Alias Maximum
+		if (topicAliasMaximum != null && validProperties.contains(TOPIC_ALIAS_MAXIMUM_IDENTIFIER)) {
+			length += putByte(buffer, TOPIC_ALIAS_MAXIMUM_IDENTIFIER);
+			length += putTwoByteInt(buffer, topicAliasMaximum);
+		}
 
-			// User Defined Properties
-			if (userProperties != null && !userProperties.isEmpty() && validProperties.contains(USER_DEFINED_PAIR_IDENTIFIER)) {
-				for (UserProperty property : userProperties) {
-					// outputStream.write(USER_DEFINED_PAIR_IDENTIFIER);
-					outputStream.writeByte(USER_DEFINED_PAIR_IDENTIFIER);
-					MqttDataTypes.encodeUTF8(outputStream, property.getKey());
-					MqttDataTypes.encodeUTF8(outputStream, property.getValue());
-				}
-			}
+		// Topic Alias
+		if (topicAlias != null && validProperties.contains(TOPIC_ALIAS_IDENTIFIER)) {
+			length += putByte(buffer, TOPIC_ALIAS_IDENTIFIER);
+			length += putTwoByteInt(buffer, topicAlias);
+		}
+
+		// Maximum QoS
+		if (maximumQoS != null && validProperties.contains(MAXIMUM_QOS_IDENTIFIER)) {
+			length += putByte(buffer, MAXIMUM_QOS_IDENTIFIER);
+			length += putByte(buffer, maximumQoS);
+		}
 
-			// Maximum Packet Size
-			if (maximumPacketSize != null && validProperties.contains(MAXIMUM_PACKET_SIZE_IDENTIFIER)) {
-				outputStream.write(MAXIMUM_PACKET_SIZE_IDENTIFIER);
-				MqttDataTypes.writeUnsignedFourByteInt(maximumPacketSize, outputStream);
+		// Retain Available
+		if (retainAvailable != null && validProperties.contains(RETAIN_AVAILABLE_IDENTIFIER)) {
+			length += putByte(buffer, RETAIN_AVAILABLE_IDENTIFIER);
+			length += putByte(buffer, retainAvailable ? 1 : 0);
+		}
 
+		// User Defined Properties
+		if (userProperties != null && !userProperties.isEmpty() && validProperties.contains(USER_DEFINED_PAIR_IDENTIFIER)) {
+			for (UserProperty property : userProperties) {
+				length += putByte(buffer, USER_DEFINED_PAIR_IDENTIFIER);
+				length += putUTF8(buffer, property.getKey());
+				length += putUTF8(buffer, property.getValue());
 			}
+		}
 
-			// Wildcard Subscription Available flag
-			if (wildcardSubscriptionsAvailable != null && validProperties.contains(WILDCARD_SUB_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(WILDCARD_SUB_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(wildcardSubscriptionsAvailable);
-			}
+		// Maximum Packet Size
+		if (maximumPacketSize != null && validProperties.contains(MAXIMUM_PACKET_SIZE_IDENTIFIER)) {
+			length += putByte(buffer, MAXIMUM_PACKET_SIZE_IDENTIFIER);
+			length += putFourByteInt(buffer, maximumPacketSize);
 
-			// Subscription Identifiers Available flag
-			if (subscriptionIdentifiersAvailable != null
-					&& validProperties.contains(SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(SUBSCRIPTION_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(subscriptionIdentifiersAvailable);
-			}
+		}
 
-			// Shared Subscription Available flag
-			if (sharedSubscriptionAvailable != null
-					&& validProperties.contains(SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
-				outputStream.write(SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER);
-				outputStream.writeBoolean(sharedSubscriptionAvailable);
-			}
+		// Wildcard Subscription Available flag
+		if (wildcardSubscriptionsAvailable != null && validProperties.contains(WILDCARD_SUB_AVAILABLE_IDENTIFIER)) {
+			length += putByte(buffer, WILDCARD_SUB_AVAILABLE_IDENTIFIER);
+			length += putByte(buffer, wildcardSubscriptionsAvailable ? 1 : 0);
+		}
+
+		// Subscription Identifiers Available flag
+		if (subscriptionIdentifiersAvailable != null
+				&& validProperties.contains(SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
+			length += putByte(buffer, SUBSCRIPTION_AVAILABLE_IDENTIFIER);
+			length += putByte(buffer, subscriptionIdentifiersAvailable ? 1 : 0);
+		}
+
+		// Shared Subscription Available flag
+		if (sharedSubscriptionAvailable != null
+				&& validProperties.contains(SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER)) {
+			length += putByte(buffer, SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER);
+			length += putByte(buffer, sharedSubscriptionAvailable ? 1 : 0);
+		}
+
+		return length;
+	}
+
+	private static int putByte(ByteBuffer buffer, int value) {
+		if (buffer != null) {
+			buffer.put((byte) value);
+		}
+		return 1;
+	}
+
+	private static int putTwoByteInt(ByteBuffer buffer, int value) {
+		if (buffer != null) {
+			buffer.putShort((short) value);
+		}
+		return 2;
+	}
 
-			int length = outputStream.size();
-			outputStream.flush();
-			ByteArrayOutputStream finalOutput = new ByteArrayOutputStream();
-			finalOutput.write(MqttDataTypes.encodeVariableByteInteger(length));
-			finalOutput.write(baos.toByteArray());
+	private static int putFourByteInt(ByteBuffer buffer, long value) {
+		if (buffer != null) {
+			buffer.putInt((int) value);
+		}
+		return 4;
+	}
+
+	private static int putVariableByteInteger(ByteBuffer buffer, int value) {
+		if (buffer != null) {
+			MqttDataTypes.writeVariableByteInteger(buffer, value);
+		}
+		return MqttDataTypes.variableByteIntegerLength(value);
+	}
+
+	private static int putUTF8(ByteBuffer buffer, String value) throws MqttException {
+		if (buffer != null) {
+			MqttDataTypes.encodeUTF8(buffer, value);
+		}
+		return MqttDataTypes.encodedUTF8Length(value);
+	}
 
-			return finalOutput.toByteArray();
-		} catch (IOException ioe) {
-			throw new MqttException(ioe);
+	private static int putBinary(ByteBuffer buffer, byte[] value) {
+		if (buffer != null) {
+			buffer.putShort((short) value.length);
+			buffer.put(value);
 		}
+		return 2 + value.length;
 	}
 
 	/**
@@ -410,102 +475,137 @@ public class MqttProperties {
 		int length = MqttDataTypes.readVariableByteInteger(dis).getValue();
 		if (length > 0) {
 			byte[] identifierValueByteArray = new byte[length];
-			dis.read(identifierValueByteArray, 0, length);
-			ByteArrayInputStream bais = new ByteArrayInputStream(identifierValueByteArray);
-			ArrayList<Byte> decodedProperties = new ArrayList<Byte>();
-			DataInputStream inputStream = new DataInputStream(bais);
-			while (inputStream.available() > 0) {
+			dis.readFully(identifierValueByteArray, 0, length);
+			decodePropertyValues(ByteBuffer.wrap(identifierValueByteArray));
+		}
+
+	}
+
+	/**
+	 * Decodes MQTT properties from the buffer, in place, and sets them on this
+	 * object. The buffer's position is advanced past the properties.
+	 * 
+	 * @param buffer
+	 *            the buffer positioned at the property length.
+	 * @throws MqttException
+	 *             if an invalid MQTT Property Identifier is present or the
+	 *             properties are malformed.
+	 */
+	public void decodeProperties(ByteBuffer buffer) throws MqttException {
+
+		// First get the length of the IV fields
+		int length = MqttDataTypes.readVariableByteInteger(buffer).getValue();
+		if (length > 0) {
+			if (buffer.remaining() < length) {
+				throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+			}
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + length);
+			try {
+				decodePropertyValues(buffer);
+			} finally {
+				buffer.limit(limit);
+			}
+		}
+
+	}
+
+	private void decodePropertyValues(ByteBuffer buffer) throws MqttException {
+		// Identifiers are all below 64, so one bit each records those seen
+		long decodedProperties = 0;
+		try {
+			while (buffer.hasRemaining()) {
 				// Get the first Byte
-				byte identifier = inputStream.readByte();
+				byte identifier = buffer.get();
 				if (validProperties.contains(identifier)) {
 					
 					// Verify that certain properties are not included more than once
-					if(!decodedProperties.contains(identifier)) {
-						decodedProperties.add(identifier);
+					long mask = 1L << (identifier & 0x3F);
+					if ((decodedProperties & mask) == 0) {
+						decodedProperties |= mask;
 					} else if(identifier!= SUBSCRIPTION_IDENTIFIER && identifier != USER_DEFINED_PAIR_IDENTIFIER) {
 						// This property can only be included once
 						throw new MqttException(MqttException.REASON_CODE_DUPLICATE_PROPERTY);
 					}
 
 					if (identifier == PAYLOAD_FORMAT_INDICATOR_IDENTIFIER) {
-						payloadFormat = (boolean) inputStream.readBoolean();
+						payloadFormat = buffer.get() != 0;
 					} else if (identifier == MESSAGE_EXPIRY_INTERVAL_IDENTIFIER) {
-						messageExpiryInterval = MqttDataTypes.readUnsignedFourByteInt(inputStream);
+						messageExpiryInterval = MqttDataTypes.readUnsignedFourByteInt(buffer);
 					} else if (identifier == CONTENT_TYPE_IDENTIFIER) {
-						contentType = MqttDataTypes.decodeUTF8(inputStream);
+						contentType = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == RESPONSE_TOPIC_IDENTIFIER) {
-						responseTopic = MqttDataTypes.decodeUTF8(inputStream);
+						responseTopic = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == CORRELATION_DATA_IDENTIFIER) {
-						int correlationDataLength = (int) inputStream.readShort();
+						int correlationDataLength = MqttDataTypes.readUnsignedTwoByteInt(buffer);
 						correlationData = new byte[correlationDataLength];
-						inputStream.read(correlationData, 0, correlationDataLength);
+						buffer.get(correlationData, 0, correlationDataLength);
 					} else if (identifier == SUBSCRIPTION_IDENTIFIER) {
-						int subscriptionIdentifier = MqttDataTypes.readVariableByteInteger(inputStream).getValue();
+						int subscriptionIdentifier = MqttDataTypes.readVariableByteInteger(buffer).getValue();
 						publishSubscriptionIdentifiers.add(subscriptionIdentifier);
 						// Bit of a hack, where we potentially write this many times, users should make
 						// sure they read the JavaDoc.
 						subscribeSubscriptionIdentifier = subscriptionIdentifier;
 					} else if (identifier == SESSION_EXPIRY_INTERVAL_IDENTIFIER) {
-						sessionExpiryInterval = MqttDataTypes.readUnsignedFourByteInt(inputStream);
+						sessionExpiryInterval = MqttDataTypes.readUnsignedFourByteInt(buffer);
 					} else if (identifier == ASSIGNED_CLIENT_IDENTIFIER_IDENTIFIER) {
-						assignedClientIdentifier = MqttDataTypes.decodeUTF8(inputStream);
+						assignedClientIdentifier = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == SERVER_KEEP_ALIVE_IDENTIFIER) {
-						serverKeepAlive = MqttDataTypes.readUnsignedTwoByteInt(inputStream);
+						serverKeepAlive = MqttDataTypes.readUnsignedTwoByteInt(buffer);
 					} else if (identifier == AUTH_METHOD_IDENTIFIER) {
-						authenticationMethod = MqttDataTypes.decodeUTF8(inputStream);
+						authenticationMethod = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == AUTH_DATA_IDENTIFIER) {
-						int authDataLength = inputStream.readShort();
+						int authDataLength = MqttDataTypes.readUnsignedTwoByteInt(buffer);
 						authenticationData = new byte[authDataLength];
-						inputStream.read(this.authenticationData, 0, authDataLength);
+						buffer.get(this.authenticationData, 0, authDataLength);
 					} else if (identifier == REQUEST_PROBLEM_INFO_IDENTIFIER) {
-						requestProblemInfo = inputStream.read() != 0;
+						requestProblemInfo = buffer.get() != 0;
 					} else if (identifier == WILL_DELAY_INTERVAL_IDENTIFIER) {
-						willDelayInterval = MqttDataTypes.readUnsignedFourByteInt(inputStream);
+						willDelayInterval = MqttDataTypes.readUnsignedFourByteInt(buffer);
 					} else if (identifier == REQUEST_RESPONSE_INFO_IDENTIFIER) {
-						requestResponseInfo = inputStream.read() != 0;
+						requestResponseInfo = buffer.get() != 0;
 					} else if (identifier == RESPONSE_INFO_IDENTIFIER) {
-						responseInfo = MqttDataTypes.decodeUTF8(inputStream);
+						responseInfo = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == SERVER_REFERENCE_IDENTIFIER) {
-						serverReference = MqttDataTypes.decodeUTF8(inputStream);
+						serverReference = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == REASON_STRING_IDENTIFIER) {
-						reasonString = MqttDataTypes.decodeUTF8(inputStream);
+						reasonString = MqttDataTypes.decodeUTF8(buffer);
 					} else if (identifier == RECEIVE_MAXIMUM_IDENTIFIER) {
-						receiveMaximum = (int) inputStream.readShort();
+						receiveMaximum = MqttDataTypes.readUnsignedTwoByteInt(buffer);
 					} else if (identifier == TOPIC_ALIAS_MAXIMUM_IDENTIFIER) {
-						topicAliasMaximum = (int) inputStream.readShort();
+						topicAliasMaximum = MqttDataTypes.readUnsignedTwoByteInt(buffer);
 					} else if (identifier == TOPIC_ALIAS_IDENTIFIER) {
-						topicAlias = (int) inputStream.readShort();
+						topicAlias = MqttDataTypes.readUnsignedTwoByteInt(buffer);
 					} else if (identifier == MAXIMUM_QOS_IDENTIFIER) {
-						maximumQoS = inputStream.read();
+						maximumQoS = buffer.get() & 0xFF;
 					} else if (identifier == RETAIN_AVAILABLE_IDENTIFIER) {
-						retainAvailable = inputStream.readBoolean();
+						retainAvailable = buffer.get() != 0;
 					} else if (identifier == USER_DEFINED_PAIR_IDENTIFIER) {
-						String key = MqttDataTypes.decodeUTF8(inputStream);
-						String value = MqttDataTypes.decodeUTF8(inputStream);
+						String key = MqttDataTypes.decodeUTF8(buffer);
+						String value = MqttDataTypes.decodeUTF8(buffer);
 						userProperties.add(new UserProperty(key, value));
 					} else if (identifier == MAXIMUM_PACKET_SIZE_IDENTIFIER) {
-						maximumPacketSize = MqttDataTypes.readUnsignedFourByteInt(inputStream);
+						maximumPacketSize = MqttDataTypes.readUnsignedFourByteInt(buffer);
 					} else if (identifier == WILDCARD_SUB_AVAILABLE_IDENTIFIER) {
-						wildcardSubscriptionsAvailable = inputStream.readBoolean();
+						wildcardSubscriptionsAvailable = buffer.get() != 0;
 					} else if (identifier == SUBSCRIPTION_AVAILABLE_IDENTIFIER) {
-						subscriptionIdentifiersAvailable = inputStream.readBoolean();
+						subscriptionIdentifiersAvailable = buffer.get() != 0;
 					} else if (identifier == SHARED_SUBSCRIPTION_AVAILABLE_IDENTIFIER) {
-						sharedSubscriptionAvailable = inputStream.readBoolean();
+						sharedSubscriptionAvailable = buffer.get() != 0;
 					} else {
 
 						// Unidentified Identifier
-						inputStream.close();
 						throw new MqttException(MqttException.REASON_CODE_INVALID_IDENTIFIER);
 					}
 				} else {
 					// Unidentified Identifier
-					inputStream.close();
 					throw new MqttException(MqttException.REASON_CODE_INVALID_IDENTIFIER);
 				}
 
 			}
+		} catch (BufferUnderflowException e) {
+			throw new MqttException(MqttException.REASON_CODE_MALFORMED_PACKET, e);
 		}
-
 	}
 
 	/**
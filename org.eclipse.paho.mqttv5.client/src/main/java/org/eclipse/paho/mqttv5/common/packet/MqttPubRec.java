@@ -21,6 +21,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.packet.util.CountingInputStream;
@@ -108,6 +109,16 @@ public class MqttPubRec extends MqttAck {
 		this.reasonCode = returnCode;
 	}
 
+	@Override
+	public int encodedLength() throws MqttException {
+		return packetLength(ackRemainingLength(this.properties));
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) throws MqttException {
+		writeAckTo(buffer, this.properties);
+	}
+
 	@Override
 	public MqttProperties getProperties() {
 		return this.properties;
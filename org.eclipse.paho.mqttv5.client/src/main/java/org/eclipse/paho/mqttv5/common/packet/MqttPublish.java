@@ -22,6 +22,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
@@ -46,6 +47,10 @@ public class MqttPublish extends MqttPersistableWireMessage {
 	private boolean retained = false;
 	private boolean dup = false;
 	private String topicName;
+	// The topic name while it is left out for a Topic Alias
+	private String aliasedTopicName;
+	// When the packet was read from the network, for the callback queue latency
+	private long arrivalNanos = 0;
 
 	/**
 	 * Constructs a new MqttPublish message
@@ -110,6 +115,40 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		dis.close();
 	}
 
+	/**
+	 * Constructs a new MqttPublish message from a buffer, decoding the topic
+	 * and properties in place. The payload is copied once, into the array
+	 * returned by {@link #getPayload()}.
+	 *
+	 * @param info
+	 *            - Info Byte
+	 * @param data
+	 *            - The variable header and payload, exactly the remaining
+	 *            length long.
+	 * @throws MqttException
+	 *             - If an exception occurs decoding this packet
+	 */
+	public MqttPublish(byte info, ByteBuffer data) throws MqttException {
+		super(MqttWireMessage.MESSAGE_TYPE_PUBLISH);
+		this.properties = new MqttProperties(validProperties);
+		this.qos = (info >> 1) & 0x03;
+		if ((info & 0x01) == 0x01) {
+			this.retained = true;
+		}
+
+		if ((info & 0x08) == 0x08) {
+			this.dup = true;
+		}
+
+		topicName = MqttDataTypes.decodeUTF8(data);
+		if (this.qos > 0) {
+			msgId = MqttDataTypes.readUnsignedTwoByteInt(data);
+		}
+		this.properties.decodeProperties(data);
+		this.payload = new byte[data.remaining()];
+		data.get(this.payload);
+	}
+
 	@Override
 	protected byte[] getVariableHeader() throws MqttException {
 		try {
@@ -136,6 +175,35 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		}
 	}
 
+	@Override
+	public int encodedLength() throws MqttException {
+		return packetLength(remainingLength());
+	}
+
+	/**
+	 * Encodes the whole PUBLISH straight into the buffer, without building the
+	 * intermediate header and payload arrays.
+	 */
+	@Override
+	public void writeTo(ByteBuffer buffer) throws MqttException {
+		writeFixedHeader(buffer, remainingLength());
+		// If we are using a Topic Alias, then the topic should be empty
+		MqttDataTypes.encodeUTF8(buffer, topicName != null ? topicName : "");
+		if (this.qos > 0) {
+			buffer.putShort((short) msgId);
+		}
+		this.properties.writeTo(buffer);
+		buffer.put(payload);
+	}
+
+	private int remainingLength() throws MqttException {
+		int length = MqttDataTypes.encodedUTF8Length(topicName != null ? topicName : "");
+		if (this.qos > 0) {
+			length += 2;
+		}
+		return length + this.properties.encodedLength() + payload.length;
+	}
+
 	@Override
 	protected byte getMessageInfo() {
 		byte info = (byte) (this.qos << 1);
@@ -193,6 +261,45 @@ public class MqttPublish extends MqttPersistableWireMessage {
 		this.topicName = topicName;
 	}
 
+	/**
+	 * Sends the packet with a Topic Alias in place of its topic name, which is
+	 * kept for {@link #clearTopicAlias()}.
+	 *
+	 * @param topicAlias
+	 *            the alias the server already has for the topic
+	 */
+	public void replaceTopicName(int topicAlias) {
+		properties.setTopicAlias(topicAlias);
+		if (topicName != null) {
+			aliasedTopicName = topicName;
+			topicName = null;
+		}
+	}
+
+	/**
+	 * Removes any Topic Alias, putting back the topic name if the alias
+	 * replaced it, so the packet can be sent where the alias has no meaning.
+	 */
+	public void clearTopicAlias() {
+		properties.setTopicAlias(null);
+		if (aliasedTopicName != null) {
+			topicName = aliasedTopicName;
+			aliasedTopicName = null;
+		}
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} at which the packet was received,
+	 *         or 0 if it was not recorded
+	 */
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+
+	public void setArrivalNanos(long arrivalNanos) {
+		this.arrivalNanos = arrivalNanos;
+	}
+
 	@Override
 	public MqttProperties getProperties() {
 		return this.properties;
@@ -22,6 +22,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.eclipse.paho.mqttv5.common.ExceptionHelper;
 import org.eclipse.paho.mqttv5.common.MqttException;
@@ -160,6 +161,100 @@ public abstract class MqttWireMessage {
 
 	protected abstract byte[] getVariableHeader() throws MqttException;
 
+	/**
+	 * Returns the number of bytes {@link #writeTo(ByteBuffer)} will write, that
+	 * is the length of the header and the payload. Sub-classes on the hot path
+	 * override this to size the packet without encoding it.
+	 *
+	 * @return The encoded length of the whole packet
+	 * @throws MqttException
+	 *             if there was an issue encoding the message
+	 */
+	public int encodedLength() throws MqttException {
+		return getHeader().length + getPayload().length;
+	}
+
+	/**
+	 * Writes the whole packet, header followed by payload, into the buffer.
+	 * Sub-classes on the hot path override this to encode straight into the
+	 * buffer rather than through intermediate byte arrays.
+	 *
+	 * @param buffer
+	 *            the buffer to write to, with at least {@link #encodedLength()}
+	 *            bytes remaining
+	 * @throws MqttException
+	 *             if there was an issue encoding the message
+	 */
+	public void writeTo(ByteBuffer buffer) throws MqttException {
+		buffer.put(getHeader());
+		buffer.put(getPayload());
+	}
+
+	/**
+	 * @param remainingLength
+	 *            the length of the variable header and payload
+	 * @return the length of the whole packet including its fixed header
+	 */
+	protected static int packetLength(int remainingLength) {
+		return 1 + MqttDataTypes.variableByteIntegerLength(remainingLength) + remainingLength;
+	}
+
+	/**
+	 * Writes the fixed header, the first byte and the remaining length.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param remainingLength
+	 *            the length of the variable header and payload
+	 */
+	protected void writeFixedHeader(ByteBuffer buffer, int remainingLength) {
+		buffer.put((byte) (((getType() & 0x0f) << 4) ^ (getMessageInfo() & 0x0f)));
+		MqttDataTypes.writeVariableByteInteger(buffer, remainingLength);
+	}
+
+	/**
+	 * Calculates the remaining length of a PUBACK, PUBREC, PUBREL or PUBCOMP,
+	 * which omit the reason code and properties when they can.
+	 *
+	 * @param ackProperties
+	 *            the properties of the acknowledgement
+	 * @return the remaining length
+	 * @throws MqttException
+	 *             if there was an issue encoding the properties
+	 */
+	protected int ackRemainingLength(MqttProperties ackProperties) throws MqttException {
+		int propertiesLength = ackProperties.encodedLength();
+		if (reasonCode != MqttReturnCode.RETURN_CODE_SUCCESS && propertiesLength == 1) {
+			return 3;
+		} else if (reasonCode != MqttReturnCode.RETURN_CODE_SUCCESS || propertiesLength > 1) {
+			return 3 + propertiesLength;
+		}
+		return 2;
+	}
+
+	/**
+	 * Writes a whole PUBACK, PUBREC, PUBREL or PUBCOMP into the buffer, encoding
+	 * the same variable header as their getVariableHeader.
+	 *
+	 * @param buffer
+	 *            the buffer to write to
+	 * @param ackProperties
+	 *            the properties of the acknowledgement
+	 * @throws MqttException
+	 *             if there was an issue encoding the properties
+	 */
+	protected void writeAckTo(ByteBuffer buffer, MqttProperties ackProperties) throws MqttException {
+		int remainingLength = ackRemainingLength(ackProperties);
+		writeFixedHeader(buffer, remainingLength);
+		buffer.putShort((short) msgId);
+		if (remainingLength > 2) {
+			buffer.put((byte) reasonCode);
+		}
+		if (remainingLength > 3) {
+			ackProperties.writeTo(buffer);
+		}
+	}
+
 	/**
 	 * @return whether or not this message needs to include a message ID.
 	 */
@@ -198,6 +293,66 @@ public abstract class MqttWireMessage {
 		return createWireMessage(bais);
 	}
 
+	/**
+	 * Creates a message from its first byte and its body, decoding the body in
+	 * place where the packet type supports it.
+	 * 
+	 * @param first
+	 *            the first byte of the fixed header
+	 * @param body
+	 *            the variable header and payload, exactly the remaining length
+	 *            long. The message does not keep a reference to the buffer.
+	 * @return the decoded message
+	 * @throws MqttException
+	 *             if the packet is malformed
+	 */
+	static MqttWireMessage createWireMessage(byte first, ByteBuffer body) throws MqttException {
+		byte type = (byte) ((first >> 4) & 0x0F);
+		byte info = (byte) (first & 0x0F);
+		if (type == MqttWireMessage.MESSAGE_TYPE_PUBLISH) {
+			return new MqttPublish(info, body);
+		}
+		// The other packets are small and infrequent, decode them from a copy
+		byte[] data = new byte[body.remaining()];
+		body.get(data);
+		try {
+			switch (type) {
+			case MqttWireMessage.MESSAGE_TYPE_CONNECT:
+				return new MqttConnect(info, data);
+			case MqttWireMessage.MESSAGE_TYPE_CONNACK:
+				return new MqttConnAck(data);
+			case MqttWireMessage.MESSAGE_TYPE_PUBACK:
+				return new MqttPubAck(data);
+			case MqttWireMessage.MESSAGE_TYPE_PUBREC:
+				return new MqttPubRec(data);
+			case MqttWireMessage.MESSAGE_TYPE_PUBREL:
+				return new MqttPubRel(data);
+			case MqttWireMessage.MESSAGE_TYPE_PUBCOMP:
+				return new MqttPubComp(data);
+			case MqttWireMessage.MESSAGE_TYPE_SUBSCRIBE:
+				return new MqttSubscribe(data);
+			case MqttWireMessage.MESSAGE_TYPE_SUBACK:
+				return new MqttSubAck(data);
+			case MqttWireMessage.MESSAGE_TYPE_UNSUBSCRIBE:
+				return new MqttUnsubscribe(data);
+			case MqttWireMessage.MESSAGE_TYPE_UNSUBACK:
+				return new MqttUnsubAck(data);
+			case MqttWireMessage.MESSAGE_TYPE_PINGREQ:
+				return new MqttPingReq();
+			case MqttWireMessage.MESSAGE_TYPE_PINGRESP:
+				return new MqttPingResp();
+			case MqttWireMessage.MESSAGE_TYPE_DISCONNECT:
+				return new MqttDisconnect(data);
+			case MqttWireMessage.MESSAGE_TYPE_AUTH:
+				return new MqttAuth(data);
+			default:
+				throw ExceptionHelper.createMqttException(MqttException.REASON_CODE_MALFORMED_PACKET);
+			}
+		} catch (IOException ioe) {
+			throw new MqttException(ioe);
+		}
+	}
+
 	private static MqttWireMessage createWireMessage(InputStream inputStream) throws MqttException {
 		try {
 			CountingInputStream counter = new CountingInputStream(inputStream);
@@ -0,0 +1,95 @@
+/*
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ * https://www.eclipse.org/legal/epl-2.0
+ * and the Eclipse Distribution License is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php
+ */
+package org.eclipse.paho.mqttv5.common.packet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link MqttBufferPool} which keeps released heap buffers in power of two
+ * size classes. Each class holds a bounded number of free buffers; requests
+ * larger than the biggest class are allocated and dropped as if unpooled.
+ */
+public class SizeClassBufferPool implements MqttBufferPool {
+
+	private static final int MIN_SHIFT = 8; // 256 bytes
+
+	private static final SizeClassBufferPool DEFAULT = new SizeClassBufferPool(1024 * 1024, 32);
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger[] sizes;
+	private final int maxBuffersPerClass;
+	private final int maxCapacity;
+
+	/**
+	 * @return a pool shared by all clients in the JVM, pooling buffers of up to
+	 *         1 MiB
+	 */
+	public static SizeClassBufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @param maxCapacity
+	 *            the largest buffer that is pooled, rounded up to a power of
+	 *            two
+	 * @param maxBuffersPerClass
+	 *            the number of free buffers kept in each size class
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public SizeClassBufferPool(int maxCapacity, int maxBuffersPerClass) {
+		int classes = sizeClass(maxCapacity) + 1;
+		this.maxCapacity = 1 << (classes - 1 + MIN_SHIFT);
+		this.maxBuffersPerClass = maxBuffersPerClass;
+		this.free = new ConcurrentLinkedQueue[classes];
+		this.sizes = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sizes[i] = new AtomicInteger(0);
+		}
+	}
+
+	private static int sizeClass(int capacity) {
+		if (capacity <= (1 << MIN_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+
+	public ByteBuffer acquire(int capacity) {
+		if (capacity > maxCapacity) {
+			return ByteBuffer.allocate(capacity);
+		}
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = free[sizeClass].poll();
+		if (buffer == null) {
+			return ByteBuffer.allocate(1 << (sizeClass + MIN_SHIFT));
+		}
+		sizes[sizeClass].decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (capacity > maxCapacity || Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT)) {
+			// not one of ours
+			return;
+		}
+		int sizeClass = sizeClass(capacity);
+		if (sizes[sizeClass].incrementAndGet() > maxBuffersPerClass) {
+			sizes[sizeClass].decrementAndGet();
+			return;
+		}
+		free[sizeClass].add(buffer);
+	}
+}
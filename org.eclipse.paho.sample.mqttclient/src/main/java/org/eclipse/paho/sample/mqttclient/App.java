@@ -6,6 +6,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.eclipse.paho.sample.mqttclient.load.LoadExecutor;
 import org.eclipse.paho.sample.mqttclient.mqttv3.MqttV3Executor;
 import org.eclipse.paho.sample.mqttclient.mqttv5.MqttV5Executor;
 
@@ -17,6 +18,8 @@ import org.eclipse.paho.sample.mqttclient.mqttv5.MqttV5Executor;
  * <ul>
  * <li>as a publisher, sending a single message to a topic on the server.</li>
  * <li>as a subscriber, listening for messages from the server.</li>
+ * <li>as a load generator, measuring the throughput and latency of many
+ * clients publishing to the server and receiving their own messages.</li>
  * <ul>
  * 
  * If the application is run with the -h parameter, then the help information is
@@ -45,6 +48,8 @@ public class App {
 		// Mode
 		cliOptions.addOption("pub", "publish", false, "Send a message to a topic.");
 		cliOptions.addOption("sub", "subscribe", false, "Subscribe to a topic.");
+		cliOptions.addOption("load", "load", false,
+				"Generate load and report throughput and latency. Defaults to tcp://localhost:1883.");
 		// Debug / Verbosity
 		cliOptions.addOption("d", "debug", false, "Enable debug messages.");
 		cliOptions.addOption("Q", "quiet", false, "Don't print error messages.");
@@ -97,6 +102,20 @@ public class App {
 
 		// Subscribe
 
+		// Load
+		cliOptions.addOption("nc", "clients", true, "The number of clients to connect. Defaults to 1.");
+		cliOptions.addOption("np", "publishers", true, "The number of publishing threads per client. Defaults to 1.");
+		cliOptions.addOption("R", "rate", true,
+				"The target number of messages per second from all publishers together. Defaults to as fast as possible.");
+		cliOptions.addOption("W", "warmup", true, "The number of seconds to run before measuring. Defaults to 5.");
+		cliOptions.addOption("D", "duration", true, "The number of seconds to measure for. Defaults to 30.");
+		cliOptions.addOption("qm", "qos-mix", true,
+				"The share of messages to send at each QoS as qos:weight pairs, e.g. 0:50,1:40,2:10. Defaults to --qos.");
+		cliOptions.addOption("ps", "payload-size", true,
+				"The payload size in bytes, a min-max range or a list of sizes to choose from, e.g. 128, 64-4096 or 64,1024. Defaults to 128.");
+		cliOptions.addOption("pe", "persistence", true,
+				"The persistence to use: memory or file, or for MQTTv5 also log or mapped. Defaults to memory.");
+
 		// General
 		cliOptions.addOption("t", "topic", true, "MQTT Topic to Publish / Subscribe to.");
 		cliOptions.addOption("q", "qos", true, "Quality of Service level to use for all messages. Defaults to 0.");
@@ -132,18 +151,25 @@ public class App {
 
 			// Get Mode
 			Mode mode = Mode.PUB;
-			if (line.hasOption("pub") && !line.hasOption("sub")) {
+			int modes = (line.hasOption("pub") ? 1 : 0) + (line.hasOption("sub") ? 1 : 0)
+					+ (line.hasOption("load") ? 1 : 0);
+			if (modes == 1 && line.hasOption("pub")) {
 				// Process Publish Arguments
 				mode = Mode.PUB;
-			} else if (line.hasOption("sub") && !line.hasOption("pub")) {
+			} else if (modes == 1 && line.hasOption("sub")) {
 				// Process Subscribe Arguments
 				mode = Mode.SUB;
+			} else if (modes == 1 && line.hasOption("load")) {
+				mode = Mode.LOAD;
 			} else {
-				System.err.println("Please use either the -pub (--publish) OR -sub (--subscribe) modes");
+				System.err.println("Please use either the -pub (--publish), -sub (--subscribe) OR -load (--load) modes");
 				System.exit(1);
 			}
 
-			if (mqttVersion == 3) {
+			if (mode == Mode.LOAD) {
+				LoadExecutor loadExecutor = new LoadExecutor(line, mqttVersion, debug, quiet, actionTimeout);
+				loadExecutor.execute();
+			} else if (mqttVersion == 3) {
 				MqttV3Executor v3Executor = new MqttV3Executor(line, mode, debug, quiet, actionTimeout);
 				v3Executor.execute();
 			} else if (mqttVersion == 5) {
@@ -1,6 +1,6 @@
 package org.eclipse.paho.sample.mqttclient;
 
 public enum Mode {
-	PUB, SUB;
+	PUB, SUB, LOAD;
 
 }
@@ -0,0 +1,102 @@
+package org.eclipse.paho.sample.mqttclient.load;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One connection of a load run, which subscribes to its own messages. The
+ * MQTTv3 and MQTTv5 clients extend this to do the sending and pass on what
+ * they receive.
+ * <p>
+ * Publishers wait here while the client has as many messages in flight as it
+ * is allowed, rather than have the client reject them.
+ * </p>
+ */
+public abstract class LoadClient {
+
+	private static final long WAIT_MILLIS = 100;
+
+	protected final LoadRecorder recorder;
+	private final Semaphore inFlight;
+	private volatile boolean running = true;
+
+	protected LoadClient(LoadRecorder recorder, int maxInflight) {
+		this.recorder = recorder;
+		this.inFlight = new Semaphore(maxInflight);
+	}
+
+	public abstract void connect() throws Exception;
+
+	public abstract void subscribe(String topicFilter) throws Exception;
+
+	/**
+	 * Sends one message without waiting for it to be delivered. The
+	 * implementation must call {@link #delivered(long, boolean)} when the send
+	 * completes or fails.
+	 *
+	 * @return false if the client's in flight window is full, in which case
+	 *         the message was not sent
+	 */
+	protected abstract boolean send(String topic, byte[] payload, int qos, long intendedNanos) throws Exception;
+
+	public abstract void disconnect() throws Exception;
+
+	public abstract void close() throws Exception;
+
+	/**
+	 * Publishes a message, waiting for room in the in flight window. The
+	 * payload is stamped with the send time once there is room.
+	 *
+	 * @param topic
+	 *            - The topic to publish to
+	 * @param size
+	 *            - The payload size
+	 * @param qos
+	 *            - The QoS to publish at
+	 * @param intendedNanos
+	 *            - The System.nanoTime() at which the message should be sent
+	 * @return false if the client was stopped before the message could be sent
+	 */
+	public boolean publish(String topic, int size, int qos, long intendedNanos) throws Exception {
+		while (!inFlight.tryAcquire(WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (!running) {
+				return false;
+			}
+		}
+		byte[] payload = LoadRecorder.createPayload(size, intendedNanos, System.nanoTime());
+		try {
+			// The server's receive maximum can be below ours
+			while (!send(topic, payload, qos, intendedNanos)) {
+				if (!running) {
+					inFlight.release();
+					return false;
+				}
+				Thread.yield();
+			}
+		} catch (Exception e) {
+			inFlight.release();
+			throw e;
+		}
+		recorder.messageSent(intendedNanos, payload.length);
+		return true;
+	}
+
+	/**
+	 * Stops publishers waiting for room in the in flight window.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	protected void delivered(long intendedNanos, boolean success) {
+		inFlight.release();
+		if (!success) {
+			recorder.messageFailed(intendedNanos);
+		}
+	}
+
+	protected void messageArrived(byte[] payload) {
+		recorder.messageArrived(payload, System.nanoTime());
+	}
+
+}
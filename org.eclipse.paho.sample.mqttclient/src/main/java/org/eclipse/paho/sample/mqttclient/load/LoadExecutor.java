@@ -0,0 +1,358 @@
+package org.eclipse.paho.sample.mqttclient.load;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.eclipse.paho.mqttv5.client.LatencyHistogram;
+import org.eclipse.paho.sample.mqttclient.mqttv3.MqttV3LoadClient;
+import org.eclipse.paho.sample.mqttclient.mqttv5.MqttV5LoadClient;
+
+/**
+ * Generates load against a server and reports throughput, latency and the
+ * garbage collection and allocation it caused.
+ * <p>
+ * Each client subscribes to its own topics and runs a number of publishers,
+ * which together publish at the target rate, or as fast as they can if there
+ * is none. The latency of a message is from the time the rate says it should
+ * have been sent to the time it arrives back at the client, so a stall in the
+ * client or the server shows up in the latency of every message it delayed.
+ * Nothing is measured during the warmup.
+ * </p>
+ */
+public class LoadExecutor {
+
+	private static final long START_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final CommandLine commandLineParams;
+	private final LoadParameters loadParams;
+	private final LoadRecorder recorder = new LoadRecorder();
+	private final List<LoadClient> clients = new ArrayList<LoadClient>();
+	// The allocation of each publisher thread as it ended, by thread id
+	private final Map<Long, Long> endedAllocations = new ConcurrentHashMap<Long, Long>();
+	private final int mqttVersion;
+	private boolean quiet = false;
+	private boolean debug = false;
+	private int actionTimeout;
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * Initialises the Load Executor
+	 *
+	 * @param commandLineParams
+	 *            - Command Line Parameters
+	 * @param mqttVersion
+	 *            - The version of MQTT to use (3 or 5)
+	 * @param debug
+	 *            - Whether to print debug data to the console
+	 * @param quiet
+	 *            - Whether to hide error messages
+	 * @param actionTimeout
+	 *            - How long to wait to complete an action before failing.
+	 */
+	public LoadExecutor(CommandLine commandLineParams, int mqttVersion, boolean debug, boolean quiet,
+			int actionTimeout) {
+		this.commandLineParams = commandLineParams;
+		this.loadParams = new LoadParameters(commandLineParams);
+		this.mqttVersion = mqttVersion;
+		this.debug = debug;
+		this.quiet = quiet;
+		this.actionTimeout = actionTimeout;
+	}
+
+	public void execute() {
+		File directory = null;
+		try {
+			directory = Files.createTempDirectory("paho-load").toFile();
+			logMessage(String.format("Connecting %d clients to %s using MQTTv%d with %s persistence",
+					loadParams.getClients(), loadParams.getHostURI(), mqttVersion, loadParams.getPersistence()), false);
+			for (int i = 0; i < loadParams.getClients(); i++) {
+				LoadClient client;
+				if (mqttVersion == 3) {
+					client = new MqttV3LoadClient(commandLineParams, loadParams, i, directory.getPath(), recorder,
+							actionTimeout);
+				} else {
+					client = new MqttV5LoadClient(commandLineParams, loadParams, i, directory.getPath(), recorder,
+							actionTimeout);
+				}
+				clients.add(client);
+				client.connect();
+				client.subscribe(loadParams.getTopic() + "/" + i + "/#");
+			}
+
+			int totalPublishers = loadParams.getClients() * loadParams.getPublishers();
+			long interval = 0;
+			if (loadParams.getRate() > 0) {
+				interval = Math.round(TimeUnit.SECONDS.toNanos(1) * totalPublishers / loadParams.getRate());
+			}
+			long start = System.nanoTime() + START_DELAY_NANOS;
+			long measureStart = start + TimeUnit.SECONDS.toNanos(loadParams.getWarmup());
+			long end = measureStart + TimeUnit.SECONDS.toNanos(loadParams.getDuration());
+			recorder.setWindow(measureStart, end);
+
+			logMessage(String.format("Running %d publishers for %ds after a %ds warmup, at %s, QoS %s, %s bytes",
+					totalPublishers, loadParams.getDuration(), loadParams.getWarmup(),
+					loadParams.getRate() > 0 ? String.format("%,.0f msg/s", loadParams.getRate()) : "maximum rate",
+					loadParams.getQosMix(), loadParams.getPayloadSizes()), false);
+			List<Thread> publishers = new ArrayList<Thread>();
+			for (int i = 0; i < loadParams.getClients(); i++) {
+				for (int j = 0; j < loadParams.getPublishers(); j++) {
+					int n = publishers.size();
+					Thread publisher = new Thread(new Publisher(clients.get(i), loadParams.getTopic() + "/" + i + "/" + j,
+							start + interval * n / totalPublishers, interval, end), "Publisher-" + i + "-" + j);
+					publishers.add(publisher);
+					publisher.start();
+				}
+			}
+
+			sleepUntil(measureStart);
+			logMessage("Warmup complete.", true);
+			JvmSnapshot before = new JvmSnapshot(endedAllocations);
+			for (Thread publisher : publishers) {
+				publisher.join();
+			}
+			JvmSnapshot after = new JvmSnapshot(endedAllocations);
+			logMessage("Waiting for messages in flight.", true);
+			long drainEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(actionTimeout);
+			while (recorder.getReceived() + recorder.getFailed() < recorder.getSent()
+					&& System.nanoTime() - drainEnd < 0) {
+				Thread.sleep(10);
+			}
+			report(before, after);
+		} catch (Exception ex) {
+			logError(String.format("Exception occured whilst generating load: %s", ex.getMessage()));
+			if (debug) {
+				ex.printStackTrace();
+			}
+		} finally {
+			keepRunning = false;
+			closeClients();
+			if (directory != null) {
+				delete(directory);
+			}
+		}
+	}
+
+	/**
+	 * Publishes to one topic at a fixed rate. Each message is stamped with the
+	 * time it was due, so if the publisher falls behind, the messages it sends
+	 * to catch up carry the delay.
+	 */
+	private class Publisher implements Runnable {
+		private final LoadClient client;
+		private final String topic;
+		private final long first;
+		private final long interval;
+		private final long end;
+
+		Publisher(LoadClient client, String topic, long first, long interval, long end) {
+			this.client = client;
+			this.topic = topic;
+			this.first = first;
+			this.interval = interval;
+			this.end = end;
+		}
+
+		public void run() {
+			Random random = ThreadLocalRandom.current();
+			long intended = first;
+			try {
+				while (keepRunning) {
+					long now = System.nanoTime();
+					if (interval == 0) {
+						intended = now;
+					} else if (intended - now > 0) {
+						LockSupport.parkNanos(intended - now);
+						continue;
+					}
+					if (intended - end >= 0) {
+						break;
+					}
+					if (!client.publish(topic, loadParams.nextPayloadSize(random), loadParams.nextQos(random),
+							intended)) {
+						break;
+					}
+					intended += interval;
+				}
+			} catch (Exception ex) {
+				logError(String.format("Exception occured whilst publishing to %s: %s", topic, ex.getMessage()));
+			} finally {
+				// Once the thread has ended its allocation can no longer be read
+				long allocated = JvmSnapshot.currentThreadAllocatedBytes();
+				if (allocated >= 0) {
+					endedAllocations.put(Long.valueOf(Thread.currentThread().getId()), Long.valueOf(allocated));
+				}
+			}
+		}
+	}
+
+	private void report(JvmSnapshot before, JvmSnapshot after) {
+		double seconds = loadParams.getDuration();
+		long sent = recorder.getSent();
+		long received = recorder.getReceived();
+		logMessage(String.format("Sent:     %,d messages, %,.1f msg/s, %,.2f MB/s", sent, sent / seconds,
+				recorder.getSentBytes() / seconds / (1024 * 1024)), false);
+		logMessage(String.format("Received: %,d messages, %,.1f msg/s, %,.2f MB/s", received, received / seconds,
+				recorder.getReceivedBytes() / seconds / (1024 * 1024)), false);
+		logMessage(String.format("Failed:   %,d messages, %,d not received, %,d connections lost",
+				recorder.getFailed(), Math.max(0, sent - received - recorder.getFailed()),
+				recorder.getConnectionsLost()), false);
+		logMessage("Latency from intended send time (us):", false);
+		logMessage(formatLatency(recorder.getLatency()), false);
+		logMessage("Latency from actual send time (us):", false);
+		logMessage(formatLatency(recorder.getServiceTime()), false);
+		logMessage(String.format("GC:       %,d collections, %,d ms", after.gcCount - before.gcCount,
+				after.gcMillis - before.gcMillis), false);
+		if (before.allocatedBytes != null && after.allocatedBytes != null) {
+			long allocated = after.allocatedSince(before);
+			logMessage(String.format("Allocated: %,.1f MB, %,.0f bytes per message", allocated / (1024.0 * 1024),
+					sent > 0 ? (double) allocated / sent : 0.0), false);
+		}
+	}
+
+	private static String formatLatency(LatencyHistogram histogram) {
+		return String.format("  p50 %,.1f  p90 %,.1f  p99 %,.1f  p99.9 %,.1f  max %,.1f  mean %,.1f",
+				histogram.getP50() / 1000.0, histogram.getP90() / 1000.0, histogram.getP99() / 1000.0,
+				histogram.getP999() / 1000.0, histogram.getMax() / 1000.0, histogram.getMean() / 1000.0);
+	}
+
+	/**
+	 * The garbage collection and allocation so far. Allocation is counted per
+	 * thread, as it can only be read for live threads. Threads which ended
+	 * before the snapshot are counted if their allocation was recorded as they
+	 * ended, as the publishers do.
+	 */
+	static class JvmSnapshot {
+		long gcCount = 0;
+		long gcMillis = 0;
+		// Bytes allocated by each thread, by thread id, or null if not supported
+		Map<Long, Long> allocatedBytes = null;
+
+		/**
+		 * @param ended
+		 *            the allocation of threads which have ended, by thread id
+		 */
+		JvmSnapshot(Map<Long, Long> ended) {
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(0, gc.getCollectionCount());
+				gcMillis += Math.max(0, gc.getCollectionTime());
+			}
+			com.sun.management.ThreadMXBean threads = allocationBean();
+			if (threads != null) {
+				allocatedBytes = new HashMap<Long, Long>(ended);
+				long[] ids = threads.getAllThreadIds();
+				long[] bytes = threads.getThreadAllocatedBytes(ids);
+				for (int i = 0; i < ids.length; i++) {
+					if (bytes[i] >= 0) {
+						allocatedBytes.put(Long.valueOf(ids[i]), Long.valueOf(bytes[i]));
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the bytes allocated by the threads in this snapshot since the
+		 *         earlier one, where a thread not in the earlier one started
+		 *         after it
+		 */
+		long allocatedSince(JvmSnapshot earlier) {
+			long allocated = 0;
+			for (Map.Entry<Long, Long> entry : allocatedBytes.entrySet()) {
+				Long start = earlier.allocatedBytes.get(entry.getKey());
+				allocated += Math.max(0, entry.getValue().longValue() - (start == null ? 0 : start.longValue()));
+			}
+			return allocated;
+		}
+
+		/**
+		 * @return the bytes allocated by the calling thread, or -1 if not
+		 *         supported
+		 */
+		static long currentThreadAllocatedBytes() {
+			com.sun.management.ThreadMXBean threads = allocationBean();
+			return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		private static com.sun.management.ThreadMXBean allocationBean() {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+				if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+					return sunThreads;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static void sleepUntil(long nanos) throws InterruptedException {
+		long remaining;
+		while ((remaining = nanos - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+	}
+
+	private void closeClients() {
+		for (LoadClient client : clients) {
+			client.stop();
+		}
+		for (LoadClient client : clients) {
+			try {
+				client.disconnect();
+			} catch (Exception ex) {
+				logMessage(String.format("Disconnect failed: %s", ex.getMessage()), true);
+			}
+			try {
+				client.close();
+			} catch (Exception ex) {
+				logMessage(String.format("Close failed: %s", ex.getMessage()), true);
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Log a message to the console, nothing fancy.
+	 *
+	 * @param message
+	 * @param isDebug
+	 */
+	private void logMessage(String message, boolean isDebug) {
+		if ((this.debug == true && isDebug == true) || isDebug == false) {
+			System.out.println(message);
+		}
+	}
+
+	/**
+	 * Log an error to the console
+	 *
+	 * @param error
+	 */
+	private void logError(String error) {
+		if (this.quiet == false) {
+			System.err.println(error);
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.eclipse.paho.sample.mqttclient.load;
+
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+
+/**
+ * The parameters of a load run, taken from the command line.
+ */
+public class LoadParameters {
+
+	/** Each payload starts with the intended and the actual send time. */
+	public static final int MIN_PAYLOAD_SIZE = 16;
+
+	private String hostURI = "tcp://localhost:1883";
+	private String topic = "paho/load";
+	private int clients = 1;
+	private int publishers = 1;
+	private double rate = 0;
+	private int warmup = 5;
+	private int duration = 30;
+	private int maxInflight = 1000;
+	private String persistence = "memory";
+	private int[] qosWeights = { 0, 0, 0 };
+	private int totalQosWeight;
+	private int[] payloadSizes = { 128 };
+	private boolean payloadRange = false;
+
+	public LoadParameters(CommandLine cliOptions) {
+		if (cliOptions.hasOption("host")) {
+			hostURI = cliOptions.getOptionValue("host");
+		}
+		if (cliOptions.hasOption("topic")) {
+			topic = cliOptions.getOptionValue("topic");
+		}
+		if (cliOptions.hasOption("clients")) {
+			clients = Integer.parseInt(cliOptions.getOptionValue("clients"));
+		}
+		if (cliOptions.hasOption("publishers")) {
+			publishers = Integer.parseInt(cliOptions.getOptionValue("publishers"));
+		}
+		if (cliOptions.hasOption("rate")) {
+			rate = Double.parseDouble(cliOptions.getOptionValue("rate"));
+		}
+		if (cliOptions.hasOption("warmup")) {
+			warmup = Integer.parseInt(cliOptions.getOptionValue("warmup"));
+		}
+		if (cliOptions.hasOption("duration")) {
+			duration = Integer.parseInt(cliOptions.getOptionValue("duration"));
+		}
+		if (cliOptions.hasOption("max-inflight")) {
+			maxInflight = Integer.parseInt(cliOptions.getOptionValue("max-inflight"));
+		}
+		if (cliOptions.hasOption("persistence")) {
+			persistence = cliOptions.getOptionValue("persistence");
+		}
+
+		// The QoS mix is a list of qos:weight pairs, e.g. 0:50,1:40,2:10
+		if (cliOptions.hasOption("qos-mix")) {
+			for (String entry : cliOptions.getOptionValue("qos-mix").split(",")) {
+				String[] pair = entry.trim().split(":");
+				int qos = Integer.parseInt(pair[0]);
+				if (qos < 0 || qos > 2) {
+					throw new IllegalArgumentException("Invalid QoS in qos-mix: " + entry);
+				}
+				qosWeights[qos] = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+			}
+		} else {
+			int qos = 0;
+			if (cliOptions.hasOption("qos")) {
+				qos = Integer.parseInt(cliOptions.getOptionValue("qos"));
+			}
+			qosWeights[qos] = 1;
+		}
+		totalQosWeight = qosWeights[0] + qosWeights[1] + qosWeights[2];
+		if (totalQosWeight <= 0) {
+			throw new IllegalArgumentException("The qos-mix must give at least one QoS a weight");
+		}
+
+		// The payload size is a size, a min-max range or a list of sizes
+		if (cliOptions.hasOption("payload-size")) {
+			String value = cliOptions.getOptionValue("payload-size");
+			String[] sizes;
+			if (value.contains("-")) {
+				sizes = value.split("-");
+				payloadRange = true;
+			} else {
+				sizes = value.split(",");
+			}
+			payloadSizes = new int[sizes.length];
+			for (int i = 0; i < sizes.length; i++) {
+				payloadSizes[i] = Math.max(MIN_PAYLOAD_SIZE, Integer.parseInt(sizes[i].trim()));
+			}
+			if (payloadRange && (sizes.length != 2 || payloadSizes[0] > payloadSizes[1])) {
+				throw new IllegalArgumentException("Invalid payload-size range: " + value);
+			}
+		}
+	}
+
+	/**
+	 * @param random
+	 *            - The random number generator of the calling thread
+	 * @return The QoS of the next message, chosen by the weights of the QoS mix
+	 */
+	public int nextQos(Random random) {
+		int choice = random.nextInt(totalQosWeight);
+		if (choice < qosWeights[0]) {
+			return 0;
+		}
+		return choice < qosWeights[0] + qosWeights[1] ? 1 : 2;
+	}
+
+	/**
+	 * @param random
+	 *            - The random number generator of the calling thread
+	 * @return The payload size of the next message, chosen uniformly from the
+	 *         range or list of sizes
+	 */
+	public int nextPayloadSize(Random random) {
+		if (payloadRange) {
+			return payloadSizes[0] + random.nextInt(payloadSizes[1] - payloadSizes[0] + 1);
+		}
+		return payloadSizes[random.nextInt(payloadSizes.length)];
+	}
+
+	public String getHostURI() {
+		return hostURI;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public int getClients() {
+		return clients;
+	}
+
+	public int getPublishers() {
+		return publishers;
+	}
+
+	/**
+	 * @return The target number of messages a second from all publishers
+	 *         together, or 0 to publish as fast as possible
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	public int getWarmup() {
+		return warmup;
+	}
+
+	public int getDuration() {
+		return duration;
+	}
+
+	public int getMaxInflight() {
+		return maxInflight;
+	}
+
+	public String getPersistence() {
+		return persistence;
+	}
+
+	public String getQosMix() {
+		StringBuilder mix = new StringBuilder();
+		for (int qos = 0; qos < qosWeights.length; qos++) {
+			if (qosWeights[qos] > 0) {
+				if (mix.length() > 0) {
+					mix.append(',');
+				}
+				mix.append(qos).append(':').append(qosWeights[qos]);
+			}
+		}
+		return mix.toString();
+	}
+
+	public String getPayloadSizes() {
+		StringBuilder sizes = new StringBuilder();
+		for (int i = 0; i < payloadSizes.length; i++) {
+			if (i > 0) {
+				sizes.append(payloadRange ? '-' : ',');
+			}
+			sizes.append(payloadSizes[i]);
+		}
+		return sizes.toString();
+	}
+
+}
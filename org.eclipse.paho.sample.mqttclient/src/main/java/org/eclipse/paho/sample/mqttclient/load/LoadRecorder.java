@@ -0,0 +1,128 @@
+package org.eclipse.paho.sample.mqttclient.load;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.paho.mqttv5.client.LatencyHistogram;
+
+/**
+ * Records the messages sent and received during the measured part of a run.
+ * <p>
+ * Each payload carries the time the message should have been sent by the
+ * target rate and the time it actually was. The latency from the intended
+ * time includes any time the message waited because an earlier one was slow,
+ * which a latency taken from the actual send time leaves out, so it is not
+ * skewed by coordinated omission. Only messages intended to be sent inside
+ * the measurement window are counted, wherever they complete.
+ * </p>
+ */
+public class LoadRecorder {
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder sentBytes = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder receivedBytes = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder connectionsLost = new LongAdder();
+	private volatile long windowStart = Long.MAX_VALUE;
+	private volatile long windowEnd = Long.MAX_VALUE;
+
+	/**
+	 * Sets the measurement window.
+	 *
+	 * @param start
+	 *            - The System.nanoTime() at which measurement starts
+	 * @param end
+	 *            - The System.nanoTime() at which measurement ends
+	 */
+	public void setWindow(long start, long end) {
+		this.windowStart = start;
+		this.windowEnd = end;
+	}
+
+	/**
+	 * Creates a payload stamped with the intended and actual send times.
+	 */
+	public static byte[] createPayload(int size, long intendedNanos, long sentNanos) {
+		byte[] payload = new byte[size];
+		ByteBuffer.wrap(payload).putLong(intendedNanos).putLong(sentNanos);
+		return payload;
+	}
+
+	public void messageSent(long intendedNanos, int size) {
+		if (inWindow(intendedNanos)) {
+			sent.increment();
+			sentBytes.add(size);
+		}
+	}
+
+	public void messageFailed(long intendedNanos) {
+		if (inWindow(intendedNanos)) {
+			failed.increment();
+		}
+	}
+
+	public void messageArrived(byte[] payload, long arrivalNanos) {
+		if (payload.length < LoadParameters.MIN_PAYLOAD_SIZE) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		long intendedNanos = buffer.getLong();
+		long sentNanos = buffer.getLong();
+		if (inWindow(intendedNanos)) {
+			latency.record(arrivalNanos - intendedNanos);
+			serviceTime.record(arrivalNanos - sentNanos);
+			received.increment();
+			receivedBytes.add(payload.length);
+		}
+	}
+
+	public void connectionLost() {
+		connectionsLost.increment();
+	}
+
+	private boolean inWindow(long nanos) {
+		return nanos - windowStart >= 0 && nanos - windowEnd < 0;
+	}
+
+	/**
+	 * @return The latency from the intended send time to arrival
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return The latency from the actual send time to arrival
+	 */
+	public LatencyHistogram getServiceTime() {
+		return serviceTime;
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	public long getSentBytes() {
+		return sentBytes.sum();
+	}
+
+	public long getReceived() {
+		return received.sum();
+	}
+
+	public long getReceivedBytes() {
+		return receivedBytes.sum();
+	}
+
+	public long getFailed() {
+		return failed.sum();
+	}
+
+	public long getConnectionsLost() {
+		return connectionsLost.sum();
+	}
+
+}
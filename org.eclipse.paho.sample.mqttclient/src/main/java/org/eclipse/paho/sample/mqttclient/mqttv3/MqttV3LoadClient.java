@@ -0,0 +1,122 @@
+package org.eclipse.paho.sample.mqttclient.mqttv3;
+
+import java.net.URISyntaxException;
+
+import org.apache.commons.cli.CommandLine;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.sample.mqttclient.load.LoadClient;
+import org.eclipse.paho.sample.mqttclient.load.LoadParameters;
+import org.eclipse.paho.sample.mqttclient.load.LoadRecorder;
+
+/**
+ * An MQTTv3 connection of a load run.
+ */
+public class MqttV3LoadClient extends LoadClient implements MqttCallback, IMqttActionListener {
+
+	private final MqttV3Connection connectionParams;
+	private final MqttAsyncClient v3Client;
+	private final int actionTimeout;
+
+	/**
+	 * @param commandLineParams
+	 *            - Command Line Parameters
+	 * @param loadParams
+	 *            - The parameters of the load run
+	 * @param index
+	 *            - The number of this client, which is added to the client ID
+	 * @param directory
+	 *            - The directory for file based persistence
+	 * @param recorder
+	 *            - Where to record the messages sent and received
+	 * @param actionTimeout
+	 *            - How long to wait to complete an action before failing.
+	 */
+	public MqttV3LoadClient(CommandLine commandLineParams, LoadParameters loadParams, int index, String directory,
+			LoadRecorder recorder, int actionTimeout) throws MqttException, URISyntaxException {
+		super(recorder, loadParams.getMaxInflight());
+		this.connectionParams = new MqttV3Connection(commandLineParams);
+		this.connectionParams.getConOpts().setMaxInflight(loadParams.getMaxInflight());
+		this.actionTimeout = actionTimeout;
+		this.v3Client = new MqttAsyncClient(loadParams.getHostURI(), connectionParams.getClientID() + "-" + index,
+				createPersistence(loadParams.getPersistence(), directory));
+		this.v3Client.setCallback(this);
+	}
+
+	static MqttClientPersistence createPersistence(String persistence, String directory) {
+		if (persistence.equals("memory")) {
+			return new MemoryPersistence();
+		} else if (persistence.equals("file")) {
+			return new MqttDefaultFilePersistence(directory);
+		}
+		throw new IllegalArgumentException("Unknown persistence for MQTTv3: " + persistence);
+	}
+
+	@Override
+	public void connect() throws MqttException {
+		v3Client.connect(connectionParams.getConOpts()).waitForCompletion(actionTimeout);
+	}
+
+	@Override
+	public void subscribe(String topicFilter) throws MqttException {
+		v3Client.subscribe(topicFilter, 2).waitForCompletion(actionTimeout);
+	}
+
+	@Override
+	protected boolean send(String topic, byte[] payload, int qos, long intendedNanos) throws MqttException {
+		try {
+			v3Client.publish(topic, payload, qos, false, Long.valueOf(intendedNanos), this);
+			return true;
+		} catch (MqttException e) {
+			if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void disconnect() throws MqttException {
+		v3Client.disconnect().waitForCompletion(actionTimeout);
+	}
+
+	@Override
+	public void close() throws MqttException {
+		v3Client.close();
+	}
+
+	@Override
+	public void onSuccess(IMqttToken asyncActionToken) {
+		delivered(((Long) asyncActionToken.getUserContext()).longValue(), true);
+	}
+
+	@Override
+	public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+		delivered(((Long) asyncActionToken.getUserContext()).longValue(), false);
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		messageArrived(message.getPayload());
+	}
+
+	@Override
+	public void connectionLost(Throwable cause) {
+		recorder.connectionLost();
+		System.err.println(String.format("Client %s lost its connection: %s", v3Client.getClientId(),
+				cause.getMessage()));
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+	}
+
+}
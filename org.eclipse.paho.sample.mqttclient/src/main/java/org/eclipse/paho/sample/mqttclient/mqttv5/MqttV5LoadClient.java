@@ -0,0 +1,140 @@
+package org.eclipse.paho.sample.mqttclient.mqttv5;
+
+import org.apache.commons.cli.CommandLine;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientException;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.mqttv5.client.persist.MqttLogFilePersistence;
+import org.eclipse.paho.mqttv5.client.persist.MqttMappedFilePersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import org.eclipse.paho.sample.mqttclient.load.LoadClient;
+import org.eclipse.paho.sample.mqttclient.load.LoadParameters;
+import org.eclipse.paho.sample.mqttclient.load.LoadRecorder;
+
+/**
+ * An MQTTv5 connection of a load run.
+ */
+public class MqttV5LoadClient extends LoadClient implements MqttCallback, MqttActionListener {
+
+	private final MqttV5Connection connectionParams;
+	private final MqttAsyncClient v5Client;
+	private final int actionTimeout;
+
+	/**
+	 * @param commandLineParams
+	 *            - Command Line Parameters
+	 * @param loadParams
+	 *            - The parameters of the load run
+	 * @param index
+	 *            - The number of this client, which is added to the client ID
+	 * @param directory
+	 *            - The directory for file based persistence
+	 * @param recorder
+	 *            - Where to record the messages sent and received
+	 * @param actionTimeout
+	 *            - How long to wait to complete an action before failing.
+	 */
+	public MqttV5LoadClient(CommandLine commandLineParams, LoadParameters loadParams, int index, String directory,
+			LoadRecorder recorder, int actionTimeout) throws MqttException {
+		super(recorder, loadParams.getMaxInflight());
+		this.connectionParams = new MqttV5Connection(commandLineParams);
+		this.actionTimeout = actionTimeout;
+		this.v5Client = new MqttAsyncClient(loadParams.getHostURI(), connectionParams.getClientID() + "-" + index,
+				createPersistence(loadParams.getPersistence(), directory));
+		this.v5Client.setCallback(this);
+	}
+
+	static MqttClientPersistence createPersistence(String persistence, String directory) {
+		if (persistence.equals("memory")) {
+			return new MemoryPersistence();
+		} else if (persistence.equals("file")) {
+			return new MqttDefaultFilePersistence(directory);
+		} else if (persistence.equals("log")) {
+			return new MqttLogFilePersistence(directory);
+		} else if (persistence.equals("mapped")) {
+			return new MqttMappedFilePersistence(directory);
+		}
+		throw new IllegalArgumentException("Unknown persistence for MQTTv5: " + persistence);
+	}
+
+	@Override
+	public void connect() throws MqttException {
+		v5Client.connect(connectionParams.getConOpts()).waitForCompletion(actionTimeout);
+	}
+
+	@Override
+	public void subscribe(String topicFilter) throws MqttException {
+		v5Client.subscribe(topicFilter, 2).waitForCompletion(actionTimeout);
+	}
+
+	@Override
+	protected boolean send(String topic, byte[] payload, int qos, long intendedNanos) throws MqttException {
+		try {
+			v5Client.publish(topic, payload, qos, false, Long.valueOf(intendedNanos), this);
+			return true;
+		} catch (MqttException e) {
+			if (e.getReasonCode() == MqttClientException.REASON_CODE_MAX_INFLIGHT) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void disconnect() throws MqttException {
+		v5Client.disconnect().waitForCompletion(actionTimeout);
+	}
+
+	@Override
+	public void close() throws MqttException {
+		v5Client.close();
+	}
+
+	@Override
+	public void onSuccess(IMqttToken asyncActionToken) {
+		delivered(((Long) asyncActionToken.getUserContext()).longValue(), true);
+	}
+
+	@Override
+	public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+		delivered(((Long) asyncActionToken.getUserContext()).longValue(), false);
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		messageArrived(message.getPayload());
+	}
+
+	@Override
+	public void disconnected(MqttDisconnectResponse disconnectResponse) {
+		recorder.connectionLost();
+		System.err.println(String.format("Client %s lost its connection: %s", v5Client.getClientId(),
+				disconnectResponse.getReasonString()));
+	}
+
+	@Override
+	public void mqttErrorOccurred(MqttException exception) {
+		System.err.println(String.format("An MQTT error occurred: %s", exception.getMessage()));
+	}
+
+	@Override
+	public void deliveryComplete(IMqttToken token) {
+	}
+
+	@Override
+	public void connectComplete(boolean reconnect, String serverURI) {
+	}
+
+	@Override
+	public void authPacketArrived(int reasonCode, MqttProperties properties) {
+	}
+
+}